@@ -0,0 +1,53 @@
+#!/usr/bin/env sh
+# Compares POST /invoice with plain, gzip and zstd compressed files.
+#
+# Needs gzip, zstd and the Postgres from `./gradlew composeUp`. Generates a file pair, compresses
+# it both ways, then uploads each variant in streaming mode and prints the upload size, the wall
+# time of the request and the peak size of the application's temp directory, which is where
+# multipart keeps the uploaded parts.
+#
+#   scripts/compressed-upload.sh [invoices]
+set -eu
+
+INVOICES=${1:-1000000}
+BASE_URL=http://localhost:8080
+DATA=build/compressed-upload
+TMP=build/compressed-upload-tmp
+
+cd "$(dirname "$0")/.."
+./gradlew -q bootJar
+JAR=$(ls build/libs/*-SNAPSHOT.jar | grep -v plain | head -1)
+
+./gradlew -q generateData -PgeneratorArgs="--invoices=$INVOICES --out=$DATA"
+gzip -kf "$DATA/invoices.csv" "$DATA/transactions.csv"
+zstd -qkf "$DATA/invoices.csv" "$DATA/transactions.csv"
+
+rm -rf "$TMP" && mkdir -p "$TMP"
+java -Djava.io.tmpdir="$TMP" -jar "$JAR" \
+  --spring.servlet.multipart.max-file-size=-1 --spring.servlet.multipart.max-request-size=-1 \
+  > build/compressed-upload.log 2>&1 &
+APP_PID=$!
+trap 'kill $APP_PID 2>/dev/null' EXIT
+for _ in $(seq 1 60); do
+  curl -sf "$BASE_URL/" > /dev/null && break
+  sleep 1
+done
+
+for SUFFIX in "" .gz .zst; do
+  BYTES=$(($(wc -c < "$DATA/invoices.csv$SUFFIX") + $(wc -c < "$DATA/transactions.csv$SUFFIX")))
+  PEAK_FILE=$(mktemp)
+  echo 0 > "$PEAK_FILE"
+  (
+    while :; do
+      USED=$(du -sk "$TMP" | cut -f1)
+      [ "$USED" -gt "$(cat "$PEAK_FILE")" ] && echo "$USED" > "$PEAK_FILE"
+      sleep 0.2
+    done
+  ) &
+  SAMPLER_PID=$!
+  TIME=$(curl -sf -o /dev/null -w '%{time_total}' -X POST "$BASE_URL/invoice?mode=streaming" \
+    -F "invoices=@$DATA/invoices.csv$SUFFIX" -F "transactions=@$DATA/transactions.csv$SUFFIX")
+  kill "$SAMPLER_PID"
+  echo "csv${SUFFIX:-}: uploaded ${BYTES} bytes in ${TIME}s, peak temp dir $(cat "$PEAK_FILE") KB"
+  rm -f "$PEAK_FILE"
+done
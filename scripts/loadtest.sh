@@ -0,0 +1,50 @@
+#!/usr/bin/env sh
+# Compares GET /invoice/{id} and /status latency with platform and virtual request threads.
+#
+# Needs `hey` (https://github.com/rakyll/hey) and the Postgres from `./gradlew composeUp`.
+# Builds the jar, seeds the sample data, then for each mode starts the application, warms it
+# up, runs the same burst and prints the latency distribution. Compare the p99 lines.
+#
+#   scripts/loadtest.sh [requests] [concurrency]
+set -eu
+
+REQUESTS=${1:-200000}
+CONCURRENCY=${2:-400}
+BASE_URL=http://localhost:8080
+INVOICE_ID=31620
+
+cd "$(dirname "$0")/.."
+./gradlew -q bootJar
+JAR=$(ls build/libs/*-SNAPSHOT.jar | grep -v plain | head -1)
+
+wait_for_app() {
+  for _ in $(seq 1 60); do
+    curl -sf "$BASE_URL/" > /dev/null && return 0
+    sleep 1
+  done
+  echo "application did not start" >&2
+  exit 1
+}
+
+for VIRTUAL in false true; do
+  echo "=== spring.threads.virtual.enabled=$VIRTUAL ==="
+  VIRTUAL_THREADS=$VIRTUAL java -jar "$JAR" --invoice.cache.ttl=0s > "build/loadtest-$VIRTUAL.log" 2>&1 &
+  APP_PID=$!
+  trap 'kill $APP_PID 2>/dev/null' EXIT
+  wait_for_app
+
+  curl -sf -X POST "$BASE_URL/invoice" \
+    -F "invoices=@src/main/resources/data/invoices.csv" \
+    -F "transactions=@src/main/resources/data/transactions.csv" > /dev/null
+
+  # warm-up, results discarded
+  hey -n 20000 -c 50 "$BASE_URL/invoice/$INVOICE_ID" > /dev/null
+
+  echo "--- GET /invoice/$INVOICE_ID"
+  hey -n "$REQUESTS" -c "$CONCURRENCY" "$BASE_URL/invoice/$INVOICE_ID" | sed -n '/Summary/,/Details/p'
+  echo "--- GET /invoice/$INVOICE_ID/status"
+  hey -n "$REQUESTS" -c "$CONCURRENCY" "$BASE_URL/invoice/$INVOICE_ID/status" | sed -n '/Summary/,/Details/p'
+
+  kill "$APP_PID"
+  wait "$APP_PID" 2>/dev/null || true
+done
@@ -0,0 +1,44 @@
+#!/usr/bin/env sh
+# Compares POST /invoice with persistence=jpa and persistence=jdbc on a 1M-transaction upload.
+#
+# Needs the Postgres from `./gradlew composeUp`. Generates 250,000 invoices with four transactions
+# each, then for each persistence mode empties the invoice tables and uploads the pair twice in
+# standard mode: once into empty tables and once over the stored rows, as a re-upload does. Prints
+# the wall time of each request. The response is the usual InvoiceDto list and is discarded.
+#
+#   scripts/persistence-benchmark.sh [invoices] [heap]
+set -eu
+
+INVOICES=${1:-250000}
+HEAP=${2:-8g}
+BASE_URL=http://localhost:8080
+DATA=build/persistence-benchmark
+PSQL="docker exec postgres_container psql -q -U postgres -d mydb"
+
+cd "$(dirname "$0")/.."
+./gradlew -q bootJar
+JAR=$(ls build/libs/*-SNAPSHOT.jar | grep -v plain | head -1)
+
+./gradlew -q generateData \
+  -PgeneratorArgs="--invoices=$INVOICES --min-transactions=4 --max-transactions=4 --out=$DATA"
+echo "$(($(wc -l < "$DATA/transactions.csv") - 1)) transactions in $DATA"
+
+java -Xmx"$HEAP" -jar "$JAR" \
+  --spring.servlet.multipart.max-file-size=-1 --spring.servlet.multipart.max-request-size=-1 \
+  > build/persistence-benchmark.log 2>&1 &
+APP_PID=$!
+trap 'kill $APP_PID 2>/dev/null' EXIT
+for _ in $(seq 1 60); do
+  curl -sf "$BASE_URL/" > /dev/null && break
+  sleep 1
+done
+
+upload() {
+  curl -sf -o /dev/null -w '%{time_total}' -X POST "$BASE_URL/invoice?persistence=$1" \
+    -F "invoices=@$DATA/invoices.csv" -F "transactions=@$DATA/transactions.csv"
+}
+
+for PERSISTENCE in jpa jdbc; do
+  $PSQL -c 'TRUNCATE invoice, "transaction", invoice_summary'
+  echo "$PERSISTENCE: insert $(upload "$PERSISTENCE")s, re-upload $(upload "$PERSISTENCE")s"
+done
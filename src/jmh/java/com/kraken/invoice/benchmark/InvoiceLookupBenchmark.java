@@ -0,0 +1,169 @@
+package com.kraken.invoice.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single lookups through the secondary indexes declared on Invoice and Transaction, against a
+ * real Postgres (start it with {@code ./gradlew composeUp}). The statements are the ones Hibernate
+ * generates for the search and transactions endpoints, run over plain JDBC so that only the
+ * database round trip is measured.
+ * <p>
+ * The tables live in their own schema, invoice_bench, with the same columns and indexes as the
+ * application schema. They are filled once with generate_series and reused by later runs of the
+ * same size. Connection settings come from -Dbench.url, -Dbench.user and -Dbench.password.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 10)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class InvoiceLookupBenchmark {
+    private static final LocalDateTime BASE_DATE = LocalDateTime.of(2006, 1, 1, 0, 0);
+    private static final long FIRST_INVOICE_ID = 30_000;
+
+    @Param({"10000000"})
+    public long invoices;
+
+    private Connection connection;
+    private PreparedStatement byNumber;
+    private PreparedStatement invalidPage;
+    private PreparedStatement receiptRange;
+    private PreparedStatement transactionsByInvoice;
+    private final SplittableRandom random = new SplittableRandom(42);
+
+    @Setup(Level.Trial)
+    public void connect() throws SQLException {
+        connection = DriverManager.getConnection(
+                System.getProperty("bench.url", "jdbc:postgresql://localhost:5432/mydb"),
+                System.getProperty("bench.user", "postgres"),
+                System.getProperty("bench.password", "postgres"));
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("create schema if not exists invoice_bench");
+            statement.execute("set search_path to invoice_bench");
+        }
+        if (rowCount() != invoices) {
+            populate();
+        }
+        byNumber = connection.prepareStatement(
+                "select * from invoice where invoice_number = ? order by invoice_id limit 100");
+        invalidPage = connection.prepareStatement(
+                "select * from invoice where status = 'invalid' and invoice_id > ? order by invoice_id limit 100");
+        receiptRange = connection.prepareStatement("select * from invoice where receipt_date >= ? "
+                + "and receipt_date < ? order by invoice_id limit 100");
+        transactionsByInvoice = connection.prepareStatement(
+                "select * from transaction where invoice_id = ? order by trxn_id");
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws SQLException {
+        connection.close();
+    }
+
+    @Benchmark
+    public int findByInvoiceNumber() throws SQLException {
+        byNumber.setString(1, Long.toString(588_000_000 + randomOffset()));
+        return drain(byNumber);
+    }
+
+    @Benchmark
+    public int pageOfInvalidInvoices() throws SQLException {
+        invalidPage.setLong(1, FIRST_INVOICE_ID + randomOffset());
+        return drain(invalidPage);
+    }
+
+    @Benchmark
+    public int receiptDateRange() throws SQLException {
+        LocalDateTime from = BASE_DATE.plusMinutes(randomOffset());
+        receiptRange.setTimestamp(1, Timestamp.valueOf(from));
+        receiptRange.setTimestamp(2, Timestamp.valueOf(from.plusMinutes(10)));
+        return drain(receiptRange);
+    }
+
+    @Benchmark
+    public int transactionsOfInvoice() throws SQLException {
+        transactionsByInvoice.setLong(1, FIRST_INVOICE_ID + randomOffset());
+        return drain(transactionsByInvoice);
+    }
+
+    private long randomOffset() {
+        return random.nextLong(invoices);
+    }
+
+    private static int drain(PreparedStatement statement) throws SQLException {
+        int rows = 0;
+        try (ResultSet resultSet = statement.executeQuery()) {
+            while (resultSet.next()) {
+                rows++;
+            }
+        }
+        return rows;
+    }
+
+    private long rowCount() throws SQLException {
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("select count(*) from invoice")) {
+            return resultSet.next() ? resultSet.getLong(1) : 0;
+        } catch (SQLException e) {
+            // first run: the tables do not exist yet
+            return -1;
+        }
+    }
+
+    /**
+     * One invoice per minute of receipt date, every tenth one invalid, with two transactions each.
+     * Indexes are created after the load, as a bulk import would.
+     */
+    private void populate() throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("drop table if exists transaction");
+            statement.execute("drop table if exists invoice");
+            statement.execute("create table invoice (invoice_id bigint primary key, invoice_number varchar(255), "
+                    + "gross_amount numeric(38,2), gst_amount numeric(38,2), net_amount numeric(38,2), "
+                    + "receipt_date timestamp(6), payment_due_date timestamp(6), total_no_trxn integer, "
+                    + "status varchar(255), reason varchar(255), content_hash varchar(255))");
+            statement.execute("create table transaction (trxn_id bigint primary key, date_received timestamp(6), "
+                    + "transaction_date timestamp(6), invoice_number varchar(255), "
+                    + "billing_period_start timestamp(6), billing_period_end timestamp(6), "
+                    + "net_transaction_amount numeric(38,2), gst_amount numeric(38,2), invoice_id bigint "
+                    + "references invoice)");
+            statement.execute("insert into invoice select " + FIRST_INVOICE_ID + " + n, (588000000 + n)::text, "
+                    + "110, 10, 100, timestamp '2006-01-01' + n * interval '1 minute', "
+                    + "timestamp '2006-02-01' + n * interval '1 minute', 2, "
+                    + "case when n % 10 = 0 then 'invalid' else 'valid' end, null, null "
+                    + "from generate_series(0, " + (invoices - 1) + ") n");
+            statement.execute("insert into transaction select 700000 + n, null, null, null, null, null, 50, 5, "
+                    + FIRST_INVOICE_ID + " + n / 2 from generate_series(0, " + (invoices * 2 - 1) + ") n");
+            statement.execute("create index idx_invoice_invoice_number on invoice (invoice_number)");
+            statement.execute("create index idx_invoice_status_id on invoice (status, invoice_id)");
+            statement.execute("create index idx_invoice_receipt_date on invoice (receipt_date)");
+            statement.execute("create index idx_invoice_payment_due_date on invoice (payment_due_date)");
+            statement.execute("create index idx_transaction_invoice_id on transaction (invoice_id)");
+            statement.execute("analyze invoice");
+            statement.execute("analyze transaction");
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.kraken.invoice.benchmark;
+
+import com.kraken.invoice.entity.Invoice;
+import com.kraken.invoice.entity.InvoiceDto;
+import com.kraken.invoice.entity.Transaction;
+import com.kraken.invoice.entity.TransactionDto;
+import com.kraken.invoice.service.IngestMetrics;
+import com.kraken.invoice.service.InvoiceTransactionParser;
+import com.kraken.invoice.tools.InvoiceDataGenerator;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.beans.BeanUtils;
+import org.springframework.core.io.FileSystemResource;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of {@link InvoiceTransactionParser#mapToEntity(InvoiceDto)} and {@link InvoiceTransactionParser#mapToDTO}
+ * over every invoice of a file, transactions included. The beanUtils* variants keep the previous
+ * reflective BeanUtils.copyProperties mapping as a baseline.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 10)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class MappingBenchmark {
+
+    @Param({"10000", "1000000", "10000000"})
+    public int transactions;
+
+    private final InvoiceTransactionParser parser = new InvoiceTransactionParser();
+    private List<InvoiceDto> dtos;
+    private List<Invoice> entities;
+
+    @Setup(Level.Trial)
+    public void prepare() throws IOException {
+        Path invoiceFile = Files.createTempFile("invoices-", ".csv");
+        Path transactionFile = Files.createTempFile("transactions-", ".csv");
+        InvoiceDataGenerator generator = new InvoiceDataGenerator();
+        // the same seeded files as ParserBenchmark
+        generator.setInvoices(Math.max(1, transactions / 4));
+        generator.setMinTransactions(4);
+        generator.setMaxTransactions(4);
+        generator.setShuffleWindow(256);
+        generator.setSeed(42);
+        generator.generate(invoiceFile, transactionFile);
+        parser.ingestMetrics = new IngestMetrics();
+        parser.ingestMetrics.meterRegistry = new SimpleMeterRegistry();
+        Map<Long, InvoiceDto> invoices = parser.parseInvoices(new FileSystemResource(invoiceFile));
+        Map<Long, List<TransactionDto>> txns = parser.parseTransactions(new FileSystemResource(transactionFile));
+        Files.deleteIfExists(invoiceFile);
+        Files.deleteIfExists(transactionFile);
+
+        dtos = new ArrayList<>(invoices.values());
+        dtos.forEach(dto -> dto.setTransactions(txns.getOrDefault(dto.getInvoiceId(), List.of())));
+        entities = dtos.stream().map(parser::mapToEntity).toList();
+    }
+
+    @Benchmark
+    public void mapToEntity(Blackhole blackhole) {
+        for (InvoiceDto dto : dtos) {
+            blackhole.consume(parser.mapToEntity(dto));
+        }
+    }
+
+    @Benchmark
+    public void mapToDTO(Blackhole blackhole) {
+        for (Invoice invoice : entities) {
+            blackhole.consume(parser.mapToDTO(invoice));
+        }
+    }
+
+    @Benchmark
+    public void beanUtilsToEntity(Blackhole blackhole) {
+        for (InvoiceDto dto : dtos) {
+            Invoice invoice = new Invoice();
+            BeanUtils.copyProperties(dto, invoice);
+            invoice.setTransactions(dto.getTransactions().stream().map(txnDto -> {
+                Transaction txn = new Transaction();
+                BeanUtils.copyProperties(txnDto, txn);
+                return txn;
+            }).toList());
+            blackhole.consume(invoice);
+        }
+    }
+
+    @Benchmark
+    public void beanUtilsToDTO(Blackhole blackhole) {
+        for (Invoice invoice : entities) {
+            InvoiceDto dto = new InvoiceDto();
+            BeanUtils.copyProperties(invoice, dto);
+            dto.setTransactions(invoice.getTransactions().stream().map(txn -> {
+                TransactionDto txnDto = new TransactionDto();
+                BeanUtils.copyProperties(txn, txnDto);
+                return txnDto;
+            }).toList());
+            blackhole.consume(dto);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.kraken.invoice.benchmark;
+
+import com.kraken.invoice.config.IngestProperties;
+import com.kraken.invoice.service.IngestMetrics;
+import com.kraken.invoice.service.InvoiceTransactionParser;
+import com.kraken.invoice.tools.InvoiceDataGenerator;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.core.io.FileSystemResource;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the invoice and transaction parsers. The map-building parseTransactions keeps
+ * every transaction on the heap, so the 10M size needs a large -PjmhHeap. The stream* variants
+ * hand each row to a Blackhole and measure parsing alone.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 10)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class ParserBenchmark {
+
+    @Param({"10000", "1000000", "10000000"})
+    public int transactions;
+
+    private final InvoiceTransactionParser parser = new InvoiceTransactionParser();
+    private FileSystemResource invoiceFile;
+    private FileSystemResource transactionFile;
+
+    @Setup(Level.Trial)
+    public void writeFiles() throws IOException {
+        Path invoices = Files.createTempFile("invoices-", ".csv");
+        Path txns = Files.createTempFile("transactions-", ".csv");
+        InvoiceDataGenerator generator = new InvoiceDataGenerator();
+        // four transactions per invoice, shuffled over a window like the interleaved real exports
+        generator.setInvoices(Math.max(1, transactions / 4));
+        generator.setMinTransactions(4);
+        generator.setMaxTransactions(4);
+        generator.setShuffleWindow(256);
+        generator.setSeed(42);
+        generator.generate(invoices, txns);
+        invoiceFile = new FileSystemResource(invoices);
+        transactionFile = new FileSystemResource(txns);
+        parser.ingestProperties = new IngestProperties();
+        parser.ingestMetrics = new IngestMetrics();
+        parser.ingestMetrics.meterRegistry = new SimpleMeterRegistry();
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFiles() throws IOException {
+        Files.deleteIfExists(invoiceFile.getFile().toPath());
+        Files.deleteIfExists(transactionFile.getFile().toPath());
+    }
+
+    @Benchmark
+    public Object parseInvoices() throws IOException {
+        return parser.parseInvoices(invoiceFile);
+    }
+
+    @Benchmark
+    public Object parseInvoicesFast() throws IOException {
+        return parser.parseInvoicesFast(invoiceFile);
+    }
+
+    @Benchmark
+    public Object parseTransactions() throws IOException {
+        return parser.parseTransactions(transactionFile);
+    }
+
+    @Benchmark
+    public void streamTransactions(Blackhole blackhole) throws IOException {
+        parser.streamTransactions(transactionFile, (invoiceId, dto) -> blackhole.consume(dto));
+    }
+
+    @Benchmark
+    public void streamTransactionsFast(Blackhole blackhole) throws IOException {
+        parser.streamTransactionsFast(transactionFile, (invoiceId, dto) -> blackhole.consume(dto));
+    }
+
+    @Benchmark
+    public void streamTransactionsParallel(Blackhole blackhole) throws IOException {
+        parser.streamTransactionsParallel(transactionFile, (invoiceId, dto) -> blackhole.consume(dto),
+                Runtime.getRuntime().availableProcessors(), 8 * 1024 * 1024);
+    }
+}
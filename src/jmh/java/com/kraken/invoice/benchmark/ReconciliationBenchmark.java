@@ -0,0 +1,78 @@
+package com.kraken.invoice.benchmark;
+
+import com.kraken.invoice.entity.InvoiceDto;
+import com.kraken.invoice.entity.TransactionDto;
+import com.kraken.invoice.service.IngestProgress;
+import com.kraken.invoice.service.InvoiceService;
+import com.kraken.invoice.service.IngestMetrics;
+import com.kraken.invoice.service.InvoiceTransactionParser;
+import com.kraken.invoice.tools.InvoiceDataGenerator;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.core.io.FileSystemResource;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The reconciliation loop of {@link InvoiceService#parseAndSave}: attaching transactions,
+ * summing them, validating and mapping to entities. Files are parsed once per trial.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 10)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class ReconciliationBenchmark {
+
+    @Param({"10000", "1000000", "10000000"})
+    public int transactions;
+
+    private final InvoiceService invoiceService = new InvoiceService();
+    private Map<Long, InvoiceDto> invoices;
+    private Map<Long, List<TransactionDto>> transactionsByInvoice;
+
+    @Setup(Level.Trial)
+    public void parseFiles() throws IOException {
+        Path invoiceFile = Files.createTempFile("invoices-", ".csv");
+        Path transactionFile = Files.createTempFile("transactions-", ".csv");
+        InvoiceDataGenerator generator = new InvoiceDataGenerator();
+        // the same seeded files as ParserBenchmark
+        generator.setInvoices(Math.max(1, transactions / 4));
+        generator.setMinTransactions(4);
+        generator.setMaxTransactions(4);
+        generator.setShuffleWindow(256);
+        generator.setSeed(42);
+        generator.generate(invoiceFile, transactionFile);
+        InvoiceTransactionParser parser = new InvoiceTransactionParser();
+        parser.ingestMetrics = new IngestMetrics();
+        parser.ingestMetrics.meterRegistry = new SimpleMeterRegistry();
+        invoiceService.invoiceTransactionParser = parser;
+        invoiceService.ingestMetrics = parser.ingestMetrics;
+        invoices = parser.parseInvoices(new FileSystemResource(invoiceFile));
+        transactionsByInvoice = parser.parseTransactions(new FileSystemResource(transactionFile));
+        Files.deleteIfExists(invoiceFile);
+        Files.deleteIfExists(transactionFile);
+    }
+
+    @Benchmark
+    public Object reconcile() {
+        return invoiceService.reconcile(invoices, transactionsByInvoice, new IngestProgress());
+    }
+}
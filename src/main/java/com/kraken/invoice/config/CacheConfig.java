@@ -0,0 +1,45 @@
+package com.kraken.invoice.config;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.kraken.invoice.entity.InvoiceDto;
+import org.springframework.cache.CacheManager;
+import org.springframework.cache.caffeine.CaffeineCacheManager;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Caffeine caches in front of the invoice read paths. Caffeine evicts with W-TinyLFU and
+ * records hit/miss/eviction statistics, which GET /invoice/cache/stats reports. Reads go through
+ * {@link com.kraken.invoice.service.InvoiceCacheService#get}, and entries are evicted by id
+ * whenever an upload writes that invoice.
+ */
+@Configuration
+public class CacheConfig {
+    public static final String INVOICES = "invoices";
+    public static final String INVOICE_STATUS = "invoiceStatus";
+
+    @Bean
+    public CacheManager cacheManager(InvoiceCacheProperties properties) {
+        CaffeineCacheManager cacheManager = new CaffeineCacheManager();
+        cacheManager.setAllowNullValues(false);
+        cacheManager.registerCustomCache(INVOICES, Caffeine.newBuilder()
+                .maximumWeight(properties.getInvoiceMaxWeight())
+                .weigher((Object key, Object value) -> 1 + transactionCount(value))
+                .expireAfterWrite(properties.getTtl())
+                .recordStats()
+                .build());
+        cacheManager.registerCustomCache(INVOICE_STATUS, Caffeine.newBuilder()
+                .maximumSize(properties.getStatusMaxSize())
+                .expireAfterWrite(properties.getTtl())
+                .recordStats()
+                .build());
+        return cacheManager;
+    }
+
+    private static int transactionCount(Object value) {
+        if (value instanceof InvoiceDto dto && dto.getTransactions() != null) {
+            return dto.getTransactions().size();
+        }
+        return 0;
+    }
+}
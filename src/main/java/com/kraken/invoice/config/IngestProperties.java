@@ -0,0 +1,140 @@
+package com.kraken.invoice.config;
+
+import com.kraken.invoice.entity.IngestMode;
+import com.kraken.invoice.entity.IngestOptions;
+import com.kraken.invoice.entity.ParserMode;
+import com.kraken.invoice.entity.PersistenceMode;
+import lombok.Getter;
+import lombok.Setter;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+import java.util.Optional;
+
+@Getter
+@Setter
+@ConfigurationProperties(prefix = "invoice.ingest")
+public class IngestProperties {
+    // Mode used by POST /invoice when the request does not pass ?mode=
+    private String defaultMode = "standard";
+    // Number of completed invoices written per chunk in streaming mode
+    private int flushSize = 500;
+    // How invoices are written when the request does not pass ?persistence=; jpa keeps an upload in one transaction
+    private String persistence = "jpa";
+    // Statements per JDBC batch in jdbc persistence mode
+    private int jdbcBatchSize = 1000;
+    // Invoices committed per database transaction in jdbc and copy persistence mode
+    private int commitSize = 5000;
+    // Transaction file parser used when the request does not pass ?parser=
+    private String parser = "commons";
+    // Worker threads and chunk size of the parallel parser
+    private int parseThreads = Runtime.getRuntime().availableProcessors();
+    private DataSize parseChunkSize = DataSize.ofMegabytes(8);
+    private Jobs jobs = new Jobs();
+    private External external = new External();
+    private Rejections rejections = new Rejections();
+    private ErrorBudget errorBudget = new ErrorBudget();
+    private Idempotency idempotency = new Idempotency();
+    private Pipeline pipeline = new Pipeline();
+
+    @Getter
+    @Setter
+    public static class Jobs {
+        // Uploads processed at the same time; keep well below the database connection pool size
+        private int concurrency = 2;
+        // Uploads allowed to wait for a worker before new ones are rejected
+        private int queueCapacity = 10;
+        // How long finished jobs stay available to GET /invoice/jobs/{jobId}
+        private Duration retention = Duration.ofHours(1);
+    }
+
+    @Getter
+    @Setter
+    public static class External {
+        // Spilled transaction bytes loaded back at once; larger spill files are split again first
+        private DataSize partitionSize = DataSize.ofMegabytes(32);
+        // Fixed number of spill files; 0 derives it from the transaction file size and partition-size
+        private int partitions = 0;
+        // Spill files open at once, each with its own write buffer. An upload that needs more
+        // partitions gets them by splitting the spill files again, one more pass over the data
+        private int maxPartitions = 64;
+        // Where spill files are written; blank means java.io.tmpdir
+        private String spillDir;
+    }
+
+    @Getter
+    @Setter
+    public static class Rejections {
+        // Also log every rejected row; off by default since large bad files flood the log
+        private boolean logRows = false;
+        // Rejected rows kept in memory per upload before the rest are spilled to a temp file
+        private int memoryRows = 1000;
+        // Rejected rows kept per upload in total; further rows are only counted
+        private long maxRows = 1_000_000;
+        // How long reports stay available to GET /invoice/rejections/{reportId}
+        private Duration retention = Duration.ofHours(1);
+        // Reports kept at most; the reports of the uploads that finished first are dropped first
+        private int maxReports = 1000;
+        // Where spill files are written; blank means java.io.tmpdir
+        private String spillDir;
+    }
+
+    @Getter
+    @Setter
+    public static class ErrorBudget {
+        // Malformed rows per upload that are quarantined before it fails; 0 means no limit on the count
+        private long maxRows = 0;
+        // Share of a file's rows, in percent, that may be malformed; checked once the file is read
+        private double maxPercent = 0;
+    }
+
+    @Getter
+    @Setter
+    public static class Idempotency {
+        // Remember finished uploads so that a retried POST /invoice is answered from the ledger
+        private boolean enabled = true;
+        // Also recognise retries sent without an Idempotency-Key by hashing both files first. Costs a
+        // read of both files per upload and never applies to synchronous standard-mode uploads, whose
+        // invoice list a replay cannot give
+        private boolean hashContent = true;
+        // How long a finished upload can be replayed
+        private Duration retention = Duration.ofHours(24);
+        // How long a repeat waits for the first attempt to finish before it gets 409 Conflict
+        private Duration replayWait = Duration.ofSeconds(30);
+        // Finished uploads remembered at most; the oldest are forgotten first
+        private int maxEntries = 10_000;
+    }
+
+    @Getter
+    @Setter
+    public static class Pipeline {
+        // Reconcile workers; transactions are spread over them by invoice id
+        private int reconcileThreads = 4;
+        // Workers turning reconciled invoices into entities
+        private int mapThreads = 2;
+        // Workers writing chunks; each holds a database connection while it writes
+        private int persistThreads = 4;
+        // Batches each queue holds before the stage in front of it blocks
+        private int queueCapacity = 16;
+        // Transactions or invoices handed from one stage to the next at a time
+        private int batchSize = 256;
+        // Threads shared by all pipelined uploads; an upload needs one per worker above or is rejected
+        private int maxThreads = 20;
+    }
+
+    public IngestMode ingestMode(IngestOptions options) {
+        return Optional.ofNullable(IngestMode.from(options.getMode()))
+                .orElseGet(() -> IngestMode.from(defaultMode));
+    }
+
+    public ParserMode parserMode(IngestOptions options) {
+        return Optional.ofNullable(ParserMode.from(options.getParser()))
+                .orElseGet(() -> ParserMode.from(parser));
+    }
+
+    public PersistenceMode persistenceMode(IngestOptions options) {
+        return Optional.ofNullable(PersistenceMode.from(options.getPersistence()))
+                .orElseGet(() -> PersistenceMode.from(persistence));
+    }
+}
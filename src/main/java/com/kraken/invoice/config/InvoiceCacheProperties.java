@@ -0,0 +1,19 @@
+package com.kraken.invoice.config;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+
+@Getter
+@Setter
+@ConfigurationProperties(prefix = "invoice.cache")
+public class InvoiceCacheProperties {
+    // Total weight of cached invoices, where an invoice weighs 1 plus its number of transactions
+    private long invoiceMaxWeight = 1_000_000;
+    // Number of cached status lookups
+    private long statusMaxSize = 500_000;
+    // How long an entry is served after it was loaded
+    private Duration ttl = Duration.ofMinutes(10);
+}
@@ -0,0 +1,24 @@
+package com.kraken.invoice.config;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+
+@Getter
+@Setter
+@ConfigurationProperties(prefix = "invoice.query")
+public class QueryProperties {
+    // Page size used by GET /invoice?limit= when limit is omitted, and the largest accepted
+    private int defaultPageSize = 100;
+    private int maxPageSize = 1000;
+    // Invoices read from the cursor, written out and detached together by GET /invoice/stream
+    private int streamBatchSize = 500;
+    // Most ids accepted by one POST /invoice/status request
+    private int maxStatusIds = 10000;
+    // Invoice reads, streams included, that may use a database connection at once; the rest of the
+    // pool is left to uploads. A read waits read-wait for its turn and then gets 503.
+    private int maxConcurrentReads = 10;
+    private Duration readWait = Duration.ofSeconds(5);
+}
@@ -0,0 +1,24 @@
+package com.kraken.invoice.config;
+
+import com.kraken.invoice.controller.ReadLimitInterceptor;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+/**
+ * Bounds the invoice reads that reach the database. Job, rejection report and cache stats
+ * endpoints are served from memory and are left out.
+ */
+@Configuration
+public class WebConfig implements WebMvcConfigurer {
+    @Autowired
+    public ReadLimitInterceptor readLimitInterceptor;
+
+    @Override
+    public void addInterceptors(InterceptorRegistry registry) {
+        registry.addInterceptor(readLimitInterceptor)
+                .addPathPatterns("/invoice", "/invoice/**")
+                .excludePathPatterns("/invoice/jobs/**", "/invoice/rejections/**", "/invoice/cache/**");
+    }
+}
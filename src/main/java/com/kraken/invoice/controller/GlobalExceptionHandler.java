@@ -1,8 +1,14 @@
 package com.kraken.invoice.controller;
 
 import com.kraken.invoice.entity.ErrorResponse;
+import com.kraken.invoice.exception.ErrorBudgetExceededException;
+import com.kraken.invoice.exception.IdempotencyConflictException;
+import com.kraken.invoice.exception.InvalidOptionException;
 import com.kraken.invoice.exception.InvoiceFileProcessingException;
+import com.kraken.invoice.exception.ReadRejectedException;
 import com.kraken.invoice.exception.TransactionFileProcessingException;
+import com.kraken.invoice.exception.UploadInProgressException;
+import com.kraken.invoice.exception.UploadRejectedException;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.ExceptionHandler;
@@ -41,6 +47,60 @@ public class GlobalExceptionHandler {
         return new ResponseEntity<>(error, HttpStatus.BAD_REQUEST);
     }
 
+    @ExceptionHandler(ErrorBudgetExceededException.class)
+    public ResponseEntity<ErrorResponse> handleErrorBudgetExceeded(ErrorBudgetExceededException ex) {
+        ErrorResponse error = new ErrorResponse(
+                HttpStatus.BAD_REQUEST.value(),
+                ex.getMessage()
+        );
+        return new ResponseEntity<>(error, HttpStatus.BAD_REQUEST);
+    }
+
+    @ExceptionHandler(UploadRejectedException.class)
+    public ResponseEntity<ErrorResponse> handleUploadRejected(UploadRejectedException ex) {
+        ErrorResponse error = new ErrorResponse(
+                HttpStatus.SERVICE_UNAVAILABLE.value(),
+                ex.getMessage()
+        );
+        return new ResponseEntity<>(error, HttpStatus.SERVICE_UNAVAILABLE);
+    }
+
+    @ExceptionHandler(ReadRejectedException.class)
+    public ResponseEntity<ErrorResponse> handleReadRejected(ReadRejectedException ex) {
+        ErrorResponse error = new ErrorResponse(
+                HttpStatus.SERVICE_UNAVAILABLE.value(),
+                ex.getMessage()
+        );
+        return new ResponseEntity<>(error, HttpStatus.SERVICE_UNAVAILABLE);
+    }
+
+    @ExceptionHandler(IdempotencyConflictException.class)
+    public ResponseEntity<ErrorResponse> handleIdempotencyConflict(IdempotencyConflictException ex) {
+        ErrorResponse error = new ErrorResponse(
+                HttpStatus.CONFLICT.value(),
+                ex.getMessage()
+        );
+        return new ResponseEntity<>(error, HttpStatus.CONFLICT);
+    }
+
+    @ExceptionHandler(UploadInProgressException.class)
+    public ResponseEntity<ErrorResponse> handleUploadInProgress(UploadInProgressException ex) {
+        ErrorResponse error = new ErrorResponse(
+                HttpStatus.CONFLICT.value(),
+                ex.getMessage()
+        );
+        return new ResponseEntity<>(error, HttpStatus.CONFLICT);
+    }
+
+    @ExceptionHandler(InvalidOptionException.class)
+    public ResponseEntity<ErrorResponse> handleInvalidOption(InvalidOptionException ex) {
+        ErrorResponse error = new ErrorResponse(
+                HttpStatus.BAD_REQUEST.value(),
+                ex.getMessage()
+        );
+        return new ResponseEntity<>(error, HttpStatus.BAD_REQUEST);
+    }
+
     @ExceptionHandler(Exception.class)
     public ResponseEntity<ErrorResponse> handleGenericException(Exception ex) {
         ErrorResponse error = new ErrorResponse(
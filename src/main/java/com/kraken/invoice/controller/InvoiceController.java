@@ -1,37 +1,171 @@
 package com.kraken.invoice.controller;
 
+import com.kraken.invoice.config.IngestProperties;
+import com.kraken.invoice.entity.CacheStatsDto;
+import com.kraken.invoice.entity.IngestMode;
+import com.kraken.invoice.entity.IngestOptions;
 import com.kraken.invoice.entity.InvoiceDto;
+import com.kraken.invoice.entity.InvoicePageDto;
+import com.kraken.invoice.entity.InvoiceSearchCriteria;
+import com.kraken.invoice.entity.InvoiceStatusDto;
+import com.kraken.invoice.entity.InvoiceSummaryDto;
+import com.kraken.invoice.entity.TransactionDto;
+import com.kraken.invoice.entity.UploadJobDto;
+import com.kraken.invoice.entity.UploadSummaryDto;
+import com.kraken.invoice.exception.InvalidOptionException;
+import com.kraken.invoice.service.IngestProgress;
+import com.kraken.invoice.service.InvoiceCacheService;
+import com.kraken.invoice.service.InvoiceIngestService;
+import com.kraken.invoice.service.InvoiceQueryService;
 import com.kraken.invoice.service.InvoiceService;
+import com.kraken.invoice.service.InvoiceSummaryService;
+import com.kraken.invoice.service.RejectionReport;
+import com.kraken.invoice.service.RejectionReportService;
+import com.kraken.invoice.service.UploadJobService;
+import com.kraken.invoice.service.UploadLedger;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.NoSuchElementException;
 
 @Slf4j
 @RestController
 public class InvoiceController {
+    // set on responses answered from the upload ledger instead of by processing the files
+    private static final String IDEMPOTENT_REPLAY = "Idempotent-Replay";
+
     @Autowired
     public InvoiceService invoiceService;
+    @Autowired
+    public InvoiceIngestService invoiceIngestService;
+    @Autowired
+    public InvoiceQueryService invoiceQueryService;
+    @Autowired
+    public UploadJobService uploadJobService;
+    @Autowired
+    public InvoiceCacheService invoiceCacheService;
+    @Autowired
+    public IngestProperties ingestProperties;
+    @Autowired
+    public RejectionReportService rejectionReportService;
+    @Autowired
+    public InvoiceSummaryService invoiceSummaryService;
+    @Autowired
+    public UploadLedger uploadLedger;
 
+    /**
+     * Uploads an invoice and a transaction file. The response body depends on the request:
+     * <ul>
+     *     <li>synchronous standard mode: the list of {@link InvoiceDto}s</li>
+     *     <li>synchronous streaming, delta, external and pipeline mode: an {@link UploadSummaryDto}</li>
+     *     <li>async=true: 202 Accepted with an {@link UploadJobDto}</li>
+     *     <li>a repeat answered from the {@link UploadLedger}: the {@link UploadSummaryDto} of the first
+     *     attempt with an Idempotent-Replay header, or its job if the repeat is async and the first
+     *     attempt still runs</li>
+     * </ul>
+     * A repeat waits up to invoice.ingest.idempotency.replay-wait for a running first attempt and
+     * then gets 409 Conflict. An Idempotency-Key on a synchronous standard-mode upload gets 400,
+     * since its invoice list is not kept for a replay.
+     */
     @PostMapping(path = "/invoice",consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
-    public ResponseEntity<List<InvoiceDto>> uploadInvoices(
+    public ResponseEntity<?> uploadInvoices(
             @RequestParam("invoices") MultipartFile invoiceFile,
-            @RequestParam("transactions") MultipartFile transactionFile) throws IOException {
+            @RequestParam("transactions") MultipartFile transactionFile,
+            @ModelAttribute IngestOptions options,
+            @RequestHeader(name = "Idempotency-Key", required = false) String idempotencyKey) throws IOException {
         log.info("Received request to upload invoices and transactions. Invoice file: {}, Transaction file: {}",
                 invoiceFile.getOriginalFilename(), transactionFile.getOriginalFilename());
 
-            List<InvoiceDto> invoiceDtos = invoiceService.parseAndSave(invoiceFile, transactionFile);
+        UploadLedger.Claim claim = uploadLedger.claim(idempotencyKey, invoiceFile, transactionFile, options);
+        if (claim != null && !claim.owner()) {
+            return replay(claim.entry(), options.isAsync());
+        }
+        UploadLedger.Entry ledgerEntry = claim == null ? null : claim.entry();
+        try {
+            return upload(invoiceFile, transactionFile, options, ledgerEntry);
+        } catch (Throwable e) {
+            // also on an Error such as OutOfMemoryError, or retries would wait for an upload that never ends
+            if (ledgerEntry != null && !ledgerEntry.isDone()) {
+                uploadLedger.fail(ledgerEntry, e);
+            }
+            throw e;
+        }
+    }
+
+    private ResponseEntity<?> upload(MultipartFile invoiceFile, MultipartFile transactionFile, IngestOptions options,
+                                     UploadLedger.Entry ledgerEntry) throws IOException {
+        if (options.isAsync()) {
+            UploadJobDto job = uploadJobService.submit(invoiceFile, transactionFile, options, ledgerEntry);
+            return ResponseEntity.accepted().location(URI.create("/invoice/jobs/" + job.getJobId())).body(job);
+        }
+        IngestMode mode = ingestProperties.ingestMode(options);
+        IngestProgress progress = new IngestProgress();
+        RejectionReport rejections = rejectionReportService.create(options);
+        progress.setRejections(rejections);
+        try {
+            if (mode != null && mode != IngestMode.STANDARD) {
+                UploadSummaryDto summary = invoiceIngestService.ingest(invoiceFile, transactionFile, options,
+                        progress);
+                log.info("Successfully processed {} invoices in {} mode.", summary.getInvoicesRead(),
+                        summary.getMode());
+                if (ledgerEntry != null) {
+                    uploadLedger.complete(ledgerEntry, summary);
+                }
+                return ResponseEntity.ok(summary);
+            }
+
+            // the ledger never claims these, see UploadLedger#claim
+            List<InvoiceDto> invoiceDtos = invoiceService.parseAndSave(invoiceFile, transactionFile, options,
+                    progress);
             log.info("Successfully processed {} invoices.", invoiceDtos.size());
-            return ResponseEntity.ok(invoiceDtos);
+            if (rejections == null || rejections.getRowsRejected() == 0) {
+                return ResponseEntity.ok(invoiceDtos);
+            }
+            // the standard response is the invoice list itself, so the report is pointed to from headers
+            return ResponseEntity.ok()
+                    .header("X-Rows-Rejected", String.valueOf(rejections.getRowsRejected()))
+                    .header("X-Rows-Quarantined", String.valueOf(rejections.getRowsQuarantined()))
+                    .header("X-Rejection-Report", "/invoice/rejections/" + rejections.getReportId())
+                    .body(invoiceDtos);
+        } finally {
+            if (rejections != null) {
+                rejectionReportService.finish(rejections);
+                if (rejections.getRowsRejected() > 0) {
+                    log.warn("Rejected {} rows, see /invoice/rejections/{}", rejections.getRowsRejected(),
+                            rejections.getReportId());
+                }
+            }
+        }
+    }
 
+    /**
+     * Answers a repeated upload from the ledger. Async requests for an upload that is still
+     * running get its job; everything else waits for the upload if needed and gets its summary.
+     * A repeat that runs out of replay-wait gets 409 Conflict.
+     */
+    private ResponseEntity<?> replay(UploadLedger.Entry entry, boolean async) throws IOException {
+        if (async && !entry.isDone()) {
+            UploadJobDto job = entry.getJobId() != null
+                    ? uploadJobService.getJob(entry.getJobId()) : uploadJobService.follow(entry);
+            return ResponseEntity.accepted().location(URI.create("/invoice/jobs/" + job.getJobId()))
+                    .header(IDEMPOTENT_REPLAY, "true")
+                    .body(job);
+        }
+        UploadSummaryDto summary = entry.await(ingestProperties.getIdempotency().getReplayWait());
+        log.info("Answered repeated upload {} from the ledger", entry.getKey());
+        return ResponseEntity.ok().header(IDEMPOTENT_REPLAY, "true").body(summary);
     }
 
     @GetMapping("/invoice")
@@ -39,6 +173,31 @@ public class InvoiceController {
         return ResponseEntity.ok(invoiceService.getAllInvoices());
     }
 
+    @GetMapping(path = "/invoice", params = "limit")
+    public ResponseEntity<InvoicePageDto> getInvoicePage(@RequestParam Integer limit,
+                                                         @RequestParam(required = false) Long after) {
+        return ResponseEntity.ok(invoiceQueryService.getPage(after, limit));
+    }
+
+    @GetMapping("/invoice/search")
+    public ResponseEntity<InvoicePageDto> searchInvoices(@ModelAttribute InvoiceSearchCriteria criteria) {
+        return ResponseEntity.ok(invoiceQueryService.search(criteria));
+    }
+
+    @GetMapping("/invoice/stream")
+    public ResponseEntity<StreamingResponseBody> streamInvoices(
+            @RequestParam(defaultValue = "ndjson") String format) {
+        boolean jsonArray = "json".equalsIgnoreCase(format);
+        if (!jsonArray && !"ndjson".equalsIgnoreCase(format)) {
+            throw new InvalidOptionException("Unknown format: " + format + ". Expected one of: ndjson, json");
+        }
+        log.info("Streaming all invoices as {}", format);
+        StreamingResponseBody body = out -> invoiceQueryService.streamAll(out, jsonArray);
+        return ResponseEntity.ok()
+                .contentType(jsonArray ? MediaType.APPLICATION_JSON : MediaType.APPLICATION_NDJSON)
+                .body(body);
+    }
+
     @GetMapping("/invoice/{invoiceId}")
     public ResponseEntity<InvoiceDto> getInvoiceById(@PathVariable Long invoiceId) {
 
@@ -48,22 +207,61 @@ public class InvoiceController {
 
     }
 
+    @GetMapping("/invoice/{invoiceId}/transactions")
+    public ResponseEntity<List<TransactionDto>> getInvoiceTransactions(@PathVariable Long invoiceId) {
+        return ResponseEntity.ok(invoiceQueryService.getTransactions(invoiceId));
+    }
+
+    @GetMapping("/invoice/summary")
+    public ResponseEntity<InvoiceSummaryDto> getSummary(@RequestParam(required = false) String status) {
+        return ResponseEntity.ok(invoiceSummaryService.getSummary(status));
+    }
+
+    @PostMapping("/invoice/summary/rebuild")
+    public ResponseEntity<InvoiceSummaryDto> rebuildSummary() {
+        invoiceSummaryService.rebuild();
+        return ResponseEntity.ok(invoiceSummaryService.getSummary(null));
+    }
+
+    @GetMapping("/invoice/cache/stats")
+    public ResponseEntity<List<CacheStatsDto>> getCacheStats() {
+        return ResponseEntity.ok(invoiceCacheService.stats());
+    }
+
+    @GetMapping("/invoice/jobs/{jobId}")
+    public ResponseEntity<UploadJobDto> getUploadJob(@PathVariable String jobId) {
+        return ResponseEntity.ok(uploadJobService.getJob(jobId));
+    }
+
+    @GetMapping("/invoice/rejections/{reportId}")
+    public ResponseEntity<StreamingResponseBody> getRejections(@PathVariable String reportId) {
+        RejectionReport report = rejectionReportService.get(reportId);
+        StreamingResponseBody body = out -> {
+            Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+            report.writeCsv(writer);
+        };
+        return ResponseEntity.ok()
+                .contentType(new MediaType("text", "csv", StandardCharsets.UTF_8))
+                .body(body);
+    }
+
     @GetMapping("/invoice/{invoiceId}/status")
     public ResponseEntity<Map<String, Object>> getInvoiceStatus(@PathVariable Long invoiceId) {
-        log.info("Fetching status for invoice ID: {}", invoiceId);
-        InvoiceDto dto = invoiceService.getInvoiceById(invoiceId);
-        if (dto != null) {
-            Map<String, Object> response = new HashMap<>();
-            response.put("invoiceId", dto.getInvoiceId());
-            response.put("status", dto.getStatus());
-            response.put("reason", dto.getReason());
-            log.info("Invoice status fetched: {}", response);
-            return ResponseEntity.ok(response);
-        } else {
-            log.error("Invoice not found with ID: {}", invoiceId);
-            throw new NoSuchElementException("Invoice not found with ID: " + invoiceId);
-        }
+        log.debug("Fetching status for invoice ID: {}", invoiceId);
+        InvoiceStatusDto status = invoiceQueryService.getStatus(invoiceId);
+        Map<String, Object> response = new HashMap<>();
+        response.put("invoiceId", status.getInvoiceId());
+        response.put("status", status.getStatus());
+        response.put("reason", status.getReason());
+        log.debug("Invoice status fetched: {}", response);
+        return ResponseEntity.ok(response);
     }
+
+    @PostMapping("/invoice/status")
+    public ResponseEntity<List<InvoiceStatusDto>> getInvoiceStatuses(@RequestBody List<Long> invoiceIds) {
+        return ResponseEntity.ok(invoiceQueryService.getStatuses(invoiceIds));
+    }
+
     @GetMapping(value = "/")
     public String home() {
         return "Invoice API is up and running";
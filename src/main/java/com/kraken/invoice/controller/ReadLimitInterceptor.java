@@ -0,0 +1,69 @@
+package com.kraken.invoice.controller;
+
+import com.kraken.invoice.config.QueryProperties;
+import com.kraken.invoice.exception.ReadRejectedException;
+import jakarta.annotation.PostConstruct;
+import jakarta.servlet.DispatcherType;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.AsyncHandlerInterceptor;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lets at most invoice.query.max-concurrent-reads invoice reads run at once. Reads share the
+ * connection pool with uploads, and with virtual threads nothing else bounds how many of them
+ * are in flight; past the limit they wait here for invoice.query.read-wait and then get 503
+ * instead of taking the connections that uploads persist with.
+ * <p>
+ * A GET /invoice/stream export keeps its permit until the async response has been written.
+ */
+@Slf4j
+@Component
+public class ReadLimitInterceptor implements AsyncHandlerInterceptor {
+    private static final String PERMIT = ReadLimitInterceptor.class.getName() + ".permit";
+
+    @Autowired
+    public QueryProperties queryProperties;
+
+    private Semaphore permits;
+
+    @PostConstruct
+    public void init() {
+        permits = new Semaphore(Math.max(1, queryProperties.getMaxConcurrentReads()));
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler)
+            throws InterruptedException {
+        // the dispatch that completes an async read already holds its permit
+        if (request.getDispatcherType() == DispatcherType.ASYNC || !isRead(request)) {
+            return true;
+        }
+        if (!permits.tryAcquire(queryProperties.getReadWait().toMillis(), TimeUnit.MILLISECONDS)) {
+            log.warn("Rejected {} {}, {} reads in progress", request.getMethod(), request.getRequestURI(),
+                    queryProperties.getMaxConcurrentReads());
+            throw new ReadRejectedException("Too many invoice reads in progress, please retry later");
+        }
+        request.setAttribute(PERMIT, Boolean.TRUE);
+        return true;
+    }
+
+    @Override
+    public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler,
+                                Exception ex) {
+        if (request.getAttribute(PERMIT) != null) {
+            request.removeAttribute(PERMIT);
+            permits.release();
+        }
+    }
+
+    private static boolean isRead(HttpServletRequest request) {
+        // POST /invoice/status is a bulk lookup, not a write
+        return "GET".equals(request.getMethod()) || request.getRequestURI().endsWith("/invoice/status");
+    }
+}
@@ -0,0 +1,29 @@
+package com.kraken.invoice.entity;
+
+import com.kraken.invoice.exception.InvalidOptionException;
+
+import java.util.Locale;
+
+public enum IngestMode {
+    // Parse both files into memory and return every invoice with its transactions
+    STANDARD,
+    // Fold transactions into running totals and flush invoices as they complete
+    STREAMING,
+    // Like standard, but only validate and write invoices whose content changed since the last upload
+    DELTA,
+    // Spill transactions to partitioned temp files and reconcile one partition at a time
+    EXTERNAL,
+    // Like streaming, but reconcile, mapping and persist run on their own threads behind bounded queues
+    PIPELINE;
+
+    public static IngestMode from(String value) {
+        if (value == null || value.isBlank()) {
+            return null;
+        }
+        try {
+            return IngestMode.valueOf(value.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new InvalidOptionException("Unsupported ingest mode: " + value);
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package com.kraken.invoice.entity;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * Optional query parameters of POST /invoice. Anything left unset falls back to the
+ * invoice.ingest.* properties.
+ */
+@Getter
+@Setter
+public class IngestOptions {
+    private String mode;
+    private String persistence;
+    private String parser;
+    // error budget: quarantine malformed rows instead of failing, up to this many rows or this share of a file
+    private Long maxBadRows;
+    private Double maxBadPercent;
+    // run the upload as a background job and answer 202 Accepted with the job id
+    private boolean async;
+}
@@ -3,11 +3,14 @@ package com.kraken.invoice.entity;
 import jakarta.persistence.CascadeType;
 import jakarta.persistence.Entity;
 import jakarta.persistence.Id;
+import jakarta.persistence.Index;
 import jakarta.persistence.OneToMany;
+import jakarta.persistence.Table;
 import lombok.AllArgsConstructor;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.Setter;
+import org.hibernate.annotations.BatchSize;
 
 import java.math.BigDecimal;
 import java.time.LocalDateTime;
@@ -18,6 +21,14 @@ import java.util.List;
 @AllArgsConstructor
 @NoArgsConstructor
 @Entity
+// Secondary access paths of GET /invoice/search. The status index ends with the id so that a
+// status filter can be paged in id order straight from the index.
+@Table(indexes = {
+        @Index(name = "idx_invoice_invoice_number", columnList = "invoice_number"),
+        @Index(name = "idx_invoice_status_id", columnList = "status, invoice_id"),
+        @Index(name = "idx_invoice_receipt_date", columnList = "receipt_date"),
+        @Index(name = "idx_invoice_payment_due_date", columnList = "payment_due_date")
+})
 public class Invoice {
     @Id
     private Long invoiceId;
@@ -29,10 +40,14 @@ public class Invoice {
     private LocalDateTime paymentDueDate;
     private Integer totalNoTrxn;
 
+    // Lists touched outside a fetch join are loaded for up to 100 invoices per query
     @OneToMany(mappedBy = "invoice", cascade = CascadeType.ALL)
+    @BatchSize(size = 100)
     private List<Transaction> transactions;
     private String status;
     private String reason;
+    // SHA-256 of the invoice and its transaction set as uploaded, see InvoiceFingerprint
+    private String contentHash;
 
 }
 
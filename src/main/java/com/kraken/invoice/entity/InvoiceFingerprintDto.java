@@ -0,0 +1,15 @@
+package com.kraken.invoice.entity;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+@Getter
+@Setter
+@AllArgsConstructor
+@NoArgsConstructor
+public class InvoiceFingerprintDto {
+    private Long invoiceId;
+    private String contentHash;
+}
@@ -0,0 +1,18 @@
+package com.kraken.invoice.entity;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+import java.util.List;
+
+@Getter
+@Setter
+@AllArgsConstructor
+@NoArgsConstructor
+public class InvoicePageDto {
+    private List<InvoiceDto> invoices;
+    // Pass as ?after= to fetch the next page; null on the last page
+    private Long nextCursor;
+}
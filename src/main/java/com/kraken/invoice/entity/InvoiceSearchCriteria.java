@@ -0,0 +1,33 @@
+package com.kraken.invoice.entity;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.springframework.format.annotation.DateTimeFormat;
+
+import java.time.LocalDateTime;
+
+/**
+ * Query parameters of GET /invoice/search. Date ranges include from and exclude to. Results
+ * are paged by invoice id like GET /invoice?limit=.
+ */
+@Getter
+@Setter
+public class InvoiceSearchCriteria {
+    private String invoiceNumber;
+    private String status;
+    @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME)
+    private LocalDateTime receiptFrom;
+    @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME)
+    private LocalDateTime receiptTo;
+    @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME)
+    private LocalDateTime dueFrom;
+    @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME)
+    private LocalDateTime dueTo;
+    private Long after;
+    private Integer limit;
+
+    public boolean hasFilter() {
+        return invoiceNumber != null || status != null || receiptFrom != null || receiptTo != null
+                || dueFrom != null || dueTo != null;
+    }
+}
@@ -0,0 +1,20 @@
+package com.kraken.invoice.entity;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+/**
+ * Id, status and reason of an invoice, selected straight into this class by
+ * InvoiceRepository so that status lookups never load the entity or its transactions.
+ */
+@Getter
+@Setter
+@AllArgsConstructor
+@NoArgsConstructor
+public class InvoiceStatusDto {
+    private Long invoiceId;
+    private String status;
+    private String reason;
+}
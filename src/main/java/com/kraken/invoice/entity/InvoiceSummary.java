@@ -0,0 +1,65 @@
+package com.kraken.invoice.entity;
+
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.IdClass;
+import jakarta.persistence.Table;
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+
+/**
+ * Running totals of the stored invoices of one receipt month and status, kept up to date by
+ * every upload so that GET /invoice/summary reads a handful of rows. Invoices without a receipt
+ * date or status are counted under {@link #NONE}. The mismatch columns count invoices whose
+ * reason names that rule; one invoice can break several.
+ */
+@Getter
+@Setter
+@NoArgsConstructor
+@Entity
+@Table(name = "invoice_summary")
+@IdClass(InvoiceSummary.Key.class)
+public class InvoiceSummary {
+    public static final String NONE = "none";
+
+    // yyyy-MM
+    @Id
+    private String receiptMonth;
+    @Id
+    private String status;
+    private long invoiceCount;
+    private BigDecimal grossAmount = BigDecimal.ZERO;
+    private BigDecimal netAmount = BigDecimal.ZERO;
+    private BigDecimal gstAmount = BigDecimal.ZERO;
+    private long netMismatch;
+    private long gstMismatch;
+    private long countMismatch;
+    private long missingAmount;
+
+    public InvoiceSummary(Key key) {
+        this.receiptMonth = key.getReceiptMonth();
+        this.status = key.getStatus();
+    }
+
+    @Getter
+    @Setter
+    @NoArgsConstructor
+    @AllArgsConstructor
+    @EqualsAndHashCode
+    public static class Key implements Serializable, Comparable<Key> {
+        private String receiptMonth;
+        private String status;
+
+        @Override
+        public int compareTo(Key other) {
+            int byMonth = receiptMonth.compareTo(other.receiptMonth);
+            return byMonth != 0 ? byMonth : status.compareTo(other.status);
+        }
+    }
+}
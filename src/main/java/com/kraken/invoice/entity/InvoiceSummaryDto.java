@@ -0,0 +1,21 @@
+package com.kraken.invoice.entity;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Map;
+
+@Getter
+@Setter
+public class InvoiceSummaryDto {
+    private long invoices;
+    private long valid;
+    private long invalid;
+    private BigDecimal grossAmount;
+    private BigDecimal netAmount;
+    private BigDecimal gstAmount;
+    private Map<String, Long> reasons; // invoices breaking each rule, most frequent first
+    private List<MonthlySummaryDto> months; // by receipt month, oldest first; "none" when missing
+}
@@ -0,0 +1,24 @@
+package com.kraken.invoice.entity;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+import java.math.BigDecimal;
+
+@Getter
+@Setter
+@NoArgsConstructor
+public class MonthlySummaryDto {
+    private String month; // yyyy-MM
+    private long invoices;
+    private long valid;
+    private long invalid;
+    private BigDecimal grossAmount = BigDecimal.ZERO;
+    private BigDecimal netAmount = BigDecimal.ZERO;
+    private BigDecimal gstAmount = BigDecimal.ZERO;
+
+    public MonthlySummaryDto(String month) {
+        this.month = month;
+    }
+}
@@ -0,0 +1,25 @@
+package com.kraken.invoice.entity;
+
+import com.kraken.invoice.exception.InvalidOptionException;
+
+import java.util.Locale;
+
+public enum ParserMode {
+    // Single-threaded commons-csv parsing
+    COMMONS,
+    // Record-aligned chunks of the transaction file parsed on a fork-join pool
+    PARALLEL,
+    // Schema-specific byte tokenizer that decodes fields without intermediate Strings
+    FAST;
+
+    public static ParserMode from(String value) {
+        if (value == null || value.isBlank()) {
+            return null;
+        }
+        try {
+            return ParserMode.valueOf(value.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new InvalidOptionException("Unsupported parser: " + value);
+        }
+    }
+}
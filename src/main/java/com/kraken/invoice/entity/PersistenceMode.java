@@ -0,0 +1,25 @@
+package com.kraken.invoice.entity;
+
+import com.kraken.invoice.exception.InvalidOptionException;
+
+import java.util.Locale;
+
+public enum PersistenceMode {
+    // Spring Data saveAll in one transaction, cascading from Invoice to its transactions; the default
+    JPA,
+    // Batched, ordered INSERT ... ON CONFLICT upserts through JdbcTemplate, committed every commit-size invoices
+    JDBC,
+    // PostgreSQL COPY FROM STDIN into staging tables, merged with one statement per table
+    COPY;
+
+    public static PersistenceMode from(String value) {
+        if (value == null || value.isBlank()) {
+            return null;
+        }
+        try {
+            return PersistenceMode.valueOf(value.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new InvalidOptionException("Unsupported persistence mode: " + value);
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package com.kraken.invoice.entity;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+@Getter
+@Setter
+@AllArgsConstructor
+@NoArgsConstructor
+public class RejectionDto {
+    private String file; // "invoice" or "transaction"
+    private long line; // record number, not counting the header
+    private String reason;
+    private String row; // the record as read, re-encoded as CSV
+}
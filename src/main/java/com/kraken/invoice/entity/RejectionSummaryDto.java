@@ -0,0 +1,18 @@
+package com.kraken.invoice.entity;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.List;
+import java.util.Map;
+
+@Getter
+@Setter
+public class RejectionSummaryDto {
+    private String reportId;
+    private long rowsRejected;
+    private long rowsQuarantined; // malformed rows skipped under the error budget, part of rowsRejected
+    private long rowsRetained; // rows available from GET /invoice/rejections/{reportId}
+    private Map<String, Long> byReason;
+    private List<RejectionDto> sample; // the first few rejected rows
+}
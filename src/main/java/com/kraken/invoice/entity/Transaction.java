@@ -1,9 +1,12 @@
 package com.kraken.invoice.entity;
 
 import jakarta.persistence.Entity;
+import jakarta.persistence.FetchType;
 import jakarta.persistence.Id;
+import jakarta.persistence.Index;
 import jakarta.persistence.JoinColumn;
 import jakarta.persistence.ManyToOne;
+import jakarta.persistence.Table;
 import lombok.AllArgsConstructor;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
@@ -17,6 +20,8 @@ import java.time.LocalDateTime;
 @AllArgsConstructor
 @NoArgsConstructor
 @Entity
+// Postgres does not index foreign keys by itself; every transaction lookup goes through invoice_id
+@Table(indexes = @Index(name = "idx_transaction_invoice_id", columnList = "invoice_id"))
 public class Transaction {
     @Id
     private Long trxnId;
@@ -28,7 +33,7 @@ public class Transaction {
     private BigDecimal netTransactionAmount;
     private BigDecimal gstAmount;
 
-    @ManyToOne
+    @ManyToOne(fetch = FetchType.LAZY)
     @JoinColumn(name = "invoice_id")
     private Invoice invoice;
 }
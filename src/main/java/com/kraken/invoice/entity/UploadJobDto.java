@@ -0,0 +1,22 @@
+package com.kraken.invoice.entity;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.time.Instant;
+
+@Getter
+@Setter
+public class UploadJobDto {
+    private String jobId;
+    private String status; // "queued", "running", "completed" or "failed"
+    private Instant submittedAt;
+    private Instant startedAt;
+    private Instant finishedAt;
+    private long rowsParsed;
+    private long invoicesValidated;
+    private long rowsPersisted;
+    private double rowsPerSecond;
+    private UploadSummaryDto summary;
+    private String error;
+}
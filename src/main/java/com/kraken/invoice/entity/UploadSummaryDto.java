@@ -0,0 +1,24 @@
+package com.kraken.invoice.entity;
+
+import lombok.Getter;
+import lombok.Setter;
+
+@Getter
+@Setter
+public class UploadSummaryDto {
+    private String mode;
+    private String persistence;
+    private long invoicesRead;
+    private long transactionsRead;
+    private long orphanTransactions; // transactions whose invoice id is not in the invoice file
+    private long validInvoices;
+    private long invalidInvoices;
+    private long invoicesSaved;
+    private long transactionsSaved;
+    // delta mode only: how each invoice in the file compared with the stored one
+    private long invoicesInserted;
+    private long invoicesUpdated;
+    private long invoicesUnchanged;
+    private long elapsedMillis;
+    private RejectionSummaryDto rejections; // rows the parser skipped, null when not collected
+}
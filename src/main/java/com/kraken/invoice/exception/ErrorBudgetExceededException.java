@@ -0,0 +1,11 @@
+package com.kraken.invoice.exception;
+
+/**
+ * A tolerant upload quarantined more malformed records than its error budget allows. Modes that
+ * commit in chunks may already have committed part of the upload; the message says how much.
+ */
+public class ErrorBudgetExceededException extends RuntimeException {
+    public ErrorBudgetExceededException(String message) {
+        super(message);
+    }
+}
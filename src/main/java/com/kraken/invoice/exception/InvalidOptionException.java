@@ -0,0 +1,11 @@
+package com.kraken.invoice.exception;
+
+/**
+ * A request option or parameter with a value the API does not accept, such as an unknown ingest
+ * mode or a negative error budget.
+ */
+public class InvalidOptionException extends RuntimeException {
+    public InvalidOptionException(String message) {
+        super(message);
+    }
+}
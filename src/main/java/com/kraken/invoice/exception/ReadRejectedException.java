@@ -0,0 +1,7 @@
+package com.kraken.invoice.exception;
+
+public class ReadRejectedException extends RuntimeException {
+    public ReadRejectedException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,7 @@
+package com.kraken.invoice.exception;
+
+public class UploadInProgressException extends RuntimeException {
+    public UploadInProgressException(String message) {
+        super(message);
+    }
+}
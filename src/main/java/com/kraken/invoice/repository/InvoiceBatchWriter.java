@@ -0,0 +1,119 @@
+package com.kraken.invoice.repository;
+
+import com.kraken.invoice.config.IngestProperties;
+import com.kraken.invoice.entity.Invoice;
+import com.kraken.invoice.entity.Transaction;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes invoices and their transactions with batched INSERT ... ON CONFLICT DO UPDATE
+ * statements instead of the per-row SELECT + INSERT that JPA merge does for entities with
+ * assigned ids. Rows are written in key order so concurrent uploads touching the same ids
+ * lock them in the same order. The caller owns the transaction.
+ */
+@Slf4j
+@Repository
+public class InvoiceBatchWriter {
+
+    static final String UPSERT_INVOICE = """
+            INSERT INTO invoice (invoice_id, invoice_number, gross_amount, gst_amount, net_amount,
+                                 receipt_date, payment_due_date, total_no_trxn, status, reason, content_hash)
+            VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)
+            ON CONFLICT (invoice_id) DO UPDATE SET
+                invoice_number = EXCLUDED.invoice_number,
+                gross_amount = EXCLUDED.gross_amount,
+                gst_amount = EXCLUDED.gst_amount,
+                net_amount = EXCLUDED.net_amount,
+                receipt_date = EXCLUDED.receipt_date,
+                payment_due_date = EXCLUDED.payment_due_date,
+                total_no_trxn = EXCLUDED.total_no_trxn,
+                status = EXCLUDED.status,
+                reason = EXCLUDED.reason,
+                content_hash = EXCLUDED.content_hash
+            """;
+
+    static final String UPSERT_TRANSACTION = """
+            INSERT INTO transaction (trxn_id, date_received, transaction_date, invoice_number,
+                                     billing_period_start, billing_period_end, net_transaction_amount,
+                                     gst_amount, invoice_id)
+            VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)
+            ON CONFLICT (trxn_id) DO UPDATE SET
+                date_received = EXCLUDED.date_received,
+                transaction_date = EXCLUDED.transaction_date,
+                invoice_number = EXCLUDED.invoice_number,
+                billing_period_start = EXCLUDED.billing_period_start,
+                billing_period_end = EXCLUDED.billing_period_end,
+                net_transaction_amount = EXCLUDED.net_transaction_amount,
+                gst_amount = EXCLUDED.gst_amount,
+                invoice_id = EXCLUDED.invoice_id
+            """;
+
+    @Autowired
+    public JdbcTemplate jdbcTemplate;
+    @Autowired
+    public IngestProperties ingestProperties;
+
+    /**
+     * Upserts the invoices and then their transactions. Returns the number of transaction rows
+     * written, after dropping duplicate invoice and transaction ids within the chunk (the last
+     * one wins, as it would with a sequence of merges).
+     */
+    public int write(List<Invoice> invoices) {
+        int batchSize = ingestProperties.getJdbcBatchSize();
+
+        // with reWriteBatchedInserts a batch becomes one multi-row statement, which may not touch
+        // the same key twice, so collapse duplicates first
+        Map<Long, Invoice> uniqueInvoices = new LinkedHashMap<>();
+        for (Invoice invoice : invoices) {
+            uniqueInvoices.put(invoice.getInvoiceId(), invoice);
+        }
+        List<Invoice> orderedInvoices = new ArrayList<>(uniqueInvoices.values());
+        orderedInvoices.sort(Comparator.comparing(Invoice::getInvoiceId));
+        jdbcTemplate.batchUpdate(UPSERT_INVOICE, orderedInvoices, batchSize, (ps, invoice) -> {
+            ps.setObject(1, invoice.getInvoiceId(), Types.BIGINT);
+            ps.setObject(2, invoice.getInvoiceNumber(), Types.VARCHAR);
+            ps.setObject(3, invoice.getGrossAmount(), Types.NUMERIC);
+            ps.setObject(4, invoice.getGstAmount(), Types.NUMERIC);
+            ps.setObject(5, invoice.getNetAmount(), Types.NUMERIC);
+            ps.setObject(6, invoice.getReceiptDate(), Types.TIMESTAMP);
+            ps.setObject(7, invoice.getPaymentDueDate(), Types.TIMESTAMP);
+            ps.setObject(8, invoice.getTotalNoTrxn(), Types.INTEGER);
+            ps.setObject(9, invoice.getStatus(), Types.VARCHAR);
+            ps.setObject(10, invoice.getReason(), Types.VARCHAR);
+            ps.setObject(11, invoice.getContentHash(), Types.VARCHAR);
+        });
+
+        // every copy of a repeated invoice may carry transactions of its own, so walk them all
+        Map<Long, Transaction> uniqueTransactions = new LinkedHashMap<>();
+        for (Invoice invoice : invoices) {
+            for (Transaction txn : invoice.getTransactions()) {
+                uniqueTransactions.put(txn.getTrxnId(), txn);
+            }
+        }
+        List<Transaction> orderedTransactions = new ArrayList<>(uniqueTransactions.values());
+        orderedTransactions.sort(Comparator.comparing(Transaction::getTrxnId));
+        jdbcTemplate.batchUpdate(UPSERT_TRANSACTION, orderedTransactions, batchSize, (ps, txn) -> {
+            ps.setObject(1, txn.getTrxnId(), Types.BIGINT);
+            ps.setObject(2, txn.getDateReceived(), Types.TIMESTAMP);
+            ps.setObject(3, txn.getTransactionDate(), Types.TIMESTAMP);
+            ps.setObject(4, txn.getInvoiceNumber(), Types.VARCHAR);
+            ps.setObject(5, txn.getBillingPeriodStart(), Types.TIMESTAMP);
+            ps.setObject(6, txn.getBillingPeriodEnd(), Types.TIMESTAMP);
+            ps.setObject(7, txn.getNetTransactionAmount(), Types.NUMERIC);
+            ps.setObject(8, txn.getGstAmount(), Types.NUMERIC);
+            ps.setObject(9, txn.getInvoice().getInvoiceId(), Types.BIGINT);
+        });
+        log.debug("Batch-wrote {} invoices and {} transactions", orderedInvoices.size(), orderedTransactions.size());
+        return orderedTransactions.size();
+    }
+}
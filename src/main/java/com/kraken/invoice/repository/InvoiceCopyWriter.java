@@ -0,0 +1,177 @@
+package com.kraken.invoice.repository;
+
+import com.kraken.invoice.entity.Invoice;
+import com.kraken.invoice.entity.Transaction;
+import lombok.extern.slf4j.Slf4j;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.PGCopyOutputStream;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceUtils;
+import org.springframework.stereotype.Repository;
+
+import javax.sql.DataSource;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Loads invoices and transactions with PostgreSQL COPY FROM STDIN into session-local staging
+ * tables and merges each staging table into its target with one INSERT ... SELECT ... ON CONFLICT
+ * statement. Must run inside a transaction so that COPY and merge share a connection; the staging
+ * tables are emptied on commit.
+ */
+@Slf4j
+@Repository
+public class InvoiceCopyWriter {
+
+    private static final String CREATE_INVOICE_STAGING = """
+            CREATE TEMP TABLE IF NOT EXISTS invoice_staging
+                (LIKE invoice INCLUDING DEFAULTS, seq BIGINT) ON COMMIT DELETE ROWS
+            """;
+
+    private static final String CREATE_TRANSACTION_STAGING = """
+            CREATE TEMP TABLE IF NOT EXISTS transaction_staging
+                (LIKE transaction INCLUDING DEFAULTS, seq BIGINT) ON COMMIT DELETE ROWS
+            """;
+
+    private static final String COPY_INVOICE = """
+            COPY invoice_staging (invoice_id, invoice_number, gross_amount, gst_amount, net_amount,
+                                  receipt_date, payment_due_date, total_no_trxn, status, reason, content_hash, seq)
+            FROM STDIN WITH (FORMAT csv)
+            """;
+
+    private static final String COPY_TRANSACTION = """
+            COPY transaction_staging (trxn_id, date_received, transaction_date, invoice_number,
+                                      billing_period_start, billing_period_end, net_transaction_amount,
+                                      gst_amount, invoice_id, seq)
+            FROM STDIN WITH (FORMAT csv)
+            """;
+
+    // DISTINCT ON keeps the last copy of an invoice repeated in the chunk, e.g. one reopened by a
+    // late transaction; one statement may not update the same row twice
+    private static final String MERGE_INVOICE = """
+            INSERT INTO invoice (invoice_id, invoice_number, gross_amount, gst_amount, net_amount,
+                                 receipt_date, payment_due_date, total_no_trxn, status, reason, content_hash)
+            SELECT DISTINCT ON (invoice_id) invoice_id, invoice_number, gross_amount, gst_amount, net_amount,
+                   receipt_date, payment_due_date, total_no_trxn, status, reason, content_hash
+            FROM invoice_staging
+            ORDER BY invoice_id, seq DESC
+            ON CONFLICT (invoice_id) DO UPDATE SET
+                invoice_number = EXCLUDED.invoice_number,
+                gross_amount = EXCLUDED.gross_amount,
+                gst_amount = EXCLUDED.gst_amount,
+                net_amount = EXCLUDED.net_amount,
+                receipt_date = EXCLUDED.receipt_date,
+                payment_due_date = EXCLUDED.payment_due_date,
+                total_no_trxn = EXCLUDED.total_no_trxn,
+                status = EXCLUDED.status,
+                reason = EXCLUDED.reason,
+                content_hash = EXCLUDED.content_hash
+            """;
+
+    // DISTINCT ON keeps the last occurrence of a repeated trxn_id, as a sequence of merges would
+    private static final String MERGE_TRANSACTION = """
+            INSERT INTO transaction (trxn_id, date_received, transaction_date, invoice_number,
+                                     billing_period_start, billing_period_end, net_transaction_amount,
+                                     gst_amount, invoice_id)
+            SELECT DISTINCT ON (trxn_id) trxn_id, date_received, transaction_date, invoice_number,
+                   billing_period_start, billing_period_end, net_transaction_amount, gst_amount, invoice_id
+            FROM transaction_staging
+            ORDER BY trxn_id, seq DESC
+            ON CONFLICT (trxn_id) DO UPDATE SET
+                date_received = EXCLUDED.date_received,
+                transaction_date = EXCLUDED.transaction_date,
+                invoice_number = EXCLUDED.invoice_number,
+                billing_period_start = EXCLUDED.billing_period_start,
+                billing_period_end = EXCLUDED.billing_period_end,
+                net_transaction_amount = EXCLUDED.net_transaction_amount,
+                gst_amount = EXCLUDED.gst_amount,
+                invoice_id = EXCLUDED.invoice_id
+            """;
+
+    @Autowired
+    public JdbcTemplate jdbcTemplate;
+    @Autowired
+    public DataSource dataSource;
+
+    /**
+     * Copies and merges the invoices and their transactions. Returns the number of transaction
+     * rows copied.
+     */
+    public long write(List<Invoice> invoices) {
+        jdbcTemplate.execute(CREATE_INVOICE_STAGING);
+        jdbcTemplate.execute(CREATE_TRANSACTION_STAGING);
+
+        Connection connection = DataSourceUtils.getConnection(dataSource);
+        long invoiceCount = 0;
+        long transactionCount = 0;
+        try {
+            PGConnection pgConnection = connection.unwrap(PGConnection.class);
+            try (Writer out = copyWriter(pgConnection, COPY_INVOICE)) {
+                for (Invoice invoice : invoices) {
+                    writeRow(out, invoice.getInvoiceId(), invoice.getInvoiceNumber(), invoice.getGrossAmount(),
+                            invoice.getGstAmount(), invoice.getNetAmount(), invoice.getReceiptDate(),
+                            invoice.getPaymentDueDate(), invoice.getTotalNoTrxn(), invoice.getStatus(),
+                            invoice.getReason(), invoice.getContentHash(), invoiceCount++);
+                }
+            }
+            try (Writer out = copyWriter(pgConnection, COPY_TRANSACTION)) {
+                for (Invoice invoice : invoices) {
+                    for (Transaction txn : invoice.getTransactions()) {
+                        writeRow(out, txn.getTrxnId(), txn.getDateReceived(), txn.getTransactionDate(),
+                                txn.getInvoiceNumber(), txn.getBillingPeriodStart(), txn.getBillingPeriodEnd(),
+                                txn.getNetTransactionAmount(), txn.getGstAmount(), invoice.getInvoiceId(),
+                                transactionCount++);
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("COPY into staging tables failed: " + e.getMessage(), e);
+        } catch (IOException e) {
+            throw new UncheckedIOException("COPY into staging tables failed: " + e.getMessage(), e);
+        } finally {
+            DataSourceUtils.releaseConnection(connection, dataSource);
+        }
+
+        int invoiceRows = jdbcTemplate.update(MERGE_INVOICE);
+        int transactionRows = jdbcTemplate.update(MERGE_TRANSACTION);
+        log.debug("COPY merged {} invoices and {} transactions", invoiceRows, transactionRows);
+        return transactionCount;
+    }
+
+    private Writer copyWriter(PGConnection connection, String sql) throws SQLException {
+        return new BufferedWriter(new OutputStreamWriter(new PGCopyOutputStream(connection, sql),
+                StandardCharsets.UTF_8), 64 * 1024);
+    }
+
+    /**
+     * Writes one row in COPY csv format: null is an empty unquoted field, every string is quoted
+     * so that an empty string stays distinct from null.
+     */
+    private void writeRow(Writer out, Object... values) throws IOException {
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                out.write(',');
+            }
+            Object value = values[i];
+            if (value instanceof String text) {
+                out.write('"');
+                out.write(text.replace("\"", "\"\""));
+                out.write('"');
+            } else if (value instanceof BigDecimal decimal) {
+                out.write(decimal.toPlainString());
+            } else if (value != null) {
+                out.write(value.toString());
+            }
+        }
+        out.write('\n');
+    }
+}
@@ -1,7 +1,56 @@
 package com.kraken.invoice.repository;
 
 import com.kraken.invoice.entity.Invoice;
+import com.kraken.invoice.entity.InvoiceFingerprintDto;
+import com.kraken.invoice.entity.InvoiceStatusDto;
+import jakarta.persistence.QueryHint;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.EntityGraph;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.JpaSpecificationExecutor;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.query.Param;
 
-public interface InvoiceRepository extends JpaRepository<Invoice,Long> {
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+import static org.hibernate.jpa.HibernateHints.HINT_FETCH_SIZE;
+import static org.hibernate.jpa.HibernateHints.HINT_READ_ONLY;
+
+public interface InvoiceRepository extends JpaRepository<Invoice,Long>, JpaSpecificationExecutor<Invoice> {
+
+    @EntityGraph(attributePaths = "transactions")
+    Optional<Invoice> findWithTransactionsByInvoiceId(Long invoiceId);
+
+    @EntityGraph(attributePaths = "transactions")
+    List<Invoice> findWithTransactionsByInvoiceIdIn(Collection<Long> invoiceIds);
+
+    @Query("select new com.kraken.invoice.entity.InvoiceStatusDto(i.invoiceId, i.status, i.reason) "
+            + "from Invoice i where i.invoiceId = :invoiceId")
+    Optional<InvoiceStatusDto> findStatusByInvoiceId(@Param("invoiceId") Long invoiceId);
+
+    @Query("select new com.kraken.invoice.entity.InvoiceStatusDto(i.invoiceId, i.status, i.reason) "
+            + "from Invoice i where i.invoiceId in :invoiceIds order by i.invoiceId")
+    List<InvoiceStatusDto> findStatusByInvoiceIdIn(@Param("invoiceIds") Collection<Long> invoiceIds);
+
+    /**
+     * Keyset page: the invoices after the given id, in id order. Only the page size comes from
+     * the pageable; the offset is always zero.
+     */
+    List<Invoice> findByInvoiceIdGreaterThanOrderByInvoiceIdAsc(Long after, Pageable pageable);
+
+    @Query("select new com.kraken.invoice.entity.InvoiceFingerprintDto(i.invoiceId, i.contentHash) "
+            + "from Invoice i where i.invoiceId in :invoiceIds")
+    List<InvoiceFingerprintDto> findContentHashByInvoiceIdIn(@Param("invoiceIds") Collection<Long> invoiceIds);
+
+    /**
+     * Every invoice in id order, read through a server-side cursor. Must be consumed inside a
+     * transaction and closed.
+     */
+    @QueryHints({@QueryHint(name = HINT_FETCH_SIZE, value = "500"), @QueryHint(name = HINT_READ_ONLY, value = "true")})
+    @Query("select i from Invoice i order by i.invoiceId")
+    Stream<Invoice> streamAllOrderByInvoiceId();
 }
@@ -0,0 +1,52 @@
+package com.kraken.invoice.repository;
+
+import com.kraken.invoice.entity.Invoice;
+import org.springframework.data.jpa.domain.Specification;
+
+import java.time.LocalDateTime;
+
+/**
+ * Filters of GET /invoice/search. Each one matches an index declared on {@link Invoice}; a null
+ * argument leaves the filter out.
+ */
+public final class InvoiceSpecifications {
+
+    private InvoiceSpecifications() {
+    }
+
+    public static Specification<Invoice> invoiceNumber(String invoiceNumber) {
+        return (root, query, cb) -> invoiceNumber == null ? null : cb.equal(root.get("invoiceNumber"), invoiceNumber);
+    }
+
+    public static Specification<Invoice> status(String status) {
+        return (root, query, cb) -> status == null ? null : cb.equal(root.get("status"), status);
+    }
+
+    public static Specification<Invoice> receiptDateBetween(LocalDateTime from, LocalDateTime to) {
+        return between("receiptDate", from, to);
+    }
+
+    public static Specification<Invoice> paymentDueDateBetween(LocalDateTime from, LocalDateTime to) {
+        return between("paymentDueDate", from, to);
+    }
+
+    /**
+     * Keyset condition: invoices with an id greater than after.
+     */
+    public static Specification<Invoice> invoiceIdAfter(Long after) {
+        return (root, query, cb) -> after == null ? null : cb.greaterThan(root.get("invoiceId"), after);
+    }
+
+    // from is inclusive and to exclusive, so consecutive ranges do not overlap
+    private static Specification<Invoice> between(String attribute, LocalDateTime from, LocalDateTime to) {
+        return (root, query, cb) -> {
+            if (from != null && to != null) {
+                return cb.and(cb.greaterThanOrEqualTo(root.get(attribute), from), cb.lessThan(root.get(attribute), to));
+            }
+            if (from != null) {
+                return cb.greaterThanOrEqualTo(root.get(attribute), from);
+            }
+            return to == null ? null : cb.lessThan(root.get(attribute), to);
+        };
+    }
+}
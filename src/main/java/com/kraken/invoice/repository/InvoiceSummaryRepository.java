@@ -0,0 +1,16 @@
+package com.kraken.invoice.repository;
+
+import com.kraken.invoice.entity.InvoiceSummary;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+
+import java.util.List;
+
+/**
+ * Reads the invoice_summary rollup. Writes go through {@link InvoiceSummaryWriter}.
+ */
+public interface InvoiceSummaryRepository extends JpaRepository<InvoiceSummary, InvoiceSummary.Key> {
+
+    @Query("select s from InvoiceSummary s order by s.receiptMonth, s.status")
+    List<InvoiceSummary> findAllOrdered();
+}
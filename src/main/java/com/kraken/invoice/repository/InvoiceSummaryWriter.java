@@ -0,0 +1,152 @@
+package com.kraken.invoice.repository;
+
+import com.kraken.invoice.entity.Invoice;
+import com.kraken.invoice.entity.InvoiceSummary;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import java.sql.Array;
+import java.sql.PreparedStatement;
+import java.sql.Timestamp;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Maintains the invoice_summary rollup with plain SQL. Uploads lock the ids they write and the
+ * stored versions of them with {@link #lockCurrent}, write, and then add their delta with
+ * {@link #apply}, all in one transaction. The caller owns the transaction.
+ */
+@Slf4j
+@Repository
+public class InvoiceSummaryWriter {
+
+    // Row locks cannot cover ids that are not stored yet, so new ids are claimed by inserting an
+    // empty row for them, which the write then fills in. A second writer of the same new id waits
+    // on the uncommitted row until the first commits, then finds it stored. Ids are claimed in
+    // order so that two uploads cannot deadlock, and uploads with disjoint ids never wait.
+    private static final String CLAIM_NEW = """
+            INSERT INTO invoice (invoice_id)
+            SELECT id FROM unnest(?) AS id ORDER BY id
+            ON CONFLICT (invoice_id) DO NOTHING
+            RETURNING invoice_id
+            """;
+
+    private static final String LOCK_CURRENT = """
+            SELECT invoice_id, receipt_date, status, reason, gross_amount, net_amount, gst_amount
+            FROM invoice
+            WHERE invoice_id = ANY (?)
+            ORDER BY invoice_id
+            FOR UPDATE
+            """;
+
+    static final String APPLY_DELTA = """
+            INSERT INTO invoice_summary (receipt_month, status, invoice_count, gross_amount, net_amount,
+                                         gst_amount, net_mismatch, gst_mismatch, count_mismatch, missing_amount)
+            VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)
+            ON CONFLICT (receipt_month, status) DO UPDATE SET
+                invoice_count = invoice_summary.invoice_count + EXCLUDED.invoice_count,
+                gross_amount = invoice_summary.gross_amount + EXCLUDED.gross_amount,
+                net_amount = invoice_summary.net_amount + EXCLUDED.net_amount,
+                gst_amount = invoice_summary.gst_amount + EXCLUDED.gst_amount,
+                net_mismatch = invoice_summary.net_mismatch + EXCLUDED.net_mismatch,
+                gst_mismatch = invoice_summary.gst_mismatch + EXCLUDED.gst_mismatch,
+                count_mismatch = invoice_summary.count_mismatch + EXCLUDED.count_mismatch,
+                missing_amount = invoice_summary.missing_amount + EXCLUDED.missing_amount
+            """;
+
+    // EXCLUSIVE still lets GET /invoice/summary read, but waits for uploads holding summary rows
+    private static final String LOCK_SUMMARY = "LOCK TABLE invoice_summary IN EXCLUSIVE MODE";
+
+    private static final String REBUILD = """
+            INSERT INTO invoice_summary (receipt_month, status, invoice_count, gross_amount, net_amount,
+                                         gst_amount, net_mismatch, gst_mismatch, count_mismatch, missing_amount)
+            SELECT COALESCE(to_char(receipt_date, 'YYYY-MM'), 'none'),
+                   COALESCE(status, 'none'),
+                   count(*),
+                   COALESCE(sum(gross_amount), 0),
+                   COALESCE(sum(net_amount), 0),
+                   COALESCE(sum(gst_amount), 0),
+                   count(*) FILTER (WHERE status IS DISTINCT FROM 'valid' AND reason LIKE '%Net amount mismatch%'),
+                   count(*) FILTER (WHERE status IS DISTINCT FROM 'valid' AND reason LIKE '%GST amount mismatch%'),
+                   count(*) FILTER (WHERE status IS DISTINCT FROM 'valid'
+                                    AND reason LIKE '%Transaction count mismatch%'),
+                   count(*) FILTER (WHERE status IS DISTINCT FROM 'valid'
+                                    AND reason LIKE '%Missing invoice net or GST amount%')
+            FROM invoice
+            GROUP BY 1, 2
+            """;
+
+    @Autowired
+    public JdbcTemplate jdbcTemplate;
+
+    /**
+     * Locks the given invoice ids, stored or not, until the end of the transaction and returns
+     * the summary columns of the ones stored before. Ids that are not stored yet get an empty row
+     * here, so a second upload writing one of them waits until the first commits and then sees
+     * the row it stored instead of counting the id as new again.
+     */
+    public List<Invoice> lockCurrent(Collection<Long> invoiceIds) {
+        Set<Long> stored = new HashSet<>(invoiceIds);
+        stored.removeAll(jdbcTemplate.query(connection -> {
+            PreparedStatement ps = connection.prepareStatement(CLAIM_NEW);
+            ps.setArray(1, connection.createArrayOf("bigint", invoiceIds.toArray()));
+            return ps;
+        }, (rs, rowNum) -> rs.getLong("invoice_id")));
+        if (stored.isEmpty()) {
+            return List.of();
+        }
+        return jdbcTemplate.query(connection -> {
+            PreparedStatement ps = connection.prepareStatement(LOCK_CURRENT);
+            Array ids = connection.createArrayOf("bigint", stored.toArray());
+            ps.setArray(1, ids);
+            return ps;
+        }, (rs, rowNum) -> {
+            Invoice invoice = new Invoice();
+            invoice.setInvoiceId(rs.getLong("invoice_id"));
+            Timestamp receiptDate = rs.getTimestamp("receipt_date");
+            invoice.setReceiptDate(receiptDate == null ? null : receiptDate.toLocalDateTime());
+            invoice.setStatus(rs.getString("status"));
+            invoice.setReason(rs.getString("reason"));
+            invoice.setGrossAmount(rs.getBigDecimal("gross_amount"));
+            invoice.setNetAmount(rs.getBigDecimal("net_amount"));
+            invoice.setGstAmount(rs.getBigDecimal("gst_amount"));
+            return invoice;
+        });
+    }
+
+    /**
+     * Adds each bucket's values to the stored totals, creating missing buckets. Buckets must be
+     * in key order.
+     */
+    public void apply(List<InvoiceSummary> changes) {
+        jdbcTemplate.batchUpdate(APPLY_DELTA, changes, changes.size(), (ps, bucket) -> {
+            ps.setString(1, bucket.getReceiptMonth());
+            ps.setString(2, bucket.getStatus());
+            ps.setLong(3, bucket.getInvoiceCount());
+            ps.setBigDecimal(4, bucket.getGrossAmount());
+            ps.setBigDecimal(5, bucket.getNetAmount());
+            ps.setBigDecimal(6, bucket.getGstAmount());
+            ps.setLong(7, bucket.getNetMismatch());
+            ps.setLong(8, bucket.getGstMismatch());
+            ps.setLong(9, bucket.getCountMismatch());
+            ps.setLong(10, bucket.getMissingAmount());
+        });
+        log.debug("Applied {} invoice summary deltas", changes.size());
+    }
+
+    /**
+     * Recomputes every bucket from the invoice table and returns the number of buckets. Reads
+     * one full pass over invoice, so it is meant for bootstrapping and repair only.
+     */
+    public int rebuild() {
+        jdbcTemplate.execute(LOCK_SUMMARY);
+        jdbcTemplate.update("DELETE FROM invoice_summary");
+        int buckets = jdbcTemplate.update(REBUILD);
+        log.info("Rebuilt invoice summary with {} buckets", buckets);
+        return buckets;
+    }
+}
@@ -2,6 +2,21 @@ package com.kraken.invoice.repository;
 
 import com.kraken.invoice.entity.Transaction;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+import java.util.Collection;
+import java.util.List;
 
 public interface TransactionRepository extends JpaRepository<Transaction,String> {
+
+    /**
+     * Transactions of several invoices in one query, so that a page of invoices does not load
+     * each transaction list separately.
+     */
+    @Query("select t from Transaction t where t.invoice.invoiceId in :invoiceIds order by t.trxnId")
+    List<Transaction> findByInvoiceIds(@Param("invoiceIds") Collection<Long> invoiceIds);
+
+    @Query("select t from Transaction t where t.invoice.invoiceId = :invoiceId order by t.trxnId")
+    List<Transaction> findByInvoiceId(@Param("invoiceId") Long invoiceId);
 }
@@ -0,0 +1,59 @@
+package com.kraken.invoice.service;
+
+import com.github.luben.zstd.ZstdInputStream;
+import org.springframework.core.io.InputStreamSource;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Opens an upload part for reading, decompressing it on the fly when it starts with the gzip or
+ * zstd magic number. Detection looks at the bytes rather than the file name or content type, so
+ * a .csv.gz sent as text/csv works as well as one sent as application/gzip. Multipart keeps the
+ * part compressed on disk and nothing decompressed is written anywhere; the parser reads
+ * straight from the decompressing stream.
+ */
+public final class CompressedInput {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final byte[] GZIP_MAGIC = {(byte) 0x1f, (byte) 0x8b};
+    private static final byte[] ZSTD_MAGIC = {(byte) 0x28, (byte) 0xb5, (byte) 0x2f, (byte) 0xfd};
+
+    private CompressedInput() {
+    }
+
+    public static InputStream open(InputStreamSource source) throws IOException {
+        return decompress(source.getInputStream());
+    }
+
+    /**
+     * Returns a stream of the uncompressed content of in: in itself, buffered, when it is not
+     * compressed. Concatenated gzip members and zstd frames are read as one stream.
+     */
+    public static InputStream decompress(InputStream in) throws IOException {
+        BufferedInputStream buffered = new BufferedInputStream(in, BUFFER_SIZE);
+        buffered.mark(ZSTD_MAGIC.length);
+        byte[] head = buffered.readNBytes(ZSTD_MAGIC.length);
+        buffered.reset();
+        if (startsWith(head, GZIP_MAGIC)) {
+            return new BufferedInputStream(new GZIPInputStream(buffered, BUFFER_SIZE), BUFFER_SIZE);
+        }
+        if (startsWith(head, ZSTD_MAGIC)) {
+            return new BufferedInputStream(new ZstdInputStream(buffered), BUFFER_SIZE);
+        }
+        return buffered;
+    }
+
+    private static boolean startsWith(byte[] head, byte[] magic) {
+        if (head.length < magic.length) {
+            return false;
+        }
+        for (int i = 0; i < magic.length; i++) {
+            if (head[i] != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,134 @@
+package com.kraken.invoice.service;
+
+import com.kraken.invoice.config.IngestProperties;
+import com.kraken.invoice.entity.IngestMode;
+import com.kraken.invoice.entity.IngestOptions;
+import com.kraken.invoice.entity.Invoice;
+import com.kraken.invoice.entity.InvoiceDto;
+import com.kraken.invoice.entity.InvoiceFingerprintDto;
+import com.kraken.invoice.entity.PersistenceMode;
+import com.kraken.invoice.entity.TransactionDto;
+import com.kraken.invoice.entity.UploadSummaryDto;
+import com.kraken.invoice.repository.InvoiceRepository;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.InputStreamSource;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Re-upload variant of {@link InvoiceService#parseAndSave}. Each invoice in the file is
+ * fingerprinted together with its transactions and compared with the content hash stored on the
+ * last write. Only new and changed invoices are validated and written; unchanged ones cost a
+ * hash and a share of one lookup query.
+ */
+@Slf4j
+@Service
+public class DeltaInvoiceService {
+    // ids per content hash lookup, well below PostgreSQL's bind parameter limit
+    private static final int LOOKUP_SIZE = 10_000;
+
+    @Autowired
+    public InvoiceService invoiceService;
+    @Autowired
+    public InvoiceTransactionParser invoiceTransactionParser;
+    @Autowired
+    public InvoicePersistenceService invoicePersistenceService;
+    @Autowired
+    public InvoiceRepository invoiceRepository;
+    @Autowired
+    public IngestProperties ingestProperties;
+    @Autowired
+    public IngestMetrics ingestMetrics;
+
+    public UploadSummaryDto parseAndSave(InputStreamSource invoiceCsv, InputStreamSource transactionCsv,
+                                         IngestOptions options, IngestProgress progress) throws IOException {
+        long start = System.currentTimeMillis();
+        PersistenceMode persistenceMode = ingestProperties.persistenceMode(options);
+        UploadSummaryDto summary = new UploadSummaryDto();
+        summary.setMode(IngestMode.DELTA.name().toLowerCase());
+        summary.setPersistence(persistenceMode.name().toLowerCase());
+        progress.setMode(summary.getMode());
+        ingestMetrics.bytesIngested(IngestMetrics.INVOICE_FILE, invoiceCsv, progress);
+        ingestMetrics.bytesIngested(IngestMetrics.TRANSACTION_FILE, transactionCsv, progress);
+
+        Timer.Sample sample = ingestMetrics.start();
+        Map<Long, InvoiceDto> invoiceMap = invoiceTransactionParser.parseInvoices(invoiceCsv,
+                ingestProperties.parserMode(options), progress.getRejections());
+        ingestMetrics.stop(sample, IngestMetrics.INVOICE_PARSE, progress);
+        progress.addRowsParsed(invoiceMap.size());
+        ingestMetrics.rowsRead(IngestMetrics.INVOICE_FILE, invoiceMap.size(), progress);
+        sample = ingestMetrics.start();
+        Map<Long, List<TransactionDto>> transactionMap = invoiceTransactionParser.parseTransactions(transactionCsv,
+                ingestProperties.parserMode(options), progress.getRejections());
+        ingestMetrics.stop(sample, IngestMetrics.TRANSACTION_PARSE, progress);
+        long transactionsRead = transactionMap.values().stream().mapToLong(List::size).sum();
+        progress.addRowsParsed(transactionsRead);
+        ingestMetrics.rowsRead(IngestMetrics.TRANSACTION_FILE, transactionsRead, progress);
+        summary.setInvoicesRead(invoiceMap.size());
+        summary.setTransactionsRead(transactionsRead);
+        summary.setOrphanTransactions(transactionMap.entrySet().stream()
+                .filter(entry -> !invoiceMap.containsKey(entry.getKey()))
+                .mapToLong(entry -> entry.getValue().size())
+                .sum());
+
+        Map<Long, String> storedHashes = storedHashes(new ArrayList<>(invoiceMap.keySet()));
+        Map<Long, InvoiceDto> changed = new LinkedHashMap<>();
+        // kept for the invoices that are written, so that reconcile does not hash them again
+        Map<Long, String> changedHashes = new HashMap<>();
+        for (Map.Entry<Long, InvoiceDto> entry : invoiceMap.entrySet()) {
+            String hash = InvoiceFingerprint.of(entry.getValue(), transactionMap.get(entry.getKey()));
+            if (!storedHashes.containsKey(entry.getKey())) {
+                summary.setInvoicesInserted(summary.getInvoicesInserted() + 1);
+                changed.put(entry.getKey(), entry.getValue());
+                changedHashes.put(entry.getKey(), hash);
+            } else if (!Objects.equals(storedHashes.get(entry.getKey()), hash)) {
+                summary.setInvoicesUpdated(summary.getInvoicesUpdated() + 1);
+                changed.put(entry.getKey(), entry.getValue());
+                changedHashes.put(entry.getKey(), hash);
+            } else {
+                summary.setInvoicesUnchanged(summary.getInvoicesUnchanged() + 1);
+            }
+        }
+        log.info("Delta upload: {} new, {} changed, {} unchanged invoices", summary.getInvoicesInserted(),
+                summary.getInvoicesUpdated(), summary.getInvoicesUnchanged());
+
+        List<Invoice> invoicesToSave = invoiceService.reconcile(changed, transactionMap, changedHashes,
+                progress);
+        sample = ingestMetrics.start();
+        invoicePersistenceService.persist(invoicesToSave, persistenceMode);
+        ingestMetrics.stop(sample, IngestMetrics.PERSIST, progress);
+        long transactionsSaved = invoicesToSave.stream().mapToLong(invoice -> invoice.getTransactions().size()).sum();
+        progress.addRowsPersisted(invoicesToSave.size() + transactionsSaved);
+
+        summary.setInvoicesSaved(invoicesToSave.size());
+        summary.setTransactionsSaved(transactionsSaved);
+        summary.setValidInvoices(invoicesToSave.stream().filter(invoice -> "valid".equals(invoice.getStatus())).count());
+        summary.setInvalidInvoices(invoicesToSave.size() - summary.getValidInvoices());
+        summary.setElapsedMillis(System.currentTimeMillis() - start);
+        return summary;
+    }
+
+    /**
+     * Stored content hash per invoice id that already exists. Rows written before hashes were
+     * recorded map to null and are treated as changed.
+     */
+    private Map<Long, String> storedHashes(List<Long> invoiceIds) {
+        Map<Long, String> hashes = new HashMap<>();
+        for (int from = 0; from < invoiceIds.size(); from += LOOKUP_SIZE) {
+            List<Long> ids = invoiceIds.subList(from, Math.min(from + LOOKUP_SIZE, invoiceIds.size()));
+            for (InvoiceFingerprintDto row : invoiceRepository.findContentHashByInvoiceIdIn(ids)) {
+                hashes.put(row.getInvoiceId(), row.getContentHash());
+            }
+        }
+        return hashes;
+    }
+}
@@ -0,0 +1,332 @@
+package com.kraken.invoice.service;
+
+import com.kraken.invoice.config.IngestProperties;
+import com.kraken.invoice.entity.IngestMode;
+import com.kraken.invoice.entity.IngestOptions;
+import com.kraken.invoice.entity.Invoice;
+import com.kraken.invoice.entity.InvoiceDto;
+import com.kraken.invoice.entity.PersistenceMode;
+import com.kraken.invoice.entity.TransactionDto;
+import com.kraken.invoice.entity.UploadSummaryDto;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.InputStreamSource;
+import org.springframework.stereotype.Service;
+import org.springframework.util.FileSystemUtils;
+import org.springframework.util.unit.DataSize;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Out-of-core variant of {@link InvoiceService#parseAndSave} for transaction files larger than
+ * the heap. Transactions are read once and spilled in a compact binary form to temp files,
+ * partitioned by invoice id. There are enough files for each to stay within
+ * invoice.ingest.external.partition-size, judged from the size of the transaction file, but no
+ * more than invoice.ingest.external.max-partitions are written at once. A file that still ends
+ * up larger than the partition size is split again before it is loaded, so a file too large for
+ * one pass over max-partitions files takes several. Each partition is then
+ * reconciled against the invoices that hash to it and written in chunks, so the heap only holds
+ * the invoices, one partition of transactions and one chunk of entities.
+ */
+@Slf4j
+@Service
+public class ExternalInvoiceService {
+    private static final int SPILL_BUFFER = 64 * 1024;
+    // a file that is still too large after this many splits is mostly one invoice; load it anyway
+    private static final int MAX_SPLITS = 3;
+    private static final String SPILL_PREFIX = "transactions";
+
+    @Autowired
+    public InvoiceTransactionParser invoiceTransactionParser;
+    @Autowired
+    public InvoicePersistenceService invoicePersistenceService;
+    @Autowired
+    public IngestProperties ingestProperties;
+    @Autowired
+    public IngestMetrics ingestMetrics;
+
+    public UploadSummaryDto parseAndSave(InputStreamSource invoiceCsv, InputStreamSource transactionCsv,
+                                         IngestOptions options, IngestProgress progress) throws IOException {
+        long start = System.currentTimeMillis();
+        PersistenceMode persistenceMode = ingestProperties.persistenceMode(options);
+        UploadSummaryDto summary = new UploadSummaryDto();
+        summary.setMode(IngestMode.EXTERNAL.name().toLowerCase());
+        summary.setPersistence(persistenceMode.name().toLowerCase());
+        progress.setMode(summary.getMode());
+        ingestMetrics.bytesIngested(IngestMetrics.INVOICE_FILE, invoiceCsv, progress);
+        ingestMetrics.bytesIngested(IngestMetrics.TRANSACTION_FILE, transactionCsv, progress);
+
+        Timer.Sample sample = ingestMetrics.start();
+        Map<Long, InvoiceDto> invoiceMap = invoiceTransactionParser.parseInvoices(invoiceCsv,
+                ingestProperties.parserMode(options), progress.getRejections());
+        ingestMetrics.stop(sample, IngestMetrics.INVOICE_PARSE, progress);
+        summary.setInvoicesRead(invoiceMap.size());
+        progress.addRowsParsed(invoiceMap.size());
+        ingestMetrics.rowsRead(IngestMetrics.INVOICE_FILE, invoiceMap.size(), progress);
+
+        int partitions = initialPartitions(IngestMetrics.contentLength(transactionCsv));
+        Path spillDir = Files.createTempDirectory(spillRoot(), "invoice-spill-");
+        try {
+            sample = ingestMetrics.start();
+            spill(transactionCsv, options, invoiceMap, spillDir, partitions, summary, progress);
+            ingestMetrics.stop(sample, IngestMetrics.TRANSACTION_PARSE, progress);
+            ingestMetrics.rowsRead(IngestMetrics.TRANSACTION_FILE, summary.getTransactionsRead(), progress);
+            log.info("Spilled {} transactions into {} partitions under {}", summary.getTransactionsRead(),
+                    partitions, spillDir);
+
+            List<List<Long>> invoiceIdsByPartition = byPartition(invoiceMap.keySet(), 0, partitions);
+            for (int p = 0; p < partitions; p++) {
+                reconcileSpill(spillDir.resolve(fileName(SPILL_PREFIX, p)), invoiceIdsByPartition.get(p), 0,
+                        invoiceMap, persistenceMode, summary, progress);
+                invoiceIdsByPartition.set(p, null);
+            }
+        } finally {
+            FileSystemUtils.deleteRecursively(spillDir);
+        }
+
+        summary.setElapsedMillis(System.currentTimeMillis() - start);
+        log.info("External upload finished: {} invoices saved, {} transactions saved in {} ms",
+                summary.getInvoicesSaved(), summary.getTransactionsSaved(), summary.getElapsedMillis());
+        return summary;
+    }
+
+    private void spill(InputStreamSource transactionCsv, IngestOptions options, Map<Long, InvoiceDto> invoiceMap,
+                       Path spillDir, int partitions, UploadSummaryDto summary, IngestProgress progress)
+            throws IOException {
+        DataOutputStream[] outputs = new DataOutputStream[partitions];
+        try {
+            open(outputs, spillDir, SPILL_PREFIX);
+            invoiceTransactionParser.streamTransactions(transactionCsv, (invoiceId, txn) -> {
+                progress.addRowsParsed(1);
+                summary.setTransactionsRead(summary.getTransactionsRead() + 1);
+                if (!invoiceMap.containsKey(invoiceId)) {
+                    // the standard mode ignores these too, so they need not take disk space
+                    summary.setOrphanTransactions(summary.getOrphanTransactions() + 1);
+                    return;
+                }
+                try {
+                    TransactionSpillCodec.write(outputs[partition(invoiceId, 0, partitions)], invoiceId, txn);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, ingestProperties.parserMode(options), progress.getRejections());
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            close(outputs);
+        }
+    }
+
+    /**
+     * Reconciles the invoices of one spill file, first splitting the file again when it is larger
+     * than the partition size.
+     */
+    private void reconcileSpill(Path file, List<Long> invoiceIds, int splits, Map<Long, InvoiceDto> invoiceMap,
+                                PersistenceMode persistenceMode, UploadSummaryDto summary,
+                                IngestProgress progress) throws IOException {
+        long size = Files.size(file);
+        long budget = ingestProperties.getExternal().getPartitionSize().toBytes();
+        if (size <= budget || invoiceIds.size() < 2) {
+            reconcilePartition(file, invoiceIds, invoiceMap, persistenceMode, summary, progress);
+            return;
+        }
+        if (splits >= MAX_SPLITS) {
+            log.warn("Spill file {} still holds {} bytes after {} splits, loading it whole", file.getFileName(),
+                    size, splits);
+            reconcilePartition(file, invoiceIds, invoiceMap, persistenceMode, summary, progress);
+            return;
+        }
+        int partitions = Math.max(2, partitionsFor(size));
+        String prefix = file.getFileName().toString().replace(".bin", "");
+        DataOutputStream[] outputs = new DataOutputStream[partitions];
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file),
+                SPILL_BUFFER))) {
+            open(outputs, file.getParent(), prefix);
+            TransactionDto txn = new TransactionDto();
+            int present;
+            while ((present = in.read()) >= 0) {
+                long invoiceId = readRecord(in, present, txn, file);
+                TransactionSpillCodec.write(outputs[partition(invoiceId, splits + 1, partitions)], invoiceId, txn);
+            }
+        } finally {
+            close(outputs);
+        }
+        Files.delete(file);
+        log.debug("Split spill file {} of {} bytes into {} partitions", file.getFileName(), size, partitions);
+
+        List<List<Long>> invoiceIdsByPartition = byPartition(invoiceIds, splits + 1, partitions);
+        for (int p = 0; p < partitions; p++) {
+            reconcileSpill(file.resolveSibling(fileName(prefix, p)), invoiceIdsByPartition.get(p), splits + 1,
+                    invoiceMap, persistenceMode, summary, progress);
+            invoiceIdsByPartition.set(p, null);
+        }
+    }
+
+    /**
+     * Loads one spill file, folds its transactions into the totals of their invoices and writes
+     * the invoices in chunks of invoice.ingest.commit-size. Transactions are released as soon as
+     * their invoice is mapped.
+     */
+    private void reconcilePartition(Path file, List<Long> invoiceIds, Map<Long, InvoiceDto> invoiceMap,
+                                    PersistenceMode persistenceMode, UploadSummaryDto summary,
+                                    IngestProgress progress) throws IOException {
+        long start = System.nanoTime();
+        InvoiceTotalsTable totals = new InvoiceTotalsTable(invoiceIds.size());
+        Map<Long, List<TransactionDto>> transactionMap = new HashMap<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file),
+                SPILL_BUFFER))) {
+            int present;
+            while ((present = in.read()) >= 0) {
+                TransactionDto txn = new TransactionDto();
+                long invoiceId = readRecord(in, present, txn, file);
+                totals.add(invoiceId, txn.getNetTransactionAmount(), txn.getGstAmount());
+                transactionMap.computeIfAbsent(invoiceId, id -> new ArrayList<>()).add(txn);
+            }
+        }
+        Files.delete(file);
+
+        int commitSize = ingestProperties.getCommitSize();
+        List<Invoice> chunk = new ArrayList<>(Math.min(commitSize, invoiceIds.size()));
+        long mappingNanos = 0;
+        long persistNanos = 0;
+        for (Long invoiceId : invoiceIds) {
+            InvoiceDto invoiceDto = invoiceMap.remove(invoiceId);
+            List<TransactionDto> txns = transactionMap.remove(invoiceId);
+            invoiceDto.setTransactions(txns != null ? txns : new ArrayList<>());
+            totals.validate(invoiceId, invoiceDto);
+            progress.addInvoicesValidated(1);
+            ingestMetrics.invoiceValidated(invoiceDto, progress);
+            String contentHash = InvoiceFingerprint.of(invoiceDto);
+
+            long mappingStart = System.nanoTime();
+            Invoice invoice = invoiceTransactionParser.mapToEntity(invoiceDto, contentHash);
+            invoice.getTransactions().forEach(txn -> txn.setInvoice(invoice));
+            invoiceDto.setTransactions(null);
+            mappingNanos += System.nanoTime() - mappingStart;
+            chunk.add(invoice);
+            if (chunk.size() >= commitSize) {
+                persistNanos += flush(chunk, persistenceMode, summary, progress);
+            }
+        }
+        persistNanos += flush(chunk, persistenceMode, summary, progress);
+        ingestMetrics.record(IngestMetrics.RECONCILE, System.nanoTime() - start - mappingNanos - persistNanos,
+                progress);
+        ingestMetrics.record(IngestMetrics.MAPPING, mappingNanos, progress);
+    }
+
+    /**
+     * Writes the chunk, adds it to the summary and empties it. Returns the time spent writing.
+     */
+    private long flush(List<Invoice> chunk, PersistenceMode persistenceMode, UploadSummaryDto summary,
+                       IngestProgress progress) {
+        if (chunk.isEmpty()) {
+            return 0;
+        }
+        long start = System.nanoTime();
+        Timer.Sample sample = ingestMetrics.start();
+        invoicePersistenceService.persist(chunk, persistenceMode);
+        ingestMetrics.stop(sample, IngestMetrics.PERSIST, progress);
+        invoicePersistenceService.clear();
+        long transactions = chunk.stream().mapToLong(invoice -> invoice.getTransactions().size()).sum();
+        long valid = chunk.stream().filter(invoice -> "valid".equals(invoice.getStatus())).count();
+        summary.setInvoicesSaved(summary.getInvoicesSaved() + chunk.size());
+        summary.setTransactionsSaved(summary.getTransactionsSaved() + transactions);
+        summary.setValidInvoices(summary.getValidInvoices() + valid);
+        summary.setInvalidInvoices(summary.getInvalidInvoices() + chunk.size() - valid);
+        progress.addRowsPersisted(chunk.size() + transactions);
+        chunk.clear();
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * A fixed invoice.ingest.external.partitions, or enough partitions for the transaction file
+     * at the partition size, at most max-partitions either way. Spill records are usually smaller
+     * than CSV rows, so this errs high; a compressed upload is underestimated and its files are
+     * split again when loaded.
+     */
+    private int initialPartitions(long transactionBytes) {
+        IngestProperties.External config = ingestProperties.getExternal();
+        if (config.getPartitions() > 0) {
+            return Math.max(1, Math.min(config.getPartitions(), config.getMaxPartitions()));
+        }
+        return transactionBytes < 0 ? 1 : partitionsFor(transactionBytes);
+    }
+
+    private int partitionsFor(long bytes) {
+        IngestProperties.External config = ingestProperties.getExternal();
+        long partitions = Math.ceilDiv(bytes, config.getPartitionSize().toBytes());
+        return (int) Math.max(1, Math.min(partitions, config.getMaxPartitions()));
+    }
+
+    private Path spillRoot() throws IOException {
+        String dir = ingestProperties.getExternal().getSpillDir();
+        Path root = Path.of(dir == null || dir.isBlank() ? System.getProperty("java.io.tmpdir") : dir);
+        return Files.createDirectories(root);
+    }
+
+    /**
+     * Reads the rest of a spill record whose first byte was read. The file may only end between
+     * records; one that ends inside a record was cut short and is reported instead of dropping
+     * the record.
+     */
+    private static long readRecord(DataInputStream in, int present, TransactionDto txn, Path file)
+            throws IOException {
+        try {
+            return TransactionSpillCodec.read(in, present, txn);
+        } catch (EOFException e) {
+            throw new IOException("Corrupt spill file " + file.getFileName() + ": it ends inside a record", e);
+        }
+    }
+
+    private static void open(DataOutputStream[] outputs, Path dir, String prefix) throws IOException {
+        for (int p = 0; p < outputs.length; p++) {
+            outputs[p] = new DataOutputStream(new BufferedOutputStream(
+                    Files.newOutputStream(dir.resolve(fileName(prefix, p))), SPILL_BUFFER));
+        }
+    }
+
+    private static void close(DataOutputStream[] outputs) throws IOException {
+        for (DataOutputStream output : outputs) {
+            if (output != null) {
+                output.close();
+            }
+        }
+    }
+
+    private static List<List<Long>> byPartition(Iterable<Long> invoiceIds, int level, int partitions) {
+        List<List<Long>> invoiceIdsByPartition = new ArrayList<>(partitions);
+        for (int p = 0; p < partitions; p++) {
+            invoiceIdsByPartition.add(new ArrayList<>());
+        }
+        invoiceIds.forEach(id -> invoiceIdsByPartition.get(partition(id, level, partitions)).add(id));
+        return invoiceIdsByPartition;
+    }
+
+    /**
+     * Partition of the invoice id at the given split level. Each level mixes the id with its own
+     * seed; with a plain modulo every id of a partition would land in the same child again.
+     */
+    private static int partition(long invoiceId, int level, int partitions) {
+        long h = invoiceId + level * 0x9E3779B97F4A7C15L;
+        h = (h ^ (h >>> 30)) * 0xBF58476D1CE4E5B9L;
+        h = (h ^ (h >>> 27)) * 0x94D049BB133111EBL;
+        return Math.floorMod(h ^ (h >>> 31), partitions);
+    }
+
+    private static String fileName(String prefix, int partition) {
+        return prefix + "-" + partition + ".bin";
+    }
+}
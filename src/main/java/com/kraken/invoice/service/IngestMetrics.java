@@ -0,0 +1,192 @@
+package com.kraken.invoice.service;
+
+import com.kraken.invoice.entity.InvoiceDto;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.InputStreamSource;
+import org.springframework.core.io.Resource;
+import org.springframework.stereotype.Component;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Micrometer meters for the ingest pipeline, exposed through the actuator metrics and prometheus
+ * endpoints. Stage timers and row counters are tagged with the endpoint and ingest mode of the
+ * upload, taken from its {@link IngestProgress}.
+ * <p>
+ * In streaming mode reconciliation runs inside the transaction read, so the transaction_parse
+ * stage covers the whole pass and overlaps the mapping and persist stages reported for it.
+ * <p>
+ * Pipeline mode also publishes, per stage, the depth of the queue in front of it, the items it
+ * processed and the time the stage before it spent blocked on a full queue.
+ */
+@Slf4j
+@Component
+public class IngestMetrics {
+    public static final String INVOICE_PARSE = "invoice_parse";
+    public static final String TRANSACTION_PARSE = "transaction_parse";
+    public static final String RECONCILE = "reconcile";
+    public static final String MAPPING = "mapping";
+    public static final String PERSIST = "persist";
+
+    public static final String INVOICE_FILE = "invoice";
+    public static final String TRANSACTION_FILE = "transaction";
+
+    private static final String UNTAGGED = "none";
+
+    @Autowired
+    public MeterRegistry meterRegistry;
+
+    private final Map<String, Set<BlockingQueue<?>>> pipelineQueues = new ConcurrentHashMap<>();
+
+    public Timer.Sample start() {
+        return Timer.start(meterRegistry);
+    }
+
+    public void stop(Timer.Sample sample, String stage, IngestProgress progress) {
+        sample.stop(stageTimer(stage, progress));
+    }
+
+    public void record(String stage, long nanos, IngestProgress progress) {
+        stageTimer(stage, progress).record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void rowsRead(String file, long rows, IngestProgress progress) {
+        meterRegistry.counter("invoice.ingest.rows.read", "file", file, "endpoint", progress.getEndpoint(),
+                "mode", progress.getMode()).increment(rows);
+    }
+
+    /**
+     * Counts a row the parser dropped. The parser only sees the upload's rejection report, so the
+     * endpoint and mode come from the progress linked to it; parses without one are tagged none.
+     */
+    public void rowSkipped(String file, String reason, RejectionReport rejections) {
+        IngestProgress progress = rejections == null ? null : rejections.getProgress();
+        meterRegistry.counter("invoice.ingest.rows.skipped", "file", file,
+                "reason", reason.toLowerCase().replace(' ', '_'),
+                "endpoint", progress == null ? UNTAGGED : progress.getEndpoint(),
+                "mode", progress == null ? UNTAGGED : progress.getMode()).increment();
+    }
+
+    /**
+     * Counts a validated invoice as invalid once for every rule it broke.
+     */
+    public void invoiceValidated(InvoiceDto invoiceDto, IngestProgress progress) {
+        invoiceRevalidated(invoiceDto, null, progress);
+    }
+
+    /**
+     * Counts an invoice that late transactions reopened and that is written again. Its first
+     * write was already counted with previousReason, so only the rules it broke since are.
+     */
+    public void invoiceRevalidated(InvoiceDto invoiceDto, String previousReason, IngestProgress progress) {
+        if ("valid".equals(invoiceDto.getStatus()) || invoiceDto.getReason() == null) {
+            return;
+        }
+        String reason = invoiceDto.getReason();
+        if (broke(reason, previousReason, "Missing invoice net or GST amount")) {
+            invalid("missing_amount", progress);
+        }
+        if (broke(reason, previousReason, "Net amount mismatch")) {
+            invalid("net_mismatch", progress);
+        }
+        if (broke(reason, previousReason, "GST amount mismatch")) {
+            invalid("gst_mismatch", progress);
+        }
+        if (broke(reason, previousReason, "Transaction count mismatch")) {
+            invalid("count_mismatch", progress);
+        }
+    }
+
+    /**
+     * Adds the size of an uploaded file when it is known without reading the stream.
+     */
+    public void bytesIngested(String file, InputStreamSource source, IngestProgress progress) {
+        long bytes = contentLength(source);
+        if (bytes >= 0) {
+            meterRegistry.counter("invoice.ingest.bytes", "file", file, "endpoint", progress.getEndpoint(),
+                    "mode", progress.getMode()).increment(bytes);
+        }
+    }
+
+    /**
+     * Size of the uploaded file as received, or -1 when the source does not tell.
+     */
+    static long contentLength(InputStreamSource source) {
+        try {
+            if (source instanceof MultipartFile multipartFile) {
+                return multipartFile.getSize();
+            } else if (source instanceof Resource resource) {
+                return resource.contentLength();
+            }
+        } catch (IOException e) {
+            log.debug("Could not determine size of {}: {}", source, e.getMessage());
+        }
+        return -1;
+    }
+
+    /**
+     * Adds the queue to the depth gauge of its pipeline stage, which sums the queues of every
+     * upload running in pipeline mode.
+     */
+    public void watchQueue(String stage, BlockingQueue<?> queue) {
+        pipelineQueues.computeIfAbsent(stage, key -> {
+            Set<BlockingQueue<?>> queues = ConcurrentHashMap.newKeySet();
+            Gauge.builder("invoice.ingest.pipeline.queue.depth", queues,
+                            watched -> watched.stream().mapToInt(BlockingQueue::size).sum())
+                    .description("Batches waiting in front of a pipeline stage")
+                    .tag("stage", key)
+                    .register(meterRegistry);
+            return queues;
+        }).add(queue);
+    }
+
+    public void unwatchQueue(String stage, BlockingQueue<?> queue) {
+        Set<BlockingQueue<?>> queues = pipelineQueues.get(stage);
+        if (queues != null) {
+            queues.remove(queue);
+        }
+    }
+
+    public void pipelineItems(String stage, long items, IngestProgress progress) {
+        meterRegistry.counter("invoice.ingest.pipeline.items", "stage", stage, "endpoint", progress.getEndpoint(),
+                "mode", progress.getMode()).increment(items);
+    }
+
+    /**
+     * Records time spent waiting for room in the queue in front of the stage, which is how long
+     * that stage held back the one before it.
+     */
+    public void pipelineBlocked(String stage, long nanos, IngestProgress progress) {
+        Timer.builder("invoice.ingest.pipeline.blocked")
+                .description("Time spent waiting for room in the queue in front of a pipeline stage")
+                .tags("stage", stage, "endpoint", progress.getEndpoint(), "mode", progress.getMode())
+                .register(meterRegistry)
+                .record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    private static boolean broke(String reason, String previousReason, String rule) {
+        return reason.contains(rule) && (previousReason == null || !previousReason.contains(rule));
+    }
+
+    private void invalid(String reason, IngestProgress progress) {
+        meterRegistry.counter("invoice.ingest.invalid", "reason", reason, "endpoint", progress.getEndpoint(),
+                "mode", progress.getMode()).increment();
+    }
+
+    private Timer stageTimer(String stage, IngestProgress progress) {
+        return Timer.builder("invoice.ingest.stage")
+                .description("Time spent in one stage of an upload")
+                .tags("stage", stage, "endpoint", progress.getEndpoint(), "mode", progress.getMode())
+                .register(meterRegistry);
+    }
+}
@@ -0,0 +1,71 @@
+package com.kraken.invoice.service;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters updated by the ingest pipeline while an upload runs, read concurrently by the job
+ * status endpoint. Also carries the endpoint and mode tags for the upload's metrics.
+ */
+public class IngestProgress {
+    private volatile String endpoint = "upload";
+    private volatile String mode = "standard";
+    private volatile RejectionReport rejections;
+    private final AtomicLong rowsParsed = new AtomicLong();
+    private final AtomicLong invoicesValidated = new AtomicLong();
+    private final AtomicLong rowsPersisted = new AtomicLong();
+
+    public void addRowsParsed(long rows) {
+        rowsParsed.addAndGet(rows);
+    }
+
+    public void addInvoicesValidated(long invoices) {
+        invoicesValidated.addAndGet(invoices);
+    }
+
+    public void addRowsPersisted(long rows) {
+        rowsPersisted.addAndGet(rows);
+    }
+
+    public long getRowsParsed() {
+        return rowsParsed.get();
+    }
+
+    public long getInvoicesValidated() {
+        return invoicesValidated.get();
+    }
+
+    public long getRowsPersisted() {
+        return rowsPersisted.get();
+    }
+
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    public void setEndpoint(String endpoint) {
+        this.endpoint = endpoint;
+    }
+
+    public String getMode() {
+        return mode;
+    }
+
+    public void setMode(String mode) {
+        this.mode = mode;
+    }
+
+    /**
+     * Report the parser adds skipped rows to, or null to only log them.
+     */
+    public RejectionReport getRejections() {
+        return rejections;
+    }
+
+    public void setRejections(RejectionReport rejections) {
+        this.rejections = rejections;
+        if (rejections != null) {
+            // the parser only sees the report, and tags its skipped-row counters from here
+            rejections.setProgress(this);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.kraken.invoice.service;
+
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.kraken.invoice.config.CacheConfig;
+import com.kraken.invoice.entity.CacheStatsDto;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import org.springframework.cache.caffeine.CaffeineCache;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Supplier;
+
+/**
+ * Reads through, evicts and reports on the invoice read caches configured in {@link CacheConfig}.
+ * <p>
+ * A read that misses loads from the database and then caches what it loaded. If an upload
+ * commits and evicts the id in between, that value may be the old version, and caching it would
+ * keep it for the whole TTL. So every eviction bumps a generation counter for the id, and a load
+ * is only cached when the generation is the one it saw before reading the database.
+ */
+@Slf4j
+@Service
+public class InvoiceCacheService {
+    private static final List<String> CACHES = List.of(CacheConfig.INVOICES, CacheConfig.INVOICE_STATUS);
+    // ids share generation counters so that memory stays fixed; an id whose counter moves for
+    // another id only misses the cache on that one load
+    private static final int GENERATIONS = 4096;
+
+    @Autowired
+    public CacheManager cacheManager;
+
+    private final AtomicLongArray generations = new AtomicLongArray(GENERATIONS);
+
+    /**
+     * The cached value of the id, or the loader's result, which is cached unless the id was
+     * evicted while it ran.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T get(String cacheName, Long invoiceId, Supplier<T> loader) {
+        if (!(cacheManager.getCache(cacheName) instanceof CaffeineCache cache)) {
+            return loader.get();
+        }
+        com.github.benmanes.caffeine.cache.Cache<Object, Object> nativeCache = cache.getNativeCache();
+        Object cached = nativeCache.getIfPresent(invoiceId);
+        if (cached != null) {
+            return (T) cached;
+        }
+        long generation = generations.get(slot(invoiceId));
+        T loaded = loader.get();
+        if (loaded != null) {
+            nativeCache.asMap().compute(invoiceId,
+                    (id, current) -> generations.get(slot(invoiceId)) == generation ? loaded : current);
+        }
+        return loaded;
+    }
+
+    /**
+     * Drops the cached invoice and status of each id. Called once the write of those invoices
+     * has committed, so the next read loads the new version.
+     */
+    public void evict(Collection<Long> invoiceIds) {
+        // before the entries go, so that a load still running cannot put its version back
+        invoiceIds.forEach(invoiceId -> generations.incrementAndGet(slot(invoiceId)));
+        for (String name : CACHES) {
+            Cache cache = cacheManager.getCache(name);
+            if (cache != null) {
+                invoiceIds.forEach(cache::evict);
+            }
+        }
+        log.debug("Evicted {} invoice ids from the read caches", invoiceIds.size());
+    }
+
+    public List<CacheStatsDto> stats() {
+        List<CacheStatsDto> result = new ArrayList<>();
+        for (String name : CACHES) {
+            if (cacheManager.getCache(name) instanceof CaffeineCache cache) {
+                CacheStats stats = cache.getNativeCache().stats();
+                result.add(new CacheStatsDto(name, cache.getNativeCache().estimatedSize(), stats.hitCount(),
+                        stats.missCount(), stats.hitRate(), stats.evictionCount(), stats.evictionWeight()));
+            }
+        }
+        return result;
+    }
+
+    private static int slot(Long invoiceId) {
+        return Math.floorMod(Long.hashCode(invoiceId), GENERATIONS);
+    }
+}
@@ -0,0 +1,71 @@
+package com.kraken.invoice.service;
+
+import com.kraken.invoice.entity.InvoiceDto;
+import com.kraken.invoice.entity.TransactionDto;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+
+/**
+ * Content hash of an invoice and its transactions as read from the upload files. Status and
+ * reason are left out because they are derived from the rest. Transactions are hashed in
+ * trxn_id order, so the same set hashes the same whatever order the file lists it in, and
+ * decimals are normalised so that 32.0 and 32.00 match.
+ */
+public final class InvoiceFingerprint {
+    private static final char FIELD = '\u001F';
+    private static final char RECORD = '\u001E';
+    private static final Comparator<TransactionDto> BY_ID =
+            Comparator.comparing(TransactionDto::getTrxnId, Comparator.nullsFirst(Comparator.naturalOrder()));
+
+    private InvoiceFingerprint() {
+    }
+
+    public static String of(InvoiceDto dto) {
+        return of(dto, dto.getTransactions());
+    }
+
+    public static String of(InvoiceDto dto, List<TransactionDto> transactions) {
+        StringBuilder content = new StringBuilder(256);
+        append(content, dto.getInvoiceId(), dto.getInvoiceNumber(), dto.getGrossAmount(), dto.getGstAmount(),
+                dto.getNetAmount(), dto.getReceiptDate(), dto.getPaymentDueDate(), dto.getTotalNoTrxn());
+        if (transactions != null) {
+            List<TransactionDto> ordered = new ArrayList<>(transactions);
+            ordered.sort(BY_ID);
+            for (TransactionDto txn : ordered) {
+                append(content, txn.getTrxnId(), txn.getDateReceived(), txn.getTransactionDate(),
+                        txn.getInvoiceNumber(), txn.getBillingPeriodStart(), txn.getBillingPeriodEnd(),
+                        txn.getNetTransactionAmount(), txn.getGstAmount());
+            }
+        }
+        return HexFormat.of().formatHex(sha256().digest(content.toString().getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static void append(StringBuilder content, Object... values) {
+        for (Object value : values) {
+            if (value == null) {
+                content.append('\u0000');
+            } else if (value instanceof BigDecimal decimal) {
+                content.append(decimal.signum() == 0 ? "0" : decimal.stripTrailingZeros().toPlainString());
+            } else {
+                content.append(value);
+            }
+            content.append(FIELD);
+        }
+        content.append(RECORD);
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.kraken.invoice.service;
+
+import com.kraken.invoice.config.IngestProperties;
+import com.kraken.invoice.entity.IngestMode;
+import com.kraken.invoice.entity.IngestOptions;
+import com.kraken.invoice.entity.InvoiceDto;
+import com.kraken.invoice.entity.UploadSummaryDto;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.InputStreamSource;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Runs an upload in the requested ingest mode and reports it as an {@link UploadSummaryDto}.
+ * Used by every caller that answers with a summary rather than the full invoice list.
+ */
+@Slf4j
+@Service
+public class InvoiceIngestService {
+    @Autowired
+    public InvoiceService invoiceService;
+    @Autowired
+    public StreamingInvoiceService streamingInvoiceService;
+    @Autowired
+    public DeltaInvoiceService deltaInvoiceService;
+    @Autowired
+    public ExternalInvoiceService externalInvoiceService;
+    @Autowired
+    public PipelineInvoiceService pipelineInvoiceService;
+    @Autowired
+    public IngestProperties ingestProperties;
+
+    public UploadSummaryDto ingest(InputStreamSource invoiceCsv, InputStreamSource transactionCsv,
+                                   IngestOptions options, IngestProgress progress) throws IOException {
+        UploadSummaryDto summary = ingestInMode(invoiceCsv, transactionCsv, options, progress);
+        if (progress.getRejections() != null) {
+            summary.setRejections(progress.getRejections().summary());
+        }
+        return summary;
+    }
+
+    private UploadSummaryDto ingestInMode(InputStreamSource invoiceCsv, InputStreamSource transactionCsv,
+                                          IngestOptions options, IngestProgress progress) throws IOException {
+        IngestMode mode = ingestProperties.ingestMode(options);
+        if (mode == IngestMode.STREAMING) {
+            return streamingInvoiceService.parseAndSave(invoiceCsv, transactionCsv, options, progress);
+        }
+        if (mode == IngestMode.DELTA) {
+            return deltaInvoiceService.parseAndSave(invoiceCsv, transactionCsv, options, progress);
+        }
+        if (mode == IngestMode.EXTERNAL) {
+            return externalInvoiceService.parseAndSave(invoiceCsv, transactionCsv, options, progress);
+        }
+        if (mode == IngestMode.PIPELINE) {
+            return pipelineInvoiceService.parseAndSave(invoiceCsv, transactionCsv, options, progress);
+        }
+
+        long start = System.currentTimeMillis();
+        List<InvoiceDto> invoices = invoiceService.parseAndSave(invoiceCsv, transactionCsv, options, progress);
+        return summarize(invoices, options, start);
+    }
+
+    /**
+     * Summary of a standard-mode upload that started at the given time and returned these invoices.
+     */
+    public UploadSummaryDto summarize(List<InvoiceDto> invoices, IngestOptions options, long start) {
+        UploadSummaryDto summary = new UploadSummaryDto();
+        summary.setMode(IngestMode.STANDARD.name().toLowerCase());
+        summary.setPersistence(ingestProperties.persistenceMode(options).name().toLowerCase());
+        summary.setInvoicesRead(invoices.size());
+        summary.setInvoicesSaved(invoices.size());
+        long transactions = invoices.stream().mapToLong(invoice -> invoice.getTransactions().size()).sum();
+        summary.setTransactionsRead(transactions);
+        summary.setTransactionsSaved(transactions);
+        summary.setValidInvoices(invoices.stream().filter(invoice -> "valid".equals(invoice.getStatus())).count());
+        summary.setInvalidInvoices(invoices.size() - summary.getValidInvoices());
+        summary.setElapsedMillis(System.currentTimeMillis() - start);
+        return summary;
+    }
+}
@@ -0,0 +1,121 @@
+package com.kraken.invoice.service;
+
+import com.kraken.invoice.entity.Invoice;
+import com.kraken.invoice.entity.InvoiceDto;
+import com.kraken.invoice.entity.Transaction;
+import com.kraken.invoice.entity.TransactionDto;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Plain getter/setter copies between the entities and their DTOs. These replace
+ * BeanUtils.copyProperties, which walked the property descriptors reflectively for every invoice
+ * and transaction. A field added to a pair of classes must be added here too;
+ * InvoiceMapperTest fails until it is.
+ */
+public final class InvoiceMapper {
+
+    private InvoiceMapper() {
+    }
+
+    public static Invoice toEntity(InvoiceDto dto) {
+        Invoice invoice = new Invoice();
+        invoice.setInvoiceId(dto.getInvoiceId());
+        invoice.setInvoiceNumber(dto.getInvoiceNumber());
+        invoice.setGrossAmount(dto.getGrossAmount());
+        invoice.setGstAmount(dto.getGstAmount());
+        invoice.setNetAmount(dto.getNetAmount());
+        invoice.setReceiptDate(dto.getReceiptDate());
+        invoice.setPaymentDueDate(dto.getPaymentDueDate());
+        invoice.setTotalNoTrxn(dto.getTotalNoTrxn());
+        invoice.setStatus(dto.getStatus());
+        invoice.setReason(dto.getReason());
+
+        List<TransactionDto> txnDtos = dto.getTransactions();
+        List<Transaction> txns = new ArrayList<>(txnDtos == null ? 0 : txnDtos.size());
+        if (txnDtos != null) {
+            for (TransactionDto txnDto : txnDtos) {
+                txns.add(toEntity(txnDto));
+            }
+        }
+        invoice.setTransactions(txns);
+        return invoice;
+    }
+
+    public static Transaction toEntity(TransactionDto dto) {
+        Transaction txn = new Transaction();
+        txn.setTrxnId(dto.getTrxnId());
+        txn.setDateReceived(dto.getDateReceived());
+        txn.setTransactionDate(dto.getTransactionDate());
+        txn.setInvoiceNumber(dto.getInvoiceNumber());
+        txn.setBillingPeriodStart(dto.getBillingPeriodStart());
+        txn.setBillingPeriodEnd(dto.getBillingPeriodEnd());
+        txn.setNetTransactionAmount(dto.getNetTransactionAmount());
+        txn.setGstAmount(dto.getGstAmount());
+        return txn;
+    }
+
+    /**
+     * Copy of the invoice fields; the transaction list is shared, not copied.
+     */
+    public static InvoiceDto copyOf(InvoiceDto dto) {
+        InvoiceDto copy = new InvoiceDto();
+        copy.setInvoiceId(dto.getInvoiceId());
+        copy.setInvoiceNumber(dto.getInvoiceNumber());
+        copy.setGrossAmount(dto.getGrossAmount());
+        copy.setGstAmount(dto.getGstAmount());
+        copy.setNetAmount(dto.getNetAmount());
+        copy.setReceiptDate(dto.getReceiptDate());
+        copy.setPaymentDueDate(dto.getPaymentDueDate());
+        copy.setTotalNoTrxn(dto.getTotalNoTrxn());
+        copy.setTransactions(dto.getTransactions());
+        copy.setStatus(dto.getStatus());
+        copy.setReason(dto.getReason());
+        return copy;
+    }
+
+    public static InvoiceDto toDto(Invoice invoice) {
+        return toDto(invoice, invoice.getTransactions());
+    }
+
+    /**
+     * Maps the invoice with transactions that were loaded separately, without touching its
+     * lazy transaction list.
+     */
+    public static InvoiceDto toDto(Invoice invoice, List<Transaction> txns) {
+        InvoiceDto dto = new InvoiceDto();
+        dto.setInvoiceId(invoice.getInvoiceId());
+        dto.setInvoiceNumber(invoice.getInvoiceNumber());
+        dto.setGrossAmount(invoice.getGrossAmount());
+        dto.setGstAmount(invoice.getGstAmount());
+        dto.setNetAmount(invoice.getNetAmount());
+        dto.setReceiptDate(invoice.getReceiptDate());
+        dto.setPaymentDueDate(invoice.getPaymentDueDate());
+        dto.setTotalNoTrxn(invoice.getTotalNoTrxn());
+        dto.setStatus(invoice.getStatus());
+        dto.setReason(invoice.getReason());
+
+        List<TransactionDto> txnDtos = new ArrayList<>(txns == null ? 0 : txns.size());
+        if (txns != null) {
+            for (Transaction txn : txns) {
+                txnDtos.add(toDto(txn));
+            }
+        }
+        dto.setTransactions(txnDtos);
+        return dto;
+    }
+
+    public static TransactionDto toDto(Transaction txn) {
+        TransactionDto dto = new TransactionDto();
+        dto.setTrxnId(txn.getTrxnId());
+        dto.setDateReceived(txn.getDateReceived());
+        dto.setTransactionDate(txn.getTransactionDate());
+        dto.setInvoiceNumber(txn.getInvoiceNumber());
+        dto.setBillingPeriodStart(txn.getBillingPeriodStart());
+        dto.setBillingPeriodEnd(txn.getBillingPeriodEnd());
+        dto.setNetTransactionAmount(txn.getNetTransactionAmount());
+        dto.setGstAmount(txn.getGstAmount());
+        return dto;
+    }
+}
@@ -0,0 +1,112 @@
+package com.kraken.invoice.service;
+
+import com.kraken.invoice.config.IngestProperties;
+import com.kraken.invoice.entity.Invoice;
+import com.kraken.invoice.entity.PersistenceMode;
+import com.kraken.invoice.repository.InvoiceBatchWriter;
+import com.kraken.invoice.repository.InvoiceCopyWriter;
+import com.kraken.invoice.repository.InvoiceRepository;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Single entry point for writing reconciled invoices, whatever ingest mode produced them.
+ * Invoices must already carry their transactions with the back-reference set.
+ */
+@Slf4j
+@Service
+public class InvoicePersistenceService {
+    private static final int HASH_REFRESH_SIZE = 500;
+
+    @Autowired
+    public InvoiceRepository invoiceRepository;
+    @Autowired
+    public InvoiceBatchWriter invoiceBatchWriter;
+    @Autowired
+    public InvoiceCopyWriter invoiceCopyWriter;
+    @Autowired
+    public IngestProperties ingestProperties;
+    @Autowired
+    public TransactionTemplate transactionTemplate;
+    @Autowired
+    public InvoiceCacheService invoiceCacheService;
+    @Autowired
+    public InvoiceSummaryService invoiceSummaryService;
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    /**
+     * Writes the invoices and returns them as stored. In jdbc and copy mode every
+     * invoice.ingest.commit-size invoices are committed in their own transaction. Cached reads
+     * of the written ids are evicted after each commit. The invoice_summary rollup is updated in
+     * the same transaction as the invoices it counts.
+     */
+    public List<Invoice> persist(List<Invoice> invoices, PersistenceMode mode) {
+        if (mode == PersistenceMode.JDBC || mode == PersistenceMode.COPY) {
+            int commitSize = ingestProperties.getCommitSize();
+            for (int from = 0; from < invoices.size(); from += commitSize) {
+                List<Invoice> chunk = invoices.subList(from, Math.min(from + commitSize, invoices.size()));
+                transactionTemplate.executeWithoutResult(status -> {
+                    InvoiceSummaryDelta delta = invoiceSummaryService.diff(chunk);
+                    if (mode == PersistenceMode.COPY) {
+                        invoiceCopyWriter.write(chunk);
+                    } else {
+                        invoiceBatchWriter.write(chunk);
+                    }
+                    invoiceSummaryService.apply(delta);
+                });
+                evict(chunk);
+            }
+            log.info("Saved {} invoices to database with {}", invoices.size(), mode);
+            return invoices;
+        }
+        List<Invoice> savedInvoices = transactionTemplate.execute(status -> {
+            InvoiceSummaryDelta delta = invoiceSummaryService.diff(invoices);
+            List<Invoice> saved = invoiceRepository.saveAll(invoices);
+            invoiceSummaryService.apply(delta);
+            return saved;
+        });
+        evict(savedInvoices);
+        log.info("Saved {} invoices to database", savedInvoices.size());
+        return savedInvoices;
+    }
+
+    /**
+     * Recomputes the content hash of the given invoices from their stored rows and all of their
+     * transactions. Streaming uploads write an invoice reopened by late transactions a second
+     * time with only those transactions, so that write cannot carry the hash of the full set.
+     */
+    public void refreshContentHashes(Collection<Long> invoiceIds) {
+        List<Long> ids = new ArrayList<>(invoiceIds);
+        for (int from = 0; from < ids.size(); from += HASH_REFRESH_SIZE) {
+            List<Long> batch = ids.subList(from, Math.min(from + HASH_REFRESH_SIZE, ids.size()));
+            transactionTemplate.executeWithoutResult(status -> {
+                for (Invoice invoice : invoiceRepository.findWithTransactionsByInvoiceIdIn(batch)) {
+                    invoice.setContentHash(InvoiceFingerprint.of(InvoiceMapper.toDto(invoice)));
+                }
+            });
+            entityManager.clear();
+        }
+        log.debug("Refreshed the content hash of {} reopened invoices", ids.size());
+    }
+
+    private void evict(List<Invoice> invoices) {
+        invoiceCacheService.evict(invoices.stream().map(Invoice::getInvoiceId).toList());
+    }
+
+    /**
+     * Detaches everything loaded by previous JPA writes so that chunked uploads do not keep
+     * every saved entity in the persistence context.
+     */
+    public void clear() {
+        entityManager.clear();
+    }
+}
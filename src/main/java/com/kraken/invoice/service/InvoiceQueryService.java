@@ -0,0 +1,219 @@
+package com.kraken.invoice.service;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.kraken.invoice.config.CacheConfig;
+import com.kraken.invoice.config.QueryProperties;
+import com.kraken.invoice.entity.Invoice;
+import com.kraken.invoice.entity.InvoiceDto;
+import com.kraken.invoice.entity.InvoicePageDto;
+import com.kraken.invoice.entity.InvoiceSearchCriteria;
+import com.kraken.invoice.entity.InvoiceStatusDto;
+import com.kraken.invoice.entity.Transaction;
+import com.kraken.invoice.entity.TransactionDto;
+import com.kraken.invoice.exception.InvalidOptionException;
+import com.kraken.invoice.repository.InvoiceRepository;
+import com.kraken.invoice.repository.TransactionRepository;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.jpa.domain.Specification;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.stream.Stream;
+
+import static com.kraken.invoice.repository.InvoiceSpecifications.invoiceIdAfter;
+import static com.kraken.invoice.repository.InvoiceSpecifications.invoiceNumber;
+import static com.kraken.invoice.repository.InvoiceSpecifications.paymentDueDateBetween;
+import static com.kraken.invoice.repository.InvoiceSpecifications.receiptDateBetween;
+import static com.kraken.invoice.repository.InvoiceSpecifications.status;
+
+/**
+ * Reads stored invoices in bounded pieces: keyset pages for clients that page through the
+ * data, and a cursor-backed stream for exports. Either way transactions are loaded with one
+ * query per page or batch rather than one per invoice.
+ */
+@Slf4j
+@Service
+public class InvoiceQueryService {
+    @Autowired
+    public InvoiceRepository invoiceRepository;
+    @Autowired
+    public TransactionRepository transactionRepository;
+    @Autowired
+    public QueryProperties queryProperties;
+    @Autowired
+    public ObjectMapper objectMapper;
+    @Autowired
+    public PlatformTransactionManager transactionManager;
+    @Autowired
+    public InvoiceCacheService invoiceCacheService;
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    /**
+     * Returns up to limit invoices with an id greater than after, in id order. The response's
+     * nextCursor is the last id of a full page.
+     */
+    public InvoicePageDto getPage(Long after, Integer limit) {
+        int pageSize = pageSize(limit);
+        List<Invoice> invoices = invoiceRepository.findByInvoiceIdGreaterThanOrderByInvoiceIdAsc(
+                after == null ? Long.MIN_VALUE : after, PageRequest.ofSize(pageSize));
+        log.info("Fetched {} invoices after {}", invoices.size(), after);
+        return toPage(invoices, pageSize);
+    }
+
+    /**
+     * Invoices matching every given filter, paged by id like {@link #getPage}. At least one filter
+     * is required so that a search never turns into a paged full scan.
+     */
+    public InvoicePageDto search(InvoiceSearchCriteria criteria) {
+        if (!criteria.hasFilter()) {
+            throw new InvalidOptionException("At least one of invoiceNumber, status, receiptFrom, receiptTo, "
+                    + "dueFrom or dueTo is required");
+        }
+        int pageSize = pageSize(criteria.getLimit());
+        Specification<Invoice> spec = Specification.where(invoiceNumber(criteria.getInvoiceNumber()))
+                .and(status(criteria.getStatus()))
+                .and(receiptDateBetween(criteria.getReceiptFrom(), criteria.getReceiptTo()))
+                .and(paymentDueDateBetween(criteria.getDueFrom(), criteria.getDueTo()))
+                .and(invoiceIdAfter(criteria.getAfter()));
+        List<Invoice> invoices = invoiceRepository.findBy(spec,
+                query -> query.sortBy(Sort.by("invoiceId")).limit(pageSize).all());
+        log.info("Found {} invoices after {}", invoices.size(), criteria.getAfter());
+        return toPage(invoices, pageSize);
+    }
+
+    /**
+     * Transactions of one invoice in id order, read through the invoice_id index.
+     */
+    public List<TransactionDto> getTransactions(Long invoiceId) {
+        List<Transaction> transactions = transactionRepository.findByInvoiceId(invoiceId);
+        if (transactions.isEmpty() && !invoiceRepository.existsById(invoiceId)) {
+            throw new NoSuchElementException("Invoice not found with ID: " + invoiceId);
+        }
+        return transactions.stream().map(InvoiceMapper::toDto).toList();
+    }
+
+    public InvoiceStatusDto getStatus(Long invoiceId) {
+        return invoiceCacheService.get(CacheConfig.INVOICE_STATUS, invoiceId, () -> invoiceRepository
+                .findStatusByInvoiceId(invoiceId)
+                .orElseThrow(() -> new NoSuchElementException("Invoice not found with ID: " + invoiceId)));
+    }
+
+    /**
+     * Status of every given invoice that exists, in id order, read with a single query. Unknown
+     * ids are left out of the result.
+     */
+    public List<InvoiceStatusDto> getStatuses(Collection<Long> invoiceIds) {
+        if (invoiceIds.size() > queryProperties.getMaxStatusIds()) {
+            throw new InvalidOptionException("At most " + queryProperties.getMaxStatusIds()
+                    + " invoice ids can be looked up per request");
+        }
+        if (invoiceIds.isEmpty()) {
+            return List.of();
+        }
+        List<InvoiceStatusDto> statuses = invoiceRepository.findStatusByInvoiceIdIn(new HashSet<>(invoiceIds));
+        log.info("Found status for {} of {} invoices", statuses.size(), invoiceIds.size());
+        return statuses;
+    }
+
+    /**
+     * Writes every invoice to the output as it is read from a database cursor, either one JSON
+     * object per line or as a single JSON array. Invoices are mapped and detached in batches of
+     * invoice.query.stream-batch-size, so memory does not grow with the table.
+     */
+    public void streamAll(OutputStream out, boolean jsonArray) throws IOException {
+        TransactionTemplate readOnly = new TransactionTemplate(transactionManager);
+        readOnly.setReadOnly(true);
+        try (JsonGenerator json = objectMapper.getFactory().createGenerator(out)) {
+            json.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            if (jsonArray) {
+                json.writeStartArray();
+            }
+            long written = readOnly.execute(status -> {
+                try (Stream<Invoice> invoices = invoiceRepository.streamAllOrderByInvoiceId()) {
+                    return writeBatches(invoices.iterator(), json, jsonArray);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            if (jsonArray) {
+                json.writeEndArray();
+            }
+            json.flush();
+            log.info("Streamed {} invoices", written);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private long writeBatches(Iterator<Invoice> invoices, JsonGenerator json, boolean jsonArray) throws IOException {
+        int batchSize = queryProperties.getStreamBatchSize();
+        List<Invoice> batch = new ArrayList<>(batchSize);
+        long written = 0;
+        while (invoices.hasNext()) {
+            batch.add(invoices.next());
+            if (batch.size() == batchSize || !invoices.hasNext()) {
+                for (InvoiceDto dto : mapWithTransactions(batch)) {
+                    json.writeObject(dto);
+                    if (!jsonArray) {
+                        json.writeRaw('\n');
+                    }
+                }
+                json.flush();
+                written += batch.size();
+                batch.clear();
+                entityManager.clear();
+            }
+        }
+        return written;
+    }
+
+    private int pageSize(Integer limit) {
+        int pageSize = limit == null ? queryProperties.getDefaultPageSize() : limit;
+        if (pageSize < 1 || pageSize > queryProperties.getMaxPageSize()) {
+            throw new InvalidOptionException("limit must be between 1 and " + queryProperties.getMaxPageSize());
+        }
+        return pageSize;
+    }
+
+    private InvoicePageDto toPage(List<Invoice> invoices, int pageSize) {
+        Long nextCursor = invoices.size() == pageSize ? invoices.get(invoices.size() - 1).getInvoiceId() : null;
+        return new InvoicePageDto(mapWithTransactions(invoices), nextCursor);
+    }
+
+    private List<InvoiceDto> mapWithTransactions(List<Invoice> invoices) {
+        if (invoices.isEmpty()) {
+            return List.of();
+        }
+        Map<Long, List<Transaction>> byInvoice = new HashMap<>();
+        for (Invoice invoice : invoices) {
+            byInvoice.put(invoice.getInvoiceId(), new ArrayList<>());
+        }
+        for (Transaction txn : transactionRepository.findByInvoiceIds(byInvoice.keySet())) {
+            byInvoice.get(txn.getInvoice().getInvoiceId()).add(txn);
+        }
+        List<InvoiceDto> dtos = new ArrayList<>(invoices.size());
+        for (Invoice invoice : invoices) {
+            dtos.add(InvoiceMapper.toDto(invoice, byInvoice.get(invoice.getInvoiceId())));
+        }
+        return dtos;
+    }
+}
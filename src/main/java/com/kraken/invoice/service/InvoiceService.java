@@ -1,16 +1,21 @@
 package com.kraken.invoice.service;
 
+import com.kraken.invoice.config.CacheConfig;
+import com.kraken.invoice.config.IngestProperties;
+import com.kraken.invoice.entity.IngestMode;
+import com.kraken.invoice.entity.IngestOptions;
 import com.kraken.invoice.entity.Invoice;
 import com.kraken.invoice.entity.InvoiceDto;
 import com.kraken.invoice.entity.TransactionDto;
 import com.kraken.invoice.repository.InvoiceRepository;
+import io.micrometer.core.instrument.Timer;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.InputStreamSource;
+import org.springframework.data.domain.Sort;
 import org.springframework.stereotype.Service;
-import org.springframework.web.multipart.MultipartFile;
 
 import java.io.IOException;
-import java.math.BigDecimal;
 import java.util.*;
 
 
@@ -21,75 +26,56 @@ public class InvoiceService {
     public InvoiceRepository invoiceRepository;
     @Autowired
     public InvoiceTransactionParser invoiceTransactionParser;
+    @Autowired
+    public InvoicePersistenceService invoicePersistenceService;
+    @Autowired
+    public IngestProperties ingestProperties;
+    @Autowired
+    public IngestMetrics ingestMetrics;
+    @Autowired
+    public InvoiceCacheService invoiceCacheService;
+
+    public List<InvoiceDto> parseAndSave(InputStreamSource invoiceCsv, InputStreamSource transactionCsv)
+            throws IOException {
+        return parseAndSave(invoiceCsv, transactionCsv, new IngestOptions());
+    }
+
+    public List<InvoiceDto> parseAndSave(InputStreamSource invoiceCsv, InputStreamSource transactionCsv,
+                                         IngestOptions options) throws IOException {
+        return parseAndSave(invoiceCsv, transactionCsv, options, new IngestProgress());
+    }
 
-    public List<InvoiceDto> parseAndSave(MultipartFile invoiceCsv, MultipartFile transactionCsv) throws IOException {
+    public List<InvoiceDto> parseAndSave(InputStreamSource invoiceCsv, InputStreamSource transactionCsv,
+                                         IngestOptions options, IngestProgress progress) throws IOException {
 
         try {
             log.info("Starting invoice and transaction parsing...");
-            Map<Long, InvoiceDto> invoiceMap = invoiceTransactionParser.parseInvoices(invoiceCsv);
+            progress.setMode(IngestMode.STANDARD.name().toLowerCase());
+            ingestMetrics.bytesIngested(IngestMetrics.INVOICE_FILE, invoiceCsv, progress);
+            ingestMetrics.bytesIngested(IngestMetrics.TRANSACTION_FILE, transactionCsv, progress);
+            Timer.Sample sample = ingestMetrics.start();
+            Map<Long, InvoiceDto> invoiceMap = invoiceTransactionParser.parseInvoices(invoiceCsv,
+                    ingestProperties.parserMode(options), progress.getRejections());
+            ingestMetrics.stop(sample, IngestMetrics.INVOICE_PARSE, progress);
             log.info("Parsed {} invoices", invoiceMap.size());
-            Map<Long, List<TransactionDto>> transactionMap = invoiceTransactionParser.parseTransactions(transactionCsv);
+            progress.addRowsParsed(invoiceMap.size());
+            ingestMetrics.rowsRead(IngestMetrics.INVOICE_FILE, invoiceMap.size(), progress);
+            sample = ingestMetrics.start();
+            Map<Long, List<TransactionDto>> transactionMap = invoiceTransactionParser.parseTransactions(transactionCsv,
+                    ingestProperties.parserMode(options), progress.getRejections());
+            ingestMetrics.stop(sample, IngestMetrics.TRANSACTION_PARSE, progress);
             log.info("Parsed transactions for {} invoices", transactionMap.size());
-            List<Invoice> invoicesToSave = new ArrayList<>();
-
-            for (Map.Entry<Long, InvoiceDto> entry : invoiceMap.entrySet()) {
-
-                Long invoiceId = entry.getKey();
-                log.debug("Processing invoice ID: {}", invoiceId);
-                InvoiceDto invoiceDto = entry.getValue();
-                List<TransactionDto> txnList = transactionMap.getOrDefault(invoiceId, new ArrayList<>());
-                //set transactions
-                invoiceDto.setTransactions(txnList);
-                //set status and reason
-                BigDecimal netSum = BigDecimal.ZERO;
-                BigDecimal gstSum = BigDecimal.ZERO;
-
-                if (txnList != null) {
-                    for (TransactionDto txn : txnList) {
-                        netSum = netSum.add(Optional.ofNullable(txn.getNetTransactionAmount()).orElse(BigDecimal.ZERO));
-                        gstSum = gstSum.add(Optional.ofNullable(txn.getGstAmount()).orElse(BigDecimal.ZERO));
-                    }
-                }
-                boolean isValid = true;
-                StringBuilder reason = new StringBuilder();
-
-                if (invoiceDto.getNetAmount() == null || invoiceDto.getGstAmount() == null) {
-                    isValid = false;
-                    reason.append("Missing invoice net or GST amount. ");
-                }
-
-                if (invoiceDto.getNetAmount() != null && netSum.compareTo(invoiceDto.getNetAmount()) != 0) {
-                    isValid = false;
-                    reason.append("Net amount mismatch. ");
-                }
-
-                if (invoiceDto.getGstAmount() != null && gstSum.compareTo(invoiceDto.getGstAmount()) != 0) {
-                    isValid = false;
-                    reason.append("GST amount mismatch. ");
-                }
-                // Validation based on number of transactions and total number of transactions in invoice
-                int actualTxnCount = txnList != null ? txnList.size() : 0;
-
-                if (invoiceDto.getTotalNoTrxn() != null && invoiceDto.getTotalNoTrxn() != actualTxnCount) {
-                    isValid = false;
-                    reason.append("Transaction count mismatch (expected ")
-                            .append(invoiceDto.getTotalNoTrxn())
-                            .append(", found ")
-                            .append(actualTxnCount)
-                            .append("). ");
-                }
-
-                invoiceDto.setStatus(isValid ? "valid" : "invalid");
-                invoiceDto.setReason(isValid ? "Valid invoice." : reason.toString().trim());
-
-                //Save invoice and transaction to DB
-                Invoice invoice = invoiceTransactionParser.mapToEntity(invoiceDto);
-                invoice.getTransactions().forEach(txn -> txn.setInvoice(invoice));
-                invoicesToSave.add(invoice);
-            }
-
-            List<Invoice> savedInvoices = invoiceRepository.saveAll(invoicesToSave);
-            log.info("Saved {} invoices to database", savedInvoices.size());
+            long transactionsRead = transactionMap.values().stream().mapToLong(List::size).sum();
+            progress.addRowsParsed(transactionsRead);
+            ingestMetrics.rowsRead(IngestMetrics.TRANSACTION_FILE, transactionsRead, progress);
+            List<Invoice> invoicesToSave = reconcile(invoiceMap, transactionMap, progress);
+
+            sample = ingestMetrics.start();
+            List<Invoice> savedInvoices = invoicePersistenceService.persist(invoicesToSave,
+                    ingestProperties.persistenceMode(options));
+            ingestMetrics.stop(sample, IngestMetrics.PERSIST, progress);
+            progress.addRowsPersisted(savedInvoices.size()
+                    + savedInvoices.stream().mapToLong(invoice -> invoice.getTransactions().size()).sum());
             return savedInvoices.stream().map(invoiceTransactionParser::mapToDTO).toList();
         } catch (IOException e) {
             log.error("Error parsing CSV files: {}", e.getMessage(), e);
@@ -97,10 +83,65 @@ public class InvoiceService {
         }
     }
 
+    /**
+     * Attaches each invoice's transactions, validates it against their totals and maps it to an
+     * entity ready to be written. Validation and mapping are reported as separate stages.
+     */
+    public List<Invoice> reconcile(Map<Long, InvoiceDto> invoiceMap, Map<Long, List<TransactionDto>> transactionMap,
+                                   IngestProgress progress) {
+        return reconcile(invoiceMap, transactionMap, Map.of(), progress);
+    }
+
+    /**
+     * As {@link #reconcile(Map, Map, IngestProgress)}, reusing the content hashes a caller has
+     * already computed. Invoices missing from contentHashes are hashed here.
+     */
+    public List<Invoice> reconcile(Map<Long, InvoiceDto> invoiceMap, Map<Long, List<TransactionDto>> transactionMap,
+                                   Map<Long, String> contentHashes, IngestProgress progress) {
+        List<Invoice> invoicesToSave = new ArrayList<>();
+        long start = System.nanoTime();
+        long mappingNanos = 0;
+
+        for (Map.Entry<Long, InvoiceDto> entry : invoiceMap.entrySet()) {
+
+            Long invoiceId = entry.getKey();
+            log.debug("Processing invoice ID: {}", invoiceId);
+            InvoiceDto invoiceDto = entry.getValue();
+            List<TransactionDto> txnList = transactionMap.getOrDefault(invoiceId, new ArrayList<>());
+            //set transactions
+            invoiceDto.setTransactions(txnList);
+            //set status and reason
+            ReconciliationTotals totals = new ReconciliationTotals();
+            txnList.forEach(totals::add);
+            totals.validate(invoiceDto);
+            progress.addInvoicesValidated(1);
+            ingestMetrics.invoiceValidated(invoiceDto, progress);
+            String contentHash = contentHashes.get(invoiceId);
+            if (contentHash == null) {
+                contentHash = InvoiceFingerprint.of(invoiceDto);
+            }
 
+            //Save invoice and transaction to DB
+            long mappingStart = System.nanoTime();
+            Invoice invoice = invoiceTransactionParser.mapToEntity(invoiceDto, contentHash);
+            invoice.getTransactions().forEach(txn -> txn.setInvoice(invoice));
+            mappingNanos += System.nanoTime() - mappingStart;
+            invoicesToSave.add(invoice);
+        }
+        ingestMetrics.record(IngestMetrics.RECONCILE, System.nanoTime() - start - mappingNanos, progress);
+        ingestMetrics.record(IngestMetrics.MAPPING, mappingNanos, progress);
+        return invoicesToSave;
+    }
+
+
+    /**
+     * Every invoice with its transactions. The invoices are read on their own and the
+     * transaction lists in batches (see {@link Invoice#getTransactions()}'s batch size): a fetch
+     * join would repeat each invoice row once per transaction and sort the whole product.
+     */
     public List<InvoiceDto> getAllInvoices() {
         log.info("Fetching all invoices...");
-        List<InvoiceDto> result = invoiceRepository.findAll().stream()
+        List<InvoiceDto> result = invoiceRepository.findAll(Sort.by("invoiceId")).stream()
                 .map(invoiceTransactionParser::mapToDTO)
                 .toList();
         log.info("Found {} invoices", result.size());
@@ -108,8 +149,12 @@ public class InvoiceService {
     }
 
     public InvoiceDto getInvoiceById(Long invoiceId) {
+        return invoiceCacheService.get(CacheConfig.INVOICES, invoiceId, () -> loadInvoice(invoiceId));
+    }
+
+    private InvoiceDto loadInvoice(Long invoiceId) {
         log.info("Fetching invoice by ID: {}", invoiceId);
-        Optional<Invoice> invoice = invoiceRepository.findById(invoiceId);
+        Optional<Invoice> invoice = invoiceRepository.findWithTransactionsByInvoiceId(invoiceId);
         if (invoice.isPresent()) {
             log.info("Invoice found with ID: {}", invoiceId);
             return invoiceTransactionParser.mapToDTO(invoice.get());
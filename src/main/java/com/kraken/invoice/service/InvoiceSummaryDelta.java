@@ -0,0 +1,88 @@
+package com.kraken.invoice.service;
+
+import com.kraken.invoice.entity.Invoice;
+import com.kraken.invoice.entity.InvoiceSummary;
+
+import java.math.BigDecimal;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Change to the invoice_summary rows caused by one write: the stored version of every
+ * overwritten invoice is subtracted and the new version added, so re-uploads move an invoice
+ * between buckets instead of counting it twice.
+ */
+public class InvoiceSummaryDelta {
+    static final String NET_MISMATCH = "Net amount mismatch";
+    static final String GST_MISMATCH = "GST amount mismatch";
+    static final String COUNT_MISMATCH = "Transaction count mismatch";
+    static final String MISSING_AMOUNT = "Missing invoice net or GST amount";
+
+    private final Map<InvoiceSummary.Key, InvoiceSummary> buckets = new TreeMap<>();
+
+    public void add(Invoice invoice) {
+        apply(invoice, 1);
+    }
+
+    public void subtract(Invoice invoice) {
+        apply(invoice, -1);
+    }
+
+    /**
+     * The buckets that changed, in key order so that concurrent writers lock them in the same
+     * order.
+     */
+    public List<InvoiceSummary> changes() {
+        List<InvoiceSummary> changes = new ArrayList<>();
+        for (InvoiceSummary bucket : buckets.values()) {
+            if (bucket.getInvoiceCount() != 0 || bucket.getNetMismatch() != 0 || bucket.getGstMismatch() != 0
+                    || bucket.getCountMismatch() != 0 || bucket.getMissingAmount() != 0
+                    || bucket.getGrossAmount().signum() != 0 || bucket.getNetAmount().signum() != 0
+                    || bucket.getGstAmount().signum() != 0) {
+                changes.add(bucket);
+            }
+        }
+        return changes;
+    }
+
+    public static InvoiceSummary.Key key(Invoice invoice) {
+        String month = invoice.getReceiptDate() == null
+                ? InvoiceSummary.NONE : YearMonth.from(invoice.getReceiptDate()).toString();
+        String status = invoice.getStatus() == null ? InvoiceSummary.NONE : invoice.getStatus();
+        return new InvoiceSummary.Key(month, status);
+    }
+
+    private void apply(Invoice invoice, int sign) {
+        InvoiceSummary bucket = buckets.computeIfAbsent(key(invoice), InvoiceSummary::new);
+        bucket.setInvoiceCount(bucket.getInvoiceCount() + sign);
+        bucket.setGrossAmount(add(bucket.getGrossAmount(), invoice.getGrossAmount(), sign));
+        bucket.setNetAmount(add(bucket.getNetAmount(), invoice.getNetAmount(), sign));
+        bucket.setGstAmount(add(bucket.getGstAmount(), invoice.getGstAmount(), sign));
+        String reason = invoice.getReason();
+        if (reason == null || "valid".equals(invoice.getStatus())) {
+            return;
+        }
+        if (reason.contains(NET_MISMATCH)) {
+            bucket.setNetMismatch(bucket.getNetMismatch() + sign);
+        }
+        if (reason.contains(GST_MISMATCH)) {
+            bucket.setGstMismatch(bucket.getGstMismatch() + sign);
+        }
+        if (reason.contains(COUNT_MISMATCH)) {
+            bucket.setCountMismatch(bucket.getCountMismatch() + sign);
+        }
+        if (reason.contains(MISSING_AMOUNT)) {
+            bucket.setMissingAmount(bucket.getMissingAmount() + sign);
+        }
+    }
+
+    private static BigDecimal add(BigDecimal total, BigDecimal amount, int sign) {
+        if (amount == null) {
+            return total;
+        }
+        return sign > 0 ? total.add(amount) : total.subtract(amount);
+    }
+}
@@ -0,0 +1,137 @@
+package com.kraken.invoice.service;
+
+import com.kraken.invoice.entity.Invoice;
+import com.kraken.invoice.entity.InvoiceSummary;
+import com.kraken.invoice.entity.InvoiceSummaryDto;
+import com.kraken.invoice.entity.MonthlySummaryDto;
+import com.kraken.invoice.repository.InvoiceRepository;
+import com.kraken.invoice.repository.InvoiceSummaryRepository;
+import com.kraken.invoice.repository.InvoiceSummaryWriter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the invoice_summary rollup in step with the invoice table and answers
+ * GET /invoice/summary from it, so dashboards read one row per month and status instead of
+ * every invoice.
+ * <p>
+ * Every write of {@link InvoicePersistenceService} calls {@link #diff} before and {@link #apply}
+ * after writing, in the same transaction. {@link #rebuild} recomputes the rollup from the invoice
+ * table and runs on startup when the rollup is still empty.
+ */
+@Slf4j
+@Service
+public class InvoiceSummaryService {
+    @Autowired
+    public InvoiceSummaryRepository invoiceSummaryRepository;
+    @Autowired
+    public InvoiceSummaryWriter invoiceSummaryWriter;
+    @Autowired
+    public InvoiceRepository invoiceRepository;
+    @Autowired
+    public TransactionTemplate transactionTemplate;
+
+    /**
+     * Locks the invoices about to be written, including new ones, and returns the change the
+     * write will make to the rollup. When an id occurs more than once the last one is written.
+     */
+    public InvoiceSummaryDelta diff(List<Invoice> invoices) {
+        Map<Long, Invoice> written = new LinkedHashMap<>();
+        for (Invoice invoice : invoices) {
+            written.put(invoice.getInvoiceId(), invoice);
+        }
+        InvoiceSummaryDelta delta = new InvoiceSummaryDelta();
+        invoiceSummaryWriter.lockCurrent(written.keySet()).forEach(delta::subtract);
+        written.values().forEach(delta::add);
+        return delta;
+    }
+
+    public void apply(InvoiceSummaryDelta delta) {
+        List<InvoiceSummary> changes = delta.changes();
+        if (!changes.isEmpty()) {
+            invoiceSummaryWriter.apply(changes);
+        }
+    }
+
+    /**
+     * Totals, reason counts and monthly figures, optionally for one status only.
+     */
+    public InvoiceSummaryDto getSummary(String status) {
+        return summarize(invoiceSummaryRepository.findAllOrdered(), status);
+    }
+
+    public static InvoiceSummaryDto summarize(List<InvoiceSummary> buckets, String status) {
+        Map<String, MonthlySummaryDto> months = new LinkedHashMap<>();
+        Map<String, Long> reasons = new LinkedHashMap<>();
+        for (InvoiceSummary bucket : buckets) {
+            if (bucket.getInvoiceCount() == 0 || (status != null && !status.equals(bucket.getStatus()))) {
+                continue;
+            }
+            MonthlySummaryDto month = months.computeIfAbsent(bucket.getReceiptMonth(), MonthlySummaryDto::new);
+            month.setInvoices(month.getInvoices() + bucket.getInvoiceCount());
+            if ("valid".equals(bucket.getStatus())) {
+                month.setValid(month.getValid() + bucket.getInvoiceCount());
+            } else if ("invalid".equals(bucket.getStatus())) {
+                month.setInvalid(month.getInvalid() + bucket.getInvoiceCount());
+            }
+            month.setGrossAmount(month.getGrossAmount().add(bucket.getGrossAmount()));
+            month.setNetAmount(month.getNetAmount().add(bucket.getNetAmount()));
+            month.setGstAmount(month.getGstAmount().add(bucket.getGstAmount()));
+            reasons.merge(InvoiceSummaryDelta.NET_MISMATCH, bucket.getNetMismatch(), Long::sum);
+            reasons.merge(InvoiceSummaryDelta.GST_MISMATCH, bucket.getGstMismatch(), Long::sum);
+            reasons.merge(InvoiceSummaryDelta.COUNT_MISMATCH, bucket.getCountMismatch(), Long::sum);
+            reasons.merge(InvoiceSummaryDelta.MISSING_AMOUNT, bucket.getMissingAmount(), Long::sum);
+        }
+
+        InvoiceSummaryDto summary = new InvoiceSummaryDto();
+        summary.setGrossAmount(BigDecimal.ZERO);
+        summary.setNetAmount(BigDecimal.ZERO);
+        summary.setGstAmount(BigDecimal.ZERO);
+        for (MonthlySummaryDto month : months.values()) {
+            summary.setInvoices(summary.getInvoices() + month.getInvoices());
+            summary.setValid(summary.getValid() + month.getValid());
+            summary.setInvalid(summary.getInvalid() + month.getInvalid());
+            summary.setGrossAmount(summary.getGrossAmount().add(month.getGrossAmount()));
+            summary.setNetAmount(summary.getNetAmount().add(month.getNetAmount()));
+            summary.setGstAmount(summary.getGstAmount().add(month.getGstAmount()));
+        }
+        Map<String, Long> topReasons = new LinkedHashMap<>();
+        reasons.entrySet().stream()
+                .filter(entry -> entry.getValue() > 0)
+                .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+                .forEach(entry -> topReasons.put(entry.getKey(), entry.getValue()));
+        summary.setReasons(topReasons);
+        summary.setMonths(new ArrayList<>(months.values()));
+        return summary;
+    }
+
+    public int rebuild() {
+        Integer buckets = transactionTemplate.execute(status -> invoiceSummaryWriter.rebuild());
+        return buckets == null ? 0 : buckets;
+    }
+
+    /**
+     * Fills the rollup from existing invoices the first time the application runs against a
+     * database that predates it.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void rebuildIfEmpty() {
+        if (invoiceSummaryRepository.count() == 0
+                && !invoiceRepository.findByInvoiceIdGreaterThanOrderByInvoiceIdAsc(Long.MIN_VALUE,
+                        PageRequest.of(0, 1)).isEmpty()) {
+            log.info("Invoice summary is empty, building it from stored invoices");
+            rebuild();
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package com.kraken.invoice.service;
+
+import com.kraken.invoice.entity.InvoiceDto;
+
+import java.math.BigDecimal;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Net sum, GST sum and transaction count per invoice id, kept in parallel primitive arrays
+ * with open addressing instead of a map of {@link ReconciliationTotals} objects. Sums are held
+ * as unscaled longs at a scale of two decimals, so adding an ordinary amount neither boxes nor
+ * allocates a BigDecimal that outlives the call.
+ * <p>
+ * Results are exact: an amount with more than two decimals, or a sum that would overflow a
+ * long, moves that invoice's sums to BigDecimal for good. Sums are read back as BigDecimal
+ * and validated with the same rules as {@link ReconciliationTotals}.
+ */
+public class InvoiceTotalsTable {
+    private static final int SCALE = 2;
+    private static final float LOAD_FACTOR = 0.6f;
+
+    private long[] keys;
+    private long[] netSums;
+    private long[] gstSums;
+    private int[] counts;
+    private boolean[] used;
+    private int size;
+    private int resizeAt;
+    // sums of invoices that left the long representation: [net, gst]
+    private final Map<Long, BigDecimal[]> exactSums = new HashMap<>();
+
+    public InvoiceTotalsTable() {
+        this(1024);
+    }
+
+    public InvoiceTotalsTable(int expectedInvoices) {
+        int capacity = Integer.highestOneBit(Math.max(16, (int) (expectedInvoices / LOAD_FACTOR)) - 1) << 1;
+        allocate(capacity);
+    }
+
+    public void add(long invoiceId, BigDecimal net, BigDecimal gst) {
+        int slot = slotFor(invoiceId);
+        counts[slot]++;
+        BigDecimal[] exact = exactSums.isEmpty() ? null : exactSums.get(invoiceId);
+        if (exact == null) {
+            long netCents = unscaled(net);
+            long gstCents = unscaled(gst);
+            if (netCents != Long.MIN_VALUE && gstCents != Long.MIN_VALUE) {
+                long netSum = netSums[slot] + netCents;
+                long gstSum = gstSums[slot] + gstCents;
+                // overflow when both operands have the sign the result lacks
+                if (((netSums[slot] ^ netSum) & (netCents ^ netSum)) >= 0
+                        && ((gstSums[slot] ^ gstSum) & (gstCents ^ gstSum)) >= 0) {
+                    netSums[slot] = netSum;
+                    gstSums[slot] = gstSum;
+                    return;
+                }
+            }
+            exact = new BigDecimal[]{BigDecimal.valueOf(netSums[slot], SCALE), BigDecimal.valueOf(gstSums[slot], SCALE)};
+            exactSums.put(invoiceId, exact);
+        }
+        exact[0] = exact[0].add(orZero(net));
+        exact[1] = exact[1].add(orZero(gst));
+    }
+
+    public boolean contains(long invoiceId) {
+        return find(invoiceId) >= 0;
+    }
+
+    public int count(long invoiceId) {
+        int slot = find(invoiceId);
+        return slot < 0 ? 0 : counts[slot];
+    }
+
+    public BigDecimal netSum(long invoiceId) {
+        BigDecimal[] exact = exactSums.get(invoiceId);
+        if (exact != null) {
+            return exact[0];
+        }
+        int slot = find(invoiceId);
+        return slot < 0 ? BigDecimal.ZERO : BigDecimal.valueOf(netSums[slot], SCALE);
+    }
+
+    public BigDecimal gstSum(long invoiceId) {
+        BigDecimal[] exact = exactSums.get(invoiceId);
+        if (exact != null) {
+            return exact[1];
+        }
+        int slot = find(invoiceId);
+        return slot < 0 ? BigDecimal.ZERO : BigDecimal.valueOf(gstSums[slot], SCALE);
+    }
+
+    /**
+     * True once the invoice has seen as many transactions as it declares, as in
+     * {@link ReconciliationTotals#isComplete(InvoiceDto)}.
+     */
+    public boolean isComplete(long invoiceId, InvoiceDto invoiceDto) {
+        return invoiceDto.getTotalNoTrxn() != null && count(invoiceId) >= invoiceDto.getTotalNoTrxn();
+    }
+
+    /**
+     * Sets status and reason on the invoice from its totals in this table.
+     */
+    public void validate(long invoiceId, InvoiceDto invoiceDto) {
+        ReconciliationTotals.validate(invoiceDto, netSum(invoiceId), gstSum(invoiceId), count(invoiceId));
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * The amount in hundredths, or Long.MIN_VALUE when it has finer decimals or does not fit.
+     */
+    private static long unscaled(BigDecimal value) {
+        if (value == null || value.signum() == 0) {
+            return 0;
+        }
+        if (value.scale() > SCALE) {
+            value = value.stripTrailingZeros();
+            if (value.scale() > SCALE) {
+                return Long.MIN_VALUE;
+            }
+        }
+        if (value.precision() - value.scale() > 16) {
+            return Long.MIN_VALUE;
+        }
+        return value.movePointRight(SCALE).longValue();
+    }
+
+    private static BigDecimal orZero(BigDecimal value) {
+        return value == null ? BigDecimal.ZERO : value;
+    }
+
+    private int find(long invoiceId) {
+        int mask = keys.length - 1;
+        for (int slot = hash(invoiceId) & mask; used[slot]; slot = (slot + 1) & mask) {
+            if (keys[slot] == invoiceId) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private int slotFor(long invoiceId) {
+        int mask = keys.length - 1;
+        int slot = hash(invoiceId) & mask;
+        while (used[slot]) {
+            if (keys[slot] == invoiceId) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        if (size >= resizeAt) {
+            grow();
+            return slotFor(invoiceId);
+        }
+        used[slot] = true;
+        keys[slot] = invoiceId;
+        size++;
+        return slot;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        long[] oldNet = netSums;
+        long[] oldGst = gstSums;
+        int[] oldCounts = counts;
+        boolean[] oldUsed = used;
+        allocate(oldKeys.length * 2);
+        int mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldUsed[i]) {
+                int slot = hash(oldKeys[i]) & mask;
+                while (used[slot]) {
+                    slot = (slot + 1) & mask;
+                }
+                used[slot] = true;
+                keys[slot] = oldKeys[i];
+                netSums[slot] = oldNet[i];
+                gstSums[slot] = oldGst[i];
+                counts[slot] = oldCounts[i];
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        netSums = new long[capacity];
+        gstSums = new long[capacity];
+        counts = new int[capacity];
+        used = new boolean[capacity];
+        resizeAt = (int) (capacity * LOAD_FACTOR);
+    }
+
+    private static int hash(long key) {
+        // invoice ids are often sequential; mix the bits so runs do not cluster
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -1,152 +1,618 @@
 package com.kraken.invoice.service;
 
+import com.kraken.invoice.config.IngestProperties;
 import com.kraken.invoice.entity.Invoice;
 import com.kraken.invoice.entity.InvoiceDto;
-import com.kraken.invoice.entity.Transaction;
+import com.kraken.invoice.entity.ParserMode;
 import com.kraken.invoice.entity.TransactionDto;
+import com.kraken.invoice.exception.ErrorBudgetExceededException;
 import com.kraken.invoice.exception.InvoiceFileProcessingException;
 import com.kraken.invoice.exception.TransactionFileProcessingException;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVParser;
 import org.apache.commons.csv.CSVRecord;
-import org.springframework.beans.BeanUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.InputStreamSource;
 import org.springframework.stereotype.Component;
-import org.springframework.web.multipart.MultipartFile;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
 import java.math.BigDecimal;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeParseException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
 
 @Component
 @Slf4j
 public class InvoiceTransactionParser {
+    @Autowired
+    public IngestProperties ingestProperties;
+    @Autowired
+    public IngestMetrics ingestMetrics;
 
+    static final String[] INVOICE_COLUMNS = {"invoice_id", "invoice_number", "gross_amount", "gst_amount",
+            "net_amount", "receipt_date", "payment_due_date", "total_no_trxn"};
+    static final String[] TRANSACTION_COLUMNS = {"trxn_id", "date_received", "transaction_date", "invoice_id",
+            "invoice_number", "billing_period_start", "billing_period_end", "net_transaction_amount", "gst_amount"};
 
-    public Map<Long, InvoiceDto> parseInvoices(MultipartFile csv) throws IOException {
+    public Map<Long, InvoiceDto> parseInvoices(InputStreamSource csv, ParserMode mode) throws IOException {
+        return parseInvoices(csv, mode, null);
+    }
+
+    /**
+     * Parses the invoice file with the given parser. Skipped rows are added to rejections when
+     * one is given and logged only if it asks for it; without one every skipped row is logged.
+     * If rejections carries an error budget, malformed records are quarantined in it instead of
+     * failing the file until the budget runs out. The budget only covers records that could be
+     * split into fields: a record the tokenizer cannot read, such as an unterminated quote or text
+     * after a closing quote, leaves no record boundary to resume from and always fails the file.
+     */
+    public Map<Long, InvoiceDto> parseInvoices(InputStreamSource csv, ParserMode mode, RejectionReport rejections)
+            throws IOException {
+        return mode == ParserMode.FAST ? parseInvoicesFast(csv, rejections) : parseInvoices(csv, rejections);
+    }
+
+    public Map<Long, InvoiceDto> parseInvoices(InputStreamSource csv) throws IOException {
+        return parseInvoices(csv, (RejectionReport) null);
+    }
+
+    public Map<Long, InvoiceDto> parseInvoices(InputStreamSource csv, RejectionReport rejections) throws IOException {
         Map<Long, InvoiceDto> map = new HashMap<>();
 
         try (
-                Reader reader = new InputStreamReader(csv.getInputStream());
+                Reader reader = new InputStreamReader(CompressedInput.open(csv));
                 CSVParser parser = CSVFormat.DEFAULT
                         .withFirstRecordAsHeader()
                         .withIgnoreHeaderCase()
                         .withTrim()
                         .parse(reader)
         ) {
-            for (CSVRecord record : parser) {
-                try {
-                    InvoiceDto dto = new InvoiceDto();
+            long records = 0;
+            try {
+                for (CSVRecord record : parser) {
+                    records++;
+                    try {
+                        InvoiceDto dto = new InvoiceDto();
+
+                        dto.setInvoiceId(parseLongSafe(record.get("invoice_id")));
+                        dto.setInvoiceNumber(record.get("invoice_number"));
+                        dto.setGrossAmount(parseBigDecimalSafe(record.get("gross_amount")));
+                        dto.setGstAmount(parseBigDecimalSafe(record.get("gst_amount")));
+                        dto.setNetAmount(parseBigDecimalSafe(record.get("net_amount")));
+                        dto.setReceiptDate(parseDateTimeSafe(record.get("receipt_date")));
+                        dto.setPaymentDueDate(parseDateTimeSafe(record.get("payment_due_date")));
+                        dto.setTotalNoTrxn(parseIntSafe(record.get("total_no_trxn")));
 
-                    dto.setInvoiceId(parseLongSafe(record.get("invoice_id")));
-                    dto.setInvoiceNumber(record.get("invoice_number"));
-                    dto.setGrossAmount(parseBigDecimalSafe(record.get("gross_amount")));
-                    dto.setGstAmount(parseBigDecimalSafe(record.get("gst_amount")));
-                    dto.setNetAmount(parseBigDecimalSafe(record.get("net_amount")));
-                    dto.setReceiptDate(parseDateTimeSafe(record.get("receipt_date")));
-                    dto.setPaymentDueDate(parseDateTimeSafe(record.get("payment_due_date")));
-                    dto.setTotalNoTrxn(parseIntSafe(record.get("total_no_trxn")));
+                        if (dto.getInvoiceId() != null) {
+                            map.put(dto.getInvoiceId(), dto);
+                        }
+                        else {
+                            if (logRejection(rejections)) {
+                                log.error("Skipping record in Invoice File: missing invoice ID at line {}",
+                                        record.getRecordNumber());
+                            }
+                            reject(rejections, IngestMetrics.INVOICE_FILE, record.getRecordNumber(),
+                                    "missing invoice ID", record.values());
+                        }
+                    } catch (Exception e) {
+                        if (quarantine(rejections, IngestMetrics.INVOICE_FILE, record.getRecordNumber(),
+                                e.getMessage(), record.values())) {
+                            continue;
+                        }
+                        log.error("Error due to invalid record in Invoice File at line {}: {}",
+                                record.getRecordNumber(), e.getMessage());
+                        throw new InvoiceFileProcessingException("Error Processing Invoice File .Invalid invoice " +
+                                "record at line " + record.getRecordNumber());
 
-                    if (dto.getInvoiceId() != null) {
-                        map.put(dto.getInvoiceId(), dto);
                     }
-                    else {
-                        log.error("Skipping record in Invoice File: missing invoice ID at line {}",
-                                record.getRecordNumber());
-                    }
-                } catch (Exception e) {
-                    log.error("Error due to invalid record in Invoice File at line {}: {}", record.getRecordNumber(),
-                            e.getMessage());
-                    throw new InvoiceFileProcessingException("Error Processing Invoice File .Invalid invoice record " +
-                            "at line " + record.getRecordNumber());
-
                 }
+            } catch (UncheckedIOException e) {
+                throw unreadableInvoice(records + 1, e);
             }
+            checkPercentBudget(rejections, IngestMetrics.INVOICE_FILE, records);
         }
 
         return map;
     }
 
 
-    public Map<Long, List<TransactionDto>> parseTransactions(MultipartFile csv) throws IOException {
+    public Map<Long, List<TransactionDto>> parseTransactions(InputStreamSource csv) throws IOException {
+        return parseTransactions(csv, ParserMode.COMMONS);
+    }
+
+    public Map<Long, List<TransactionDto>> parseTransactions(InputStreamSource csv, ParserMode mode)
+            throws IOException {
+        return parseTransactions(csv, mode, null);
+    }
+
+    public Map<Long, List<TransactionDto>> parseTransactions(InputStreamSource csv, ParserMode mode,
+                                                             RejectionReport rejections) throws IOException {
         Map<Long, List<TransactionDto>> map = new HashMap<>();
+        streamTransactions(csv, (invoiceId, dto) -> map.computeIfAbsent(invoiceId, k -> new ArrayList<>()).add(dto),
+                mode, rejections);
+        return map;
+    }
+
+    public void streamTransactions(InputStreamSource csv, BiConsumer<Long, TransactionDto> consumer, ParserMode mode)
+            throws IOException {
+        streamTransactions(csv, consumer, mode, null);
+    }
 
+    /**
+     * Streams the transaction file with the given parser. Skipped rows are reported as in
+     * {@link #parseInvoices(InputStreamSource, ParserMode, RejectionReport)}.
+     */
+    public void streamTransactions(InputStreamSource csv, BiConsumer<Long, TransactionDto> consumer, ParserMode mode,
+                                   RejectionReport rejections) throws IOException {
+        if (mode == ParserMode.PARALLEL) {
+            streamTransactionsParallel(csv, consumer, ingestProperties.getParseThreads(),
+                    (int) ingestProperties.getParseChunkSize().toBytes(), rejections);
+        } else if (mode == ParserMode.FAST) {
+            streamTransactionsFast(csv, consumer, rejections);
+        } else {
+            streamTransactions(csv, consumer, rejections);
+        }
+    }
+
+    /**
+     * Reads the transaction file record by record and hands every accepted transaction to the
+     * consumer together with its invoice id, without keeping anything in memory. Skip and
+     * failure rules are the same as {@link #parseTransactions(InputStreamSource)}.
+     */
+    public void streamTransactions(InputStreamSource csv, BiConsumer<Long, TransactionDto> consumer)
+            throws IOException {
+        streamTransactions(csv, consumer, (RejectionReport) null);
+    }
+
+    public void streamTransactions(InputStreamSource csv, BiConsumer<Long, TransactionDto> consumer,
+                                   RejectionReport rejections) throws IOException {
         try (
-                Reader reader = new InputStreamReader(csv.getInputStream());
+                Reader reader = new InputStreamReader(CompressedInput.open(csv));
                 CSVParser parser = CSVFormat.DEFAULT
                         .withFirstRecordAsHeader()
                         .withIgnoreHeaderCase()
                         .withTrim()
                         .parse(reader)
         ) {
-            for (CSVRecord record : parser) {
-                try {
-                    TransactionDto dto = new TransactionDto();
-                    Long transactionId = parseLongSafe(record.get("trxn_id"));
-                    if(transactionId != null) {
+            long records = 0;
+            try {
+                for (CSVRecord record : parser) {
+                    records++;
+                    emitTransaction(parseTransactionRecord(record), 0, consumer, rejections);
+                }
+            } catch (UncheckedIOException e) {
+                emitTransaction(ParsedTransaction.unreadable(records + 1, e.getMessage()), 0, consumer, rejections);
+            }
+            checkPercentBudget(rejections, IngestMetrics.TRANSACTION_FILE, records);
+        }
+    }
 
-                        dto.setTrxnId(transactionId);
-                        dto.setDateReceived(parseDateTimeSafe(record.get("date_received")));
-                        dto.setTransactionDate(parseDateTimeSafe(record.get("transaction_date")));
-                        Long invoiceId = parseLongSafe(record.get("invoice_id"));
+    /**
+     * Parallel variant of {@link #streamTransactions(InputStreamSource, BiConsumer)}. The file is cut
+     * into chunks of roughly chunkBytes that end on a record boundary (newlines inside quoted fields
+     * are not boundaries), and the chunks are parsed on a fork-join pool. Results are handed to the
+     * consumer in file order, one chunk at a time, so the consumer sees exactly the sequence the
+     * sequential parser produces. Skip messages and the failing line number are also the same.
+     * At most two chunks per thread are in flight, which bounds memory.
+     */
+    public void streamTransactionsParallel(InputStreamSource csv, BiConsumer<Long, TransactionDto> consumer,
+                                           int threads, int chunkBytes) throws IOException {
+        streamTransactionsParallel(csv, consumer, threads, chunkBytes, null);
+    }
 
-                        dto.setInvoiceNumber(record.get("invoice_number"));
-                        dto.setBillingPeriodStart(parseDateTimeSafe(record.get("billing_period_start")));
-                        dto.setBillingPeriodEnd(parseDateTimeSafe(record.get("billing_period_end")));
-                        dto.setNetTransactionAmount(parseBigDecimalSafe(record.get("net_transaction_amount")));
-                        dto.setGstAmount(parseBigDecimalSafe(record.get("gst_amount")));
+    public void streamTransactionsParallel(InputStreamSource csv, BiConsumer<Long, TransactionDto> consumer,
+                                           int threads, int chunkBytes, RejectionReport rejections)
+            throws IOException {
+        boolean tolerant = rejections != null && rejections.isTolerant();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        Deque<Future<List<ParsedTransaction>>> inFlight = new ArrayDeque<>();
+        long recordsBefore = 0;
+        try (InputStream in = CompressedInput.open(csv)) {
+            String[] header = readHeader(in);
+            if (header == null) {
+                return;
+            }
+            byte[] buffer = new byte[chunkBytes];
+            int length = 0;
+            boolean eof = false;
+            while (!eof) {
+                if (length == buffer.length) {
+                    // a single record larger than the chunk size
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+                length += in.readNBytes(buffer, length, buffer.length - length);
+                eof = length < buffer.length;
+                int cut = eof ? length : lastRecordEnd(buffer, length);
+                if (cut > 0) {
+                    byte[] chunk = Arrays.copyOf(buffer, cut);
+                    inFlight.add(pool.submit(() -> parseTransactionChunk(chunk, header, tolerant)));
+                    System.arraycopy(buffer, cut, buffer, 0, length - cut);
+                    length -= cut;
+                }
+                while (inFlight.size() >= threads * 2) {
+                    recordsBefore = drainChunk(inFlight.removeFirst(), recordsBefore, consumer, rejections);
+                }
+            }
+            while (!inFlight.isEmpty()) {
+                recordsBefore = drainChunk(inFlight.removeFirst(), recordsBefore, consumer, rejections);
+            }
+            checkPercentBudget(rejections, IngestMetrics.TRANSACTION_FILE, recordsBefore);
+        } finally {
+            inFlight.forEach(future -> future.cancel(true));
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Same result as {@link #parseInvoices(InputStreamSource)}, decoded by {@link SchemaCsvReader}
+     * without creating a String per field. Files whose header lacks one of the expected columns
+     * are left to the commons-csv path so they fail exactly as before.
+     */
+    public Map<Long, InvoiceDto> parseInvoicesFast(InputStreamSource csv) throws IOException {
+        return parseInvoicesFast(csv, null);
+    }
 
-                        if (invoiceId != null) {
-                            map.computeIfAbsent(invoiceId, k -> new ArrayList<>()).add(dto);
-                        } else {
-                            log.error("Skipping record in transaction file: missing invoice ID at line {}",
-                                    record.getRecordNumber());
+    public Map<Long, InvoiceDto> parseInvoicesFast(InputStreamSource csv, RejectionReport rejections)
+            throws IOException {
+        Map<Long, InvoiceDto> map = new HashMap<>();
+        try (SchemaCsvReader reader = new SchemaCsvReader(CompressedInput.open(csv), this)) {
+            int[] col = reader.readHeader(INVOICE_COLUMNS);
+            if (col == null) {
+                return parseInvoices(csv, rejections);
+            }
+            long records = 0;
+            try {
+                while (reader.next()) {
+                    records++;
+                    long line = reader.getRecordNumber();
+                    if (reader.getFieldCount() <= max(col)) {
+                        if (quarantine(rejections, IngestMetrics.INVOICE_FILE, line,
+                                "record only has " + reader.getFieldCount() + " values", values(reader))) {
+                            continue;
                         }
+                        log.error("Error due to invalid record in Invoice File at line {}: record only has {} " +
+                                "values", line, reader.getFieldCount());
+                        throw new InvoiceFileProcessingException("Error Processing Invoice File .Invalid invoice " +
+                                "record at line " + line);
+                    }
+                    InvoiceDto dto = new InvoiceDto();
+                    dto.setInvoiceId(reader.longValue(col[0]));
+                    dto.setInvoiceNumber(reader.stringValue(col[1]));
+                    dto.setGrossAmount(reader.decimalValue(col[2]));
+                    dto.setGstAmount(reader.decimalValue(col[3]));
+                    dto.setNetAmount(reader.decimalValue(col[4]));
+                    dto.setReceiptDate(reader.dateTimeValue(col[5]));
+                    dto.setPaymentDueDate(reader.dateTimeValue(col[6]));
+                    dto.setTotalNoTrxn(reader.intValue(col[7]));
+
+                    if (dto.getInvoiceId() != null) {
+                        map.put(dto.getInvoiceId(), dto);
                     } else {
-                        log.error("Skipping record in transaction file: missing transaction ID at line {}",
-                                record.getRecordNumber());
+                        if (logRejection(rejections)) {
+                            log.error("Skipping record in Invoice File: missing invoice ID at line {}", line);
+                        }
+                        reject(rejections, IngestMetrics.INVOICE_FILE, line, "missing invoice ID", values(reader));
                     }
-                } catch (Exception e) {
-                    log.error("Error due to invalid record at line {}: {}", record.getRecordNumber(), e.getMessage());
-                    throw new TransactionFileProcessingException("Error processing Transaction file. Invalid " +
-                            "transaction record at line " + record.getRecordNumber());
+                }
+            } catch (IOException e) {
+                throw unreadableInvoice(records + 1, e);
+            }
+            checkPercentBudget(rejections, IngestMetrics.INVOICE_FILE, records);
+        }
+        return map;
+    }
 
+    /**
+     * {@link SchemaCsvReader} counterpart of {@link #streamTransactions(InputStreamSource, BiConsumer)}.
+     */
+    public void streamTransactionsFast(InputStreamSource csv, BiConsumer<Long, TransactionDto> consumer)
+            throws IOException {
+        streamTransactionsFast(csv, consumer, null);
+    }
+
+    public void streamTransactionsFast(InputStreamSource csv, BiConsumer<Long, TransactionDto> consumer,
+                                       RejectionReport rejections) throws IOException {
+        try (SchemaCsvReader reader = new SchemaCsvReader(CompressedInput.open(csv), this)) {
+            int[] col = reader.readHeader(TRANSACTION_COLUMNS);
+            if (col == null) {
+                streamTransactions(csv, consumer, rejections);
+                return;
+            }
+            int lastColumn = max(col);
+            long records = 0;
+            try {
+                while (reader.next()) {
+                    records++;
+                    emitTransaction(parseTransactionRecord(reader, col, lastColumn), 0, consumer, rejections);
                 }
+            } catch (IOException e) {
+                emitTransaction(ParsedTransaction.unreadable(records + 1, e.getMessage()), 0, consumer, rejections);
             }
+            checkPercentBudget(rejections, IngestMetrics.TRANSACTION_FILE, records);
         }
+    }
 
-        return map;
+    private ParsedTransaction parseTransactionRecord(SchemaCsvReader reader, int[] col, int lastColumn) {
+        long line = reader.getRecordNumber();
+        // commons-csv reads trxn_id first and skips before touching the other columns
+        if (reader.getFieldCount() <= col[0]) {
+            return new ParsedTransaction(line, null, null, null, values(reader),
+                    "record only has " + reader.getFieldCount() + " values");
+        }
+        Long transactionId = reader.longValue(col[0]);
+        if (transactionId == null) {
+            return ParsedTransaction.skipped(line, "missing transaction ID", values(reader));
+        }
+        if (reader.getFieldCount() <= lastColumn) {
+            return new ParsedTransaction(line, null, null, null, values(reader),
+                    "record only has " + reader.getFieldCount() + " values");
+        }
+        TransactionDto dto = new TransactionDto();
+        dto.setTrxnId(transactionId);
+        dto.setDateReceived(reader.dateTimeValue(col[1]));
+        dto.setTransactionDate(reader.dateTimeValue(col[2]));
+        Long invoiceId = reader.longValue(col[3]);
+        dto.setInvoiceNumber(reader.stringValue(col[4]));
+        dto.setBillingPeriodStart(reader.dateTimeValue(col[5]));
+        dto.setBillingPeriodEnd(reader.dateTimeValue(col[6]));
+        dto.setNetTransactionAmount(reader.decimalValue(col[7]));
+        dto.setGstAmount(reader.decimalValue(col[8]));
+        if (invoiceId == null) {
+            return ParsedTransaction.skipped(line, "missing invoice ID", values(reader));
+        }
+        return new ParsedTransaction(line, invoiceId, dto, null, null, null);
+    }
+
+    private static int max(int[] values) {
+        return Arrays.stream(values).max().orElse(-1);
+    }
+
+    private static String[] values(SchemaCsvReader reader) {
+        String[] values = new String[reader.getFieldCount()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = reader.stringValue(i);
+        }
+        return values;
+    }
+
+    private long drainChunk(Future<List<ParsedTransaction>> future, long recordsBefore,
+                            BiConsumer<Long, TransactionDto> consumer, RejectionReport rejections)
+            throws IOException {
+        List<ParsedTransaction> rows;
+        try {
+            rows = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while parsing transaction file", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException ioException) {
+                throw ioException;
+            }
+            if (e.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw new IllegalStateException("Failed to parse transaction file chunk", e.getCause());
+        }
+        for (ParsedTransaction row : rows) {
+            emitTransaction(row, recordsBefore, consumer, rejections);
+        }
+        return recordsBefore + rows.size();
+    }
+
+    private List<ParsedTransaction> parseTransactionChunk(byte[] chunk, String[] header, boolean tolerant)
+            throws IOException {
+        List<ParsedTransaction> rows = new ArrayList<>();
+        try (
+                Reader reader = new InputStreamReader(new ByteArrayInputStream(chunk));
+                CSVParser parser = CSVFormat.DEFAULT
+                        .withHeader(header)
+                        .withIgnoreHeaderCase()
+                        .withTrim()
+                        .parse(reader)
+        ) {
+            for (CSVRecord record : parser) {
+                ParsedTransaction row = parseTransactionRecord(record);
+                rows.add(row);
+                if (row.error() != null && !tolerant) {
+                    // nothing after the first invalid record is ever emitted
+                    break;
+                }
+            }
+        } catch (UncheckedIOException e) {
+            rows.add(ParsedTransaction.unreadable(rows.size() + 1, e.getMessage()));
+        }
+        return rows;
+    }
+
+    private String[] readHeader(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        boolean inQuotes = false;
+        int b;
+        while ((b = in.read()) != -1 && (b != '\n' || inQuotes)) {
+            if (b == '"') {
+                inQuotes = !inQuotes;
+            }
+            line.write(b);
+        }
+        try (CSVParser parser = CSVFormat.DEFAULT.withTrim().parse(new StringReader(line.toString()))) {
+            List<CSVRecord> records = parser.getRecords();
+            return records.isEmpty() ? null : records.get(0).values();
+        }
+    }
+
+    /**
+     * Returns the position just after the last newline that is not inside a quoted field, or -1.
+     * Chunks always start on a record boundary, so the quote state can be tracked from the start.
+     * An escaped quote ("") flips the state twice and leaves it unchanged.
+     */
+    private int lastRecordEnd(byte[] buffer, int length) {
+        boolean inQuotes = false;
+        int end = -1;
+        for (int i = 0; i < length; i++) {
+            byte b = buffer[i];
+            if (b == '"') {
+                inQuotes = !inQuotes;
+            } else if (b == '\n' && !inQuotes) {
+                end = i + 1;
+            }
+        }
+        return end;
+    }
+
+    private ParsedTransaction parseTransactionRecord(CSVRecord record) {
+        try {
+            Long transactionId = parseLongSafe(record.get("trxn_id"));
+            if (transactionId == null) {
+                return ParsedTransaction.skipped(record.getRecordNumber(), "missing transaction ID", record.values());
+            }
+            TransactionDto dto = new TransactionDto();
+            dto.setTrxnId(transactionId);
+            dto.setDateReceived(parseDateTimeSafe(record.get("date_received")));
+            dto.setTransactionDate(parseDateTimeSafe(record.get("transaction_date")));
+            Long invoiceId = parseLongSafe(record.get("invoice_id"));
+
+            dto.setInvoiceNumber(record.get("invoice_number"));
+            dto.setBillingPeriodStart(parseDateTimeSafe(record.get("billing_period_start")));
+            dto.setBillingPeriodEnd(parseDateTimeSafe(record.get("billing_period_end")));
+            dto.setNetTransactionAmount(parseBigDecimalSafe(record.get("net_transaction_amount")));
+            dto.setGstAmount(parseBigDecimalSafe(record.get("gst_amount")));
+
+            if (invoiceId == null) {
+                return ParsedTransaction.skipped(record.getRecordNumber(), "missing invoice ID", record.values());
+            }
+            return new ParsedTransaction(record.getRecordNumber(), invoiceId, dto, null, null, null);
+        } catch (Exception e) {
+            return new ParsedTransaction(record.getRecordNumber(), null, null, null, record.values(), e.getMessage());
+        }
+    }
+
+    /**
+     * Logs, skips or fails on one parsed record, numbering it from recordsBefore, and hands accepted
+     * transactions to the consumer. A failing consumer is not reported as an invalid record.
+     */
+    private void emitTransaction(ParsedTransaction row, long recordsBefore,
+                                 BiConsumer<Long, TransactionDto> consumer, RejectionReport rejections) {
+        long line = recordsBefore + row.recordNumber();
+        if (row.error() != null) {
+            // an unreadable record has no values and cannot be quarantined
+            if (row.values() != null
+                    && quarantine(rejections, IngestMetrics.TRANSACTION_FILE, line, row.error(), row.values())) {
+                return;
+            }
+            log.error("Error due to invalid record at line {}: {}", line, row.error());
+            throw new TransactionFileProcessingException("Error processing Transaction file. Invalid " +
+                    "transaction record at line " + line);
+        }
+        if (row.skipReason() != null) {
+            if (logRejection(rejections)) {
+                log.error("Skipping record in transaction file: {} at line {}", row.skipReason(), line);
+            }
+            reject(rejections, IngestMetrics.TRANSACTION_FILE, line, row.skipReason(), row.values());
+            return;
+        }
+        consumer.accept(row.invoiceId(), row.dto());
+    }
+
+    private boolean logRejection(RejectionReport rejections) {
+        return rejections == null || rejections.isLogRows();
+    }
+
+    private void reject(RejectionReport rejections, String file, long line, String reason, String[] values) {
+        ingestMetrics.rowSkipped(file, reason, rejections);
+        if (rejections != null) {
+            rejections.add(file, line, reason, CSVFormat.DEFAULT.format((Object[]) values));
+        }
+    }
+
+    /**
+     * Quarantines a malformed record when the upload is tolerant and returns whether it may be
+     * skipped. False means the caller fails the file as in strict mode. Fails the upload once the
+     * record takes it over its row budget.
+     */
+    private boolean quarantine(RejectionReport rejections, String file, long line, String error, String[] values) {
+        if (rejections == null || !rejections.isTolerant()) {
+            return false;
+        }
+        ingestMetrics.rowSkipped(file, "malformed record", rejections);
+        if (!rejections.quarantine(file, line, error, CSVFormat.DEFAULT.format((Object[]) values))) {
+            log.error("Error budget of {} malformed rows exceeded in {} file at line {}", rejections.getMaxBadRows(),
+                    file, line);
+            throw new ErrorBudgetExceededException("Error budget exceeded: more than " + rejections.getMaxBadRows()
+                    + " malformed records, the last at line " + line + " of the " + file + " file");
+        }
+        if (rejections.isLogRows()) {
+            log.error("Quarantined malformed record in {} file at line {}: {}", file, line, error);
+        }
+        return true;
+    }
+
+    /**
+     * Fails the file once it has been read if its malformed records exceed the percentage budget.
+     */
+    private void checkPercentBudget(RejectionReport rejections, String file, long records) {
+        if (rejections == null || rejections.withinPercentBudget(file, records)) {
+            return;
+        }
+        String message = "more than " + rejections.getMaxBadPercent() + "% of " + records + " records are malformed";
+        log.error("Error budget exceeded in {} file: {}", file, message);
+        throw new ErrorBudgetExceededException("Error budget exceeded: " + message + " in the " + file + " file");
+    }
+
+    /**
+     * Fails the invoice file on a record the tokenizer could not read, whatever the error budget.
+     */
+    private InvoiceFileProcessingException unreadableInvoice(long line, Exception e) {
+        log.error("Error due to invalid record in Invoice File at line {}: {}", line, e.getMessage());
+        return new InvoiceFileProcessingException("Error Processing Invoice File .Invalid invoice record " +
+                "at line " + line);
+    }
+
+    // values holds the fields of a skipped or malformed record for the rejection report; it is null
+    // for a record the tokenizer could not read
+    private record ParsedTransaction(long recordNumber, Long invoiceId, TransactionDto dto, String skipReason,
+                                     String[] values, String error) {
+        static ParsedTransaction skipped(long recordNumber, String reason, String[] values) {
+            return new ParsedTransaction(recordNumber, null, null, reason, values, null);
+        }
+
+        static ParsedTransaction unreadable(long recordNumber, String error) {
+            return new ParsedTransaction(recordNumber, null, null, null, null, error);
+        }
+    }
+
+    public Invoice mapToEntity(InvoiceDto dto) {
+        return InvoiceMapper.toEntity(dto);
     }
 
-    public  Invoice mapToEntity(InvoiceDto dto) {
-        Invoice invoice = new Invoice();
-        BeanUtils.copyProperties(dto, invoice);
-        List<Transaction> txns = dto.getTransactions().stream().map(txnDto -> {
-            Transaction txn = new Transaction();
-            BeanUtils.copyProperties(txnDto, txn);
-            return txn;
-        }).toList();
-        invoice.setTransactions(txns);
+    /**
+     * Maps the invoice and records the content hash the caller computed for it, or null for a
+     * write whose hash is refreshed from the database afterwards.
+     */
+    public Invoice mapToEntity(InvoiceDto dto, String contentHash) {
+        Invoice invoice = InvoiceMapper.toEntity(dto);
+        invoice.setContentHash(contentHash);
         return invoice;
     }
 
     public InvoiceDto mapToDTO(Invoice invoice) {
-        InvoiceDto dto = new InvoiceDto();
-        BeanUtils.copyProperties(invoice, dto);
-        List<TransactionDto> txns = invoice.getTransactions().stream().map(txn -> {
-            TransactionDto t = new TransactionDto();
-            BeanUtils.copyProperties(txn, t);
-            return t;
-        }).toList();
-        dto.setTransactions(txns);
-        return dto;
+        return InvoiceMapper.toDto(invoice);
     }
 
     public Long parseLongSafe(String value) {
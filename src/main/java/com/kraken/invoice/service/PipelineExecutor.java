@@ -0,0 +1,147 @@
+package com.kraken.invoice.service;
+
+import com.kraken.invoice.config.IngestProperties;
+import com.kraken.invoice.exception.UploadRejectedException;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Threads shared by the stage workers of every pipelined upload, at most
+ * invoice.ingest.pipeline.max-threads of them. An upload reserves a thread for each of its
+ * workers before it starts. Its stages wait on each other, so a worker left queued behind
+ * another upload would stall the whole pipeline. When the threads are taken the upload is
+ * rejected, as when the job queue is full.
+ */
+@Slf4j
+@Service
+public class PipelineExecutor {
+    @Autowired
+    public IngestProperties ingestProperties;
+    @Value("${spring.threads.virtual.enabled:false}")
+    public boolean virtualThreads;
+
+    private ThreadPoolExecutor executor;
+    private Semaphore threads;
+
+    @PostConstruct
+    public void init() {
+        int maxThreads = Math.max(1, ingestProperties.getPipeline().getMaxThreads());
+        AtomicInteger threadCount = new AtomicInteger();
+        threads = new Semaphore(maxThreads);
+        // the reservation still bounds the workers; virtual ones only stop a stage that blocks on a
+        // full queue or the database from pinning a platform thread
+        ThreadFactory threadFactory = virtualThreads
+                ? Thread.ofVirtual().name("ingest-pipeline-", 1).factory()
+                : runnable -> new Thread(runnable, "ingest-pipeline-" + threadCount.incrementAndGet());
+        executor = new ThreadPoolExecutor(maxThreads, maxThreads, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                threadFactory);
+        // idle between uploads, so let the threads go
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Reserves threads for the given number of workers, or rejects the upload when they are not
+     * free.
+     */
+    public Workers reserve(int workers) {
+        if (!threads.tryAcquire(workers)) {
+            log.warn("Rejected pipelined upload needing {} threads, {} free", workers, threads.availablePermits());
+            throw new UploadRejectedException("Too many pipelined uploads in progress, please retry later");
+        }
+        return new Workers(workers);
+    }
+
+    /**
+     * The threads reserved by one upload. Each is given back when its worker ends; closing
+     * cancels the workers that have not started, waits for the running ones to end and gives back
+     * the threads that were never used. Running workers are not interrupted: a persist worker may
+     * be inside a database transaction, so the caller has to tell its workers to stop before
+     * closing.
+     */
+    public final class Workers implements AutoCloseable {
+        private final List<Worker> workers = new ArrayList<>();
+        private int unused;
+
+        private Workers(int reserved) {
+            this.unused = reserved;
+        }
+
+        public synchronized Future<?> submit(Runnable task) {
+            if (unused == 0) {
+                throw new IllegalStateException("No reserved pipeline thread left");
+            }
+            unused--;
+            Worker worker = new Worker();
+            workers.add(worker);
+            worker.future = executor.submit(() -> {
+                // a worker cancelled before it started has had its thread given back already
+                if (!worker.claimed.compareAndSet(false, true)) {
+                    return;
+                }
+                try {
+                    task.run();
+                } finally {
+                    threads.release();
+                    worker.done.countDown();
+                }
+            });
+            return worker.future;
+        }
+
+        @Override
+        public synchronized void close() {
+            for (Worker worker : workers) {
+                worker.future.cancel(false);
+                if (worker.claimed.compareAndSet(false, true)) {
+                    threads.release();
+                    worker.done.countDown();
+                }
+            }
+            threads.release(unused);
+            unused = 0;
+            boolean interrupted = false;
+            for (Worker worker : workers) {
+                while (true) {
+                    try {
+                        worker.done.await();
+                        break;
+                    } catch (InterruptedException e) {
+                        // the upload must not fail while a worker may still commit, so keep waiting
+                        interrupted = true;
+                    }
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static final class Worker {
+        // taken by whichever gives the thread back: the worker when it runs, or close when it never did
+        private final AtomicBoolean claimed = new AtomicBoolean();
+        private final CountDownLatch done = new CountDownLatch(1);
+        private Future<?> future;
+    }
+}
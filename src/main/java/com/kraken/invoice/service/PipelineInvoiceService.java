@@ -0,0 +1,462 @@
+package com.kraken.invoice.service;
+
+import com.kraken.invoice.config.IngestProperties;
+import com.kraken.invoice.entity.IngestMode;
+import com.kraken.invoice.entity.IngestOptions;
+import com.kraken.invoice.entity.Invoice;
+import com.kraken.invoice.entity.InvoiceDto;
+import com.kraken.invoice.entity.PersistenceMode;
+import com.kraken.invoice.entity.TransactionDto;
+import com.kraken.invoice.entity.UploadSummaryDto;
+import com.kraken.invoice.exception.ErrorBudgetExceededException;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.InputStreamSource;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Streaming upload split into stages that run on threads of the shared {@link PipelineExecutor},
+ * reserved for the upload before it starts: the request thread parses
+ * the transaction file, reconcile workers validate invoices as they complete, mapping workers
+ * turn them into entities and persist workers write them in chunks of invoice.ingest.flush-size.
+ * Transactions are spread over the reconcile workers by invoice id, so each worker owns its
+ * invoices and needs no locking.
+ * <p>
+ * Stages are connected by bounded queues. When Postgres falls behind, the persist queue fills,
+ * the mapping workers block, then the reconcile workers and finally the parser, so the upload
+ * holds at most invoice.ingest.pipeline.queue-capacity batches per queue on top of the invoices
+ * still waiting for transactions. Queue depth, items per stage and time blocked on a full
+ * queue are published by {@link IngestMetrics}.
+ * <p>
+ * Chunks are committed on their own as in streaming mode, and a failure in any stage stops the
+ * others and fails the upload with the first error.
+ */
+@Slf4j
+@Service
+public class PipelineInvoiceService {
+    private static final long OFFER_TIMEOUT_MILLIS = 100;
+
+    @Autowired
+    public InvoicePersistenceService invoicePersistenceService;
+    @Autowired
+    public InvoiceTransactionParser invoiceTransactionParser;
+    @Autowired
+    public IngestProperties ingestProperties;
+    @Autowired
+    public IngestMetrics ingestMetrics;
+    @Autowired
+    public PipelineExecutor pipelineExecutor;
+
+    public UploadSummaryDto parseAndSave(InputStreamSource invoiceCsv, InputStreamSource transactionCsv,
+                                         IngestOptions options) throws IOException {
+        return parseAndSave(invoiceCsv, transactionCsv, options, new IngestProgress());
+    }
+
+    public UploadSummaryDto parseAndSave(InputStreamSource invoiceCsv, InputStreamSource transactionCsv,
+                                         IngestOptions options, IngestProgress progress) throws IOException {
+        long start = System.currentTimeMillis();
+        PersistenceMode persistenceMode = ingestProperties.persistenceMode(options);
+        UploadSummaryDto summary = new UploadSummaryDto();
+        summary.setMode(IngestMode.PIPELINE.name().toLowerCase());
+        summary.setPersistence(persistenceMode.name().toLowerCase());
+        progress.setMode(summary.getMode());
+        ingestMetrics.bytesIngested(IngestMetrics.INVOICE_FILE, invoiceCsv, progress);
+        ingestMetrics.bytesIngested(IngestMetrics.TRANSACTION_FILE, transactionCsv, progress);
+
+        log.info("Starting pipelined invoice and transaction parsing...");
+        Timer.Sample sample = ingestMetrics.start();
+        Map<Long, InvoiceDto> invoiceMap = invoiceTransactionParser.parseInvoices(invoiceCsv,
+                ingestProperties.parserMode(options), progress.getRejections());
+        ingestMetrics.stop(sample, IngestMetrics.INVOICE_PARSE, progress);
+        log.info("Parsed {} invoices", invoiceMap.size());
+        summary.setInvoicesRead(invoiceMap.size());
+        progress.addRowsParsed(invoiceMap.size());
+        ingestMetrics.rowsRead(IngestMetrics.INVOICE_FILE, invoiceMap.size(), progress);
+
+        Run run = new Run(invoiceMap, persistenceMode, progress);
+        ErrorBudgetExceededException budgetExceeded = null;
+        try {
+            sample = ingestMetrics.start();
+            run.start();
+            invoiceTransactionParser.streamTransactions(transactionCsv, (invoiceId, txn) -> {
+                progress.addRowsParsed(1);
+                run.accept(invoiceId, txn);
+            }, ingestProperties.parserMode(options), progress.getRejections());
+            run.finish();
+            ingestMetrics.stop(sample, IngestMetrics.TRANSACTION_PARSE, progress);
+        } catch (ErrorBudgetExceededException e) {
+            budgetExceeded = e;
+        } finally {
+            run.close();
+        }
+        // counted once close has waited for the workers; earlier chunks stay committed, so say so
+        // rather than let the client assume nothing was written
+        if (budgetExceeded != null) {
+            if (run.invoicesSaved.get() > 0) {
+                throw new ErrorBudgetExceededException(budgetExceeded.getMessage() + ". " + run.invoicesSaved.get()
+                        + " invoices of earlier chunks were already committed");
+            }
+            throw budgetExceeded;
+        }
+        ingestMetrics.record(IngestMetrics.MAPPING, run.mappingNanos.get(), progress);
+        ingestMetrics.rowsRead(IngestMetrics.TRANSACTION_FILE, run.transactionsRead(), progress);
+
+        summary.setTransactionsRead(run.transactionsRead());
+        summary.setOrphanTransactions(run.partitions.stream()
+                .mapToLong(partition -> partition.reconciler.getOrphanTransactions()).sum());
+        summary.setValidInvoices(run.countByStatus("valid"));
+        summary.setInvalidInvoices(run.countByStatus("invalid"));
+        summary.setInvoicesSaved(run.invoicesSaved.get());
+        summary.setTransactionsSaved(run.transactionsSaved.get());
+        summary.setElapsedMillis(System.currentTimeMillis() - start);
+        log.info("Pipelined upload finished: {} invoices saved, {} transactions saved in {} ms",
+                summary.getInvoicesSaved(), summary.getTransactionsSaved(), summary.getElapsedMillis());
+        return summary;
+    }
+
+    private record Pending(Long invoiceId, TransactionDto txn) {
+    }
+
+    /**
+     * Invoices of one reconcile worker, the queue feeding it and the batch the parser is filling.
+     */
+    private static final class Partition {
+        private final Map<Long, InvoiceDto> invoices = new HashMap<>();
+        private final BlockingQueue<List<Pending>> queue;
+        private final List<InvoiceDto> reopened = new ArrayList<>();
+        private List<Pending> batch = new ArrayList<>();
+        private StreamingReconciler reconciler;
+
+        private Partition(int queueCapacity) {
+            this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        }
+    }
+
+    /**
+     * State of one upload: the queues between the stages, the workers and the first error any
+     * of them hit.
+     */
+    private final class Run {
+        // sent down a queue once per worker reading it, after the last real batch
+        private static final List<?> END = new ArrayList<>(0);
+
+        private final PersistenceMode persistenceMode;
+        private final IngestProgress progress;
+        private final IngestProperties.Pipeline config;
+        private final int batchSize;
+        private final List<Partition> partitions = new ArrayList<>();
+        private final BlockingQueue<List<InvoiceDto>> mappingQueue;
+        private final BlockingQueue<List<Invoice>> persistQueue;
+        private final PipelineExecutor.Workers workers;
+        private final List<Future<?>> reconcilers = new ArrayList<>();
+        private final List<Future<?>> mappers = new ArrayList<>();
+        private final List<Future<?>> persisters = new ArrayList<>();
+        private final AtomicReference<Throwable> failure = new AtomicReference<>();
+        // set by close, so that workers still running leave at their next queue operation
+        private volatile boolean stopped;
+        private final AtomicLong mappingNanos = new AtomicLong();
+        private final AtomicLong invoicesSaved = new AtomicLong();
+        private final AtomicLong transactionsSaved = new AtomicLong();
+
+        private Run(Map<Long, InvoiceDto> invoiceMap, PersistenceMode persistenceMode, IngestProgress progress) {
+            this.persistenceMode = persistenceMode;
+            this.progress = progress;
+            this.config = ingestProperties.getPipeline();
+            this.batchSize = Math.max(1, config.getBatchSize());
+            int queueCapacity = Math.max(1, config.getQueueCapacity());
+            for (int i = 0; i < Math.max(1, config.getReconcileThreads()); i++) {
+                partitions.add(new Partition(queueCapacity));
+            }
+            invoiceMap.forEach((invoiceId, dto) -> partitionOf(invoiceId).invoices.put(invoiceId, dto));
+            mappingQueue = new ArrayBlockingQueue<>(queueCapacity);
+            persistQueue = new ArrayBlockingQueue<>(queueCapacity);
+            workers = pipelineExecutor.reserve(partitions.size() + Math.max(1, config.getMapThreads())
+                    + Math.max(1, config.getPersistThreads()));
+            partitions.forEach(partition -> ingestMetrics.watchQueue(IngestMetrics.RECONCILE, partition.queue));
+            ingestMetrics.watchQueue(IngestMetrics.MAPPING, mappingQueue);
+            ingestMetrics.watchQueue(IngestMetrics.PERSIST, persistQueue);
+        }
+
+        private void start() {
+            partitions.forEach(partition -> reconcilers.add(submit(() -> reconcile(partition))));
+            for (int i = 0; i < Math.max(1, config.getMapThreads()); i++) {
+                mappers.add(submit(this::map));
+            }
+            for (int i = 0; i < Math.max(1, config.getPersistThreads()); i++) {
+                persisters.add(submit(this::persist));
+            }
+        }
+
+        /**
+         * Called by the parser for every transaction; blocks while the partition's queue is full.
+         */
+        private void accept(Long invoiceId, TransactionDto txn) {
+            Partition partition = partitionOf(invoiceId);
+            partition.batch.add(new Pending(invoiceId, txn));
+            if (partition.batch.size() >= batchSize) {
+                put(partition.queue, partition.batch, IngestMetrics.RECONCILE);
+                partition.batch = new ArrayList<>(batchSize);
+            }
+        }
+
+        /**
+         * Drains the stages one after the other once the transaction file is read, then writes
+         * the invoices that late transactions reopened.
+         */
+        private void finish() throws IOException {
+            for (Partition partition : partitions) {
+                if (!partition.batch.isEmpty()) {
+                    put(partition.queue, partition.batch, IngestMetrics.RECONCILE);
+                }
+                put(partition.queue, end(), IngestMetrics.RECONCILE);
+            }
+            await(reconcilers);
+            for (int i = 0; i < mappers.size(); i++) {
+                put(mappingQueue, end(), IngestMetrics.MAPPING);
+            }
+            await(mappers);
+            for (int i = 0; i < persisters.size(); i++) {
+                put(persistQueue, end(), IngestMetrics.PERSIST);
+            }
+            await(persisters);
+
+            // the first write of these may have been anywhere in the queues, so they go last
+            List<Invoice> chunk = new ArrayList<>();
+            List<Long> reopenedIds = new ArrayList<>();
+            for (Partition partition : partitions) {
+                for (InvoiceDto dto : partition.reopened) {
+                    // only the late transactions are here; the hash is recomputed once they are stored
+                    Invoice invoice = toEntity(dto, null);
+                    chunk.add(invoice);
+                    reopenedIds.add(invoice.getInvoiceId());
+                    if (chunk.size() >= ingestProperties.getFlushSize()) {
+                        write(chunk, true);
+                        chunk = new ArrayList<>();
+                    }
+                }
+            }
+            if (!chunk.isEmpty()) {
+                write(chunk, true);
+            }
+            invoicePersistenceService.refreshContentHashes(reopenedIds);
+        }
+
+        /**
+         * Stops the workers and waits for them to end. A persist worker finishes the chunk it is
+         * writing, so the saved counts are final once this returns.
+         */
+        private void close() {
+            stopped = true;
+            workers.close();
+            partitions.forEach(partition -> ingestMetrics.unwatchQueue(IngestMetrics.RECONCILE, partition.queue));
+            ingestMetrics.unwatchQueue(IngestMetrics.MAPPING, mappingQueue);
+            ingestMetrics.unwatchQueue(IngestMetrics.PERSIST, persistQueue);
+        }
+
+        private void reconcile(Partition partition) {
+            List<InvoiceDto> completed = new ArrayList<>(batchSize);
+            boolean[] late = new boolean[1];
+            Map<Long, String> firstReasons = new HashMap<>();
+            partition.reconciler = new StreamingReconciler(partition.invoices, invoiceDto -> {
+                // the reconciler reuses the dto if the invoice is reopened, so pass on a copy
+                InvoiceDto copy = InvoiceMapper.copyOf(invoiceDto);
+                if (late[0]) {
+                    // counted on its first write already
+                    ingestMetrics.invoiceRevalidated(invoiceDto, firstReasons.get(invoiceDto.getInvoiceId()),
+                            progress);
+                    partition.reopened.add(copy);
+                    return;
+                }
+                ingestMetrics.invoiceValidated(invoiceDto, progress);
+                progress.addInvoicesValidated(1);
+                completed.add(copy);
+                if (completed.size() >= batchSize) {
+                    put(mappingQueue, new ArrayList<>(completed), IngestMetrics.MAPPING);
+                    completed.clear();
+                }
+            });
+            while (true) {
+                List<Pending> batch = take(partition.queue);
+                if (batch == END) {
+                    break;
+                }
+                for (Pending pending : batch) {
+                    partition.reconciler.accept(pending.invoiceId(), pending.txn());
+                }
+                ingestMetrics.pipelineItems(IngestMetrics.RECONCILE, batch.size(), progress);
+            }
+            partition.reconciler.finishOpen();
+            if (!completed.isEmpty()) {
+                put(mappingQueue, completed, IngestMetrics.MAPPING);
+            }
+            late[0] = true;
+            firstReasons.putAll(partition.reconciler.reopenedReasons());
+            partition.reconciler.finishReopened();
+        }
+
+        private void map() {
+            List<Invoice> chunk = new ArrayList<>(ingestProperties.getFlushSize());
+            while (true) {
+                List<InvoiceDto> batch = take(mappingQueue);
+                if (batch == END) {
+                    break;
+                }
+                long mappingStart = System.nanoTime();
+                for (InvoiceDto dto : batch) {
+                    chunk.add(toEntity(dto, InvoiceFingerprint.of(dto)));
+                    if (chunk.size() >= ingestProperties.getFlushSize()) {
+                        put(persistQueue, chunk, IngestMetrics.PERSIST);
+                        chunk = new ArrayList<>(ingestProperties.getFlushSize());
+                    }
+                }
+                mappingNanos.addAndGet(System.nanoTime() - mappingStart);
+                ingestMetrics.pipelineItems(IngestMetrics.MAPPING, batch.size(), progress);
+            }
+            if (!chunk.isEmpty()) {
+                put(persistQueue, chunk, IngestMetrics.PERSIST);
+            }
+        }
+
+        private void persist() {
+            while (true) {
+                List<Invoice> chunk = take(persistQueue);
+                if (chunk == END) {
+                    break;
+                }
+                write(chunk, false);
+            }
+        }
+
+        /**
+         * Writes the chunk. A rewrite holds reopened invoices that were saved before and now only
+         * carry their late transactions, so only those transactions are added to the counts.
+         */
+        private void write(List<Invoice> chunk, boolean rewrite) {
+            Timer.Sample sample = ingestMetrics.start();
+            invoicePersistenceService.persist(chunk, persistenceMode);
+            ingestMetrics.stop(sample, IngestMetrics.PERSIST, progress);
+            long transactions = chunk.stream().mapToLong(invoice -> invoice.getTransactions().size()).sum();
+            long invoices = rewrite ? 0 : chunk.size();
+            invoicesSaved.addAndGet(invoices);
+            transactionsSaved.addAndGet(transactions);
+            progress.addRowsPersisted(invoices + transactions);
+            ingestMetrics.pipelineItems(IngestMetrics.PERSIST, chunk.size(), progress);
+            log.debug("Flushed {} invoices", chunk.size());
+        }
+
+        private Invoice toEntity(InvoiceDto dto, String contentHash) {
+            Invoice invoice = invoiceTransactionParser.mapToEntity(dto, contentHash);
+            invoice.getTransactions().forEach(txn -> txn.setInvoice(invoice));
+            return invoice;
+        }
+
+        private Partition partitionOf(Long invoiceId) {
+            return partitions.get(Math.floorMod(invoiceId, partitions.size()));
+        }
+
+        private long transactionsRead() {
+            return partitions.stream().mapToLong(partition -> partition.reconciler.getTransactionsRead()).sum();
+        }
+
+        private long countByStatus(String status) {
+            return partitions.stream().mapToLong(partition -> partition.reconciler.countByStatus(status)).sum();
+        }
+
+        private Future<?> submit(Runnable stage) {
+            return workers.submit(() -> {
+                try {
+                    stage.run();
+                } catch (RuntimeException | Error e) {
+                    failure.compareAndSet(null, e);
+                    throw e;
+                }
+            });
+        }
+
+        /**
+         * Hands the batch to the next stage, waiting while its queue is full. Gives up with the
+         * first error of any stage so that a failed consumer does not leave its producers stuck.
+         */
+        private <T> void put(BlockingQueue<List<T>> queue, List<T> batch, String stage) {
+            rethrowFailure();
+            if (queue.offer(batch)) {
+                return;
+            }
+            long blockedStart = System.nanoTime();
+            try {
+                while (!queue.offer(batch, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                    rethrowFailure();
+                    if (stopped) {
+                        throw new CancellationException("Pipeline stopped while waiting for the " + stage + " stage");
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CancellationException("Pipeline stopped while waiting for the " + stage + " stage");
+            } finally {
+                ingestMetrics.pipelineBlocked(stage, System.nanoTime() - blockedStart, progress);
+            }
+        }
+
+        private <T> List<T> take(BlockingQueue<List<T>> queue) {
+            try {
+                while (true) {
+                    List<T> batch = queue.poll(OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                    if (batch != null) {
+                        return batch;
+                    }
+                    if (stopped) {
+                        throw new CancellationException("Pipeline stopped");
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CancellationException("Pipeline stopped");
+            }
+        }
+
+        private void await(List<Future<?>> workers) throws IOException {
+            for (Future<?> worker : workers) {
+                try {
+                    worker.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for the ingest pipeline", e);
+                } catch (ExecutionException e) {
+                    rethrowFailure();
+                    throw new IllegalStateException("Ingest pipeline stage failed", e.getCause());
+                }
+            }
+        }
+
+        private void rethrowFailure() {
+            Throwable error = failure.get();
+            if (error instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            if (error instanceof Error fatal) {
+                throw fatal;
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private static <T> List<T> end() {
+            return (List<T>) END;
+        }
+    }
+}
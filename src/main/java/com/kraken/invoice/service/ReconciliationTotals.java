@@ -0,0 +1,78 @@
+package com.kraken.invoice.service;
+
+import com.kraken.invoice.entity.InvoiceDto;
+import com.kraken.invoice.entity.TransactionDto;
+import lombok.Getter;
+
+import java.math.BigDecimal;
+import java.util.Optional;
+
+/**
+ * Running net/GST sums and transaction count for one invoice. This is all the state
+ * reconciliation needs, so transactions can be folded in as they are read instead of
+ * being kept around until the whole file has been parsed.
+ */
+@Getter
+public class ReconciliationTotals {
+    private BigDecimal netSum = BigDecimal.ZERO;
+    private BigDecimal gstSum = BigDecimal.ZERO;
+    private int count;
+
+    public void add(TransactionDto txn) {
+        add(txn.getNetTransactionAmount(), txn.getGstAmount());
+    }
+
+    public void add(BigDecimal net, BigDecimal gst) {
+        netSum = netSum.add(Optional.ofNullable(net).orElse(BigDecimal.ZERO));
+        gstSum = gstSum.add(Optional.ofNullable(gst).orElse(BigDecimal.ZERO));
+        count++;
+    }
+
+    /**
+     * True once the invoice has seen as many transactions as it declares. Invoices without
+     * a declared count are only complete at the end of the transaction file.
+     */
+    public boolean isComplete(InvoiceDto invoiceDto) {
+        return invoiceDto.getTotalNoTrxn() != null && count >= invoiceDto.getTotalNoTrxn();
+    }
+
+    /**
+     * Sets status and reason on the invoice by comparing its declared amounts and transaction
+     * count with these totals.
+     */
+    public void validate(InvoiceDto invoiceDto) {
+        validate(invoiceDto, netSum, gstSum, count);
+    }
+
+    public static void validate(InvoiceDto invoiceDto, BigDecimal netSum, BigDecimal gstSum, int actualTxnCount) {
+        boolean isValid = true;
+        StringBuilder reason = new StringBuilder();
+
+        if (invoiceDto.getNetAmount() == null || invoiceDto.getGstAmount() == null) {
+            isValid = false;
+            reason.append("Missing invoice net or GST amount. ");
+        }
+
+        if (invoiceDto.getNetAmount() != null && netSum.compareTo(invoiceDto.getNetAmount()) != 0) {
+            isValid = false;
+            reason.append("Net amount mismatch. ");
+        }
+
+        if (invoiceDto.getGstAmount() != null && gstSum.compareTo(invoiceDto.getGstAmount()) != 0) {
+            isValid = false;
+            reason.append("GST amount mismatch. ");
+        }
+        // Validation based on number of transactions and total number of transactions in invoice
+        if (invoiceDto.getTotalNoTrxn() != null && invoiceDto.getTotalNoTrxn() != actualTxnCount) {
+            isValid = false;
+            reason.append("Transaction count mismatch (expected ")
+                    .append(invoiceDto.getTotalNoTrxn())
+                    .append(", found ")
+                    .append(actualTxnCount)
+                    .append("). ");
+        }
+
+        invoiceDto.setStatus(isValid ? "valid" : "invalid");
+        invoiceDto.setReason(isValid ? "Valid invoice." : reason.toString().trim());
+    }
+}
@@ -0,0 +1,226 @@
+package com.kraken.invoice.service;
+
+import com.kraken.invoice.entity.RejectionDto;
+import com.kraken.invoice.entity.RejectionSummaryDto;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.commons.csv.CSVRecord;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Rows the parser rejected during one upload. The first memoryRows rows are kept on the heap,
+ * the following ones are appended to a CSV spill file, and after maxRows only the counts per
+ * reason are updated, so a file full of bad rows costs bounded memory and disk.
+ * <p>
+ * When an error budget is set the upload is tolerant: malformed records are quarantined here
+ * instead of failing the upload, as long as there are at most maxBadRows of them and they make
+ * up at most maxBadPercent of each file. A limit of 0 is not checked; with both at 0 the upload
+ * fails on the first malformed record as before.
+ * <p>
+ * The parallel parser reports from a single thread, but the job status endpoint may read the
+ * summary while an upload is running, so access is synchronized. {@link #writeCsv(Writer)} only
+ * holds the lock to take a snapshot, so downloading a report does not stall the upload.
+ */
+@Slf4j
+public class RejectionReport {
+    private static final String[] HEADER = {"file", "line", "reason", "row"};
+    private static final int SAMPLE_SIZE = 10;
+
+    @Getter
+    private final String reportId;
+    @Getter
+    private final boolean logRows;
+    @Getter
+    private volatile Instant finishedAt;
+    // the upload this report belongs to, for the endpoint and mode tags of skipped-row metrics
+    @Getter
+    @Setter
+    private volatile IngestProgress progress;
+    private final int memoryRows;
+    private final long maxRows;
+    private final Path spillDir;
+    private final List<RejectionDto> rows = new ArrayList<>();
+    private final Map<String, Long> byReason = new TreeMap<>();
+    private long rowsRejected;
+    private long rowsQuarantined;
+    private final Map<String, Long> quarantinedByFile = new TreeMap<>();
+    private long maxBadRows;
+    private double maxBadPercent;
+    private long rowsSpilled;
+    private Path spillFile;
+    private CSVPrinter spill;
+
+    public RejectionReport(String reportId, boolean logRows, int memoryRows, long maxRows, Path spillDir) {
+        this.reportId = reportId;
+        this.logRows = logRows;
+        this.memoryRows = memoryRows;
+        this.maxRows = maxRows;
+        this.spillDir = spillDir;
+    }
+
+    public synchronized void setErrorBudget(long maxBadRows, double maxBadPercent) {
+        this.maxBadRows = maxBadRows;
+        this.maxBadPercent = maxBadPercent;
+    }
+
+    public synchronized boolean isTolerant() {
+        return maxBadRows > 0 || maxBadPercent > 0;
+    }
+
+    public synchronized void add(String file, long line, String reason, String row) {
+        add(file, line, reason, reason, row);
+    }
+
+    /**
+     * Records a malformed record and returns whether the upload is still within its row budget.
+     * The error detail is kept with the row; counts are grouped under "malformed record".
+     */
+    public synchronized boolean quarantine(String file, long line, String error, String row) {
+        add(file, line, "malformed record", "malformed record: " + error, row);
+        rowsQuarantined++;
+        quarantinedByFile.merge(file, 1L, Long::sum);
+        return maxBadRows <= 0 || rowsQuarantined <= maxBadRows;
+    }
+
+    /**
+     * Whether the malformed records of a fully read file stay within the percentage budget.
+     */
+    public synchronized boolean withinPercentBudget(String file, long records) {
+        long quarantined = quarantinedByFile.getOrDefault(file, 0L);
+        return maxBadPercent <= 0 || records == 0 || quarantined * 100.0 / records <= maxBadPercent;
+    }
+
+    public synchronized double getMaxBadPercent() {
+        return maxBadPercent;
+    }
+
+    public synchronized long getMaxBadRows() {
+        return maxBadRows;
+    }
+
+    public synchronized long getRowsQuarantined() {
+        return rowsQuarantined;
+    }
+
+    private void add(String file, long line, String reasonKey, String reason, String row) {
+        rowsRejected++;
+        byReason.merge(file + ": " + reasonKey, 1L, Long::sum);
+        if (rows.size() < memoryRows) {
+            rows.add(new RejectionDto(file, line, reason, row));
+        } else if (rows.size() + rowsSpilled < maxRows) {
+            try {
+                spillPrinter().printRecord(file, line, reason, row);
+                rowsSpilled++;
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not write rejection report " + reportId, e);
+            }
+        }
+    }
+
+    public synchronized long getRowsRejected() {
+        return rowsRejected;
+    }
+
+    public synchronized RejectionSummaryDto summary() {
+        RejectionSummaryDto summary = new RejectionSummaryDto();
+        // a report without rows is not kept for download
+        summary.setReportId(rowsRejected > 0 ? reportId : null);
+        summary.setRowsRejected(rowsRejected);
+        summary.setRowsQuarantined(rowsQuarantined);
+        summary.setRowsRetained(rows.size() + rowsSpilled);
+        summary.setByReason(new TreeMap<>(byReason));
+        summary.setSample(new ArrayList<>(rows.subList(0, Math.min(SAMPLE_SIZE, rows.size()))));
+        return summary;
+    }
+
+    /**
+     * Writes every retained row as CSV with a header, in the order the rows were rejected. Only
+     * the snapshot of the rows is taken under the lock; the rows are streamed to a possibly slow
+     * client after releasing it, so a running upload keeps adding rows meanwhile. Rows rejected
+     * after the snapshot are not included.
+     */
+    public void writeCsv(Writer out) throws IOException {
+        List<RejectionDto> retained;
+        long spilled;
+        Reader spilledRows = null;
+        synchronized (this) {
+            retained = new ArrayList<>(rows);
+            spilled = rowsSpilled;
+            if (spill != null) {
+                spill.flush();
+                // opened under the lock so that a concurrent delete() cannot remove the file first
+                spilledRows = Files.newBufferedReader(spillFile, StandardCharsets.UTF_8);
+            }
+        }
+        try (Reader in = spilledRows) {
+            CSVPrinter printer = new CSVPrinter(out, CSVFormat.DEFAULT.builder().setHeader(HEADER).build());
+            for (RejectionDto row : retained) {
+                printer.printRecord(row.getFile(), row.getLine(), row.getReason(), row.getRow());
+            }
+            if (in != null) {
+                // the spill file may grow while it is read; stop at the rows flushed for the snapshot
+                Iterator<CSVRecord> records = CSVFormat.DEFAULT.parse(in).iterator();
+                for (long i = 0; i < spilled && records.hasNext(); i++) {
+                    printer.printRecord(records.next());
+                }
+            }
+            printer.flush();
+        }
+        out.flush();
+    }
+
+    /**
+     * Marks the upload as done, which starts the retention period, and flushes the spill file.
+     */
+    public synchronized void finish() {
+        finishedAt = Instant.now();
+        if (spill != null) {
+            try {
+                spill.flush();
+            } catch (IOException e) {
+                log.warn("Could not flush rejection spill file {}: {}", spillFile, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Closes and removes the spill file. The in-memory rows and counts stay readable.
+     */
+    public synchronized void delete() {
+        if (spill == null) {
+            return;
+        }
+        try {
+            spill.close();
+            Files.deleteIfExists(spillFile);
+        } catch (IOException e) {
+            log.warn("Could not delete rejection spill file {}: {}", spillFile, e.getMessage());
+        }
+        spill = null;
+    }
+
+    private CSVPrinter spillPrinter() throws IOException {
+        if (spill == null) {
+            spillFile = Files.createTempFile(Files.createDirectories(spillDir), "rejections-" + reportId + "-",
+                    ".csv");
+            spill = new CSVPrinter(Files.newBufferedWriter(spillFile, StandardCharsets.UTF_8), CSVFormat.DEFAULT);
+        }
+        return spill;
+    }
+}
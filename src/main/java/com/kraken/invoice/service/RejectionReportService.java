@@ -0,0 +1,107 @@
+package com.kraken.invoice.service;
+
+import com.kraken.invoice.config.IngestProperties;
+import com.kraken.invoice.entity.IngestOptions;
+import com.kraken.invoice.exception.InvalidOptionException;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Creates a {@link RejectionReport} per upload and keeps it for invoice.ingest.rejections.retention
+ * after the upload finished, so the rejected rows can be downloaded once the upload has answered.
+ * Reports of uploads that rejected nothing are dropped when they finish, and at most
+ * invoice.ingest.rejections.max-reports are kept, dropping the oldest finished ones first.
+ */
+@Slf4j
+@Service
+public class RejectionReportService {
+    @Autowired
+    public IngestProperties ingestProperties;
+
+    private final Map<String, RejectionReport> reports = new ConcurrentHashMap<>();
+
+    /**
+     * Creates the report of one upload with the error budget of its options, falling back to
+     * invoice.ingest.error-budget.
+     */
+    public RejectionReport create(IngestOptions options) {
+        IngestProperties.Rejections config = ingestProperties.getRejections();
+        String dir = config.getSpillDir();
+        Path spillDir = Path.of(dir == null || dir.isBlank() ? System.getProperty("java.io.tmpdir") : dir);
+        RejectionReport report = new RejectionReport(UUID.randomUUID().toString(), config.isLogRows(),
+                config.getMemoryRows(), config.getMaxRows(), spillDir);
+        IngestProperties.ErrorBudget budget = ingestProperties.getErrorBudget();
+        long maxBadRows = Optional.ofNullable(options.getMaxBadRows()).orElse(budget.getMaxRows());
+        double maxBadPercent = Optional.ofNullable(options.getMaxBadPercent()).orElse(budget.getMaxPercent());
+        if (maxBadRows < 0 || maxBadPercent < 0 || maxBadPercent > 100) {
+            throw new InvalidOptionException("maxBadRows must not be negative and maxBadPercent must be between 0 "
+                    + "and 100");
+        }
+        report.setErrorBudget(maxBadRows, maxBadPercent);
+        reports.put(report.getReportId(), report);
+        evictExpiredReports();
+        return report;
+    }
+
+    /**
+     * Finishes the report of an upload that is done. A report without rejected rows has nothing to
+     * download and is dropped right away.
+     */
+    public void finish(RejectionReport report) {
+        report.finish();
+        if (report.getRowsRejected() == 0) {
+            reports.remove(report.getReportId(), report);
+            report.delete();
+        }
+    }
+
+    public RejectionReport get(String reportId) {
+        RejectionReport report = reports.get(reportId);
+        if (report == null) {
+            throw new NoSuchElementException("Rejection report not found with ID: " + reportId);
+        }
+        return report;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        reports.values().forEach(RejectionReport::delete);
+        reports.clear();
+    }
+
+    private void evictExpiredReports() {
+        IngestProperties.Rejections config = ingestProperties.getRejections();
+        Instant cutoff = Instant.now().minus(config.getRetention());
+        reports.values().stream()
+                .filter(report -> report.getFinishedAt() != null && report.getFinishedAt().isBefore(cutoff))
+                .toList()
+                .forEach(this::evict);
+        int excess = reports.size() - config.getMaxReports();
+        if (excess > 0) {
+            reports.values().stream()
+                    .filter(report -> report.getFinishedAt() != null)
+                    .sorted(Comparator.comparing(RejectionReport::getFinishedAt))
+                    .limit(excess)
+                    .toList()
+                    .forEach(this::evict);
+        }
+    }
+
+    private void evict(RejectionReport report) {
+        if (reports.remove(report.getReportId(), report)) {
+            report.delete();
+            log.debug("Evicted rejection report {}", report.getReportId());
+        }
+    }
+}
@@ -0,0 +1,348 @@
+package com.kraken.invoice.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.nio.charset.Charset;
+import java.time.DateTimeException;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+
+/**
+ * Byte-level CSV tokenizer for the fixed invoice and transaction layouts. Records are read
+ * straight from the stream into a reusable byte buffer, and longs, decimals and
+ * yyyy-MM-dd HH:mm:ss.SSS timestamps are decoded from those bytes. No String is created per
+ * field or per record.
+ * <p>
+ * Tokenizing follows commons-csv's default format as used by {@link InvoiceTransactionParser}:
+ * comma separated, double-quote encapsulation with "" escapes, empty lines ignored, and values
+ * trimmed. Values that the fast decoders do not recognise are handed to the parser's
+ * parse*Safe methods, so a field decodes to exactly what the commons-csv path would produce.
+ */
+public class SchemaCsvReader implements Closeable {
+    private static final int[] POWERS_OF_TEN = {1, 10, 100, 1_000, 10_000, 100_000, 1_000_000, 10_000_000,
+            100_000_000, 1_000_000_000};
+
+    private final InputStream in;
+    private final InvoiceTransactionParser fallback;
+    private final Charset charset = Charset.defaultCharset();
+    private final byte[] buffer = new byte[64 * 1024];
+    private int position;
+    private int limit;
+
+    // unescaped bytes of the current record and the trimmed bounds of each field
+    private byte[] record = new byte[1024];
+    private int recordLength;
+    private int[] starts = new int[16];
+    private int[] ends = new int[16];
+    private int fieldCount;
+    private long recordNumber;
+
+    public SchemaCsvReader(InputStream in, InvoiceTransactionParser fallback) {
+        this.in = in;
+        this.fallback = fallback;
+    }
+
+    /**
+     * Reads the header record and returns the position of each requested column, matched
+     * ignoring case, or null if the input is empty or a column is missing.
+     */
+    public int[] readHeader(String... columns) throws IOException {
+        if (!next()) {
+            return null;
+        }
+        recordNumber = 0;
+        int[] positions = new int[columns.length];
+        for (int c = 0; c < columns.length; c++) {
+            positions[c] = -1;
+            for (int f = 0; f < fieldCount && positions[c] < 0; f++) {
+                if (columns[c].equalsIgnoreCase(stringValue(f))) {
+                    positions[c] = f;
+                }
+            }
+            if (positions[c] < 0) {
+                return null;
+            }
+        }
+        return positions;
+    }
+
+    /**
+     * Advances to the next non-empty record. Returns false at the end of the input.
+     */
+    public boolean next() throws IOException {
+        while (true) {
+            int b = read();
+            if (b == -1) {
+                return false;
+            }
+            recordLength = 0;
+            fieldCount = 0;
+            if (b == '\n') {
+                continue;
+            }
+            if (b == '\r') {
+                if (peek() == '\n') {
+                    read();
+                }
+                continue;
+            }
+            recordNumber++;
+            readRecord(b);
+            return true;
+        }
+    }
+
+    public long getRecordNumber() {
+        return recordNumber;
+    }
+
+    public int getFieldCount() {
+        return fieldCount;
+    }
+
+    public String stringValue(int field) {
+        return new String(record, starts[field], ends[field] - starts[field], charset);
+    }
+
+    public Long longValue(int field) {
+        int start = starts[field];
+        int end = ends[field];
+        if (start == end) {
+            return null;
+        }
+        boolean negative = record[start] == '-';
+        int i = (negative || record[start] == '+') ? start + 1 : start;
+        if (i == end || end - i > 18) {
+            return fallback.parseLongSafe(stringValue(field));
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            int digit = record[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return null;
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    public Integer intValue(int field) {
+        int start = starts[field];
+        int end = ends[field];
+        if (start == end) {
+            return null;
+        }
+        boolean negative = record[start] == '-';
+        int i = (negative || record[start] == '+') ? start + 1 : start;
+        if (i == end || end - i > 9) {
+            return fallback.parseIntSafe(stringValue(field));
+        }
+        int value = 0;
+        for (; i < end; i++) {
+            int digit = record[i] - '0';
+            if (digit < 0 || digit > 9) {
+                // let the parser log the invalid value
+                return fallback.parseIntSafe(stringValue(field));
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Decodes plain decimals of up to 18 digits into an unscaled long and a scale. Anything
+     * else, such as exponents or longer numbers, goes through new BigDecimal(String).
+     */
+    public BigDecimal decimalValue(int field) {
+        int start = starts[field];
+        int end = ends[field];
+        if (start == end) {
+            return null;
+        }
+        boolean negative = record[start] == '-';
+        int i = (negative || record[start] == '+') ? start + 1 : start;
+        long unscaled = 0;
+        int digits = 0;
+        int scale = 0;
+        boolean fraction = false;
+        for (; i < end; i++) {
+            byte b = record[i];
+            if (b == '.' && !fraction) {
+                fraction = true;
+                continue;
+            }
+            int digit = b - '0';
+            if (digit < 0 || digit > 9 || ++digits > 18) {
+                return fallback.parseBigDecimalSafe(stringValue(field));
+            }
+            unscaled = unscaled * 10 + digit;
+            if (fraction) {
+                scale++;
+            }
+        }
+        if (digits == 0) {
+            return null;
+        }
+        return BigDecimal.valueOf(negative ? -unscaled : unscaled, scale);
+    }
+
+    /**
+     * Decodes yyyy-MM-dd HH:mm[:ss[.fraction]] with a space or 'T' separator. Other shapes go
+     * through the parser, which returns null for anything ISO_LOCAL_DATE_TIME rejects.
+     */
+    public LocalDateTime dateTimeValue(int field) {
+        int s = starts[field];
+        int end = ends[field];
+        if (s == end) {
+            return null;
+        }
+        if (end - s < 16 || !isDigits(s, 4) || record[s + 4] != '-' || !isDigits(s + 5, 2) || record[s + 7] != '-'
+                || !isDigits(s + 8, 2) || (record[s + 10] != ' ' && record[s + 10] != 'T') || !isDigits(s + 11, 2)
+                || record[s + 13] != ':' || !isDigits(s + 14, 2)) {
+            return fallback.parseDateTimeSafe(stringValue(field));
+        }
+        int second = 0;
+        int nano = 0;
+        int i = s + 16;
+        if (i < end) {
+            if (record[i] != ':' || end - i < 3 || !isDigits(i + 1, 2)) {
+                return fallback.parseDateTimeSafe(stringValue(field));
+            }
+            second = number(i + 1, 2);
+            i += 3;
+            if (i < end) {
+                int fractionDigits = end - i - 1;
+                if (record[i] != '.' || fractionDigits < 1 || fractionDigits > 9 || !isDigits(i + 1, fractionDigits)) {
+                    return fallback.parseDateTimeSafe(stringValue(field));
+                }
+                nano = number(i + 1, fractionDigits) * POWERS_OF_TEN[9 - fractionDigits];
+            }
+        }
+        try {
+            return LocalDateTime.of(number(s, 4), number(s + 5, 2), number(s + 8, 2), number(s + 11, 2),
+                    number(s + 14, 2), second, nano);
+        } catch (DateTimeException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private void readRecord(int first) throws IOException {
+        int b = first;
+        while (true) {
+            int fieldStart = recordLength;
+            if (b == '"') {
+                b = readQuoted();
+            } else {
+                while (b != ',' && b != '\n' && b != '\r' && b != -1) {
+                    append(b);
+                    b = read();
+                }
+            }
+            addField(fieldStart, recordLength);
+            if (b == ',') {
+                b = read();
+                continue;
+            }
+            if (b == '\r' && peek() == '\n') {
+                read();
+            }
+            return;
+        }
+    }
+
+    /**
+     * Reads an encapsulated value after its opening quote and returns the delimiter that follows
+     * the closing quote. Like commons-csv, only whitespace may sit between the two.
+     */
+    private int readQuoted() throws IOException {
+        while (true) {
+            int b = read();
+            if (b == -1) {
+                throw new IOException("EOF reached before encapsulated token finished at record " + recordNumber);
+            }
+            if (b != '"') {
+                append(b);
+            } else if (peek() == '"') {
+                append(read());
+            } else {
+                int next = read();
+                while (next == ' ' || next == '\t') {
+                    next = read();
+                }
+                if (next != ',' && next != '\n' && next != '\r' && next != -1) {
+                    throw new IOException("Invalid char between encapsulated token and delimiter at record "
+                            + recordNumber);
+                }
+                return next;
+            }
+        }
+    }
+
+    private void addField(int start, int end) {
+        while (start < end && (record[start] & 0xFF) <= ' ') {
+            start++;
+        }
+        while (end > start && (record[end - 1] & 0xFF) <= ' ') {
+            end--;
+        }
+        if (fieldCount == starts.length) {
+            starts = Arrays.copyOf(starts, fieldCount * 2);
+            ends = Arrays.copyOf(ends, fieldCount * 2);
+        }
+        starts[fieldCount] = start;
+        ends[fieldCount] = end;
+        fieldCount++;
+    }
+
+    private void append(int b) {
+        if (recordLength == record.length) {
+            record = Arrays.copyOf(record, record.length * 2);
+        }
+        record[recordLength++] = (byte) b;
+    }
+
+    private int read() throws IOException {
+        if (position == limit && !fill()) {
+            return -1;
+        }
+        return buffer[position++] & 0xFF;
+    }
+
+    private int peek() throws IOException {
+        if (position == limit && !fill()) {
+            return -1;
+        }
+        return buffer[position] & 0xFF;
+    }
+
+    private boolean fill() throws IOException {
+        int read = in.read(buffer, 0, buffer.length);
+        position = 0;
+        limit = Math.max(read, 0);
+        return read > 0;
+    }
+
+    private boolean isDigits(int from, int count) {
+        for (int i = from; i < from + count; i++) {
+            if (record[i] < '0' || record[i] > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int number(int from, int count) {
+        int value = 0;
+        for (int i = from; i < from + count; i++) {
+            value = value * 10 + (record[i] - '0');
+        }
+        return value;
+    }
+}
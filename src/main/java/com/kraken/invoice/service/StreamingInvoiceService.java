@@ -0,0 +1,149 @@
+package com.kraken.invoice.service;
+
+import com.kraken.invoice.config.IngestProperties;
+import com.kraken.invoice.entity.IngestMode;
+import com.kraken.invoice.entity.IngestOptions;
+import com.kraken.invoice.entity.Invoice;
+import com.kraken.invoice.entity.InvoiceDto;
+import com.kraken.invoice.entity.PersistenceMode;
+import com.kraken.invoice.entity.UploadSummaryDto;
+import com.kraken.invoice.exception.ErrorBudgetExceededException;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.InputStreamSource;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Streaming variant of {@link InvoiceService#parseAndSave}. Transactions are reconciled as they
+ * are read and invoices are written in chunks of invoice.ingest.flush-size as soon as they are
+ * complete, so memory depends on the number of open invoices rather than on the size of the
+ * transaction file. Every chunk is committed on its own; a failure part way through the file
+ * leaves the chunks written before it in place.
+ */
+@Slf4j
+@Service
+public class StreamingInvoiceService {
+    @Autowired
+    public InvoicePersistenceService invoicePersistenceService;
+    @Autowired
+    public InvoiceTransactionParser invoiceTransactionParser;
+    @Autowired
+    public IngestProperties ingestProperties;
+    @Autowired
+    public IngestMetrics ingestMetrics;
+
+    public UploadSummaryDto parseAndSave(InputStreamSource invoiceCsv, InputStreamSource transactionCsv,
+                                         IngestOptions options) throws IOException {
+        return parseAndSave(invoiceCsv, transactionCsv, options, new IngestProgress());
+    }
+
+    public UploadSummaryDto parseAndSave(InputStreamSource invoiceCsv, InputStreamSource transactionCsv,
+                                         IngestOptions options, IngestProgress progress) throws IOException {
+        long start = System.currentTimeMillis();
+        PersistenceMode persistenceMode = ingestProperties.persistenceMode(options);
+        UploadSummaryDto summary = new UploadSummaryDto();
+        summary.setMode(IngestMode.STREAMING.name().toLowerCase());
+        summary.setPersistence(persistenceMode.name().toLowerCase());
+        progress.setMode(summary.getMode());
+        ingestMetrics.bytesIngested(IngestMetrics.INVOICE_FILE, invoiceCsv, progress);
+        ingestMetrics.bytesIngested(IngestMetrics.TRANSACTION_FILE, transactionCsv, progress);
+
+        log.info("Starting streaming invoice and transaction parsing...");
+        Timer.Sample sample = ingestMetrics.start();
+        Map<Long, InvoiceDto> invoiceMap = invoiceTransactionParser.parseInvoices(invoiceCsv,
+                ingestProperties.parserMode(options), progress.getRejections());
+        ingestMetrics.stop(sample, IngestMetrics.INVOICE_PARSE, progress);
+        log.info("Parsed {} invoices", invoiceMap.size());
+        summary.setInvoicesRead(invoiceMap.size());
+        progress.addRowsParsed(invoiceMap.size());
+        ingestMetrics.rowsRead(IngestMetrics.INVOICE_FILE, invoiceMap.size(), progress);
+
+        List<Invoice> chunk = new ArrayList<>(ingestProperties.getFlushSize());
+        long[] mappingNanos = new long[1];
+        boolean[] late = new boolean[1];
+        Map<Long, String> firstReasons = new HashMap<>();
+        StreamingReconciler reconciler = new StreamingReconciler(invoiceMap, invoiceDto -> {
+            if (late[0]) {
+                // counted on its first write already
+                ingestMetrics.invoiceRevalidated(invoiceDto, firstReasons.get(invoiceDto.getInvoiceId()), progress);
+            } else {
+                ingestMetrics.invoiceValidated(invoiceDto, progress);
+                progress.addInvoicesValidated(1);
+            }
+            // only the late transactions are here on a late write; the hash is recomputed once they are stored
+            String contentHash = late[0] ? null : InvoiceFingerprint.of(invoiceDto);
+            long mappingStart = System.nanoTime();
+            Invoice invoice = invoiceTransactionParser.mapToEntity(invoiceDto, contentHash);
+            invoice.getTransactions().forEach(txn -> txn.setInvoice(invoice));
+            mappingNanos[0] += System.nanoTime() - mappingStart;
+            chunk.add(invoice);
+            if (chunk.size() >= ingestProperties.getFlushSize()) {
+                flush(chunk, persistenceMode, summary, progress, late[0]);
+            }
+        });
+        sample = ingestMetrics.start();
+        try {
+            invoiceTransactionParser.streamTransactions(transactionCsv, (invoiceId, txn) -> {
+                progress.addRowsParsed(1);
+                reconciler.accept(invoiceId, txn);
+            }, ingestProperties.parserMode(options), progress.getRejections());
+        } catch (ErrorBudgetExceededException e) {
+            // earlier chunks stay committed; say so rather than let the client assume nothing was written
+            if (summary.getInvoicesSaved() > 0) {
+                throw new ErrorBudgetExceededException(e.getMessage() + ". " + summary.getInvoicesSaved()
+                        + " invoices of earlier chunks were already committed");
+            }
+            throw e;
+        }
+        reconciler.finishOpen();
+        // a reopened invoice may still sit in the chunk; write that copy before the new one
+        flush(chunk, persistenceMode, summary, progress, false);
+        late[0] = true;
+        firstReasons.putAll(reconciler.reopenedReasons());
+        List<Long> reopened = reconciler.finishReopened();
+        ingestMetrics.stop(sample, IngestMetrics.TRANSACTION_PARSE, progress);
+        flush(chunk, persistenceMode, summary, progress, true);
+        invoicePersistenceService.refreshContentHashes(reopened);
+        ingestMetrics.record(IngestMetrics.MAPPING, mappingNanos[0], progress);
+        ingestMetrics.rowsRead(IngestMetrics.TRANSACTION_FILE, reconciler.getTransactionsRead(), progress);
+
+        summary.setTransactionsRead(reconciler.getTransactionsRead());
+        summary.setOrphanTransactions(reconciler.getOrphanTransactions());
+        summary.setValidInvoices(reconciler.countByStatus("valid"));
+        summary.setInvalidInvoices(reconciler.countByStatus("invalid"));
+        summary.setElapsedMillis(System.currentTimeMillis() - start);
+        log.info("Streaming upload finished: {} invoices saved, {} transactions saved in {} ms",
+                summary.getInvoicesSaved(), summary.getTransactionsSaved(), summary.getElapsedMillis());
+        return summary;
+    }
+
+    /**
+     * Writes the chunk. A rewrite holds invoices that were saved before and now only carry their
+     * late transactions, so only those transactions are added to the counts.
+     */
+    private void flush(List<Invoice> chunk, PersistenceMode persistenceMode, UploadSummaryDto summary,
+                       IngestProgress progress, boolean rewrite) {
+        if (chunk.isEmpty()) {
+            return;
+        }
+        Timer.Sample sample = ingestMetrics.start();
+        invoicePersistenceService.persist(chunk, persistenceMode);
+        ingestMetrics.stop(sample, IngestMetrics.PERSIST, progress);
+        long transactions = chunk.stream().mapToLong(invoice -> invoice.getTransactions().size()).sum();
+        long invoices = rewrite ? 0 : chunk.size();
+        summary.setInvoicesSaved(summary.getInvoicesSaved() + invoices);
+        summary.setTransactionsSaved(summary.getTransactionsSaved() + transactions);
+        progress.addRowsPersisted(invoices + transactions);
+        log.debug("Flushed {} invoices", chunk.size());
+        chunk.clear();
+        // keep the persistence context from growing with the upload
+        invoicePersistenceService.clear();
+    }
+}
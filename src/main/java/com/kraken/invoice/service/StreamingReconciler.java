@@ -0,0 +1,126 @@
+package com.kraken.invoice.service;
+
+import com.kraken.invoice.entity.InvoiceDto;
+import com.kraken.invoice.entity.TransactionDto;
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Single-pass reconciliation of a transaction stream against the parsed invoices.
+ * <p>
+ * Each transaction is folded into the running totals of its invoice, kept in an
+ * {@link InvoiceTotalsTable}, and parked until the invoice has seen its declared number of
+ * transactions. At that point the invoice is
+ * validated and handed to the sink together with its transactions, which are then released.
+ * Invoices that never reach their declared count are emitted by {@link #finish()}. Only the
+ * transactions of still-open invoices are held in memory.
+ * <p>
+ * A transaction arriving for an invoice that was already emitted reopens it: the totals are
+ * updated and the invoice is emitted again from {@link #finish()} with its new status and only
+ * the late transactions, which an upsert of the invoice row handles correctly. The content hash
+ * of such an invoice has to be taken over all of its stored transactions afterwards, see
+ * {@link InvoicePersistenceService#refreshContentHashes}.
+ */
+public class StreamingReconciler {
+    private final Map<Long, InvoiceDto> invoices;
+    private final Consumer<InvoiceDto> sink;
+    private final InvoiceTotalsTable totals;
+    private final Map<Long, List<TransactionDto>> pendingTransactions = new HashMap<>();
+    private final Set<Long> emitted = new HashSet<>();
+    private final Set<Long> reopened = new LinkedHashSet<>();
+
+    @Getter
+    private long transactionsRead;
+    @Getter
+    private long orphanTransactions;
+
+    public StreamingReconciler(Map<Long, InvoiceDto> invoices, Consumer<InvoiceDto> sink) {
+        this.invoices = invoices;
+        this.sink = sink;
+        this.totals = new InvoiceTotalsTable(invoices.size());
+    }
+
+    public void accept(Long invoiceId, TransactionDto txn) {
+        transactionsRead++;
+        InvoiceDto invoiceDto = invoices.get(invoiceId);
+        if (invoiceDto == null) {
+            // same as the standard path: transactions without a matching invoice are not stored
+            orphanTransactions++;
+            return;
+        }
+        totals.add(invoiceId, txn.getNetTransactionAmount(), txn.getGstAmount());
+        pendingTransactions.computeIfAbsent(invoiceId, k -> new ArrayList<>()).add(txn);
+
+        if (emitted.contains(invoiceId)) {
+            reopened.add(invoiceId);
+        } else if (totals.isComplete(invoiceId, invoiceDto)) {
+            emit(invoiceId, invoiceDto);
+        }
+    }
+
+    /**
+     * Emits every invoice that is still open or was reopened by a late transaction. Must be
+     * called once the transaction stream is exhausted.
+     */
+    public void finish() {
+        finishOpen();
+        finishReopened();
+    }
+
+    /**
+     * First half of {@link #finish()}: emits the invoices that never reached their declared
+     * transaction count.
+     */
+    public void finishOpen() {
+        for (Map.Entry<Long, InvoiceDto> entry : invoices.entrySet()) {
+            if (!emitted.contains(entry.getKey())) {
+                emit(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * The reason each invoice that late transactions reopened was written with the first time.
+     * Only meaningful before {@link #finishReopened()} validates them again.
+     */
+    public Map<Long, String> reopenedReasons() {
+        Map<Long, String> reasons = new HashMap<>();
+        reopened.forEach(invoiceId -> reasons.put(invoiceId, invoices.get(invoiceId).getReason()));
+        return reasons;
+    }
+
+    /**
+     * Second half of {@link #finish()}: emits again the invoices that late transactions reopened.
+     * Their second write must land after the first one. Returns the ids emitted again.
+     */
+    public List<Long> finishReopened() {
+        List<Long> invoiceIds = new ArrayList<>(reopened);
+        for (Long invoiceId : invoiceIds) {
+            emit(invoiceId, invoices.get(invoiceId));
+        }
+        reopened.clear();
+        return invoiceIds;
+    }
+
+    public long countByStatus(String status) {
+        return invoices.values().stream().filter(dto -> status.equals(dto.getStatus())).count();
+    }
+
+    private void emit(Long invoiceId, InvoiceDto invoiceDto) {
+        emitted.add(invoiceId);
+        totals.validate(invoiceId, invoiceDto);
+        List<TransactionDto> txns = pendingTransactions.remove(invoiceId);
+        invoiceDto.setTransactions(txns != null ? txns : new ArrayList<>());
+        sink.accept(invoiceDto);
+        // the sink has mapped what it needs; drop the transactions so only totals stay behind
+        invoiceDto.setTransactions(null);
+    }
+}
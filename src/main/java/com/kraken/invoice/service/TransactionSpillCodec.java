@@ -0,0 +1,110 @@
+package com.kraken.invoice.service;
+
+import com.kraken.invoice.entity.TransactionDto;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+
+/**
+ * Compact binary form of a transaction and its invoice id, used for spill files. A leading
+ * bitmask marks null fields, dates are stored as epoch seconds plus nanos and decimals as scale
+ * plus unscaled value, so a typical record takes well under 100 bytes.
+ */
+final class TransactionSpillCodec {
+    private static final int TRXN_ID = 1;
+    private static final int DATE_RECEIVED = 1 << 1;
+    private static final int TRANSACTION_DATE = 1 << 2;
+    private static final int INVOICE_NUMBER = 1 << 3;
+    private static final int BILLING_PERIOD_START = 1 << 4;
+    private static final int BILLING_PERIOD_END = 1 << 5;
+    private static final int NET_AMOUNT = 1 << 6;
+    private static final int GST_AMOUNT = 1 << 7;
+
+    private TransactionSpillCodec() {
+    }
+
+    static void write(DataOutput out, long invoiceId, TransactionDto txn) throws IOException {
+        int present = (txn.getTrxnId() != null ? TRXN_ID : 0)
+                | (txn.getDateReceived() != null ? DATE_RECEIVED : 0)
+                | (txn.getTransactionDate() != null ? TRANSACTION_DATE : 0)
+                | (txn.getInvoiceNumber() != null ? INVOICE_NUMBER : 0)
+                | (txn.getBillingPeriodStart() != null ? BILLING_PERIOD_START : 0)
+                | (txn.getBillingPeriodEnd() != null ? BILLING_PERIOD_END : 0)
+                | (txn.getNetTransactionAmount() != null ? NET_AMOUNT : 0)
+                | (txn.getGstAmount() != null ? GST_AMOUNT : 0);
+        out.writeByte(present);
+        out.writeLong(invoiceId);
+        if (txn.getTrxnId() != null) {
+            out.writeLong(txn.getTrxnId());
+        }
+        writeDate(out, txn.getDateReceived());
+        writeDate(out, txn.getTransactionDate());
+        if (txn.getInvoiceNumber() != null) {
+            // writeUTF stops at 64KB, and the CSV puts no limit on a field
+            byte[] invoiceNumber = txn.getInvoiceNumber().getBytes(StandardCharsets.UTF_8);
+            out.writeInt(invoiceNumber.length);
+            out.write(invoiceNumber);
+        }
+        writeDate(out, txn.getBillingPeriodStart());
+        writeDate(out, txn.getBillingPeriodEnd());
+        writeDecimal(out, txn.getNetTransactionAmount());
+        writeDecimal(out, txn.getGstAmount());
+    }
+
+    /**
+     * Reads the rest of one record into the given transaction and returns its invoice id. The
+     * caller reads the leading bitmask itself, so that it can tell the end of the file from a
+     * record that was cut short.
+     */
+    static long read(DataInput in, int present, TransactionDto txn) throws IOException {
+        long invoiceId = in.readLong();
+        txn.setTrxnId((present & TRXN_ID) != 0 ? in.readLong() : null);
+        txn.setDateReceived((present & DATE_RECEIVED) != 0 ? readDate(in) : null);
+        txn.setTransactionDate((present & TRANSACTION_DATE) != 0 ? readDate(in) : null);
+        txn.setInvoiceNumber((present & INVOICE_NUMBER) != 0 ? readString(in) : null);
+        txn.setBillingPeriodStart((present & BILLING_PERIOD_START) != 0 ? readDate(in) : null);
+        txn.setBillingPeriodEnd((present & BILLING_PERIOD_END) != 0 ? readDate(in) : null);
+        txn.setNetTransactionAmount((present & NET_AMOUNT) != 0 ? readDecimal(in) : null);
+        txn.setGstAmount((present & GST_AMOUNT) != 0 ? readDecimal(in) : null);
+        return invoiceId;
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeDate(DataOutput out, LocalDateTime value) throws IOException {
+        if (value != null) {
+            out.writeLong(value.toEpochSecond(ZoneOffset.UTC));
+            out.writeInt(value.getNano());
+        }
+    }
+
+    private static LocalDateTime readDate(DataInput in) throws IOException {
+        return LocalDateTime.ofEpochSecond(in.readLong(), in.readInt(), ZoneOffset.UTC);
+    }
+
+    private static void writeDecimal(DataOutput out, BigDecimal value) throws IOException {
+        if (value != null) {
+            byte[] unscaled = value.unscaledValue().toByteArray();
+            out.writeInt(value.scale());
+            out.writeShort(unscaled.length);
+            out.write(unscaled);
+        }
+    }
+
+    private static BigDecimal readDecimal(DataInput in) throws IOException {
+        int scale = in.readInt();
+        byte[] unscaled = new byte[in.readUnsignedShort()];
+        in.readFully(unscaled);
+        return new BigDecimal(new BigInteger(unscaled), scale);
+    }
+}
@@ -0,0 +1,67 @@
+package com.kraken.invoice.service;
+
+import com.kraken.invoice.entity.UploadJobDto;
+import com.kraken.invoice.entity.UploadSummaryDto;
+import lombok.Getter;
+
+import java.time.Duration;
+import java.time.Instant;
+
+/**
+ * State of one asynchronous upload. Written by the worker thread, read by status requests.
+ */
+@Getter
+public class UploadJob {
+    private final String jobId;
+    private final Instant submittedAt = Instant.now();
+    private final IngestProgress progress = new IngestProgress();
+    private volatile String status = "queued";
+    private volatile Instant startedAt;
+    private volatile Instant finishedAt;
+    private volatile UploadSummaryDto summary;
+    private volatile String error;
+
+    public UploadJob(String jobId) {
+        this.jobId = jobId;
+    }
+
+    public void start() {
+        startedAt = Instant.now();
+        status = "running";
+    }
+
+    public void complete(UploadSummaryDto summary) {
+        this.summary = summary;
+        finishedAt = Instant.now();
+        status = "completed";
+    }
+
+    public void fail(String error) {
+        this.error = error;
+        finishedAt = Instant.now();
+        status = "failed";
+    }
+
+    public boolean isFinished() {
+        return finishedAt != null;
+    }
+
+    public UploadJobDto toDto() {
+        UploadJobDto dto = new UploadJobDto();
+        dto.setJobId(jobId);
+        dto.setStatus(status);
+        dto.setSubmittedAt(submittedAt);
+        dto.setStartedAt(startedAt);
+        dto.setFinishedAt(finishedAt);
+        dto.setRowsParsed(progress.getRowsParsed());
+        dto.setInvoicesValidated(progress.getInvoicesValidated());
+        dto.setRowsPersisted(progress.getRowsPersisted());
+        dto.setSummary(summary);
+        dto.setError(error);
+        if (startedAt != null) {
+            long millis = Duration.between(startedAt, finishedAt != null ? finishedAt : Instant.now()).toMillis();
+            dto.setRowsPerSecond(millis > 0 ? progress.getRowsParsed() * 1000.0 / millis : 0);
+        }
+        return dto;
+    }
+}
@@ -0,0 +1,212 @@
+package com.kraken.invoice.service;
+
+import com.kraken.invoice.config.IngestProperties;
+import com.kraken.invoice.entity.IngestOptions;
+import com.kraken.invoice.entity.UploadJobDto;
+import com.kraken.invoice.entity.UploadSummaryDto;
+import com.kraken.invoice.exception.UploadRejectedException;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.stereotype.Service;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs uploads in the background on a bounded executor. The uploaded parts are spooled to
+ * temp files before the request returns, because the multipart files are cleaned up with the
+ * request. When all workers are busy and the queue is full, new uploads are rejected instead
+ * of piling up and competing for database connections.
+ */
+@Slf4j
+@Service
+public class UploadJobService {
+    @Autowired
+    public InvoiceIngestService invoiceIngestService;
+    @Autowired
+    public IngestProperties ingestProperties;
+    @Autowired
+    public RejectionReportService rejectionReportService;
+    @Autowired
+    public UploadLedger uploadLedger;
+    @Value("${spring.threads.virtual.enabled:false}")
+    public boolean virtualThreads;
+
+    private final Map<String, UploadJob> jobs = new ConcurrentHashMap<>();
+    private ThreadPoolExecutor executor;
+
+    @PostConstruct
+    public void init() {
+        IngestProperties.Jobs config = ingestProperties.getJobs();
+        AtomicInteger threadCount = new AtomicInteger();
+        // the pool size still bounds how many uploads run at once; virtual workers only stop a
+        // job that blocks on I/O from pinning a platform thread
+        ThreadFactory threadFactory = virtualThreads
+                ? Thread.ofVirtual().name("upload-job-", 1).factory()
+                : runnable -> new Thread(runnable, "upload-job-" + threadCount.incrementAndGet());
+        executor = new ThreadPoolExecutor(config.getConcurrency(), config.getConcurrency(), 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(config.getQueueCapacity()), threadFactory);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    public UploadJobDto submit(MultipartFile invoiceFile, MultipartFile transactionFile, IngestOptions options)
+            throws IOException {
+        return submit(invoiceFile, transactionFile, options, null);
+    }
+
+    /**
+     * Queues the upload. When it was claimed in the {@link UploadLedger}, the job records its
+     * outcome there, and requests for the same upload are pointed at this job.
+     */
+    public UploadJobDto submit(MultipartFile invoiceFile, MultipartFile transactionFile, IngestOptions options,
+                               UploadLedger.Entry ledgerEntry) throws IOException {
+        evictExpiredJobs();
+        // unknown modes answer 400 here instead of failing the job after the files are spooled
+        ingestProperties.ingestMode(options);
+        ingestProperties.persistenceMode(options);
+        ingestProperties.parserMode(options);
+        // fail fast before spooling the files when there is obviously no room
+        if (executor.getQueue().remainingCapacity() == 0) {
+            throw new UploadRejectedException("Too many uploads in progress, please retry later");
+        }
+        UploadJob job = new UploadJob(UUID.randomUUID().toString());
+        job.getProgress().setEndpoint("upload_async");
+        job.getProgress().setRejections(rejectionReportService.create(options));
+        Path spooledInvoices = null;
+        Path spooledTransactions = null;
+        try {
+            spooledInvoices = spool(invoiceFile, job.getJobId());
+            spooledTransactions = spool(transactionFile, job.getJobId());
+        } catch (IOException | RuntimeException e) {
+            discard(job, spooledInvoices, spooledTransactions);
+            throw e;
+        }
+        Path invoicePath = spooledInvoices;
+        Path transactionPath = spooledTransactions;
+        jobs.put(job.getJobId(), job);
+        if (ledgerEntry != null) {
+            ledgerEntry.setJobId(job.getJobId());
+        }
+        try {
+            executor.execute(() -> run(job, invoicePath, transactionPath, options, ledgerEntry));
+        } catch (RejectedExecutionException e) {
+            jobs.remove(job.getJobId());
+            discard(job, invoicePath, transactionPath);
+            log.error("Rejected upload, {} jobs already queued", executor.getQueue().size());
+            throw new UploadRejectedException("Too many uploads in progress, please retry later");
+        }
+        log.info("Queued upload job {}", job.getJobId());
+        return job.toDto();
+    }
+
+    /**
+     * A job for an async request whose upload is already being run by a synchronous request. It
+     * has no progress of its own and finishes with the other request's result.
+     */
+    public UploadJobDto follow(UploadLedger.Entry ledgerEntry) {
+        evictExpiredJobs();
+        UploadJob job = new UploadJob(UUID.randomUUID().toString());
+        job.start();
+        jobs.put(job.getJobId(), job);
+        ledgerEntry.getResult().whenComplete((summary, error) -> {
+            if (error == null) {
+                job.complete(summary);
+            } else {
+                Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+                job.fail(cause.getMessage());
+            }
+        });
+        log.info("Upload job {} follows the running upload {}", job.getJobId(), ledgerEntry.getKey());
+        return job.toDto();
+    }
+
+    public UploadJobDto getJob(String jobId) {
+        UploadJob job = jobs.get(jobId);
+        if (job == null) {
+            throw new NoSuchElementException("Upload job not found with ID: " + jobId);
+        }
+        return job.toDto();
+    }
+
+    private void run(UploadJob job, Path invoicePath, Path transactionPath, IngestOptions options,
+                     UploadLedger.Entry ledgerEntry) {
+        job.start();
+        log.info("Started upload job {}", job.getJobId());
+        try {
+            UploadSummaryDto summary = invoiceIngestService.ingest(new FileSystemResource(invoicePath),
+                    new FileSystemResource(transactionPath), options, job.getProgress());
+            job.complete(summary);
+            if (ledgerEntry != null) {
+                uploadLedger.complete(ledgerEntry, summary);
+            }
+            log.info("Upload job {} completed", job.getJobId());
+        } catch (Throwable e) {
+            log.error("Upload job {} failed: {}", job.getJobId(), e.getMessage(), e);
+            job.fail(e.getMessage());
+            if (ledgerEntry != null) {
+                uploadLedger.fail(ledgerEntry, e);
+            }
+            if (e instanceof Error error) {
+                throw error;
+            }
+        } finally {
+            rejectionReportService.finish(job.getProgress().getRejections());
+            deleteQuietly(invoicePath);
+            deleteQuietly(transactionPath);
+        }
+    }
+
+    private Path spool(MultipartFile file, String jobId) throws IOException {
+        Path path = Files.createTempFile("upload-" + jobId + "-", ".csv");
+        file.transferTo(path);
+        return path;
+    }
+
+    /**
+     * Cleans up after a job that never got to run: finishes its rejection report, which drops the
+     * empty report, and deletes the files spooled so far.
+     */
+    private void discard(UploadJob job, Path... spooled) {
+        rejectionReportService.finish(job.getProgress().getRejections());
+        for (Path path : spooled) {
+            if (path != null) {
+                deleteQuietly(path);
+            }
+        }
+    }
+
+    private void evictExpiredJobs() {
+        Instant cutoff = Instant.now().minus(ingestProperties.getJobs().getRetention());
+        jobs.values().removeIf(job -> job.isFinished() && job.getFinishedAt().isBefore(cutoff));
+    }
+
+    private void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            log.warn("Could not delete temp file {}: {}", path, e.getMessage());
+        }
+    }
+}
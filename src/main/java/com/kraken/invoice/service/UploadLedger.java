@@ -0,0 +1,220 @@
+package com.kraken.invoice.service;
+
+import com.kraken.invoice.config.IngestProperties;
+import com.kraken.invoice.entity.IngestMode;
+import com.kraken.invoice.entity.IngestOptions;
+import com.kraken.invoice.entity.UploadSummaryDto;
+import com.kraken.invoice.exception.IdempotencyConflictException;
+import com.kraken.invoice.exception.InvalidOptionException;
+import com.kraken.invoice.exception.UploadInProgressException;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Remembers uploads so that a retried POST /invoice is not processed again. An upload is
+ * identified by its Idempotency-Key header or, without one, by a SHA-256 of both files and of
+ * the options that change its outcome. The first request claims the entry and runs the upload.
+ * Requests for the same upload that arrive while it runs wait up to replay-wait for its result,
+ * and later ones get the stored summary straight away. Failed uploads, including ones that died
+ * with an Error, are forgotten so that they can be retried.
+ * Synchronous standard-mode uploads answer with the invoice list, which a replay cannot give, so
+ * they are never hashed and an Idempotency-Key on them is rejected. Every other upload replays
+ * exactly the summary it would have got.
+ * <p>
+ * Every ledger request costs one read of each spooled file to hash it, which is still far
+ * cheaper than parsing and saving. A keyed retry has to match the hash and options recorded
+ * with the key, so a reused key with different files is refused rather than answered with the
+ * old result. Entries live in memory, so they are per instance and do not survive a restart.
+ */
+@Slf4j
+@Service
+public class UploadLedger {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    @Autowired
+    public IngestProperties ingestProperties;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * The ledger entry of an upload and whether this request claimed it and must run the upload.
+     */
+    public record Claim(Entry entry, boolean owner) {
+    }
+
+    @Getter
+    public static class Entry {
+        private final String key;
+        private final String request;
+        private final Instant claimedAt = Instant.now();
+        private final CompletableFuture<UploadSummaryDto> result = new CompletableFuture<>();
+        private volatile Instant finishedAt;
+        // set when the upload runs as a background job, so that async duplicates share the job
+        private volatile String jobId;
+
+        Entry(String key, String request) {
+            this.key = key;
+            this.request = request;
+        }
+
+        public void setJobId(String jobId) {
+            this.jobId = jobId;
+        }
+
+        public boolean isDone() {
+            return result.isDone();
+        }
+
+        /**
+         * Waits up to timeout for the upload and returns its summary, or throws what the upload threw.
+         *
+         * @throws UploadInProgressException if the upload is still running after timeout
+         */
+        public UploadSummaryDto await(Duration timeout) throws IOException {
+            try {
+                return result.get(timeout.toMillis(), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                throw new UploadInProgressException("Upload " + key + " is still being processed, retry later");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for upload " + key, e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException runtime) {
+                    throw runtime;
+                }
+                if (e.getCause() instanceof IOException io) {
+                    throw io;
+                }
+                throw new IllegalStateException("Upload " + key + " failed", e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Finds or creates the entry of this upload. Returns null when the ledger is disabled, or when
+     * no key is given and content hashing is off or the request expects the invoice list.
+     *
+     * @throws InvalidOptionException if a key is given for a request that expects the invoice list
+     * @throws IdempotencyConflictException if the key was already used for different files or options
+     */
+    public Claim claim(String idempotencyKey, MultipartFile invoiceFile, MultipartFile transactionFile,
+                       IngestOptions options) throws IOException {
+        IngestProperties.Idempotency config = ingestProperties.getIdempotency();
+        boolean keyed = idempotencyKey != null && !idempotencyKey.isBlank();
+        if (!config.isEnabled() || (!keyed && (!config.isHashContent() || expectsInvoiceList(options)))) {
+            return null;
+        }
+        if (expectsInvoiceList(options)) {
+            throw new InvalidOptionException("Idempotency-Key is not supported for synchronous standard-mode "
+                    + "uploads, whose invoice list cannot be replayed. Send async=true or another mode");
+        }
+        evictExpired();
+        String hash = contentHash(invoiceFile, transactionFile, describe(options));
+        String request = describe(options) + "|" + hash;
+        String key = keyed ? "key:" + idempotencyKey : "sha256:" + hash;
+
+        Entry fresh = new Entry(key, request);
+        Entry existing = entries.putIfAbsent(key, fresh);
+        if (existing == null) {
+            return new Claim(fresh, true);
+        }
+        if (!existing.getRequest().equals(request)) {
+            throw new IdempotencyConflictException("Idempotency-Key " + idempotencyKey
+                    + " was already used for a different upload");
+        }
+        log.info("Upload {} is a retry of an upload claimed at {}", key, existing.getClaimedAt());
+        return new Claim(existing, false);
+    }
+
+    public void complete(Entry entry, UploadSummaryDto summary) {
+        entry.finishedAt = Instant.now();
+        entry.result.complete(summary);
+    }
+
+    /**
+     * Forgets the upload so that the next attempt runs it, and hands the error to the requests
+     * waiting for it.
+     */
+    public void fail(Entry entry, Throwable error) {
+        entries.remove(entry.getKey(), entry);
+        entry.finishedAt = Instant.now();
+        entry.result.completeExceptionally(error);
+    }
+
+    private void evictExpired() {
+        IngestProperties.Idempotency config = ingestProperties.getIdempotency();
+        Instant cutoff = Instant.now().minus(config.getRetention());
+        entries.values().removeIf(entry -> entry.isDone() && entry.getFinishedAt().isBefore(cutoff));
+        int excess = entries.size() - config.getMaxEntries();
+        if (excess > 0) {
+            entries.values().stream()
+                    .filter(Entry::isDone)
+                    .sorted(Comparator.comparing(Entry::getFinishedAt))
+                    .limit(excess)
+                    .toList()
+                    .forEach(entry -> entries.remove(entry.getKey(), entry));
+        }
+    }
+
+    private boolean expectsInvoiceList(IngestOptions options) {
+        return !options.isAsync() && ingestProperties.ingestMode(options) == IngestMode.STANDARD;
+    }
+
+    private String describe(IngestOptions options) {
+        return ingestProperties.ingestMode(options) + "|" + ingestProperties.persistenceMode(options) + "|"
+                + ingestProperties.parserMode(options) + "|" + options.getMaxBadRows() + "|"
+                + options.getMaxBadPercent();
+    }
+
+    /**
+     * SHA-256 over the request description and both files, each file hashed separately so that
+     * moving bytes from one file to the other changes the result.
+     */
+    private static String contentHash(MultipartFile invoiceFile, MultipartFile transactionFile, String request)
+            throws IOException {
+        MessageDigest combined = sha256();
+        combined.update(request.getBytes(StandardCharsets.UTF_8));
+        combined.update(hash(invoiceFile));
+        combined.update(hash(transactionFile));
+        return HexFormat.of().formatHex(combined.digest());
+    }
+
+    private static byte[] hash(MultipartFile file) throws IOException {
+        MessageDigest digest = sha256();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream in = file.getInputStream()) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return digest.digest();
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package com.kraken.invoice.tools;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.SplittableRandom;
+
+/**
+ * Writes a consistent invoice/transaction CSV pair in the upload format, for load and scale
+ * testing. Rows are generated one invoice at a time and written straight to disk, so memory
+ * stays constant whatever the file size; the only buffer is the shuffle window used for
+ * out-of-order transactions.
+ * <p>
+ * Run with {@code ./gradlew generateData -PgeneratorArgs="--invoices=1000000 --out=build/data"} or
+ * directly through {@link #main(String[])}. Options:
+ * <pre>
+ * --invoices=N              number of invoices (default 1000)
+ * --out=DIR                 output directory for invoices.csv and transactions.csv (default build/generated-data)
+ * --min-transactions=N      fewest transactions per invoice (default 1)
+ * --max-transactions=N      most transactions per invoice (default 8)
+ * --distribution=D          uniform or geometric spread between min and max (default uniform)
+ * --invalid-share=F         share of invoices with a net, GST or count mismatch (default 0.05)
+ * --missing-id-share=F      share of rows with a blank invoice or transaction id (default 0.0)
+ * --shuffle-window=N        transactions held back and written in random order, 0 keeps them grouped (default 0)
+ * --seed=N                  random seed (default 42)
+ * </pre>
+ */
+@Slf4j
+@Getter
+@Setter
+public class InvoiceDataGenerator {
+    public static final String INVOICE_HEADER =
+            "invoice_id,invoice_number,gross_amount,gst_amount,net_amount,receipt_date,payment_due_date,total_no_trxn";
+    public static final String TRANSACTION_HEADER = "trxn_id,date_received,transaction_date,invoice_id,"
+            + "invoice_number,billing_period_start,billing_period_end,net_transaction_amount,gst_amount";
+
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS");
+    private static final LocalDateTime BASE_DATE = LocalDateTime.of(2006, 1, 1, 0, 0);
+    private static final long FIRST_INVOICE_ID = 30_000;
+    private static final long FIRST_TRANSACTION_ID = 700_000;
+    private static final long FIRST_INVOICE_NUMBER = 588_000_000;
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private long invoices = 1000;
+    private int minTransactions = 1;
+    private int maxTransactions = 8;
+    private String distribution = "uniform";
+    private double invalidShare = 0.05;
+    private double missingIdShare = 0.0;
+    private int shuffleWindow = 0;
+    private long seed = 42;
+
+    private SplittableRandom random;
+    private List<String> window;
+    private long nextTransactionId;
+
+    public static void main(String[] args) throws IOException {
+        InvoiceDataGenerator generator = new InvoiceDataGenerator();
+        Path out = Path.of("build", "generated-data");
+        for (String arg : args) {
+            String[] option = arg.replaceFirst("^--", "").split("=", 2);
+            if (option.length != 2) {
+                throw new IllegalArgumentException("Expected --name=value but got: " + arg);
+            }
+            String value = option[1];
+            switch (option[0]) {
+                case "invoices" -> generator.setInvoices(Long.parseLong(value));
+                case "out" -> out = Path.of(value);
+                case "min-transactions" -> generator.setMinTransactions(Integer.parseInt(value));
+                case "max-transactions" -> generator.setMaxTransactions(Integer.parseInt(value));
+                case "distribution" -> generator.setDistribution(value);
+                case "invalid-share" -> generator.setInvalidShare(Double.parseDouble(value));
+                case "missing-id-share" -> generator.setMissingIdShare(Double.parseDouble(value));
+                case "shuffle-window" -> generator.setShuffleWindow(Integer.parseInt(value));
+                case "seed" -> generator.setSeed(Long.parseLong(value));
+                default -> throw new IllegalArgumentException("Unknown option: " + option[0]);
+            }
+        }
+        Files.createDirectories(out);
+        long started = System.currentTimeMillis();
+        long transactions = generator.generate(out.resolve("invoices.csv"), out.resolve("transactions.csv"));
+        log.info("Wrote {} invoices and {} transactions to {} in {} ms", generator.getInvoices(), transactions,
+                out.toAbsolutePath(), System.currentTimeMillis() - started);
+    }
+
+    /**
+     * Writes both files and returns the number of transaction rows written.
+     */
+    public long generate(Path invoiceFile, Path transactionFile) throws IOException {
+        if (minTransactions < 0 || maxTransactions < minTransactions) {
+            throw new IllegalArgumentException("Invalid transactions per invoice range: "
+                    + minTransactions + "-" + maxTransactions);
+        }
+        random = new SplittableRandom(seed);
+        window = new ArrayList<>(Math.max(shuffleWindow, 0));
+        nextTransactionId = FIRST_TRANSACTION_ID;
+        long written = 0;
+
+        try (Writer invoiceWriter = open(invoiceFile);
+             Writer transactionWriter = open(transactionFile)) {
+            invoiceWriter.write(INVOICE_HEADER);
+            invoiceWriter.write('\n');
+            transactionWriter.write(TRANSACTION_HEADER);
+            transactionWriter.write('\n');
+
+            for (long i = 0; i < invoices; i++) {
+                written += writeInvoice(FIRST_INVOICE_ID + i, FIRST_INVOICE_NUMBER + i, invoiceWriter,
+                        transactionWriter);
+                if ((i + 1) % 1_000_000 == 0) {
+                    log.info("Generated {} invoices", i + 1);
+                }
+            }
+            Collections.shuffle(window, new Random(random.nextLong()));
+            for (String row : window) {
+                transactionWriter.write(row);
+            }
+        }
+        return written;
+    }
+
+    private static Writer open(Path file) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(file), StandardCharsets.UTF_8),
+                BUFFER_SIZE);
+    }
+
+    private int writeInvoice(long invoiceId, long invoiceNumber, Writer invoiceWriter, Writer transactionWriter)
+            throws IOException {
+        int count = transactionCount();
+        LocalDateTime periodStart = BASE_DATE.plusDays(invoiceId % 365);
+        String invoiceNumberValue = Long.toString(invoiceNumber);
+        long netCents = 0;
+        long gstCents = 0;
+
+        for (int t = 0; t < count; t++) {
+            long net = random.nextLong(100, 10_000);
+            long gst = Math.round(net / 10.0);
+            netCents += net;
+            gstCents += gst;
+            LocalDateTime transactionDate = periodStart.plusDays(t);
+            String row = id(nextTransactionId++) + ','
+                    + DATE_FORMAT.format(periodStart.plusDays(count + 30)) + ','
+                    + DATE_FORMAT.format(transactionDate) + ','
+                    + id(invoiceId) + ','
+                    + invoiceNumberValue + ','
+                    + DATE_FORMAT.format(periodStart) + ','
+                    + DATE_FORMAT.format(transactionDate) + ','
+                    + money(net) + ','
+                    + money(gst) + '\n';
+            writeTransaction(row, transactionWriter);
+        }
+
+        int declaredCount = count;
+        if (random.nextDouble() < invalidShare) {
+            // break exactly one of the three rules so each kind of mismatch shows up
+            switch (random.nextInt(3)) {
+                case 0 -> netCents += random.nextLong(1, 500);
+                case 1 -> gstCents += random.nextLong(1, 50);
+                default -> declaredCount++;
+            }
+        }
+        invoiceWriter.write(id(invoiceId) + ','
+                + invoiceNumberValue + ','
+                + money(netCents + gstCents) + ','
+                + money(gstCents) + ','
+                + money(netCents) + ','
+                + DATE_FORMAT.format(periodStart.plusDays(count + 30)) + ','
+                + DATE_FORMAT.format(periodStart.plusDays(count + 60)) + ','
+                + declaredCount + '\n');
+        return count;
+    }
+
+    private void writeTransaction(String row, Writer transactionWriter) throws IOException {
+        if (shuffleWindow <= 0) {
+            transactionWriter.write(row);
+        } else if (window.size() < shuffleWindow) {
+            window.add(row);
+        } else {
+            // write a random held-back row and keep the new one in its place
+            int index = random.nextInt(shuffleWindow);
+            transactionWriter.write(window.get(index));
+            window.set(index, row);
+        }
+    }
+
+    private int transactionCount() {
+        int spread = maxTransactions - minTransactions;
+        if (spread == 0) {
+            return minTransactions;
+        }
+        if ("geometric".equalsIgnoreCase(distribution)) {
+            // most invoices near the minimum with a long tail towards the maximum
+            int extra = 0;
+            while (extra < spread && random.nextDouble() < 0.5) {
+                extra++;
+            }
+            return minTransactions + extra;
+        }
+        if (!"uniform".equalsIgnoreCase(distribution)) {
+            throw new IllegalArgumentException("Unknown distribution: " + distribution);
+        }
+        return minTransactions + random.nextInt(spread + 1);
+    }
+
+    private String id(long id) {
+        return random.nextDouble() < missingIdShare ? "" : Long.toString(id);
+    }
+
+    private static String money(long cents) {
+        long fraction = cents % 100;
+        return cents / 100 + (fraction < 10 ? ".0" : ".") + fraction;
+    }
+}
@@ -0,0 +1,108 @@
+package com.kraken.invoice;
+
+import com.kraken.invoice.config.IngestProperties;
+import com.kraken.invoice.entity.IngestOptions;
+import com.kraken.invoice.entity.Invoice;
+import com.kraken.invoice.entity.InvoiceDto;
+import com.kraken.invoice.entity.InvoiceFingerprintDto;
+import com.kraken.invoice.entity.TransactionDto;
+import com.kraken.invoice.entity.UploadSummaryDto;
+import com.kraken.invoice.repository.InvoiceRepository;
+import com.kraken.invoice.service.DeltaInvoiceService;
+import com.kraken.invoice.service.IngestProgress;
+import com.kraken.invoice.service.InvoiceFingerprint;
+import com.kraken.invoice.service.InvoicePersistenceService;
+import com.kraken.invoice.service.InvoiceService;
+import com.kraken.invoice.service.InvoiceTransactionParser;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.core.io.ClassPathResource;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class DeltaInvoiceServiceTest {
+    private static final ClassPathResource INVOICES = new ClassPathResource("data/invoices.csv");
+    private static final ClassPathResource TRANSACTIONS = new ClassPathResource("data/transactions.csv");
+
+    @Test
+    void testFingerprintIgnoresTransactionOrderAndDecimalScale() {
+        InvoiceDto invoice = new InvoiceDto();
+        invoice.setInvoiceId(1L);
+        invoice.setNetAmount(new BigDecimal("10.00"));
+        TransactionDto first = txn(100L, "4.00");
+        TransactionDto second = txn(101L, "6.00");
+
+        String hash = InvoiceFingerprint.of(invoice, List.of(first, second));
+        invoice.setNetAmount(new BigDecimal("10.0"));
+        assertEquals(hash, InvoiceFingerprint.of(invoice, List.of(second, first)));
+
+        second.setNetTransactionAmount(new BigDecimal("6.01"));
+        assertNotEquals(hash, InvoiceFingerprint.of(invoice, List.of(first, second)));
+    }
+
+    @Test
+    void testOnlyNewAndChangedInvoicesAreWritten() throws IOException {
+        InvoiceTransactionParser parser = new InvoiceTransactionParser();
+        parser.ingestProperties = new IngestProperties();
+        parser.ingestMetrics = IngestMetricsTest.simpleMetrics();
+        Map<Long, InvoiceDto> invoices = parser.parseInvoices(INVOICES);
+        Map<Long, List<TransactionDto>> transactions = parser.parseTransactions(TRANSACTIONS);
+        List<Long> ids = new ArrayList<>(invoices.keySet());
+
+        // all but the first two invoices are stored unchanged, the second one with an old hash
+        List<InvoiceFingerprintDto> stored = new ArrayList<>();
+        stored.add(new InvoiceFingerprintDto(ids.get(1), "stale"));
+        for (Long id : ids.subList(2, ids.size())) {
+            stored.add(new InvoiceFingerprintDto(id, InvoiceFingerprint.of(invoices.get(id), transactions.get(id))));
+        }
+
+        DeltaInvoiceService service = new DeltaInvoiceService();
+        service.invoiceTransactionParser = parser;
+        service.ingestMetrics = IngestMetricsTest.simpleMetrics();
+        service.ingestProperties = new IngestProperties();
+        service.invoiceRepository = mock(InvoiceRepository.class);
+        service.invoicePersistenceService = mock(InvoicePersistenceService.class);
+        service.invoiceService = new InvoiceService();
+        service.invoiceService.invoiceTransactionParser = parser;
+        service.invoiceService.ingestMetrics = service.ingestMetrics;
+        when(service.invoiceRepository.findContentHashByInvoiceIdIn(anyCollection())).thenReturn(stored);
+
+        UploadSummaryDto summary = service.parseAndSave(INVOICES, TRANSACTIONS, new IngestOptions(),
+                new IngestProgress());
+
+        assertEquals(1, summary.getInvoicesInserted());
+        assertEquals(1, summary.getInvoicesUpdated());
+        assertEquals(ids.size() - 2, summary.getInvoicesUnchanged());
+        assertEquals(2, summary.getInvoicesSaved());
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<List<Invoice>> written = ArgumentCaptor.forClass(List.class);
+        verify(service.invoicePersistenceService).persist(written.capture(), any());
+        assertEquals(List.of(ids.get(0), ids.get(1)), written.getValue().stream().map(Invoice::getInvoiceId).toList());
+        // the hash the comparison used is the one stored
+        for (Invoice invoice : written.getValue()) {
+            Long id = invoice.getInvoiceId();
+            assertEquals(InvoiceFingerprint.of(invoices.get(id), transactions.get(id)), invoice.getContentHash());
+        }
+    }
+
+    private static TransactionDto txn(Long id, String net) {
+        TransactionDto txn = new TransactionDto();
+        txn.setTrxnId(id);
+        txn.setNetTransactionAmount(new BigDecimal(net));
+        txn.setDateReceived(LocalDateTime.of(2007, 12, 12, 0, 0));
+        return txn;
+    }
+}
@@ -0,0 +1,204 @@
+package com.kraken.invoice;
+
+import com.kraken.invoice.config.IngestProperties;
+import com.kraken.invoice.entity.IngestOptions;
+import com.kraken.invoice.entity.Invoice;
+import com.kraken.invoice.entity.TransactionDto;
+import com.kraken.invoice.entity.UploadSummaryDto;
+import com.kraken.invoice.service.ExternalInvoiceService;
+import com.kraken.invoice.service.IngestProgress;
+import com.kraken.invoice.service.InvoiceMapper;
+import com.kraken.invoice.service.InvoicePersistenceService;
+import com.kraken.invoice.service.InvoiceService;
+import com.kraken.invoice.service.InvoiceTransactionParser;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+class ExternalInvoiceServiceTest {
+    private static final ClassPathResource INVOICES = new ClassPathResource("data/invoices.csv");
+    private static final ClassPathResource TRANSACTIONS = new ClassPathResource("data/transactions.csv");
+
+    @TempDir
+    Path spillDir;
+
+    @Test
+    void testMatchesInMemoryReconciliation() throws IOException {
+        IngestProperties properties = new IngestProperties();
+        properties.getExternal().setPartitions(3);
+
+        assertMatchesInMemoryReconciliation(properties);
+    }
+
+    @Test
+    void testSpillFilesLargerThanThePartitionSizeAreSplitAgain() throws IOException {
+        IngestProperties properties = new IngestProperties();
+        // two files for the whole upload, each several times the partition size
+        properties.getExternal().setPartitionSize(DataSize.ofBytes(1024));
+        properties.getExternal().setMaxPartitions(2);
+        properties.setCommitSize(4);
+
+        List<Integer> chunkSizes = assertMatchesInMemoryReconciliation(properties);
+
+        assertTrue(chunkSizes.stream().allMatch(size -> size <= 4), "chunks: " + chunkSizes);
+    }
+
+    @Test
+    void testFixedPartitionsAreCappedAtMaxPartitions() throws IOException {
+        IngestProperties properties = new IngestProperties();
+        // more files than may be open at once; the rest come from splitting the two again
+        properties.getExternal().setPartitions(16);
+        properties.getExternal().setMaxPartitions(2);
+        properties.getExternal().setPartitionSize(DataSize.ofBytes(1024));
+
+        assertMatchesInMemoryReconciliation(properties);
+    }
+
+    @Test
+    void testInvoiceNumbersOver64KbSurviveTheSpill() throws IOException {
+        String invoiceNumber = "9".repeat(70_000);
+        String csv = "trxn_id,date_received,transaction_date,invoice_id,invoice_number,billing_period_start,"
+                + "billing_period_end,net_transaction_amount,gst_amount\n"
+                + "11,2007-12-12 00:00:00.000,2006-03-17 00:00:00.000,1," + invoiceNumber
+                + ",2006-01-01 00:00:00.000,2006-03-17 00:00:00.000,10.00,1.00\n";
+        InvoiceTransactionParser parser = new InvoiceTransactionParser();
+        parser.ingestProperties = new IngestProperties();
+        parser.ingestMetrics = IngestMetricsTest.simpleMetrics();
+        IngestProperties properties = new IngestProperties();
+        properties.getExternal().setSpillDir(spillDir.toString());
+        ExternalInvoiceService service = new ExternalInvoiceService();
+        service.invoiceTransactionParser = parser;
+        service.ingestMetrics = IngestMetricsTest.simpleMetrics();
+        service.ingestProperties = properties;
+        service.invoicePersistenceService = mock(InvoicePersistenceService.class);
+        List<Invoice> written = new ArrayList<>();
+        doAnswer(invocation -> {
+            written.addAll(invocation.getArgument(0));
+            return invocation.getArgument(0);
+        }).when(service.invoicePersistenceService).persist(any(), any());
+
+        service.parseAndSave(new ClassPathResource("sampleFiles/LateInvoices.csv"),
+                new ByteArrayResource(csv.getBytes(StandardCharsets.UTF_8)), new IngestOptions(), new IngestProgress());
+
+        Invoice invoice = written.stream().filter(i -> i.getInvoiceId() == 1L).findFirst().orElseThrow();
+        assertEquals(invoiceNumber, InvoiceMapper.toDto(invoice).getTransactions().get(0).getInvoiceNumber());
+    }
+
+    @Test
+    void testSpillFileCutShortFailsTheUpload() throws IOException {
+        InvoiceTransactionParser parser = new InvoiceTransactionParser();
+        parser.ingestProperties = new IngestProperties();
+        parser.ingestMetrics = IngestMetricsTest.simpleMetrics();
+        IngestProperties properties = new IngestProperties();
+        properties.getExternal().setPartitions(3);
+        properties.getExternal().setSpillDir(spillDir.toString());
+        ExternalInvoiceService service = new ExternalInvoiceService();
+        service.invoiceTransactionParser = parser;
+        service.ingestMetrics = IngestMetricsTest.simpleMetrics();
+        service.ingestProperties = properties;
+        service.invoicePersistenceService = mock(InvoicePersistenceService.class);
+        List<Path> truncated = new ArrayList<>();
+        doAnswer(invocation -> {
+            // while the first partition is written, the last record of the others loses a byte
+            if (truncated.isEmpty()) {
+                try (Stream<Path> files = Files.walk(spillDir)) {
+                    for (Path file : files.filter(path -> path.toString().endsWith(".bin")).toList()) {
+                        if (Files.size(file) > 0) {
+                            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                                channel.truncate(channel.size() - 1);
+                            }
+                            truncated.add(file);
+                        }
+                    }
+                }
+            }
+            return invocation.getArgument(0);
+        }).when(service.invoicePersistenceService).persist(any(), any());
+
+        IOException e = assertThrows(IOException.class, () -> service.parseAndSave(INVOICES, TRANSACTIONS,
+                new IngestOptions(), new IngestProgress()));
+
+        assertFalse(truncated.isEmpty(), "no spill file was left to cut short");
+        assertTrue(e.getMessage().startsWith("Corrupt spill file"), e.getMessage());
+        assertEquals(0, spillDir.toFile().list().length, "spill files are removed");
+    }
+
+    /**
+     * Runs the upload with the given properties, compares what was written with the standard
+     * mode and returns the size of every chunk written.
+     */
+    private List<Integer> assertMatchesInMemoryReconciliation(IngestProperties properties) throws IOException {
+        InvoiceTransactionParser parser = new InvoiceTransactionParser();
+        parser.ingestProperties = new IngestProperties();
+        parser.ingestMetrics = IngestMetricsTest.simpleMetrics();
+        InvoiceService invoiceService = new InvoiceService();
+        invoiceService.invoiceTransactionParser = parser;
+        invoiceService.ingestMetrics = IngestMetricsTest.simpleMetrics();
+        List<Invoice> expected = invoiceService.reconcile(parser.parseInvoices(INVOICES),
+                parser.parseTransactions(TRANSACTIONS), new IngestProgress());
+
+        properties.getExternal().setSpillDir(spillDir.toString());
+        ExternalInvoiceService service = new ExternalInvoiceService();
+        service.invoiceTransactionParser = parser;
+        service.ingestMetrics = IngestMetricsTest.simpleMetrics();
+        service.ingestProperties = properties;
+        service.invoicePersistenceService = mock(InvoicePersistenceService.class);
+        List<Invoice> written = new ArrayList<>();
+        List<Integer> chunkSizes = new ArrayList<>();
+        doAnswer(invocation -> {
+            List<Invoice> chunk = invocation.getArgument(0);
+            written.addAll(chunk);
+            chunkSizes.add(chunk.size());
+            return chunk;
+        }).when(service.invoicePersistenceService).persist(any(), any());
+
+        UploadSummaryDto summary = service.parseAndSave(INVOICES, TRANSACTIONS, new IngestOptions(),
+                new IngestProgress());
+
+        assertEquals(expected.size(), summary.getInvoicesSaved());
+        assertEquals(expected.size(), written.size());
+        assertEquals(expected.stream().filter(invoice -> "valid".equals(invoice.getStatus())).count(),
+                summary.getValidInvoices());
+        Map<Long, Invoice> byId = written.stream().collect(Collectors.toMap(Invoice::getInvoiceId, Function.identity()));
+        for (Invoice invoice : expected) {
+            Invoice actual = byId.get(invoice.getInvoiceId());
+            assertEquals(invoice.getStatus(), actual.getStatus());
+            assertEquals(invoice.getReason(), actual.getReason());
+            assertEquals(ids(invoice), ids(actual));
+            assertEquals(invoice.getContentHash(), actual.getContentHash());
+        }
+        assertEquals(0, spillDir.toFile().list().length, "spill files are removed");
+        return chunkSizes;
+    }
+
+    private static List<Long> ids(Invoice invoice) {
+        return InvoiceMapper.toDto(invoice).getTransactions().stream()
+                .map(TransactionDto::getTrxnId)
+                .sorted(Comparator.naturalOrder())
+                .toList();
+    }
+}
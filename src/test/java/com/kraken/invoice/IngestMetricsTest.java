@@ -0,0 +1,77 @@
+package com.kraken.invoice;
+
+import com.kraken.invoice.entity.InvoiceDto;
+import com.kraken.invoice.entity.ParserMode;
+import com.kraken.invoice.entity.TransactionDto;
+import com.kraken.invoice.service.IngestMetrics;
+import com.kraken.invoice.service.IngestProgress;
+import com.kraken.invoice.service.InvoiceService;
+import com.kraken.invoice.service.InvoiceTransactionParser;
+import com.kraken.invoice.service.RejectionReport;
+import com.kraken.invoice.tools.InvoiceDataGenerator;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.core.io.FileSystemResource;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class IngestMetricsTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void testStagesAndCountersAreTaggedByEndpoint() throws IOException {
+        Path invoiceFile = dir.resolve("invoices.csv");
+        Path transactionFile = dir.resolve("transactions.csv");
+        InvoiceDataGenerator generator = new InvoiceDataGenerator();
+        generator.setInvoices(100);
+        generator.setInvalidShare(1);
+        generator.setMissingIdShare(0.05);
+        generator.generate(invoiceFile, transactionFile);
+
+        IngestMetrics metrics = simpleMetrics();
+        SimpleMeterRegistry registry = (SimpleMeterRegistry) metrics.meterRegistry;
+        InvoiceTransactionParser parser = new InvoiceTransactionParser();
+        parser.ingestMetrics = metrics;
+        InvoiceService invoiceService = new InvoiceService();
+        invoiceService.invoiceTransactionParser = parser;
+        invoiceService.ingestMetrics = metrics;
+        IngestProgress progress = new IngestProgress();
+        progress.setEndpoint("upload_async");
+        progress.setRejections(new RejectionReport("report", false, 10, 10, dir));
+
+        metrics.bytesIngested(IngestMetrics.TRANSACTION_FILE, new FileSystemResource(transactionFile), progress);
+        Map<Long, InvoiceDto> invoiceMap = parser.parseInvoices(new FileSystemResource(invoiceFile));
+        Map<Long, List<TransactionDto>> transactionMap = parser.parseTransactions(new FileSystemResource(transactionFile),
+                ParserMode.COMMONS, progress.getRejections());
+        invoiceService.reconcile(invoiceMap, transactionMap, progress);
+
+        assertEquals(1, registry.find("invoice.ingest.stage").tags("stage", "reconcile", "endpoint", "upload_async")
+                .timer().count());
+        assertEquals(1, registry.find("invoice.ingest.stage").tag("stage", "mapping").timer().count());
+        double invalid = registry.find("invoice.ingest.invalid").tag("endpoint", "upload_async").counters().stream()
+                .mapToDouble(counter -> counter.count()).sum();
+        assertTrue(invalid >= invoiceMap.size());
+        assertTrue(registry.find("invoice.ingest.rows.skipped").tag("endpoint", "upload_async").counters().stream()
+                .mapToDouble(counter -> counter.count()).sum() > 0);
+        assertEquals(Files.size(transactionFile), registry.find("invoice.ingest.bytes").counter().count());
+    }
+
+    /**
+     * Metrics backed by an in-memory registry, for tests that build services by hand.
+     */
+    static IngestMetrics simpleMetrics() {
+        IngestMetrics metrics = new IngestMetrics();
+        metrics.meterRegistry = new SimpleMeterRegistry();
+        return metrics;
+    }
+}
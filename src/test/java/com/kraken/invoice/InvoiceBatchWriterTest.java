@@ -0,0 +1,105 @@
+package com.kraken.invoice;
+
+import com.kraken.invoice.config.IngestProperties;
+import com.kraken.invoice.entity.Invoice;
+import com.kraken.invoice.entity.Transaction;
+import com.kraken.invoice.repository.InvoiceBatchWriter;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.ParameterizedPreparedStatementSetter;
+
+import java.math.BigDecimal;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.contains;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+class InvoiceBatchWriterTest {
+
+    private final InvoiceBatchWriter writer = new InvoiceBatchWriter();
+
+    @BeforeEach
+    void setUp() {
+        writer.jdbcTemplate = mock(JdbcTemplate.class);
+        writer.ingestProperties = new IngestProperties();
+    }
+
+    @Test
+    void testUpsertsInKeyOrderAndCollapsesDuplicates() {
+        Invoice first = invoice(3L, "invalid", 30L, 31L);
+        Invoice other = invoice(1L, "valid", 11L, 10L);
+        // a reopened invoice: same id again, with its final status and the late transaction
+        Invoice reopened = invoice(3L, "valid", 31L);
+        reopened.getTransactions().get(0).setGstAmount(new BigDecimal("9.99"));
+        Transaction lateCopy = reopened.getTransactions().get(0);
+
+        int written = writer.write(List.of(first, other, reopened));
+
+        List<Invoice> invoices = captured("INSERT INTO invoice ");
+        assertEquals(List.of(1L, 3L), invoices.stream().map(Invoice::getInvoiceId).toList());
+        assertSame(reopened, invoices.get(1), "the last copy of an invoice wins");
+
+        List<Transaction> transactions = captured("INSERT INTO transaction ");
+        assertEquals(List.of(10L, 11L, 30L, 31L), transactions.stream().map(Transaction::getTrxnId).toList());
+        assertSame(lateCopy, transactions.get(3), "the last copy of a transaction wins");
+        assertEquals(4, written);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void testInvoiceStatementIsAnUpsert() throws SQLException {
+        Invoice invoice = invoice(7L, "invalid", 70L);
+        invoice.setReason("Net amount mismatch.");
+        writer.write(List.of(invoice));
+
+        ArgumentCaptor<ParameterizedPreparedStatementSetter<Invoice>> setter =
+                ArgumentCaptor.forClass(ParameterizedPreparedStatementSetter.class);
+        verify(writer.jdbcTemplate).batchUpdate(contains("ON CONFLICT (invoice_id) DO UPDATE SET"),
+                any(Collection.class), anyInt(), setter.capture());
+
+        PreparedStatement ps = mock(PreparedStatement.class);
+        setter.getValue().setValues(ps, invoice);
+        verify(ps).setObject(1, 7L, Types.BIGINT);
+        verify(ps).setObject(9, "invalid", Types.VARCHAR);
+        verify(ps).setObject(10, "Net amount mismatch.", Types.VARCHAR);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> List<T> captured(String statement) {
+        ArgumentCaptor<Collection<T>> rows = ArgumentCaptor.forClass(Collection.class);
+        verify(writer.jdbcTemplate).batchUpdate(contains(statement), rows.capture(), eq(1000),
+                any(ParameterizedPreparedStatementSetter.class));
+        return new ArrayList<>(rows.getValue());
+    }
+
+    /**
+     * An invoice with the given status and one bare transaction per id, for the writer tests.
+     */
+    static Invoice invoice(Long id, String status, Long... trxnIds) {
+        Invoice invoice = new Invoice();
+        invoice.setInvoiceId(id);
+        invoice.setStatus(status);
+        List<Transaction> transactions = new ArrayList<>();
+        for (Long trxnId : trxnIds) {
+            Transaction txn = new Transaction();
+            txn.setTrxnId(trxnId);
+            txn.setInvoice(invoice);
+            transactions.add(txn);
+        }
+        invoice.setTransactions(transactions);
+        return invoice;
+    }
+}
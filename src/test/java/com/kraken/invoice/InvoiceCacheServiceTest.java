@@ -0,0 +1,110 @@
+package com.kraken.invoice;
+
+import com.kraken.invoice.config.CacheConfig;
+import com.kraken.invoice.config.InvoiceCacheProperties;
+import com.kraken.invoice.entity.CacheStatsDto;
+import com.kraken.invoice.entity.InvoiceDto;
+import com.kraken.invoice.entity.InvoiceStatusDto;
+import com.kraken.invoice.entity.TransactionDto;
+import com.kraken.invoice.service.InvoiceCacheService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.cache.Cache;
+import org.springframework.cache.caffeine.CaffeineCache;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class InvoiceCacheServiceTest {
+
+    private InvoiceCacheService invoiceCacheService;
+    private Cache invoices;
+    private Cache statuses;
+
+    @BeforeEach
+    void setUp() {
+        InvoiceCacheProperties properties = new InvoiceCacheProperties();
+        properties.setInvoiceMaxWeight(10);
+        invoiceCacheService = new InvoiceCacheService();
+        invoiceCacheService.cacheManager = new CacheConfig().cacheManager(properties);
+        invoices = invoiceCacheService.cacheManager.getCache(CacheConfig.INVOICES);
+        statuses = invoiceCacheService.cacheManager.getCache(CacheConfig.INVOICE_STATUS);
+    }
+
+    @Test
+    void testEvictOnlyDropsGivenIds() {
+        invoices.put(1L, invoice(1L, 1));
+        invoices.put(2L, invoice(2L, 1));
+        statuses.put(1L, new InvoiceStatusDto(1L, "valid", "Valid invoice."));
+
+        invoiceCacheService.evict(List.of(1L));
+
+        assertNull(invoices.get(1L));
+        assertNull(statuses.get(1L));
+        assertNotNull(invoices.get(2L));
+    }
+
+    @Test
+    void testLoadedValueIsCachedUntilEvicted() {
+        AtomicInteger loads = new AtomicInteger();
+        Supplier<InvoiceStatusDto> loader = () -> {
+            loads.incrementAndGet();
+            return new InvoiceStatusDto(1L, "valid", "Valid invoice.");
+        };
+
+        invoiceCacheService.get(CacheConfig.INVOICE_STATUS, 1L, loader);
+        invoiceCacheService.get(CacheConfig.INVOICE_STATUS, 1L, loader);
+        assertEquals(1, loads.get());
+
+        invoiceCacheService.evict(List.of(1L));
+        invoiceCacheService.get(CacheConfig.INVOICE_STATUS, 1L, loader);
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    void testReadThatMissedAWriteDoesNotCacheTheOldVersion() {
+        // the read misses and loads the stored row; the upload commits and evicts before it is cached
+        InvoiceStatusDto old = invoiceCacheService.get(CacheConfig.INVOICE_STATUS, 1L, () -> {
+            InvoiceStatusDto stored = new InvoiceStatusDto(1L, "invalid", "Net amount mismatch.");
+            invoiceCacheService.evict(List.of(1L));
+            return stored;
+        });
+
+        assertEquals("invalid", old.getStatus());
+        assertNull(statuses.get(1L));
+        InvoiceStatusDto next = invoiceCacheService.get(CacheConfig.INVOICE_STATUS, 1L,
+                () -> new InvoiceStatusDto(1L, "valid", "Valid invoice."));
+        assertEquals("valid", next.getStatus());
+        assertEquals("valid", ((InvoiceStatusDto) statuses.get(1L).get()).getStatus());
+    }
+
+    @Test
+    void testStatsReportHitsMissesAndWeightEvictions() {
+        invoices.put(1L, invoice(1L, 3));
+        invoices.get(1L);
+        invoices.get(2L);
+        // 4 + 8 exceeds the maximum weight of 10
+        invoices.put(3L, invoice(3L, 7));
+        ((CaffeineCache) invoices).getNativeCache().cleanUp();
+
+        CacheStatsDto stats = invoiceCacheService.stats().get(0);
+
+        assertEquals(CacheConfig.INVOICES, stats.getName());
+        assertEquals(1, stats.getHits());
+        assertEquals(1, stats.getMisses());
+        assertEquals(1, stats.getEvictions());
+    }
+
+    private static InvoiceDto invoice(Long id, int transactions) {
+        InvoiceDto dto = new InvoiceDto();
+        dto.setInvoiceId(id);
+        dto.setTransactions(Collections.nCopies(transactions, new TransactionDto()));
+        return dto;
+    }
+}
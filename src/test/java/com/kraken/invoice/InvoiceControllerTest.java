@@ -1,9 +1,21 @@
 package com.kraken.invoice;
 
 
+import com.kraken.invoice.config.IngestProperties;
 import com.kraken.invoice.controller.InvoiceController;
+import com.kraken.invoice.entity.IngestOptions;
 import com.kraken.invoice.entity.InvoiceDto;
+import com.kraken.invoice.entity.InvoicePageDto;
+import com.kraken.invoice.entity.InvoiceStatusDto;
+import com.kraken.invoice.entity.UploadJobDto;
+import com.kraken.invoice.entity.UploadSummaryDto;
+import com.kraken.invoice.exception.InvalidOptionException;
+import com.kraken.invoice.service.InvoiceIngestService;
+import com.kraken.invoice.service.InvoiceQueryService;
 import com.kraken.invoice.service.InvoiceService;
+import com.kraken.invoice.service.RejectionReportService;
+import com.kraken.invoice.service.UploadJobService;
+import com.kraken.invoice.service.UploadLedger;
 import org.junit.jupiter.api.Test;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
@@ -17,6 +29,8 @@ import java.util.Map;
 import java.util.NoSuchElementException;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.mockito.Mockito.*;
 
@@ -26,6 +40,21 @@ class InvoiceControllerTest {
     @Mock
     private InvoiceService invoiceService;
 
+    @Mock
+    private IngestProperties ingestProperties;
+
+    @Mock
+    private InvoiceQueryService invoiceQueryService;
+
+    @Mock
+    private RejectionReportService rejectionReportService;
+
+    @Mock
+    private UploadLedger uploadLedger;
+
+    @Mock
+    private UploadJobService uploadJobService;
+
     @InjectMocks
     private InvoiceController controller;
 
@@ -42,6 +71,25 @@ class InvoiceControllerTest {
         assertEquals(1L, response.getBody().get(0).getInvoiceId());
     }
 
+    @Test
+    void testGetInvoicePage() {
+        InvoiceDto dto = new InvoiceDto();
+        dto.setInvoiceId(5L);
+
+        when(invoiceQueryService.getPage(4L, 1)).thenReturn(new InvoicePageDto(List.of(dto), 5L));
+
+        ResponseEntity<InvoicePageDto> response = controller.getInvoicePage(1, 4L);
+
+        assertEquals(200, response.getStatusCodeValue());
+        assertEquals(5L, response.getBody().getInvoices().get(0).getInvoiceId());
+        assertEquals(5L, response.getBody().getNextCursor());
+    }
+
+    @Test
+    void testStreamInvoicesRejectsUnknownFormat() {
+        assertThrows(InvalidOptionException.class, () -> controller.streamInvoices("xml"));
+    }
+
     @Test
     void testGetInvoiceById() {
         InvoiceDto dto = new InvoiceDto();
@@ -70,29 +118,101 @@ class InvoiceControllerTest {
         MockMultipartFile invoices = new MockMultipartFile("invoices", "invoices.csv", "text/csv", "csv-data".getBytes());
         MockMultipartFile transactions = new MockMultipartFile("transactions", "transactions.csv", "text/csv", "csv-data".getBytes());
 
-        when(invoiceService.parseAndSave(any(), any())).thenReturn(Collections.emptyList());
+        when(invoiceService.parseAndSave(any(), any(), any(), any())).thenReturn(Collections.emptyList());
 
-        ResponseEntity<?> response = controller.uploadInvoices(invoices, transactions);
+        ResponseEntity<?> response = controller.uploadInvoices(invoices, transactions, new IngestOptions(), null);
 
         assertEquals(200, response.getStatusCodeValue());
-        verify(invoiceService, times(1)).parseAndSave(any(), any());
+        verify(invoiceService, times(1)).parseAndSave(any(), any(), any(), any());
     }
 
     //include test when upload throws exception
 
+    @Test
+    void testUploadThatDiesWithAnErrorCanBeRetried() throws Exception {
+        MockMultipartFile invoices = new MockMultipartFile("invoices", "invoices.csv", "text/csv", "csv-data".getBytes());
+        MockMultipartFile transactions = new MockMultipartFile("transactions", "transactions.csv", "text/csv", "csv-data".getBytes());
+        InvoiceController controller = new InvoiceController();
+        controller.ingestProperties = new IngestProperties();
+        controller.uploadLedger = new UploadLedger();
+        controller.uploadLedger.ingestProperties = controller.ingestProperties;
+        controller.rejectionReportService = new RejectionReportService();
+        controller.rejectionReportService.ingestProperties = controller.ingestProperties;
+        controller.invoiceService = mock(InvoiceService.class);
+        controller.invoiceIngestService = mock(InvoiceIngestService.class);
+        IngestOptions streaming = new IngestOptions();
+        streaming.setMode("streaming");
+        UploadSummaryDto summary = new UploadSummaryDto();
+        when(controller.invoiceIngestService.ingest(any(), any(), any(), any()))
+                .thenThrow(new OutOfMemoryError("Java heap space"))
+                .thenReturn(summary);
+
+        assertThrows(OutOfMemoryError.class,
+                () -> controller.uploadInvoices(invoices, transactions, streaming, "key-1"));
+        ResponseEntity<?> retry = controller.uploadInvoices(invoices, transactions, streaming, "key-1");
+        ResponseEntity<?> replay = controller.uploadInvoices(invoices, transactions, streaming, "key-1");
+
+        assertSame(summary, retry.getBody());
+        assertNull(retry.getHeaders().getFirst("Idempotent-Replay"));
+        assertSame(summary, replay.getBody());
+        assertEquals("true", replay.getHeaders().getFirst("Idempotent-Replay"));
+        verify(controller.invoiceIngestService, times(2)).ingest(any(), any(), any(), any());
+
+        // a standard-mode replay could not give back the invoice list the first attempt answered with
+        assertThrows(InvalidOptionException.class,
+                () -> controller.uploadInvoices(invoices, transactions, new IngestOptions(), "key-2"));
+        verifyNoInteractions(controller.invoiceService);
+        controller.rejectionReportService.shutdown();
+    }
+
+    @Test
+    void testGetUploadJob() {
+        UploadJobDto job = new UploadJobDto();
+        job.setJobId("job-1");
+        job.setStatus("failed");
+        job.setError("Invalid transaction record at line 7");
+
+        when(uploadJobService.getJob("job-1")).thenReturn(job);
+
+        ResponseEntity<UploadJobDto> response = controller.getUploadJob("job-1");
+
+        assertEquals(200, response.getStatusCodeValue());
+        assertEquals("failed", response.getBody().getStatus());
+        assertEquals("Invalid transaction record at line 7", response.getBody().getError());
+    }
+
+    @Test
+    void testGetUploadJobFail() {
+        when(uploadJobService.getJob("missing")).thenThrow(new NoSuchElementException("Upload job not found"));
+
+        assertThrows(NoSuchElementException.class, () -> controller.getUploadJob("missing"));
+    }
+
     @Test
     void testGetInvoiceStatus() {
-        InvoiceDto dto = new InvoiceDto();
-        dto.setInvoiceId(3L);
-        dto.setStatus("valid");
-        dto.setReason("Valid invoice.");
+        InvoiceStatusDto dto = new InvoiceStatusDto(3L, "valid", "Valid invoice.");
 
-        when(invoiceService.getInvoiceById(3L)).thenReturn(dto);
+        when(invoiceQueryService.getStatus(3L)).thenReturn(dto);
 
         ResponseEntity<Map<String, Object>> response = controller.getInvoiceStatus(3L);
 
         assertEquals(200, response.getStatusCodeValue());
         assertEquals("valid", response.getBody().get("status"));
+        verify(invoiceService, never()).getInvoiceById(any());
+    }
+
+    @Test
+    void testGetInvoiceStatuses() {
+        List<InvoiceStatusDto> statuses = List.of(new InvoiceStatusDto(3L, "valid", "Valid invoice."),
+                new InvoiceStatusDto(4L, "invalid", "Net amount mismatch."));
+
+        when(invoiceQueryService.getStatuses(List.of(3L, 4L, 5L))).thenReturn(statuses);
+
+        ResponseEntity<List<InvoiceStatusDto>> response = controller.getInvoiceStatuses(List.of(3L, 4L, 5L));
+
+        assertEquals(200, response.getStatusCodeValue());
+        assertEquals(2, response.getBody().size());
+        assertEquals("invalid", response.getBody().get(1).getStatus());
     }
 }
 
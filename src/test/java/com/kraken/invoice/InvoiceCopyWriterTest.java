@@ -0,0 +1,93 @@
+package com.kraken.invoice;
+
+import com.kraken.invoice.entity.Invoice;
+import com.kraken.invoice.repository.InvoiceCopyWriter;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+import org.postgresql.copy.CopyManager;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import javax.sql.DataSource;
+import java.io.ByteArrayOutputStream;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.util.List;
+
+import static com.kraken.invoice.InvoiceBatchWriterTest.invoice;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.contains;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Checks the rows sent through COPY and the merge statements, against a mocked connection.
+ */
+class InvoiceCopyWriterTest {
+
+    private final InvoiceCopyWriter writer = new InvoiceCopyWriter();
+    private final ByteArrayOutputStream invoiceRows = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream transactionRows = new ByteArrayOutputStream();
+
+    @BeforeEach
+    void setUp() throws Exception {
+        writer.jdbcTemplate = mock(JdbcTemplate.class);
+        writer.dataSource = mock(DataSource.class);
+        Connection connection = mock(Connection.class);
+        PGConnection pgConnection = mock(PGConnection.class);
+        CopyManager copyManager = mock(CopyManager.class);
+        when(writer.dataSource.getConnection()).thenReturn(connection);
+        when(connection.unwrap(PGConnection.class)).thenReturn(pgConnection);
+        when(pgConnection.getCopyAPI()).thenReturn(copyManager);
+        CopyIn invoiceCopy = copyIn(invoiceRows);
+        CopyIn transactionCopy = copyIn(transactionRows);
+        when(copyManager.copyIn(contains("COPY invoice_staging"))).thenReturn(invoiceCopy);
+        when(copyManager.copyIn(contains("COPY transaction_staging"))).thenReturn(transactionCopy);
+    }
+
+    @Test
+    void testRepeatedInvoiceIsStagedWithSequenceAndMergedOnce() {
+        Invoice first = invoice(3L, "invalid", 30L);
+        first.setInvoiceNumber("INV-\"3\"");
+        first.setGrossAmount(new BigDecimal("100.00"));
+        Invoice reopened = invoice(3L, "valid", 31L);
+        reopened.setInvoiceNumber("INV-\"3\"");
+        reopened.setGrossAmount(new BigDecimal("100.00"));
+
+        long transactions = writer.write(List.of(first, invoice(1L, "valid", 10L), reopened));
+
+        assertEquals(3, transactions);
+        List<String> invoices = lines(invoiceRows);
+        assertEquals(3, invoices.size());
+        // strings are always quoted, null is an empty field and the last column is the sequence
+        assertEquals("3,\"INV-\"\"3\"\"\",100.00,,,,,,\"invalid\",,,0", invoices.get(0));
+        assertEquals("3,\"INV-\"\"3\"\"\",100.00,,,,,,\"valid\",,,2", invoices.get(2));
+        assertEquals(List.of("30", "10", "31"), lines(transactionRows).stream()
+                .map(line -> line.substring(0, line.indexOf(','))).toList());
+
+        verify(writer.jdbcTemplate).update(contains("SELECT DISTINCT ON (invoice_id)"));
+        verify(writer.jdbcTemplate).update(contains("ORDER BY invoice_id, seq DESC"));
+        verify(writer.jdbcTemplate).update(contains("SELECT DISTINCT ON (trxn_id)"));
+    }
+
+    private static CopyIn copyIn(ByteArrayOutputStream sink) throws Exception {
+        CopyIn copyIn = mock(CopyIn.class);
+        when(copyIn.isActive()).thenReturn(true);
+        doAnswer(invocation -> {
+            sink.write(invocation.getArgument(0), invocation.getArgument(1), invocation.getArgument(2));
+            return null;
+        }).when(copyIn).writeToCopy(any(byte[].class), anyInt(), anyInt());
+        return copyIn;
+    }
+
+    private static List<String> lines(ByteArrayOutputStream rows) {
+        String content = rows.toString(StandardCharsets.UTF_8);
+        return content.isEmpty() ? List.of() : List.of(content.split("\n"));
+    }
+}
@@ -0,0 +1,72 @@
+package com.kraken.invoice;
+
+import com.kraken.invoice.entity.Invoice;
+import com.kraken.invoice.entity.InvoiceDto;
+import com.kraken.invoice.entity.TransactionDto;
+import com.kraken.invoice.service.IngestProgress;
+import com.kraken.invoice.service.InvoiceService;
+import com.kraken.invoice.service.InvoiceTransactionParser;
+import com.kraken.invoice.tools.InvoiceDataGenerator;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.core.io.FileSystemResource;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class InvoiceDataGeneratorTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void testGeneratedInvoicesReconcile() throws IOException {
+        InvoiceDataGenerator generator = new InvoiceDataGenerator();
+        generator.setInvoices(500);
+        generator.setInvalidShare(0);
+        generator.setShuffleWindow(50);
+
+        List<Invoice> invoices = reconcile(generator);
+
+        assertEquals(500, invoices.size());
+        assertTrue(invoices.stream().allMatch(invoice -> "valid".equals(invoice.getStatus())));
+    }
+
+    @Test
+    void testInvalidShareAndMissingIds() throws IOException {
+        InvoiceDataGenerator generator = new InvoiceDataGenerator();
+        generator.setInvoices(200);
+        generator.setInvalidShare(1);
+        generator.setMissingIdShare(0);
+
+        long transactions = generator.generate(dir.resolve("invoices.csv"), dir.resolve("transactions.csv"));
+        List<Invoice> invoices = reconcile(generator);
+
+        assertEquals(transactions + 1, Files.readAllLines(dir.resolve("transactions.csv")).size());
+        assertTrue(invoices.stream().noneMatch(invoice -> "valid".equals(invoice.getStatus())));
+
+        generator.setMissingIdShare(0.5);
+        assertTrue(reconcile(generator).size() < 200);
+    }
+
+    private List<Invoice> reconcile(InvoiceDataGenerator generator) throws IOException {
+        Path invoiceFile = dir.resolve("invoices.csv");
+        Path transactionFile = dir.resolve("transactions.csv");
+        generator.generate(invoiceFile, transactionFile);
+
+        InvoiceTransactionParser parser = new InvoiceTransactionParser();
+        parser.ingestMetrics = IngestMetricsTest.simpleMetrics();
+        InvoiceService invoiceService = new InvoiceService();
+        invoiceService.invoiceTransactionParser = parser;
+        invoiceService.ingestMetrics = IngestMetricsTest.simpleMetrics();
+        Map<Long, InvoiceDto> invoiceMap = parser.parseInvoices(new FileSystemResource(invoiceFile));
+        Map<Long, List<TransactionDto>> transactionMap = parser.parseTransactions(new FileSystemResource(transactionFile));
+        return invoiceService.reconcile(invoiceMap, transactionMap, new IngestProgress());
+    }
+}
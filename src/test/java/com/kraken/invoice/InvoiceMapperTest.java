@@ -0,0 +1,103 @@
+package com.kraken.invoice;
+
+import com.kraken.invoice.entity.Invoice;
+import com.kraken.invoice.entity.InvoiceDto;
+import com.kraken.invoice.entity.Transaction;
+import com.kraken.invoice.entity.TransactionDto;
+import com.kraken.invoice.service.InvoiceMapper;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.BeanUtils;
+import org.springframework.beans.BeanWrapperImpl;
+
+import java.beans.PropertyDescriptor;
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class InvoiceMapperTest {
+
+    @Test
+    void testDtoToEntityMatchesBeanUtils() {
+        InvoiceDto dto = invoiceDto();
+
+        Invoice mapped = InvoiceMapper.toEntity(dto);
+        Invoice expected = new Invoice();
+        BeanUtils.copyProperties(dto, expected);
+
+        assertSameProperties(expected, mapped, "transactions", "contentHash");
+        assertEquals(1, mapped.getTransactions().size());
+        Transaction expectedTxn = new Transaction();
+        BeanUtils.copyProperties(dto.getTransactions().get(0), expectedTxn);
+        assertSameProperties(expectedTxn, mapped.getTransactions().get(0), "invoice");
+    }
+
+    @Test
+    void testRoundTripKeepsEveryField() {
+        InvoiceDto dto = invoiceDto();
+
+        InvoiceDto roundTrip = InvoiceMapper.toDto(InvoiceMapper.toEntity(dto));
+
+        assertSameProperties(dto, roundTrip, "transactions");
+        assertEquals(1, roundTrip.getTransactions().size());
+        assertSameProperties(dto.getTransactions().get(0), roundTrip.getTransactions().get(0));
+    }
+
+    @Test
+    void testCopyOfMatchesBeanUtils() {
+        InvoiceDto dto = invoiceDto();
+
+        InvoiceDto copy = InvoiceMapper.copyOf(dto);
+        InvoiceDto expected = new InvoiceDto();
+        BeanUtils.copyProperties(dto, expected);
+
+        assertSameProperties(expected, copy);
+        assertSame(dto.getTransactions(), copy.getTransactions());
+    }
+
+    /**
+     * Compares every readable property, and requires the fixture to have set each one so that a
+     * field added later without a mapping line is caught here.
+     */
+    private static void assertSameProperties(Object expected, Object actual, String... ignored) {
+        BeanWrapperImpl expectedBean = new BeanWrapperImpl(expected);
+        BeanWrapperImpl actualBean = new BeanWrapperImpl(actual);
+        for (PropertyDescriptor property : expectedBean.getPropertyDescriptors()) {
+            String name = property.getName();
+            if (name.equals("class") || List.of(ignored).contains(name)) {
+                continue;
+            }
+            assertNotNull(expectedBean.getPropertyValue(name), "fixture does not set " + name);
+            assertEquals(expectedBean.getPropertyValue(name), actualBean.getPropertyValue(name), name);
+        }
+    }
+
+    private static InvoiceDto invoiceDto() {
+        TransactionDto txn = new TransactionDto();
+        txn.setTrxnId(728441L);
+        txn.setDateReceived(LocalDateTime.of(2007, 12, 12, 0, 0));
+        txn.setTransactionDate(LocalDateTime.of(2006, 3, 17, 0, 0));
+        txn.setInvoiceNumber("588008565");
+        txn.setBillingPeriodStart(LocalDateTime.of(2006, 1, 1, 0, 0));
+        txn.setBillingPeriodEnd(LocalDateTime.of(2006, 3, 17, 0, 0));
+        txn.setNetTransactionAmount(new BigDecimal("32.00"));
+        txn.setGstAmount(new BigDecimal("3.20"));
+
+        InvoiceDto dto = new InvoiceDto();
+        dto.setInvoiceId(31550L);
+        dto.setInvoiceNumber("588008565");
+        dto.setGrossAmount(new BigDecimal("35.20"));
+        dto.setGstAmount(new BigDecimal("3.20"));
+        dto.setNetAmount(new BigDecimal("32.00"));
+        dto.setReceiptDate(LocalDateTime.of(2007, 12, 12, 18, 30, 52));
+        dto.setPaymentDueDate(LocalDateTime.of(2006, 4, 28, 0, 0));
+        dto.setTotalNoTrxn(1);
+        dto.setStatus("valid");
+        dto.setReason("Valid invoice.");
+        dto.setTransactions(List.of(txn));
+        return dto;
+    }
+}
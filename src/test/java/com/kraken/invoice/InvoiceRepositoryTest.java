@@ -0,0 +1,154 @@
+package com.kraken.invoice;
+
+import com.kraken.invoice.entity.Invoice;
+import com.kraken.invoice.entity.InvoiceDto;
+import com.kraken.invoice.entity.InvoiceStatusDto;
+import com.kraken.invoice.entity.Transaction;
+import com.kraken.invoice.repository.InvoiceRepository;
+import com.kraken.invoice.repository.TransactionRepository;
+import com.kraken.invoice.service.InvoiceMapper;
+import jakarta.persistence.EntityManagerFactory;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.boot.test.autoconfigure.orm.jpa.TestEntityManager;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.jpa.domain.Specification;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.kraken.invoice.repository.InvoiceSpecifications.invoiceIdAfter;
+import static com.kraken.invoice.repository.InvoiceSpecifications.invoiceNumber;
+import static com.kraken.invoice.repository.InvoiceSpecifications.receiptDateBetween;
+import static com.kraken.invoice.repository.InvoiceSpecifications.status;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Counts the SQL statements needed to list invoices with their transactions, so that a
+ * per-invoice lazy load creeping back into the read paths fails the build.
+ */
+@DataJpaTest(properties = {
+        "spring.jpa.database-platform=org.hibernate.dialect.H2Dialect",
+        "spring.jpa.properties.hibernate.generate_statistics=true",
+        "spring.jpa.properties.hibernate.auto_quote_keyword=true"
+})
+class InvoiceRepositoryTest {
+    private static final int INVOICES = 1000;
+    private static final LocalDateTime RECEIPT_BASE = LocalDateTime.of(2024, 1, 1, 0, 0);
+
+    @Autowired
+    private InvoiceRepository invoiceRepository;
+
+    @Autowired
+    private TransactionRepository transactionRepository;
+
+    @Autowired
+    private TestEntityManager entityManager;
+
+    @Autowired
+    private EntityManagerFactory entityManagerFactory;
+
+    private Statistics statistics;
+
+    @BeforeEach
+    void setUp() {
+        for (long id = 1; id <= INVOICES; id++) {
+            Invoice invoice = new Invoice();
+            invoice.setInvoiceId(id);
+            invoice.setNetAmount(BigDecimal.TEN);
+            invoice.setInvoiceNumber("INV" + id);
+            invoice.setStatus(id % 10 == 0 ? "invalid" : "valid");
+            invoice.setReceiptDate(RECEIPT_BASE.plusDays(id));
+            List<Transaction> txns = new ArrayList<>();
+            for (long t = 0; t < 2; t++) {
+                Transaction txn = new Transaction();
+                txn.setTrxnId(id * 10 + t);
+                txn.setNetTransactionAmount(BigDecimal.ONE);
+                txn.setInvoice(invoice);
+                txns.add(txn);
+            }
+            invoice.setTransactions(txns);
+            entityManager.persist(invoice);
+        }
+        entityManager.flush();
+        entityManager.clear();
+        statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+        statistics.clear();
+    }
+
+    @Test
+    void testFindAllLoadsTransactionsInBatches() {
+        List<InvoiceDto> dtos = invoiceRepository.findAll().stream()
+                .map(InvoiceMapper::toDto)
+                .toList();
+
+        assertEquals(INVOICES, dtos.size());
+        assertTrue(dtos.stream().allMatch(dto -> dto.getTransactions().size() == 2));
+        // one query for the invoices, then one per 100 transaction lists
+        assertTrue(statistics.getPrepareStatementCount() <= 1 + INVOICES / 100,
+                "statements: " + statistics.getPrepareStatementCount());
+    }
+
+    @Test
+    void testStatusLookupsSkipTransactions() {
+        assertEquals(10L, invoiceRepository.findStatusByInvoiceId(10L).orElseThrow().getInvoiceId());
+        assertEquals(List.of(1L, 2L, 999L), invoiceRepository.findStatusByInvoiceIdIn(List.of(999L, 2L, 1L, 5000L))
+                .stream().map(InvoiceStatusDto::getInvoiceId).toList());
+        assertEquals(2, statistics.getPrepareStatementCount());
+        assertEquals(0, statistics.getCollectionFetchCount());
+    }
+
+    @Test
+    void testSearchFiltersAreCombined() {
+        Specification<Invoice> invalidInRange = Specification.where(status("invalid"))
+                .and(receiptDateBetween(RECEIPT_BASE.plusDays(100), RECEIPT_BASE.plusDays(200)))
+                .and(invoiceIdAfter(150L));
+        List<Long> ids = invoiceRepository.findBy(invalidInRange,
+                        query -> query.sortBy(Sort.by("invoiceId")).limit(3).all())
+                .stream().map(Invoice::getInvoiceId).toList();
+
+        assertEquals(List.of(160L, 170L, 180L), ids);
+        assertEquals(List.of(42L), invoiceRepository.findAll(invoiceNumber("INV42")).stream()
+                .map(Invoice::getInvoiceId).toList());
+        assertEquals(List.of(420L, 421L), transactionRepository.findByInvoiceId(42L).stream()
+                .map(Transaction::getTrxnId).toList());
+    }
+
+    @Test
+    void testLookupColumnsAreIndexed() {
+        List<?> indexes = entityManager.getEntityManager()
+                .createNativeQuery("select lower(index_name) from information_schema.indexes")
+                .getResultList();
+
+        for (String index : List.of("idx_invoice_invoice_number", "idx_invoice_status_id", "idx_invoice_receipt_date",
+                "idx_invoice_payment_due_date", "idx_transaction_invoice_id")) {
+            assertTrue(indexes.contains(index), "missing index " + index);
+        }
+    }
+
+    @Test
+    void testFindWithTransactionsByInvoiceIdUsesOneQuery() {
+        Invoice invoice = invoiceRepository.findWithTransactionsByInvoiceId(42L).orElseThrow();
+
+        assertEquals(2, InvoiceMapper.toDto(invoice).getTransactions().size());
+        assertEquals(1, statistics.getPrepareStatementCount());
+    }
+
+    @Test
+    void testFindWithTransactionsByInvoiceIdInUsesOneQuery() {
+        List<InvoiceDto> dtos = invoiceRepository.findWithTransactionsByInvoiceIdIn(List.of(3L, 42L, 5000L)).stream()
+                .map(InvoiceMapper::toDto)
+                .toList();
+
+        assertEquals(2, dtos.size());
+        assertTrue(dtos.stream().allMatch(dto -> dto.getTransactions().size() == 2));
+        assertEquals(1, statistics.getPrepareStatementCount());
+    }
+}
@@ -7,6 +7,7 @@ import com.kraken.invoice.entity.Transaction;
 import com.kraken.invoice.entity.TransactionDto;
 import com.kraken.invoice.repository.InvoiceRepository;
 import com.kraken.invoice.repository.TransactionRepository;
+import com.kraken.invoice.service.IngestMetrics;
 import com.kraken.invoice.service.InvoiceService;
 import com.kraken.invoice.service.InvoiceTransactionParser;
 import org.junit.jupiter.api.BeforeEach;
@@ -14,7 +15,9 @@ import org.junit.jupiter.api.Test;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.mockito.Spy;
 import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.domain.Sort;
 import org.springframework.mock.web.MockMultipartFile;
 import org.springframework.web.multipart.MultipartFile;
 
@@ -28,6 +31,7 @@ import java.util.Optional;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.anyCollection;
 import static org.mockito.Mockito.when;
 
@@ -42,6 +46,9 @@ class InvoiceServiceTest {
     @Mock
     private InvoiceTransactionParser invoiceTransactionParser;
 
+    @Spy
+    private IngestMetrics ingestMetrics = IngestMetricsTest.simpleMetrics();
+
     @InjectMocks
     private InvoiceService invoiceService;
 
@@ -52,7 +59,7 @@ class InvoiceServiceTest {
         invoice.setInvoiceId(1L);
         invoice.setTransactions(Collections.emptyList());
 
-        when(invoiceRepository.findById(1L)).thenReturn(Optional.of(invoice));
+        when(invoiceRepository.findWithTransactionsByInvoiceId(1L)).thenReturn(Optional.of(invoice));
 
         InvoiceDto dto = invoiceService.getInvoiceById(1L);
 
@@ -66,7 +73,7 @@ class InvoiceServiceTest {
         invoice.setInvoiceId(10L);
         invoice.setTransactions(Collections.emptyList());
 
-        when(invoiceRepository.findAll()).thenReturn(List.of(invoice));
+        when(invoiceRepository.findAll(any(Sort.class))).thenReturn(List.of(invoice));
 
         List<InvoiceDto> result = invoiceService.getAllInvoices();
 
@@ -98,7 +105,7 @@ class InvoiceServiceTest {
         invoice.setInvoiceId(dto.getInvoiceId());
         invoice.setTransactions(List.of(txn1, txn2));
 
-        when(invoiceRepository.findById(1L)).thenReturn(Optional.of(invoice));
+        when(invoiceRepository.findWithTransactionsByInvoiceId(1L)).thenReturn(Optional.of(invoice));
 
         InvoiceDto result = invoiceService.getInvoiceById(1L);
         assertEquals(1L, result.getInvoiceId());
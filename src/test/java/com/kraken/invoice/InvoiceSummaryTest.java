@@ -0,0 +1,89 @@
+package com.kraken.invoice;
+
+import com.kraken.invoice.entity.Invoice;
+import com.kraken.invoice.entity.InvoiceSummary;
+import com.kraken.invoice.entity.InvoiceSummaryDto;
+import com.kraken.invoice.service.InvoiceSummaryDelta;
+import com.kraken.invoice.service.InvoiceSummaryService;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class InvoiceSummaryTest {
+
+    @Test
+    void testReuploadMovesInvoiceBetweenBuckets() {
+        Invoice stored = invoice(1L, LocalDateTime.of(2025, 1, 15, 10, 0), "invalid",
+                "Net amount mismatch. GST amount mismatch.", "110.00");
+        Invoice corrected = invoice(1L, LocalDateTime.of(2025, 1, 15, 10, 0), "valid", "Valid invoice.", "110.00");
+
+        InvoiceSummaryDelta delta = new InvoiceSummaryDelta();
+        delta.subtract(stored);
+        delta.add(corrected);
+        List<InvoiceSummary> changes = delta.changes();
+
+        assertEquals(2, changes.size());
+        InvoiceSummary invalid = changes.get(0);
+        assertEquals("2025-01", invalid.getReceiptMonth());
+        assertEquals("invalid", invalid.getStatus());
+        assertEquals(-1, invalid.getInvoiceCount());
+        assertEquals(-1, invalid.getNetMismatch());
+        assertEquals(-1, invalid.getGstMismatch());
+        assertEquals(0, invalid.getCountMismatch());
+        assertEquals(0, new BigDecimal("-110.00").compareTo(invalid.getGrossAmount()));
+        assertEquals(1, changes.get(1).getInvoiceCount());
+    }
+
+    @Test
+    void testIdenticalReuploadChangesNothing() {
+        Invoice invoice = invoice(1L, LocalDateTime.of(2025, 1, 15, 10, 0), "invalid",
+                "Transaction count mismatch (expected 3, found 2).", "50.00");
+        InvoiceSummaryDelta delta = new InvoiceSummaryDelta();
+        delta.subtract(invoice);
+        delta.add(invoice);
+
+        assertTrue(delta.changes().isEmpty());
+    }
+
+    @Test
+    void testSummaryFoldsBucketsByMonth() {
+        InvoiceSummaryDelta delta = new InvoiceSummaryDelta();
+        delta.add(invoice(1L, LocalDateTime.of(2025, 1, 2, 0, 0), "valid", "Valid invoice.", "10.00"));
+        delta.add(invoice(2L, LocalDateTime.of(2025, 1, 30, 0, 0), "invalid", "GST amount mismatch.", "20.00"));
+        delta.add(invoice(3L, LocalDateTime.of(2025, 2, 1, 0, 0), "invalid",
+                "Net amount mismatch. GST amount mismatch.", "30.00"));
+        delta.add(invoice(4L, null, "valid", "Valid invoice.", "40.00"));
+
+        InvoiceSummaryDto summary = InvoiceSummaryService.summarize(delta.changes(), null);
+        assertEquals(4, summary.getInvoices());
+        assertEquals(2, summary.getValid());
+        assertEquals(2, summary.getInvalid());
+        assertEquals(0, new BigDecimal("100.00").compareTo(summary.getGrossAmount()));
+        assertEquals(List.of("GST amount mismatch", "Net amount mismatch"), List.copyOf(summary.getReasons().keySet()));
+        assertEquals(List.of("2025-01", "2025-02", InvoiceSummary.NONE),
+                summary.getMonths().stream().map(month -> month.getMonth()).toList());
+        assertEquals(2, summary.getMonths().get(0).getInvoices());
+        assertEquals(0, new BigDecimal("30.00").compareTo(summary.getMonths().get(0).getGrossAmount()));
+
+        InvoiceSummaryDto validOnly = InvoiceSummaryService.summarize(delta.changes(), "valid");
+        assertEquals(2, validOnly.getInvoices());
+        assertTrue(validOnly.getReasons().isEmpty());
+    }
+
+    private static Invoice invoice(Long id, LocalDateTime receiptDate, String status, String reason, String gross) {
+        Invoice invoice = new Invoice();
+        invoice.setInvoiceId(id);
+        invoice.setReceiptDate(receiptDate);
+        invoice.setStatus(status);
+        invoice.setReason(reason);
+        invoice.setGrossAmount(new BigDecimal(gross));
+        invoice.setNetAmount(new BigDecimal(gross));
+        invoice.setGstAmount(BigDecimal.ZERO);
+        return invoice;
+    }
+}
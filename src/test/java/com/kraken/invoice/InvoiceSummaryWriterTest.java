@@ -0,0 +1,158 @@
+package com.kraken.invoice;
+
+import com.kraken.invoice.entity.Invoice;
+import com.kraken.invoice.repository.InvoiceSummaryWriter;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementCreator;
+import org.springframework.jdbc.core.RowMapper;
+
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.LongStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Checks the statements that lock invoices before an upload writes them, against a mocked
+ * connection that keeps row locks the way PostgreSQL does for them.
+ */
+class InvoiceSummaryWriterTest {
+
+    @Test
+    void testNewIdsAreClaimedBeforeStoredRowsAreLocked() {
+        RowLocks database = new RowLocks(Set.of(3L));
+        InvoiceSummaryWriter writer = writer(database);
+
+        assertTrue(writer.lockCurrent(List.of(7L, 3L)).isEmpty());
+
+        assertEquals(2, database.statements.size());
+        assertTrue(database.statements.get(0).contains("ON CONFLICT (invoice_id) DO NOTHING"),
+                database.statements.get(0));
+        assertTrue(database.statements.get(1).contains("FOR UPDATE"), database.statements.get(1));
+        // only the id that was stored before is read back
+        assertEquals(List.of(3L), database.locked.get(1));
+    }
+
+    @Test
+    void testUploadOfNewIdsReadsNothingBack() {
+        RowLocks database = new RowLocks(Set.of());
+        InvoiceSummaryWriter writer = writer(database);
+
+        assertTrue(writer.lockCurrent(List.of(7L, 3L)).isEmpty());
+
+        assertEquals(1, database.statements.size());
+    }
+
+    @Test
+    void testDisjointChunksDoNotBlockEachOther() throws Exception {
+        RowLocks database = new RowLocks(Set.of(1L, 600L));
+        InvoiceSummaryWriter writer = writer(database);
+        CountDownLatch firstLocked = new CountDownLatch(1);
+        CountDownLatch firstCommit = new CountDownLatch(1);
+
+        // the first chunk keeps its locks, as a transaction still writing would
+        CompletableFuture<Void> first = CompletableFuture.runAsync(() -> {
+            writer.lockCurrent(LongStream.rangeClosed(1, 500).boxed().toList());
+            firstLocked.countDown();
+            await(firstCommit);
+            database.release();
+        });
+        assertTrue(firstLocked.await(5, TimeUnit.SECONDS));
+        try {
+            CompletableFuture<Void> second = CompletableFuture.runAsync(() -> {
+                writer.lockCurrent(LongStream.rangeClosed(501, 1000).boxed().toList());
+                database.release();
+            });
+            second.get(5, TimeUnit.SECONDS);
+        } finally {
+            firstCommit.countDown();
+        }
+        first.get(5, TimeUnit.SECONDS);
+    }
+
+    private static InvoiceSummaryWriter writer(RowLocks database) {
+        InvoiceSummaryWriter writer = new InvoiceSummaryWriter();
+        writer.jdbcTemplate = mock(JdbcTemplate.class);
+        doAnswer(invocation -> database.run(invocation.getArgument(0)))
+                .when(writer.jdbcTemplate).query(any(PreparedStatementCreator.class), any(RowMapper.class));
+        return writer;
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Row locks of the statements lockCurrent runs. Each id is held by the thread that locked it,
+     * inserted or stored, until that thread releases its locks; another thread locking it waits.
+     */
+    private static class RowLocks {
+        final Set<Long> stored;
+        final Map<Long, Thread> owners = new HashMap<>();
+        final List<String> statements = new ArrayList<>();
+        final List<List<Long>> locked = new ArrayList<>();
+
+        RowLocks(Set<Long> stored) {
+            this.stored = stored;
+        }
+
+        Object run(PreparedStatementCreator creator) throws Exception {
+            String[] sql = new String[1];
+            Object[][] ids = new Object[1][];
+            Connection connection = mock(Connection.class);
+            when(connection.prepareStatement(anyString())).thenAnswer(invocation -> {
+                sql[0] = invocation.getArgument(0);
+                return mock(PreparedStatement.class);
+            });
+            when(connection.createArrayOf(any(), any())).thenAnswer(invocation -> {
+                ids[0] = invocation.getArgument(1);
+                return mock(Array.class);
+            });
+            creator.createPreparedStatement(connection);
+            List<Long> rows = Arrays.stream(ids[0]).map(Long.class::cast).sorted().toList();
+            lock(sql[0], rows);
+            if (sql[0].contains("INSERT INTO invoice")) {
+                // RETURNING gives the ids that were not stored yet
+                return rows.stream().filter(id -> !stored.contains(id)).toList();
+            }
+            return new ArrayList<Invoice>();
+        }
+
+        synchronized void lock(String sql, List<Long> ids) throws InterruptedException {
+            statements.add(sql);
+            locked.add(ids);
+            for (Long id : ids) {
+                while (owners.containsKey(id) && owners.get(id) != Thread.currentThread()) {
+                    wait();
+                }
+                owners.put(id, Thread.currentThread());
+            }
+        }
+
+        synchronized void release() {
+            owners.values().removeIf(owner -> owner == Thread.currentThread());
+            notifyAll();
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.kraken.invoice;
+
+import com.kraken.invoice.entity.InvoiceDto;
+import com.kraken.invoice.service.InvoiceTotalsTable;
+import com.kraken.invoice.service.ReconciliationTotals;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class InvoiceTotalsTableTest {
+
+    @Test
+    void testSumsAndCountsAcrossGrowth() {
+        InvoiceTotalsTable table = new InvoiceTotalsTable(4);
+        for (long id = 0; id < 10_000; id++) {
+            table.add(id, new BigDecimal("10.50"), new BigDecimal("1.05"));
+            table.add(id, new BigDecimal("-0.5"), null);
+        }
+        table.add(Long.MIN_VALUE, BigDecimal.ONE, BigDecimal.ONE);
+
+        assertEquals(10_001, table.size());
+        for (long id = 0; id < 10_000; id++) {
+            assertEquals(2, table.count(id));
+            assertEquals(0, new BigDecimal("10.00").compareTo(table.netSum(id)));
+            assertEquals(0, new BigDecimal("1.05").compareTo(table.gstSum(id)));
+        }
+        assertEquals(1, table.count(Long.MIN_VALUE));
+        assertFalse(table.contains(10_000));
+        assertEquals(BigDecimal.ZERO, table.netSum(10_000));
+    }
+
+    @Test
+    void testFallsBackToBigDecimalForFineScaleAndOverflow() {
+        InvoiceTotalsTable table = new InvoiceTotalsTable();
+        table.add(1, new BigDecimal("0.10"), BigDecimal.ZERO);
+        table.add(1, new BigDecimal("0.001"), BigDecimal.ZERO);
+        table.add(2, new BigDecimal("90000000000000000"), BigDecimal.ZERO);
+        table.add(3, new BigDecimal("9000000000000000"), BigDecimal.ZERO);
+        for (int i = 0; i < 2000; i++) {
+            table.add(3, new BigDecimal("9000000000000000"), BigDecimal.ZERO);
+        }
+
+        assertEquals(new BigDecimal("0.101"), table.netSum(1));
+        assertEquals(0, new BigDecimal("90000000000000000").compareTo(table.netSum(2)));
+        assertEquals(0, new BigDecimal("9000000000000000").multiply(BigDecimal.valueOf(2001))
+                .compareTo(table.netSum(3)));
+        assertEquals(2001, table.count(3));
+    }
+
+    @Test
+    void testValidationMatchesReconciliationTotals() {
+        InvoiceTotalsTable table = new InvoiceTotalsTable();
+        ReconciliationTotals totals = new ReconciliationTotals();
+        for (String[] amounts : new String[][]{{"4.00", "0.40"}, {"6.001", "0.60"}}) {
+            table.add(7, new BigDecimal(amounts[0]), new BigDecimal(amounts[1]));
+            totals.add(new BigDecimal(amounts[0]), new BigDecimal(amounts[1]));
+        }
+        InvoiceDto fromTable = invoice();
+        InvoiceDto fromTotals = invoice();
+
+        table.validate(7, fromTable);
+        totals.validate(fromTotals);
+
+        assertTrue(table.isComplete(7, fromTable));
+        assertEquals(fromTotals.getStatus(), fromTable.getStatus());
+        assertEquals(fromTotals.getReason(), fromTable.getReason());
+        assertEquals("Net amount mismatch.", fromTable.getReason());
+    }
+
+    private static InvoiceDto invoice() {
+        InvoiceDto dto = new InvoiceDto();
+        dto.setInvoiceId(7L);
+        dto.setNetAmount(new BigDecimal("10.00"));
+        dto.setGstAmount(new BigDecimal("1.0"));
+        dto.setTotalNoTrxn(2);
+        return dto;
+    }
+}
@@ -0,0 +1,246 @@
+package com.kraken.invoice;
+
+import com.github.luben.zstd.Zstd;
+import com.kraken.invoice.entity.InvoiceDto;
+import com.kraken.invoice.entity.TransactionDto;
+import com.kraken.invoice.exception.ErrorBudgetExceededException;
+import com.kraken.invoice.exception.InvoiceFileProcessingException;
+import com.kraken.invoice.exception.TransactionFileProcessingException;
+import com.kraken.invoice.service.InvoiceTransactionParser;
+import com.kraken.invoice.service.RejectionReport;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.function.Executable;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.core.io.Resource;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.BiConsumer;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class InvoiceTransactionParserTest {
+
+    private static final String HEADER = "trxn_id,date_received,transaction_date,invoice_id,invoice_number,"
+            + "billing_period_start,billing_period_end,net_transaction_amount,gst_amount\n";
+
+    private final InvoiceTransactionParser parser = new InvoiceTransactionParser();
+
+    @BeforeEach
+    void setUp() {
+        parser.ingestMetrics = IngestMetricsTest.simpleMetrics();
+    }
+
+    @Test
+    void testParallelParseMatchesSequential() throws IOException {
+        StringBuilder csv = new StringBuilder(HEADER);
+        for (int i = 1; i <= 500; i++) {
+            String invoiceNumber = i % 7 == 0 ? "\"INV\n" + i + "\"" : "INV" + i;
+            String invoiceId = i % 50 == 0 ? "" : String.valueOf(i % 13);
+            csv.append(i).append(",2007-12-12 00:00:00.000,2006-03-17 00:00:00.000,").append(invoiceId).append(',')
+                    .append(invoiceNumber).append(",2006-01-01 00:00:00.000,2006-03-17 00:00:00.000,")
+                    .append(i).append(".25,0.").append(i % 10).append('\n');
+        }
+        ByteArrayResource file = new ByteArrayResource(csv.toString().getBytes(StandardCharsets.UTF_8));
+
+        List<String> sequential = new ArrayList<>();
+        parser.streamTransactions(file, (invoiceId, dto) -> sequential.add(describe(invoiceId, dto)));
+        List<String> parallel = new ArrayList<>();
+        parser.streamTransactionsParallel(file, (invoiceId, dto) -> parallel.add(describe(invoiceId, dto)), 4, 256);
+
+        assertEquals(490, sequential.size());
+        assertEquals(sequential, parallel);
+    }
+
+    @Test
+    void testParallelParseReportsSameLineNumber() {
+        StringBuilder csv = new StringBuilder(HEADER);
+        for (int i = 1; i <= 100; i++) {
+            csv.append(i).append(",,,1,\"multi\nline\",,,1.00,0.10\n");
+        }
+        csv.append("101,broken\n");
+        for (int i = 102; i <= 200; i++) {
+            csv.append(i).append(",,,1,INV,,,1.00,0.10\n");
+        }
+        ByteArrayResource file = new ByteArrayResource(csv.toString().getBytes(StandardCharsets.UTF_8));
+
+        TransactionFileProcessingException sequential = assertThrows(TransactionFileProcessingException.class,
+                () -> parser.streamTransactions(file, (invoiceId, dto) -> { }));
+        TransactionFileProcessingException parallel = assertThrows(TransactionFileProcessingException.class,
+                () -> parser.streamTransactionsParallel(file, (invoiceId, dto) -> { }, 3, 128));
+
+        assertEquals("Error processing Transaction file. Invalid transaction record at line 101",
+                sequential.getMessage());
+        assertEquals(sequential.getMessage(), parallel.getMessage());
+    }
+
+    @Test
+    void testErrorBudgetQuarantinesMalformedRows(@TempDir Path dir) throws IOException {
+        StringBuilder csv = new StringBuilder(HEADER);
+        for (int i = 1; i <= 200; i++) {
+            csv.append(i % 100 == 50 ? i + ",broken\n" : i + ",,,1,INV,,,1.00,0.10\n");
+        }
+        ByteArrayResource file = new ByteArrayResource(csv.toString().getBytes(StandardCharsets.UTF_8));
+
+        RejectionReport sequential = new RejectionReport("seq", false, 10, 10, dir);
+        sequential.setErrorBudget(2, 0);
+        List<Long> read = new ArrayList<>();
+        parser.streamTransactions(file, (invoiceId, dto) -> read.add(dto.getTrxnId()), sequential);
+        RejectionReport parallel = new RejectionReport("par", false, 10, 10, dir);
+        parallel.setErrorBudget(2, 0);
+        List<Long> readParallel = new ArrayList<>();
+        parser.streamTransactionsParallel(file, (invoiceId, dto) -> readParallel.add(dto.getTrxnId()), 3, 128,
+                parallel);
+
+        assertEquals(198, read.size());
+        assertEquals(read, readParallel);
+        assertEquals(2, sequential.getRowsQuarantined());
+        assertEquals(150, parallel.summary().getSample().get(1).getLine());
+
+        RejectionReport tooFewRows = new RejectionReport("rows", false, 10, 10, dir);
+        tooFewRows.setErrorBudget(1, 0);
+        ErrorBudgetExceededException rows = assertThrows(ErrorBudgetExceededException.class,
+                () -> parser.streamTransactionsFast(file, (invoiceId, dto) -> { }, tooFewRows));
+        assertEquals("Error budget exceeded: more than 1 malformed records, the last at line 150 of the "
+                + "transaction file", rows.getMessage());
+
+        RejectionReport tooLowShare = new RejectionReport("share", false, 10, 10, dir);
+        tooLowShare.setErrorBudget(0, 0.5);
+        assertThrows(ErrorBudgetExceededException.class,
+                () -> parser.streamTransactions(file, (invoiceId, dto) -> { }, tooLowShare));
+    }
+
+    @Test
+    void testErrorBudgetDoesNotCoverUnreadableRecords(@TempDir Path dir) {
+        StringBuilder csv = new StringBuilder(HEADER);
+        for (int i = 1; i <= 100; i++) {
+            // text after a closing quote cannot be tokenized
+            csv.append(i == 50 ? i + ",,,1,\"INV\"x,,,1.00,0.10\n" : i + ",,,1,INV,,,1.00,0.10\n");
+        }
+        ByteArrayResource file = new ByteArrayResource(csv.toString().getBytes(StandardCharsets.UTF_8));
+        List<Executable> parsers = List.of(
+                () -> parser.streamTransactions(file, (invoiceId, dto) -> { }, tolerant("commons", dir)),
+                () -> parser.streamTransactionsFast(file, (invoiceId, dto) -> { }, tolerant("fast", dir)),
+                () -> parser.streamTransactionsParallel(file, (invoiceId, dto) -> { }, 3, 128,
+                        tolerant("parallel", dir)));
+        for (Executable parse : parsers) {
+            TransactionFileProcessingException failure = assertThrows(TransactionFileProcessingException.class,
+                    parse);
+            assertEquals("Error processing Transaction file. Invalid transaction record at line 50",
+                    failure.getMessage());
+        }
+
+        String invoices = "invoice_id,invoice_number,gross_amount,gst_amount,net_amount,receipt_date,"
+                + "payment_due_date,total_no_trxn\n1,INV-1,10,1,9,,,1\n2,INV-2,10,1,9,,,1\n3,\"INV-3,10,1,9,,,1\n"
+                + "4,INV-4,10,1,9,,,1\n";
+        ByteArrayResource invoiceFile = new ByteArrayResource(invoices.getBytes(StandardCharsets.UTF_8));
+        RejectionReport commons = tolerant("invoices", dir);
+        InvoiceFileProcessingException unterminated = assertThrows(InvoiceFileProcessingException.class,
+                () -> parser.parseInvoices(invoiceFile, commons));
+        assertEquals("Error Processing Invoice File .Invalid invoice record at line 3", unterminated.getMessage());
+        assertEquals(0, commons.getRowsQuarantined());
+        InvoiceFileProcessingException fast = assertThrows(InvoiceFileProcessingException.class,
+                () -> parser.parseInvoicesFast(invoiceFile, tolerant("invoices-fast", dir)));
+        assertEquals(unterminated.getMessage(), fast.getMessage());
+    }
+
+    private static RejectionReport tolerant(String reportId, Path dir) {
+        RejectionReport report = new RejectionReport(reportId, false, 10, 10, dir);
+        report.setErrorBudget(10, 0);
+        return report;
+    }
+
+    @Test
+    void testFastParserMatchesCommons() throws IOException {
+        for (String file : List.of("data/invoices.csv", "sampleFiles/InvoicesTest.csv")) {
+            ClassPathResource invoices = new ClassPathResource(file);
+            assertEquals(describe(parser.parseInvoices(invoices)), describe(parser.parseInvoicesFast(invoices)));
+        }
+        for (String file : List.of("data/transactions.csv", "sampleFiles/TransactionTest.csv")) {
+            ClassPathResource transactions = new ClassPathResource(file);
+            assertEquals(parseAll(transactions, false), parseAll(transactions, true));
+        }
+
+        String edgeCases = HEADER
+                + "1, 2007-12-12T00:00:00 ,2006-03-17 00:00,7,\"A \"\"quoted\"\", value\","
+                + ",2006-03-17 1:00:00,1E+2,-.5\r\n"
+                + "\r\n"
+                + "2,2007-13-12 00:00:00.000,2006-03-17 00:00:00.123456789,+8,  X ,,,12345678901234567890.5,7.\n"
+                + "3,,,abc,Y,,,-,0.00\n"
+                + "4,,,9,\"multi\nline\",,,5,5";
+        ByteArrayResource file = new ByteArrayResource(edgeCases.getBytes(StandardCharsets.UTF_8));
+        assertEquals(parseAll(file, false), parseAll(file, true));
+        assertEquals(3, parseAll(file, true).size());
+    }
+
+    @Test
+    void testCompressedFilesParseLikePlainOnes() throws IOException {
+        byte[] invoices = new ClassPathResource("data/invoices.csv").getContentAsByteArray();
+        byte[] transactions = new ClassPathResource("data/transactions.csv").getContentAsByteArray();
+        ByteArrayResource plainTransactions = new ByteArrayResource(transactions);
+        Map<Long, String> expectedInvoices = describe(parser.parseInvoices(new ByteArrayResource(invoices)));
+        List<String> expectedTransactions = parseAll(plainTransactions, false);
+
+        for (byte[] compressed : List.of(gzip(transactions), Zstd.compress(transactions))) {
+            ByteArrayResource file = new ByteArrayResource(compressed);
+            assertEquals(expectedTransactions, parseAll(file, false));
+            assertEquals(expectedTransactions, parseAll(file, true));
+            List<String> parallel = new ArrayList<>();
+            parser.streamTransactionsParallel(file,
+                    (invoiceId, dto) -> parallel.add(describe(invoiceId, dto)), 3, 4096);
+            List<String> plainParallel = new ArrayList<>();
+            parser.streamTransactionsParallel(plainTransactions,
+                    (invoiceId, dto) -> plainParallel.add(describe(invoiceId, dto)), 3, 4096);
+            assertEquals(plainParallel, parallel);
+        }
+        for (byte[] compressed : List.of(gzip(invoices), Zstd.compress(invoices))) {
+            ByteArrayResource file = new ByteArrayResource(compressed);
+            assertEquals(expectedInvoices, describe(parser.parseInvoices(file)));
+            assertEquals(expectedInvoices, describe(parser.parseInvoicesFast(file)));
+        }
+    }
+
+    private static byte[] gzip(byte[] content) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(content);
+        }
+        return out.toByteArray();
+    }
+
+    private List<String> parseAll(Resource transactions, boolean fast) throws IOException {
+        List<String> rows = new ArrayList<>();
+        BiConsumer<Long, TransactionDto> consumer = (invoiceId, dto) -> rows.add(describe(invoiceId, dto)
+                + "|" + dto.getTransactionDate() + "|" + dto.getBillingPeriodStart() + "|" + dto.getBillingPeriodEnd());
+        if (fast) {
+            parser.streamTransactionsFast(transactions, consumer);
+        } else {
+            parser.streamTransactions(transactions, consumer);
+        }
+        return rows;
+    }
+
+    private Map<Long, String> describe(Map<Long, InvoiceDto> invoices) {
+        Map<Long, String> described = new TreeMap<>();
+        invoices.forEach((id, dto) -> described.put(id, dto.getInvoiceNumber() + "|" + dto.getGrossAmount() + "|"
+                + dto.getGstAmount() + "|" + dto.getNetAmount() + "|" + dto.getReceiptDate() + "|"
+                + dto.getPaymentDueDate() + "|" + dto.getTotalNoTrxn()));
+        return described;
+    }
+
+    private String describe(Long invoiceId, TransactionDto dto) {
+        return invoiceId + "|" + dto.getTrxnId() + "|" + dto.getInvoiceNumber() + "|"
+                + dto.getNetTransactionAmount() + "|" + dto.getGstAmount() + "|" + dto.getDateReceived();
+    }
+}
@@ -0,0 +1,279 @@
+package com.kraken.invoice;
+
+import com.kraken.invoice.config.IngestProperties;
+import com.kraken.invoice.entity.IngestOptions;
+import com.kraken.invoice.entity.Invoice;
+import com.kraken.invoice.entity.Transaction;
+import com.kraken.invoice.entity.UploadSummaryDto;
+import com.kraken.invoice.exception.ErrorBudgetExceededException;
+import com.kraken.invoice.exception.UploadRejectedException;
+import com.kraken.invoice.service.IngestProgress;
+import com.kraken.invoice.service.InvoicePersistenceService;
+import com.kraken.invoice.service.InvoiceService;
+import com.kraken.invoice.service.InvoiceTransactionParser;
+import com.kraken.invoice.service.PipelineExecutor;
+import com.kraken.invoice.service.PipelineInvoiceService;
+import com.kraken.invoice.service.RejectionReport;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.core.io.InputStreamSource;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+
+class PipelineInvoiceServiceTest {
+    private static final ClassPathResource INVOICES = new ClassPathResource("data/invoices.csv");
+    private static final ClassPathResource TRANSACTIONS = new ClassPathResource("data/transactions.csv");
+
+    private final InvoiceTransactionParser parser = new InvoiceTransactionParser();
+    private final PipelineInvoiceService service = new PipelineInvoiceService();
+
+    @BeforeEach
+    void setUp() {
+        parser.ingestProperties = new IngestProperties();
+        parser.ingestMetrics = IngestMetricsTest.simpleMetrics();
+        IngestProperties properties = new IngestProperties();
+        // tiny batches and queues so that every stage blocks on the next one
+        properties.setFlushSize(3);
+        properties.getPipeline().setReconcileThreads(3);
+        properties.getPipeline().setMapThreads(2);
+        properties.getPipeline().setPersistThreads(2);
+        properties.getPipeline().setQueueCapacity(1);
+        properties.getPipeline().setBatchSize(2);
+        service.invoiceTransactionParser = parser;
+        service.ingestMetrics = IngestMetricsTest.simpleMetrics();
+        service.ingestProperties = properties;
+        service.invoicePersistenceService = mock(InvoicePersistenceService.class);
+        startExecutor(7);
+    }
+
+    @AfterEach
+    void tearDown() {
+        service.pipelineExecutor.shutdown();
+    }
+
+    @Test
+    void testMatchesInMemoryReconciliation() throws IOException {
+        InvoiceService invoiceService = new InvoiceService();
+        invoiceService.invoiceTransactionParser = parser;
+        invoiceService.ingestMetrics = service.ingestMetrics;
+        List<Invoice> expected = invoiceService.reconcile(parser.parseInvoices(INVOICES),
+                parser.parseTransactions(TRANSACTIONS), new IngestProgress());
+
+        List<Invoice> written = Collections.synchronizedList(new ArrayList<>());
+        doAnswer(invocation -> {
+            written.addAll(invocation.getArgument(0));
+            return invocation.getArgument(0);
+        }).when(service.invoicePersistenceService).persist(any(), any());
+
+        UploadSummaryDto summary = service.parseAndSave(INVOICES, TRANSACTIONS, new IngestOptions(),
+                new IngestProgress());
+
+        assertEquals("pipeline", summary.getMode());
+        assertEquals(expected.size(), summary.getInvoicesRead());
+        // a reopened invoice is written twice; the last write carries its final status
+        Map<Long, Invoice> lastWrite = new LinkedHashMap<>();
+        Map<Long, Set<Long>> transactionIds = new LinkedHashMap<>();
+        for (Invoice invoice : written) {
+            lastWrite.put(invoice.getInvoiceId(), invoice);
+            invoice.getTransactions().forEach(txn -> transactionIds
+                    .computeIfAbsent(invoice.getInvoiceId(), id -> new TreeSet<>()).add(txn.getTrxnId()));
+        }
+        assertEquals(expected.size(), lastWrite.size());
+        assertEquals(lastWrite.size(), summary.getInvoicesSaved());
+        for (Invoice invoice : expected) {
+            Invoice actual = lastWrite.get(invoice.getInvoiceId());
+            assertEquals(invoice.getStatus(), actual.getStatus());
+            assertEquals(invoice.getReason(), actual.getReason());
+            assertEquals(ids(invoice), transactionIds.getOrDefault(invoice.getInvoiceId(), Set.of()));
+        }
+        assertEquals(expected.stream().filter(invoice -> "valid".equals(invoice.getStatus())).count(),
+                summary.getValidInvoices());
+
+        // a second write only carries the late transactions, so its hash is recomputed from the database
+        Map<Long, Long> writes = written.stream()
+                .collect(Collectors.groupingBy(Invoice::getInvoiceId, Collectors.counting()));
+        List<Long> reopened = writes.entrySet().stream().filter(entry -> entry.getValue() > 1)
+                .map(Map.Entry::getKey).sorted().toList();
+        assertFalse(reopened.isEmpty());
+        ArgumentCaptor<Collection<Long>> refreshed = ArgumentCaptor.captor();
+        verify(service.invoicePersistenceService).refreshContentHashes(refreshed.capture());
+        assertEquals(reopened, refreshed.getValue().stream().sorted().toList());
+        for (Invoice invoice : lastWrite.values()) {
+            assertEquals(reopened.contains(invoice.getInvoiceId()), invoice.getContentHash() == null);
+        }
+    }
+
+    @Test
+    void testLateTransactionCountsItsInvoiceOnce() throws IOException {
+        IngestProgress progress = new IngestProgress();
+
+        // invoice 1 is complete, and short of its net amount, before its second transaction arrives
+        UploadSummaryDto summary = service.parseAndSave(new ClassPathResource("sampleFiles/LateInvoices.csv"),
+                new ClassPathResource("sampleFiles/LateTransactions.csv"), new IngestOptions(), progress);
+
+        assertEquals(2, summary.getInvoicesSaved());
+        assertEquals(3, summary.getTransactionsSaved());
+        assertEquals(1, summary.getValidInvoices());
+        assertEquals(1, summary.getInvalidInvoices());
+        assertEquals(2, progress.getInvoicesValidated());
+        assertEquals(5, progress.getRowsPersisted());
+        SimpleMeterRegistry registry = (SimpleMeterRegistry) service.ingestMetrics.meterRegistry;
+        // the net mismatch of the first write is not counted again, the count mismatch it gained is
+        assertEquals(1, registry.find("invoice.ingest.invalid").tag("reason", "net_mismatch").counter().count());
+        assertEquals(1, registry.find("invoice.ingest.invalid").tag("reason", "count_mismatch").counter().count());
+        assertEquals(2, registry.find("invoice.ingest.invalid").counters().stream()
+                .mapToDouble(counter -> counter.count()).sum());
+    }
+
+    @Test
+    void testPersistFailureFailsTheUpload() {
+        IllegalStateException failure = new IllegalStateException("database down");
+        doThrow(failure).when(service.invoicePersistenceService).persist(any(), any());
+
+        IllegalStateException thrown = assertThrows(IllegalStateException.class,
+                () -> service.parseAndSave(INVOICES, TRANSACTIONS, new IngestOptions(), new IngestProgress()));
+        assertSame(failure, thrown);
+    }
+
+    @Test
+    void testErrorBudgetFailureReportsCommittedChunks(@TempDir Path dir) throws Exception {
+        // the percentage budget can only be judged at the end of the file, after chunks were written
+        StringBuilder badRows = new StringBuilder("\n");
+        for (int i = 0; i < 50; i++) {
+            badRows.append("1,2\n");
+        }
+        RejectionReport rejections = new RejectionReport("budget", false, 10, 100, dir);
+        rejections.setErrorBudget(0, 1);
+        IngestProgress progress = new IngestProgress();
+        progress.setRejections(rejections);
+        // every write is slow, so one is still running when the budget is exceeded
+        CountDownLatch firstWrite = new CountDownLatch(1);
+        AtomicLong persisted = new AtomicLong();
+        doAnswer(invocation -> {
+            firstWrite.countDown();
+            Thread.sleep(50);
+            List<Invoice> chunk = invocation.getArgument(0);
+            persisted.addAndGet(chunk.size());
+            return chunk;
+        }).when(service.invoicePersistenceService).persist(any(), any());
+        // the bad rows are read only once a chunk is being written
+        InputStream gate = new FilterInputStream(new ByteArrayInputStream(badRows.toString()
+                .getBytes(StandardCharsets.UTF_8))) {
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                try {
+                    assertTrue(firstWrite.await(5, TimeUnit.SECONDS));
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+                return super.read(buffer, offset, length);
+            }
+        };
+        InputStreamSource transactions = () -> new SequenceInputStream(TRANSACTIONS.getInputStream(), gate);
+
+        ErrorBudgetExceededException failure = assertThrows(ErrorBudgetExceededException.class,
+                () -> service.parseAndSave(INVOICES, transactions, new IngestOptions(), progress));
+
+        // the count in the message is final: no write ends after the upload has failed
+        long committed = persisted.get();
+        assertTrue(committed > 0);
+        assertTrue(failure.getMessage().matches("Error budget exceeded: .* " + committed
+                + " invoices of earlier chunks were already committed"), failure.getMessage());
+        Thread.sleep(200);
+        assertEquals(committed, persisted.get());
+        rejections.delete();
+    }
+
+    @Test
+    void testUploadIsRejectedWhenThePipelineThreadsAreTaken() throws IOException {
+        service.pipelineExecutor.shutdown();
+        // one short of the three reconcile, two map and two persist workers
+        startExecutor(6);
+
+        assertThrows(UploadRejectedException.class,
+                () -> service.parseAndSave(INVOICES, TRANSACTIONS, new IngestOptions(), new IngestProgress()));
+        verifyNoInteractions(service.invoicePersistenceService);
+    }
+
+    @Test
+    void testThreadsAreGivenBackAfterEachUpload() throws IOException {
+        for (int upload = 0; upload < 3; upload++) {
+            UploadSummaryDto summary = service.parseAndSave(INVOICES, TRANSACTIONS, new IngestOptions(),
+                    new IngestProgress());
+            assertEquals(summary.getInvoicesRead(), summary.getValidInvoices() + summary.getInvalidInvoices());
+        }
+    }
+
+    @Test
+    void testStagesRunOnVirtualThreadsWhenEnabled() throws IOException {
+        service.pipelineExecutor.shutdown();
+        startExecutor(7, true);
+        Set<Boolean> virtual = ConcurrentHashMap.newKeySet();
+        doAnswer(invocation -> {
+            // reopened invoices are written by the request thread at the end
+            if (Thread.currentThread().getName().startsWith("ingest-pipeline-")) {
+                virtual.add(Thread.currentThread().isVirtual());
+            }
+            return invocation.getArgument(0);
+        }).when(service.invoicePersistenceService).persist(any(), any());
+
+        service.parseAndSave(INVOICES, TRANSACTIONS, new IngestOptions(), new IngestProgress());
+
+        assertEquals(Set.of(true), virtual);
+    }
+
+    private void startExecutor(int maxThreads) {
+        startExecutor(maxThreads, false);
+    }
+
+    private void startExecutor(int maxThreads, boolean virtualThreads) {
+        service.ingestProperties.getPipeline().setMaxThreads(maxThreads);
+        service.pipelineExecutor = new PipelineExecutor();
+        service.pipelineExecutor.ingestProperties = service.ingestProperties;
+        service.pipelineExecutor.virtualThreads = virtualThreads;
+        service.pipelineExecutor.init();
+    }
+
+    private static Set<Long> ids(Invoice invoice) {
+        Set<Long> ids = new TreeSet<>();
+        invoice.getTransactions().stream().map(Transaction::getTrxnId).forEach(ids::add);
+        return ids;
+    }
+}
@@ -0,0 +1,59 @@
+package com.kraken.invoice;
+
+import com.kraken.invoice.config.QueryProperties;
+import com.kraken.invoice.controller.ReadLimitInterceptor;
+import com.kraken.invoice.exception.ReadRejectedException;
+import jakarta.servlet.DispatcherType;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ReadLimitInterceptorTest {
+
+    private ReadLimitInterceptor interceptor;
+    private final MockHttpServletResponse response = new MockHttpServletResponse();
+
+    @BeforeEach
+    void setUp() {
+        interceptor = new ReadLimitInterceptor();
+        interceptor.queryProperties = new QueryProperties();
+        interceptor.queryProperties.setMaxConcurrentReads(1);
+        interceptor.queryProperties.setReadWait(Duration.ZERO);
+        interceptor.init();
+    }
+
+    @Test
+    void testReadsPastTheLimitAreRejectedUntilOneCompletes() throws Exception {
+        MockHttpServletRequest first = new MockHttpServletRequest("GET", "/invoice/1");
+        assertTrue(interceptor.preHandle(first, response, null));
+
+        assertThrows(ReadRejectedException.class,
+                () -> interceptor.preHandle(new MockHttpServletRequest("POST", "/invoice/status"), response, null));
+        // uploads are not reads and never wait here
+        assertTrue(interceptor.preHandle(new MockHttpServletRequest("POST", "/invoice"), response, null));
+
+        interceptor.afterCompletion(first, response, null, null);
+        assertTrue(interceptor.preHandle(new MockHttpServletRequest("GET", "/invoice/2"), response, null));
+    }
+
+    @Test
+    void testStreamKeepsItsPermitUntilTheAsyncDispatchCompletes() throws Exception {
+        MockHttpServletRequest stream = new MockHttpServletRequest("GET", "/invoice/stream");
+        assertTrue(interceptor.preHandle(stream, response, null));
+        interceptor.afterConcurrentHandlingStarted(stream, response, null);
+
+        assertThrows(ReadRejectedException.class,
+                () -> interceptor.preHandle(new MockHttpServletRequest("GET", "/invoice/1"), response, null));
+
+        stream.setDispatcherType(DispatcherType.ASYNC);
+        assertTrue(interceptor.preHandle(stream, response, null));
+        interceptor.afterCompletion(stream, response, null, null);
+        assertTrue(interceptor.preHandle(new MockHttpServletRequest("GET", "/invoice/1"), response, null));
+    }
+}
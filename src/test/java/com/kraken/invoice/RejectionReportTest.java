@@ -0,0 +1,186 @@
+package com.kraken.invoice;
+
+import com.kraken.invoice.config.IngestProperties;
+import com.kraken.invoice.entity.IngestOptions;
+import com.kraken.invoice.entity.RejectionSummaryDto;
+import com.kraken.invoice.service.InvoiceTransactionParser;
+import com.kraken.invoice.service.RejectionReport;
+import com.kraken.invoice.service.RejectionReportService;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.core.io.ByteArrayResource;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RejectionReportTest {
+
+    private static final String HEADER = "trxn_id,date_received,transaction_date,invoice_id,invoice_number,"
+            + "billing_period_start,billing_period_end,net_transaction_amount,gst_amount\n";
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void testRowsSpillToDiskAndStopAtMaxRows() throws IOException {
+        RejectionReport report = new RejectionReport("r1", false, 2, 5, dir);
+        for (int i = 1; i <= 8; i++) {
+            report.add("transaction", i, i % 2 == 0 ? "missing invoice ID" : "missing transaction ID", "row," + i);
+        }
+        report.finish();
+
+        RejectionSummaryDto summary = report.summary();
+        assertEquals(8, summary.getRowsRejected());
+        assertEquals(5, summary.getRowsRetained());
+        assertEquals(4L, summary.getByReason().get("transaction: missing invoice ID"));
+        assertEquals(2, summary.getSample().size());
+
+        StringWriter csv = new StringWriter();
+        report.writeCsv(csv);
+        List<String> lines = csv.toString().lines().toList();
+        assertEquals(6, lines.size());
+        assertEquals("file,line,reason,row", lines.get(0));
+        assertEquals("transaction,5,missing transaction ID,\"row,5\"", lines.get(5));
+        report.delete();
+    }
+
+    @Test
+    void testReportWithoutRowsIsDroppedWhenFinished() {
+        RejectionReportService service = service(10);
+        RejectionReport empty = service.create(new IngestOptions());
+        RejectionReport rejected = service.create(new IngestOptions());
+        rejected.add("transaction", 3, "missing invoice ID", "row,3");
+
+        service.finish(empty);
+        service.finish(rejected);
+
+        assertNull(empty.summary().getReportId());
+        assertThrows(NoSuchElementException.class, () -> service.get(empty.getReportId()));
+        assertSame(rejected, service.get(rejected.getReportId()));
+        service.shutdown();
+    }
+
+    @Test
+    void testOldestFinishedReportsAreDroppedOverMaxReports() throws InterruptedException {
+        RejectionReportService service = service(2);
+        RejectionReport oldest = service.create(new IngestOptions());
+        RejectionReport newer = service.create(new IngestOptions());
+        RejectionReport running = service.create(new IngestOptions());
+        for (RejectionReport report : List.of(oldest, newer, running)) {
+            report.add("transaction", 1, "missing invoice ID", "row,1");
+        }
+        service.finish(oldest);
+        Thread.sleep(5);
+        service.finish(newer);
+
+        RejectionReport latest = service.create(new IngestOptions());
+
+        assertThrows(NoSuchElementException.class, () -> service.get(oldest.getReportId()));
+        assertThrows(NoSuchElementException.class, () -> service.get(newer.getReportId()));
+        // reports of uploads still running are never dropped
+        assertSame(running, service.get(running.getReportId()));
+        assertSame(latest, service.get(latest.getReportId()));
+        service.shutdown();
+    }
+
+    @Test
+    void testSlowDownloadDoesNotBlockTheUpload() throws Exception {
+        RejectionReport report = new RejectionReport("r2", false, 1, 100, dir);
+        for (int i = 1; i <= 3; i++) {
+            report.add("transaction", i, "missing invoice ID", "row," + i);
+        }
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        StringWriter received = new StringWriter();
+        Writer slowClient = new Writer() {
+            @Override
+            public void write(char[] buffer, int off, int len) throws IOException {
+                writing.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+                received.write(buffer, off, len);
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+
+        CompletableFuture<Void> download = CompletableFuture.runAsync(() -> {
+            try {
+                report.writeCsv(slowClient);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        assertTrue(writing.await(5, TimeUnit.SECONDS));
+        // the parser keeps rejecting rows while the client is stuck on the download
+        CompletableFuture.runAsync(() -> report.add("transaction", 4, "missing invoice ID", "row,4"))
+                .get(5, TimeUnit.SECONDS);
+        release.countDown();
+        download.get(5, TimeUnit.SECONDS);
+
+        List<String> lines = received.toString().lines().toList();
+        assertEquals(4, lines.size(), "rows rejected after the snapshot are left out");
+        assertEquals("transaction,3,missing invoice ID,\"row,3\"", lines.get(3));
+        assertEquals(4, report.getRowsRejected());
+        report.delete();
+    }
+
+    @Test
+    void testParallelParserReportsSameRejectionsAsSequential() throws IOException {
+        StringBuilder csv = new StringBuilder(HEADER);
+        for (int i = 1; i <= 300; i++) {
+            String invoiceId = i % 20 == 0 ? "" : "1";
+            csv.append(i).append(",,,").append(invoiceId).append(",INV,,,1.00,0.10\n");
+        }
+        ByteArrayResource file = new ByteArrayResource(csv.toString().getBytes(StandardCharsets.UTF_8));
+        InvoiceTransactionParser parser = new InvoiceTransactionParser();
+        parser.ingestMetrics = IngestMetricsTest.simpleMetrics();
+
+        RejectionReport sequential = new RejectionReport("seq", false, 100, 100, dir);
+        parser.streamTransactions(file, (invoiceId, dto) -> { }, sequential);
+        RejectionReport parallel = new RejectionReport("par", false, 100, 100, dir);
+        parser.streamTransactionsParallel(file, (invoiceId, dto) -> { }, 4, 256, parallel);
+
+        assertEquals(15, sequential.getRowsRejected());
+        StringWriter expected = new StringWriter();
+        sequential.writeCsv(expected);
+        StringWriter actual = new StringWriter();
+        parallel.writeCsv(actual);
+        assertEquals(expected.toString(), actual.toString());
+        assertEquals(20, sequential.summary().getSample().get(0).getLine());
+    }
+
+    private RejectionReportService service(int maxReports) {
+        IngestProperties properties = new IngestProperties();
+        properties.getRejections().setSpillDir(dir.toString());
+        properties.getRejections().setMaxReports(maxReports);
+        RejectionReportService service = new RejectionReportService();
+        service.ingestProperties = properties;
+        return service;
+    }
+}
@@ -0,0 +1,62 @@
+package com.kraken.invoice;
+
+import com.kraken.invoice.config.IngestProperties;
+import com.kraken.invoice.entity.IngestOptions;
+import com.kraken.invoice.entity.Invoice;
+import com.kraken.invoice.entity.UploadSummaryDto;
+import com.kraken.invoice.service.IngestProgress;
+import com.kraken.invoice.service.InvoicePersistenceService;
+import com.kraken.invoice.service.InvoiceTransactionParser;
+import com.kraken.invoice.service.StreamingInvoiceService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.ClassPathResource;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+class StreamingInvoiceServiceTest {
+
+    @Test
+    void testLateTransactionCountsItsInvoiceOnce() throws IOException {
+        InvoiceTransactionParser parser = new InvoiceTransactionParser();
+        parser.ingestProperties = new IngestProperties();
+        parser.ingestMetrics = IngestMetricsTest.simpleMetrics();
+        StreamingInvoiceService service = new StreamingInvoiceService();
+        service.invoiceTransactionParser = parser;
+        service.ingestProperties = new IngestProperties();
+        service.ingestMetrics = IngestMetricsTest.simpleMetrics();
+        service.invoicePersistenceService = mock(InvoicePersistenceService.class);
+        List<Long> written = new ArrayList<>();
+        doAnswer(invocation -> {
+            List<Invoice> chunk = invocation.getArgument(0);
+            chunk.forEach(invoice -> written.add(invoice.getInvoiceId()));
+            return chunk;
+        }).when(service.invoicePersistenceService).persist(any(), any());
+        IngestProgress progress = new IngestProgress();
+
+        // invoice 1 is complete, and short of its net amount, before its second transaction arrives
+        UploadSummaryDto summary = service.parseAndSave(new ClassPathResource("sampleFiles/LateInvoices.csv"),
+                new ClassPathResource("sampleFiles/LateTransactions.csv"), new IngestOptions(), progress);
+
+        // invoice 1 is written again with its late transaction, but saved and validated once
+        assertEquals(List.of(1L, 2L, 1L), written);
+        assertEquals(2, summary.getInvoicesSaved());
+        assertEquals(3, summary.getTransactionsSaved());
+        assertEquals(1, summary.getValidInvoices());
+        assertEquals(1, summary.getInvalidInvoices());
+        assertEquals(2, progress.getInvoicesValidated());
+        assertEquals(5, progress.getRowsPersisted());
+        SimpleMeterRegistry registry = (SimpleMeterRegistry) service.ingestMetrics.meterRegistry;
+        assertEquals(1, registry.find("invoice.ingest.invalid").tag("reason", "net_mismatch").counter().count());
+        assertEquals(1, registry.find("invoice.ingest.invalid").tag("reason", "count_mismatch").counter().count());
+        assertEquals(2, registry.find("invoice.ingest.invalid").counters().stream()
+                .mapToDouble(counter -> counter.count()).sum());
+    }
+}
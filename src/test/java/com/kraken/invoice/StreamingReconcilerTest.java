@@ -0,0 +1,89 @@
+package com.kraken.invoice;
+
+import com.kraken.invoice.entity.InvoiceDto;
+import com.kraken.invoice.entity.TransactionDto;
+import com.kraken.invoice.service.StreamingReconciler;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class StreamingReconcilerTest {
+
+    @Test
+    void testInvoiceIsEmittedOnceComplete() {
+        Map<Long, InvoiceDto> invoices = new LinkedHashMap<>();
+        invoices.put(1L, invoice(1L, "10", "1", 2));
+        List<String> emitted = new ArrayList<>();
+        StreamingReconciler reconciler = new StreamingReconciler(invoices,
+                dto -> emitted.add(dto.getInvoiceId() + ":" + dto.getStatus() + ":" + dto.getTransactions().size()));
+
+        reconciler.accept(1L, txn(100L, "4", "0.4"));
+        assertEquals(0, emitted.size());
+        reconciler.accept(1L, txn(101L, "6", "0.6"));
+        assertEquals(List.of("1:valid:2"), emitted);
+        assertNull(invoices.get(1L).getTransactions());
+
+        reconciler.finish();
+        assertEquals(1, emitted.size());
+    }
+
+    @Test
+    void testLateTransactionReopensInvoice() {
+        Map<Long, InvoiceDto> invoices = new LinkedHashMap<>();
+        invoices.put(1L, invoice(1L, "10", "1", 1));
+        List<String> emitted = new ArrayList<>();
+        StreamingReconciler reconciler = new StreamingReconciler(invoices,
+                dto -> emitted.add(dto.getInvoiceId() + ":" + dto.getStatus() + ":" + dto.getTransactions().size()));
+
+        reconciler.accept(1L, txn(100L, "10", "1"));
+        reconciler.accept(1L, txn(101L, "1", "0.1"));
+        reconciler.finishOpen();
+
+        assertEquals(List.of(1L), reconciler.finishReopened());
+        assertEquals(List.of("1:valid:1", "1:invalid:1"), emitted);
+        assertEquals(1, reconciler.countByStatus("invalid"));
+    }
+
+    @Test
+    void testIncompleteAndOrphanTransactions() {
+        Map<Long, InvoiceDto> invoices = new LinkedHashMap<>();
+        invoices.put(1L, invoice(1L, "10", "1", 3));
+        invoices.put(2L, invoice(2L, "0", "0", 0));
+        List<String> emitted = new ArrayList<>();
+        StreamingReconciler reconciler = new StreamingReconciler(invoices,
+                dto -> emitted.add(dto.getInvoiceId() + ":" + dto.getStatus()));
+
+        reconciler.accept(1L, txn(100L, "10", "1"));
+        reconciler.accept(99L, txn(101L, "5", "0.5"));
+        reconciler.finish();
+
+        assertEquals(List.of("1:invalid", "2:valid"), emitted);
+        assertEquals("Transaction count mismatch (expected 3, found 1).", invoices.get(1L).getReason());
+        assertEquals(2, reconciler.getTransactionsRead());
+        assertEquals(1, reconciler.getOrphanTransactions());
+    }
+
+    private InvoiceDto invoice(Long id, String net, String gst, int count) {
+        InvoiceDto dto = new InvoiceDto();
+        dto.setInvoiceId(id);
+        dto.setNetAmount(new BigDecimal(net));
+        dto.setGstAmount(new BigDecimal(gst));
+        dto.setTotalNoTrxn(count);
+        return dto;
+    }
+
+    private TransactionDto txn(Long id, String net, String gst) {
+        TransactionDto dto = new TransactionDto();
+        dto.setTrxnId(id);
+        dto.setNetTransactionAmount(new BigDecimal(net));
+        dto.setGstAmount(new BigDecimal(gst));
+        return dto;
+    }
+}
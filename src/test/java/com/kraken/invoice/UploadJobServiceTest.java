@@ -0,0 +1,220 @@
+package com.kraken.invoice;
+
+import com.kraken.invoice.config.IngestProperties;
+import com.kraken.invoice.entity.IngestOptions;
+import com.kraken.invoice.entity.UploadJobDto;
+import com.kraken.invoice.entity.UploadSummaryDto;
+import com.kraken.invoice.exception.InvalidOptionException;
+import com.kraken.invoice.exception.TransactionFileProcessingException;
+import com.kraken.invoice.exception.UploadRejectedException;
+import com.kraken.invoice.service.InvoiceIngestService;
+import com.kraken.invoice.service.RejectionReport;
+import com.kraken.invoice.service.RejectionReportService;
+import com.kraken.invoice.service.UploadJobService;
+import com.kraken.invoice.service.UploadLedger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+
+class UploadJobServiceTest {
+
+    @TempDir
+    Path dir;
+
+    private final UploadJobService service = new UploadJobService();
+    // temp files the jobs were run from
+    private final List<Path> spooled = new CopyOnWriteArrayList<>();
+
+    @BeforeEach
+    void setUp() {
+        IngestProperties properties = new IngestProperties();
+        properties.getJobs().setConcurrency(1);
+        properties.getJobs().setQueueCapacity(1);
+        properties.getRejections().setSpillDir(dir.toString());
+        service.ingestProperties = properties;
+        service.invoiceIngestService = mock(InvoiceIngestService.class);
+        service.rejectionReportService = new RejectionReportService();
+        service.rejectionReportService.ingestProperties = properties;
+        service.uploadLedger = new UploadLedger();
+        service.uploadLedger.ingestProperties = properties;
+        service.init();
+    }
+
+    @AfterEach
+    void tearDown() {
+        service.shutdown();
+        service.rejectionReportService.shutdown();
+    }
+
+    @Test
+    void testCompletedJobReportsSummaryAndDeletesSpooledFiles() throws Exception {
+        UploadSummaryDto summary = new UploadSummaryDto();
+        doAnswer(invocation -> {
+            FileSystemResource invoices = invocation.getArgument(0);
+            FileSystemResource transactions = invocation.getArgument(1);
+            spooled.add(invoices.getFile().toPath());
+            spooled.add(transactions.getFile().toPath());
+            assertEquals("invoice rows", invoices.getContentAsString(StandardCharsets.UTF_8));
+            assertEquals("transaction rows", transactions.getContentAsString(StandardCharsets.UTF_8));
+            return summary;
+        }).when(service.invoiceIngestService).ingest(any(), any(), any(), any());
+
+        UploadJobDto queued = service.submit(file("invoices", "invoice rows"),
+                file("transactions", "transaction rows"), new IngestOptions());
+        UploadJobDto job = awaitFinished(queued.getJobId());
+
+        assertEquals("completed", job.getStatus());
+        assertSame(summary, job.getSummary());
+        assertNull(job.getError());
+        assertEquals(2, spooled.size());
+        await(() -> spooled.stream().allMatch(Files::notExists), "spooled files were not deleted");
+    }
+
+    @Test
+    void testFailedJobReportsErrorAndDeletesSpooledFiles() throws Exception {
+        doAnswer(invocation -> {
+            spooled.add(((FileSystemResource) invocation.getArgument(0)).getFile().toPath());
+            spooled.add(((FileSystemResource) invocation.getArgument(1)).getFile().toPath());
+            throw new TransactionFileProcessingException("Invalid transaction record at line 7");
+        }).when(service.invoiceIngestService).ingest(any(), any(), any(), any());
+
+        UploadJobDto queued = service.submit(file("invoices", "invoice rows"),
+                file("transactions", "transaction rows"), new IngestOptions());
+        UploadJobDto job = awaitFinished(queued.getJobId());
+
+        assertEquals("failed", job.getStatus());
+        assertEquals("Invalid transaction record at line 7", job.getError());
+        assertNull(job.getSummary());
+        await(() -> spooled.size() == 2 && spooled.stream().allMatch(Files::notExists),
+                "spooled files were not deleted");
+    }
+
+    @Test
+    void testFullQueueIsRejected() throws Exception {
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            running.countDown();
+            assertTrue(release.await(5, TimeUnit.SECONDS));
+            return new UploadSummaryDto();
+        }).when(service.invoiceIngestService).ingest(any(), any(), any(), any());
+
+        UploadJobDto first = service.submit(file("invoices", "1"), file("transactions", "1"), new IngestOptions());
+        assertTrue(running.await(5, TimeUnit.SECONDS));
+        UploadJobDto second = service.submit(file("invoices", "2"), file("transactions", "2"), new IngestOptions());
+        assertEquals("queued", service.getJob(second.getJobId()).getStatus());
+
+        MultipartFile third = mock(MultipartFile.class);
+        assertThrows(UploadRejectedException.class,
+                () -> service.submit(third, third, new IngestOptions()));
+        verify(third, never()).transferTo(any(Path.class));
+
+        release.countDown();
+        assertEquals("completed", awaitFinished(first.getJobId()).getStatus());
+        assertEquals("completed", awaitFinished(second.getJobId()).getStatus());
+    }
+
+    @Test
+    void testFailedSpoolDeletesSpooledFilesAndFinishesReport() throws Exception {
+        List<RejectionReport> reports = new CopyOnWriteArrayList<>();
+        service.rejectionReportService = spy(service.rejectionReportService);
+        doAnswer(invocation -> {
+            RejectionReport report = (RejectionReport) invocation.callRealMethod();
+            reports.add(report);
+            return report;
+        }).when(service.rejectionReportService).create(any());
+        MultipartFile invoices = mock(MultipartFile.class);
+        doAnswer(invocation -> {
+            Path path = invocation.getArgument(0);
+            Files.writeString(path, "invoice rows");
+            spooled.add(path);
+            return null;
+        }).when(invoices).transferTo(any(Path.class));
+        MultipartFile transactions = mock(MultipartFile.class);
+        doThrow(new IOException("Connection reset")).when(transactions).transferTo(any(Path.class));
+
+        IOException e = assertThrows(IOException.class,
+                () -> service.submit(invoices, transactions, new IngestOptions()));
+
+        assertEquals("Connection reset", e.getMessage());
+        assertEquals(1, spooled.size());
+        assertTrue(Files.notExists(spooled.get(0)), "spooled invoice file was not deleted");
+        assertEquals(1, reports.size());
+        assertNotNull(reports.get(0).getFinishedAt(), "rejection report was not finished");
+        verifyNoInteractions(service.invoiceIngestService);
+    }
+
+    @Test
+    void testUnknownOptionsAreRejectedBeforeSpooling() throws Exception {
+        MultipartFile upload = mock(MultipartFile.class);
+        IngestOptions mode = new IngestOptions();
+        mode.setMode("bogus");
+        IngestOptions persistence = new IngestOptions();
+        persistence.setPersistence("bogus");
+        IngestOptions parser = new IngestOptions();
+        parser.setParser("bogus");
+        IngestOptions budget = new IngestOptions();
+        budget.setMaxBadPercent(150.0);
+
+        for (IngestOptions options : List.of(mode, persistence, parser, budget)) {
+            assertThrows(InvalidOptionException.class, () -> service.submit(upload, upload, options));
+        }
+        verify(upload, never()).transferTo(any(Path.class));
+        verifyNoInteractions(service.invoiceIngestService);
+    }
+
+    @Test
+    void testUnknownJobIsNotFound() {
+        assertThrows(NoSuchElementException.class, () -> service.getJob("missing"));
+    }
+
+    private UploadJobDto awaitFinished(String jobId) throws InterruptedException {
+        await(() -> {
+            String status = service.getJob(jobId).getStatus();
+            return "completed".equals(status) || "failed".equals(status);
+        }, "job " + jobId + " did not finish");
+        return service.getJob(jobId);
+    }
+
+    private static void await(BooleanSupplier condition, String message) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, message);
+            Thread.sleep(10);
+        }
+    }
+
+    private static MockMultipartFile file(String name, String content) {
+        return new MockMultipartFile(name, name + ".csv", "text/csv", content.getBytes(StandardCharsets.UTF_8));
+    }
+}
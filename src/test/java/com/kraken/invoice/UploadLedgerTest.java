@@ -0,0 +1,132 @@
+package com.kraken.invoice;
+
+import com.kraken.invoice.config.IngestProperties;
+import com.kraken.invoice.entity.IngestOptions;
+import com.kraken.invoice.entity.UploadSummaryDto;
+import com.kraken.invoice.exception.IdempotencyConflictException;
+import com.kraken.invoice.exception.InvalidOptionException;
+import com.kraken.invoice.exception.InvoiceFileProcessingException;
+import com.kraken.invoice.exception.UploadInProgressException;
+import com.kraken.invoice.service.UploadLedger;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockMultipartFile;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class UploadLedgerTest {
+
+    private static final Duration WAIT = Duration.ofSeconds(5);
+
+    private final UploadLedger ledger = new UploadLedger();
+    private final IngestOptions options = new IngestOptions();
+
+    @BeforeEach
+    void setUp() {
+        ledger.ingestProperties = new IngestProperties();
+        // synchronous standard uploads answer with the invoice list and are kept out of the ledger
+        options.setMode("streaming");
+    }
+
+    @Test
+    void testKeyedRetryIsAnsweredFromLedger() throws IOException {
+        UploadLedger.Claim first = ledger.claim("retry-1", file("invoices"), file("transactions"), options);
+        assertTrue(first.owner());
+        UploadSummaryDto summary = new UploadSummaryDto();
+        ledger.complete(first.entry(), summary);
+
+        UploadLedger.Claim retry = ledger.claim("retry-1", file("invoices"), file("transactions"), options);
+        assertFalse(retry.owner());
+        assertSame(summary, retry.entry().await(WAIT));
+
+        assertThrows(IdempotencyConflictException.class,
+                () -> ledger.claim("retry-1", file("other invoices"), file("transactions"), options));
+        // same sizes, different content
+        assertThrows(IdempotencyConflictException.class,
+                () -> ledger.claim("retry-1", file("invoicez"), file("transactions"), options));
+    }
+
+    @Test
+    void testIdenticalFilesWithoutKeyShareOneRun() throws IOException {
+        // on by default
+        IngestOptions streaming = new IngestOptions();
+        streaming.setMode("streaming");
+        UploadLedger.Claim first = ledger.claim(null, file("invoices"), file("transactions"), streaming);
+        UploadLedger.Claim duplicate = ledger.claim(null, file("invoices"), file("transactions"), streaming);
+        assertTrue(first.owner());
+        assertFalse(duplicate.owner());
+        assertFalse(duplicate.entry().isDone());
+
+        CompletableFuture<UploadSummaryDto> waiting = CompletableFuture.supplyAsync(() -> {
+            try {
+                return duplicate.entry().await(WAIT);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        UploadSummaryDto summary = new UploadSummaryDto();
+        ledger.complete(first.entry(), summary);
+        assertSame(summary, waiting.join());
+
+        IngestOptions async = new IngestOptions();
+        async.setAsync(true);
+        assertTrue(ledger.claim(null, file("invoices"), file("transactions"), async).owner());
+        assertTrue(ledger.claim(null, file("transactions"), file("invoices"), streaming).owner());
+    }
+
+    @Test
+    void testStandardUploadIsKeptOutOfTheLedger() throws IOException {
+        IngestOptions standard = new IngestOptions();
+        // the client expects the invoice list back, which a replay cannot give
+        assertNull(ledger.claim(null, file("invoices"), file("transactions"), standard));
+        assertThrows(InvalidOptionException.class,
+                () -> ledger.claim("key", file("invoices"), file("transactions"), standard));
+
+        standard.setAsync(true);
+        assertTrue(ledger.claim("key", file("invoices"), file("transactions"), standard).owner());
+    }
+
+    @Test
+    void testFailedUploadIsForgotten() throws IOException {
+        UploadLedger.Claim first = ledger.claim("retry-2", file("invoices"), file("transactions"), options);
+        UploadLedger.Claim duplicate = ledger.claim("retry-2", file("invoices"), file("transactions"), options);
+        ledger.fail(first.entry(), new InvoiceFileProcessingException("Error Processing Invoice File"));
+
+        assertThrows(InvoiceFileProcessingException.class, () -> duplicate.entry().await(WAIT));
+        assertTrue(ledger.claim("retry-2", file("invoices"), file("transactions"), options).owner());
+    }
+
+    @Test
+    void testRepeatStopsWaitingForARunningUpload() throws IOException {
+        UploadLedger.Claim first = ledger.claim("retry-3", file("invoices"), file("transactions"), options);
+        UploadLedger.Claim duplicate = ledger.claim("retry-3", file("invoices"), file("transactions"), options);
+
+        assertThrows(UploadInProgressException.class, () -> duplicate.entry().await(Duration.ofMillis(50)));
+        ledger.complete(first.entry(), new UploadSummaryDto());
+        assertNotNull(duplicate.entry().await(WAIT));
+    }
+
+    @Test
+    void testDisabledLedgerClaimsNothing() throws IOException {
+        ledger.ingestProperties.getIdempotency().setHashContent(false);
+        assertNull(ledger.claim(null, file("invoices"), file("transactions"), options));
+        assertTrue(ledger.claim("key", file("invoices"), file("transactions"), options).owner());
+
+        ledger.ingestProperties.getIdempotency().setEnabled(false);
+        assertNull(ledger.claim("key", file("invoices"), file("transactions"), options));
+    }
+
+    private static MockMultipartFile file(String content) {
+        return new MockMultipartFile("file", "file.csv", "text/csv", content.getBytes(StandardCharsets.UTF_8));
+    }
+}